@@ -15,6 +15,7 @@ package com.goodow.realtime.channel;
 
 import com.google.gwt.core.client.js.JsType;
 
+import com.goodow.realtime.core.AsyncResult;
 import com.goodow.realtime.core.Handler;
 import com.goodow.realtime.core.Registration;
 
@@ -27,6 +28,12 @@ import com.goodow.realtime.core.Registration;
  * Handlers are registered against a topic. There can be multiple handlers registered against
  * each topic, and a particular handler can be registered against multiple topics. The event
  * bus will route a sent message to all handlers which are registered against that topic.<p>
+ * A handler can also be registered against a topic filter with MQTT-style wildcards: {@code +}
+ * matches a single topic level and {@code #} matches any number of trailing levels, e.g.
+ * {@code realtime/store/+/_watch}. A remote bus registers wildcard filters with its server like
+ * topics, and the server delivers the messages published on matching topics through the channel,
+ * once per message however many filters match. Point to point sends are only matched by the
+ * filters of the bus they are sent on.<p>
  * For point to point messaging, messages can be sent to a topic using one of the {@link #send}
  * methods. The messages will be delivered to a single handler, if one is registered on that
  * topic. If more than one handler is registered on the same topic, the bus will choose one and
@@ -81,6 +88,19 @@ public interface Bus {
    */
   <T> Bus send(String topic, Object msg, Handler<Message<T>> replyHandler);
 
+  /**
+   * Send a message with a reply timeout
+   *
+   * @param topic The topic to send it to
+   * @param msg The message
+   * @param timeoutMs Timeout in milliseconds
+   * @param replyHandler Reply handler will be called with the reply from the recipient, or with a
+   *          {@link ReplyException} of type {@link ReplyFailure#TIMEOUT} if no reply is received
+   *          within the timeout
+   */
+  <T> Bus sendWithTimeout(String topic, Object msg, int timeoutMs,
+      Handler<AsyncResult<Message<T>>> replyHandler);
+
   /**
    * Send a local message
    *
@@ -0,0 +1,93 @@
+/*
+ * Copyright 2014 Goodow.com
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ * 
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software distributed under the License
+ * is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package com.goodow.realtime.channel;
+
+import com.google.gwt.core.client.js.JsExport;
+import com.google.gwt.core.client.js.JsType;
+
+import com.goodow.realtime.json.JsonArray;
+import com.goodow.realtime.json.JsonObject;
+
+/**
+ * A JSON message body which is serialized once, however many times it is sent: published to
+ * several topics, replayed after a reconnection, or stored while offline. Pass it to
+ * {@link Bus#publish} or {@link Bus#send} in place of the body; handlers receive the body itself.
+ * <p>
+ * The serialized form is computed on first use and kept until the body changes. Changes made
+ * through {@link #set} or {@link #remove} discard it; after changing the body directly, call
+ * {@link #invalidate}. A message already sent or queued keeps the form it was sent with.
+ */
+@JsExport
+@JsType
+public class PreSerialized {
+  /**
+   * Returns the body wrapped by {@code msg} if it is a {@link PreSerialized}, or {@code msg}.
+   */
+  public static Object unwrap(Object msg) {
+    return msg instanceof PreSerialized ? ((PreSerialized) msg).body : msg;
+  }
+
+  private final Object body;
+  private String json;
+
+  /**
+   * @param body a {@link JsonObject} or {@link JsonArray}
+   */
+  public PreSerialized(Object body) {
+    if (!(body instanceof JsonObject) && !(body instanceof JsonArray)) {
+      throw new IllegalArgumentException("Not a JSON object or array: " + body);
+    }
+    this.body = body;
+  }
+
+  @SuppressWarnings("unchecked")
+  public <T> T getBody() {
+    return (T) body;
+  }
+
+  /**
+   * Discards the serialized form, after the body was changed directly.
+   */
+  public PreSerialized invalidate() {
+    json = null;
+    return this;
+  }
+
+  /**
+   * Removes {@code key} from the body, which must be a {@link JsonObject}.
+   */
+  public PreSerialized remove(String key) {
+    ((JsonObject) body).remove(key);
+    return invalidate();
+  }
+
+  /**
+   * Sets {@code key} of the body, which must be a {@link JsonObject}.
+   */
+  public PreSerialized set(String key, Object value) {
+    ((JsonObject) body).set(key, value);
+    return invalidate();
+  }
+
+  /**
+   * Returns the serialized body, computing it if the body changed since it was last serialized.
+   */
+  public String toJsonString() {
+    if (json == null) {
+      json = body instanceof JsonObject ? ((JsonObject) body).toJsonString() : ((JsonArray) body)
+          .toJsonString();
+    }
+    return json;
+  }
+}
@@ -0,0 +1,506 @@
+/*
+ * Copyright 2014 Goodow.com
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License
+ * is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package com.goodow.realtime.channel.impl;
+
+import com.goodow.realtime.json.Json;
+import com.goodow.realtime.json.JsonArray;
+import com.goodow.realtime.json.JsonObject;
+
+/**
+ * A compact binary encoding of envelopes, sent in binary frames.<p>
+ * A frame starts with {@link #MAGIC}, which can't start a UTF-8 text frame, followed by one or more
+ * envelopes. Each envelope is a type byte, the topic, the reply topic and the JSON text of the
+ * body. Strings are UTF-8 bytes prefixed by their length plus one as a varint, 0 standing for
+ * null.<p>
+ * Topics are interned: the first time a topic is encoded it is sent as {@code (id << 1) | 1}
+ * followed by the string, and afterwards as {@code id << 1} alone. {@code 1} followed by a string
+ * is an inline topic which isn't interned, once the table is full. An instance holds the intern
+ * table of one direction of one connection, so it must not be shared between connections.<p>
+ * Binary frames only travel from JVM clients to the server. Browser and iOS sockets can't send
+ * them, and SockJS sockets only write text frames, so the server always answers in JSON. The server
+ * also turns binary envelopes back into JSON text for the event bus bridge, which parses them
+ * again, so the codec saves client CPU and upstream bandwidth at the cost of some server CPU. It
+ * does nothing for downstream bandwidth or for the parsing done by fan-out servers, which is why
+ * servers only accept it when configured to. Bodies are decoded as JSON text and checked to hold
+ * exactly one JSON value before they are spliced into an envelope.
+ */
+public class BinaryEnvelopeCodec implements EnvelopeCodec {
+  public static final byte MAGIC = (byte) 0xB1;
+  private static final String[] TYPES = {"send", "publish", "register", "unregister", "ping"};
+  private static final int DEFAULT_MAX_TOPICS = 4096;
+  private static final char[] HEX = "0123456789abcdef".toCharArray();
+
+  /**
+   * A growable byte array.
+   */
+  private static class Output {
+    byte[] bytes = new byte[256];
+    int length;
+
+    void write(int b) {
+      if (length == bytes.length) {
+        byte[] grown = new byte[bytes.length << 1];
+        System.arraycopy(bytes, 0, grown, 0, length);
+        bytes = grown;
+      }
+      bytes[length++] = (byte) b;
+    }
+
+    void writeVarint(int value) {
+      while ((value & ~0x7F) != 0) {
+        write((value & 0x7F) | 0x80);
+        value >>>= 7;
+      }
+      write(value);
+    }
+
+    void writeString(String s) {
+      if (s == null) {
+        writeVarint(0);
+        return;
+      }
+      writeVarint(utf8Length(s) + 1);
+      for (int i = 0, len = s.length(); i < len; i++) {
+        int c = s.charAt(i);
+        if (c >= 0xD800 && c <= 0xDBFF && i + 1 < len) {
+          c = 0x10000 + ((c - 0xD800) << 10) + (s.charAt(++i) - 0xDC00);
+        }
+        if (c < 0x80) {
+          write(c);
+        } else if (c < 0x800) {
+          write(0xC0 | (c >> 6));
+          write(0x80 | (c & 0x3F));
+        } else if (c < 0x10000) {
+          write(0xE0 | (c >> 12));
+          write(0x80 | ((c >> 6) & 0x3F));
+          write(0x80 | (c & 0x3F));
+        } else {
+          write(0xF0 | (c >> 18));
+          write(0x80 | ((c >> 12) & 0x3F));
+          write(0x80 | ((c >> 6) & 0x3F));
+          write(0x80 | (c & 0x3F));
+        }
+      }
+    }
+
+    byte[] toByteArray() {
+      byte[] toRtn = new byte[length];
+      System.arraycopy(bytes, 0, toRtn, 0, length);
+      return toRtn;
+    }
+  }
+
+  /**
+   * Reads a frame sequentially.
+   */
+  private static class Input {
+    final byte[] bytes;
+    int pos;
+
+    Input(byte[] bytes, int pos) {
+      this.bytes = bytes;
+      this.pos = pos;
+    }
+
+    int read() {
+      if (pos == bytes.length) {
+        throw new IllegalArgumentException("Truncated binary frame");
+      }
+      return bytes[pos++] & 0xFF;
+    }
+
+    int readVarint() {
+      int value = 0;
+      for (int shift = 0; shift < 35; shift += 7) {
+        int b = read();
+        value |= (b & 0x7F) << shift;
+        if ((b & 0x80) == 0) {
+          return value;
+        }
+      }
+      throw new IllegalArgumentException("Malformed varint");
+    }
+
+    String readString() {
+      int length = readVarint() - 1;
+      if (length == -1) {
+        return null;
+      }
+      int end = pos + length;
+      if (end > bytes.length) {
+        throw new IllegalArgumentException("Truncated binary frame");
+      }
+      StringBuilder sb = new StringBuilder(length);
+      while (pos < end) {
+        int b = read();
+        int c;
+        if (b < 0x80) {
+          c = b;
+        } else if (b < 0xE0) {
+          c = ((b & 0x1F) << 6) | (read() & 0x3F);
+        } else if (b < 0xF0) {
+          c = ((b & 0x0F) << 12) | ((read() & 0x3F) << 6) | (read() & 0x3F);
+        } else {
+          c = ((b & 0x07) << 18) | ((read() & 0x3F) << 12) | ((read() & 0x3F) << 6)
+              | (read() & 0x3F);
+        }
+        if (c >= 0x10000) {
+          c -= 0x10000;
+          sb.append((char) (0xD800 + (c >> 10))).append((char) (0xDC00 + (c & 0x3FF)));
+        } else {
+          sb.append((char) c);
+        }
+      }
+      return sb.toString();
+    }
+  }
+
+  /**
+   * Returns whether {@code frame} was produced by a binary codec.
+   */
+  public static boolean isBinary(byte[] frame) {
+    return frame.length > 0 && frame[0] == MAGIC;
+  }
+
+  static int utf8Length(String s) {
+    int length = 0;
+    for (int i = 0, len = s.length(); i < len; i++) {
+      char c = s.charAt(i);
+      if (c < 0x80) {
+        length++;
+      } else if (c < 0x800) {
+        length += 2;
+      } else if (c >= 0xD800 && c <= 0xDBFF && i + 1 < len) {
+        length += 4;
+        i++;
+      } else {
+        length += 3;
+      }
+    }
+    return length;
+  }
+
+  private static void appendQuoted(StringBuilder sb, String s) {
+    sb.append('"');
+    for (int i = 0, len = s.length(); i < len; i++) {
+      char c = s.charAt(i);
+      switch (c) {
+        case '"':
+          sb.append("\\\"");
+          break;
+        case '\\':
+          sb.append("\\\\");
+          break;
+        default:
+          if (c < 0x20) {
+            sb.append("\\u00").append(HEX[c >> 4]).append(HEX[c & 0xF]);
+          } else {
+            sb.append(c);
+          }
+      }
+    }
+    sb.append('"');
+  }
+
+  /**
+   * Checks that {@code text} holds exactly one JSON value, so that a body spliced into an envelope
+   * can't add fields of its own to the envelope, such as {@code 1,"address":"x"}.
+   *
+   * @throws IllegalArgumentException if it doesn't
+   */
+  static void checkJsonValue(String text) {
+    StringBuilder open = new StringBuilder(); // the enclosing '{' and '[', innermost last
+    int pos = skipWhitespace(text, 0);
+    while (true) {
+      char c = charAt(text, pos);
+      if (c == '{' || c == '[') {
+        pos = skipWhitespace(text, pos + 1);
+        if (charAt(text, pos) != (c == '{' ? '}' : ']')) {
+          open.append(c);
+          if (c == '{') {
+            pos = skipKey(text, pos);
+          }
+          continue;
+        }
+        pos++;
+      } else if (c == '"') {
+        pos = skipString(text, pos);
+      } else if (c == '-' || (c >= '0' && c <= '9')) {
+        pos = skipNumber(text, pos);
+      } else {
+        pos = skipLiteral(text, pos);
+      }
+      // A value ended: close its containers until the next element starts
+      while (true) {
+        pos = skipWhitespace(text, pos);
+        if (open.length() == 0) {
+          if (pos != text.length()) {
+            throw malformed(text);
+          }
+          return;
+        }
+        char container = open.charAt(open.length() - 1);
+        c = charAt(text, pos);
+        if (c == ',') {
+          pos = skipWhitespace(text, pos + 1);
+          if (container == '{') {
+            pos = skipKey(text, pos);
+          }
+          break;
+        }
+        if (c != (container == '{' ? '}' : ']')) {
+          throw malformed(text);
+        }
+        open.setLength(open.length() - 1);
+        pos++;
+      }
+    }
+  }
+
+  private static char charAt(String text, int pos) {
+    return pos < text.length() ? text.charAt(pos) : 0;
+  }
+
+  private static IllegalArgumentException malformed(String text) {
+    return new IllegalArgumentException("Malformed JSON body: " + text);
+  }
+
+  private static int skipDigits(String text, int pos) {
+    int start = pos;
+    while (charAt(text, pos) >= '0' && charAt(text, pos) <= '9') {
+      pos++;
+    }
+    if (pos == start) {
+      throw malformed(text);
+    }
+    return pos;
+  }
+
+  /**
+   * Skips an object key and its colon, returning the index where its value starts.
+   */
+  private static int skipKey(String text, int pos) {
+    if (charAt(text, pos) != '"') {
+      throw malformed(text);
+    }
+    pos = skipWhitespace(text, skipString(text, pos));
+    if (charAt(text, pos) != ':') {
+      throw malformed(text);
+    }
+    return skipWhitespace(text, pos + 1);
+  }
+
+  private static int skipLiteral(String text, int pos) {
+    for (String literal : new String[] {"true", "false", "null"}) {
+      if (text.startsWith(literal, pos)) {
+        return pos + literal.length();
+      }
+    }
+    throw malformed(text);
+  }
+
+  private static int skipNumber(String text, int pos) {
+    if (charAt(text, pos) == '-') {
+      pos++;
+    }
+    pos = skipDigits(text, pos);
+    if (charAt(text, pos) == '.') {
+      pos = skipDigits(text, pos + 1);
+    }
+    char c = charAt(text, pos);
+    if (c == 'e' || c == 'E') {
+      c = charAt(text, ++pos);
+      if (c == '+' || c == '-') {
+        pos++;
+      }
+      pos = skipDigits(text, pos);
+    }
+    return pos;
+  }
+
+  private static int skipString(String text, int pos) {
+    for (int i = pos + 1, len = text.length(); i < len; i++) {
+      char c = text.charAt(i);
+      if (c == '"') {
+        return i + 1;
+      } else if (c == '\\') {
+        i++;
+      } else if (c < 0x20) {
+        break;
+      }
+    }
+    throw malformed(text);
+  }
+
+  private static int skipWhitespace(String text, int pos) {
+    char c = charAt(text, pos);
+    while (c == ' ' || c == '\t' || c == '\n' || c == '\r') {
+      c = charAt(text, ++pos);
+    }
+    return pos;
+  }
+
+  private static String toJsonText(Object body) {
+    if (body instanceof JsonObject) {
+      return ((JsonObject) body).toJsonString();
+    }
+    // Let the json library serialize primitives, then unwrap them
+    JsonArray wrapper = Json.createArray();
+    wrapper.push(body);
+    String json = wrapper.toJsonString();
+    return json.substring(1, json.length() - 1);
+  }
+
+  private static int typeOf(String type) {
+    for (int i = 0; i < TYPES.length; i++) {
+      if (TYPES[i].equals(type)) {
+        return i;
+      }
+    }
+    throw new IllegalArgumentException("Unknown envelope type: " + type);
+  }
+
+  private final int maxTopics;
+  private final JsonObject topicIds = Json.createObject(); // HashMap<String, Integer>
+  private final JsonArray topics = Json.createArray(); // ArrayList<String>(), indexed by id - 1
+
+  public BinaryEnvelopeCodec() {
+    this(DEFAULT_MAX_TOPICS);
+  }
+
+  /**
+   * @param maxTopics the maximum number of topics interned per connection. Further topics are sent
+   *          inline.
+   */
+  public BinaryEnvelopeCodec(int maxTopics) {
+    this.maxTopics = maxTopics;
+  }
+
+  @Override
+  public JsonArray decode(Object frame) {
+    JsonArray texts = decodeToJsonText((byte[]) frame);
+    JsonArray envelopes = Json.createArray();
+    for (int i = 0, len = texts.length(); i < len; i++) {
+      JsonObject envelope = Json.parse(texts.getString(i));
+      envelopes.push(envelope);
+    }
+    return envelopes;
+  }
+
+  /**
+   * Decodes each envelope of {@code frame} into its JSON text, copying the body text as is instead
+   * of parsing it.
+   *
+   * @return an array of strings
+   */
+  public JsonArray decodeToJsonText(byte[] frame) {
+    if (!isBinary(frame)) {
+      throw new IllegalArgumentException("Not a binary frame");
+    }
+    JsonArray texts = Json.createArray();
+    Input in = new Input(frame, 1);
+    while (in.pos < frame.length) {
+      int typeIdx = in.read();
+      if (typeIdx >= TYPES.length) {
+        throw new IllegalArgumentException("Unknown envelope type: " + typeIdx);
+      }
+      String type = TYPES[typeIdx];
+      String topic = readTopic(in);
+      String replyTopic = in.readString();
+      String body = in.readString();
+      StringBuilder sb = new StringBuilder("{\"").append(WebSocketBus.TYPE).append("\":");
+      appendQuoted(sb, type);
+      if (topic != null) {
+        sb.append(",\"").append(WebSocketBus.TOPIC).append("\":");
+        appendQuoted(sb, topic);
+      }
+      if (replyTopic != null) {
+        sb.append(",\"").append(WebSocketBus.REPLY_TOPIC).append("\":");
+        appendQuoted(sb, replyTopic);
+      }
+      if (body != null) {
+        checkJsonValue(body);
+        sb.append(",\"").append(WebSocketBus.BODY).append("\":").append(body);
+      }
+      texts.push(sb.append('}').toString());
+    }
+    return texts;
+  }
+
+  @Override
+  public Object encode(JsonArray envelopes) {
+    Output out = new Output();
+    out.write(MAGIC);
+    for (int i = 0, len = envelopes.length(); i < len; i++) {
+      JsonObject envelope = envelopes.getObject(i);
+      out.write(typeOf(envelope.getString(WebSocketBus.TYPE)));
+      writeTopic(out, envelope.getString(WebSocketBus.TOPIC));
+      out.writeString(envelope.getString(WebSocketBus.REPLY_TOPIC));
+      if (envelope.has(WebSocketBus.SERIALIZED_BODY)) {
+        out.writeString(envelope.getString(WebSocketBus.SERIALIZED_BODY));
+      } else {
+        out.writeString(envelope.has(WebSocketBus.BODY) ? toJsonText(envelope
+            .get(WebSocketBus.BODY)) : null);
+      }
+    }
+    return out.toByteArray();
+  }
+
+  @Override
+  public String getName() {
+    return BINARY;
+  }
+
+  private String readTopic(Input in) {
+    int header = in.readVarint();
+    if (header == 0) {
+      return null;
+    }
+    int id = header >>> 1;
+    if ((header & 1) == 0) {
+      if (id > topics.length()) {
+        throw new IllegalArgumentException("Unknown topic id: " + id);
+      }
+      return topics.getString(id - 1);
+    }
+    String topic = in.readString();
+    if (id != 0) {
+      if (id != topics.length() + 1) {
+        throw new IllegalArgumentException("Out of order topic id: " + id);
+      }
+      topics.push(topic);
+    }
+    return topic;
+  }
+
+  private void writeTopic(Output out, String topic) {
+    if (topic == null) {
+      out.writeVarint(0);
+      return;
+    }
+    if (topicIds.has(topic)) {
+      out.writeVarint((int) topicIds.getNumber(topic) << 1);
+      return;
+    }
+    if (topics.length() >= maxTopics) {
+      out.writeVarint(1);
+    } else {
+      topics.push(topic);
+      int id = topics.length();
+      topicIds.set(topic, id);
+      out.writeVarint((id << 1) | 1);
+    }
+    out.writeString(topic);
+  }
+}
@@ -17,6 +17,7 @@ import com.goodow.realtime.channel.Bus;
 import com.goodow.realtime.channel.BusHook;
 import com.goodow.realtime.channel.Message;
 import com.goodow.realtime.channel.State;
+import com.goodow.realtime.core.AsyncResult;
 import com.goodow.realtime.core.Handler;
 import com.goodow.realtime.core.Registration;
 
@@ -74,6 +75,12 @@ public abstract class BusProxy implements Bus {
     return delegate.send(topic, msg, replyHandler);
   }
 
+  @Override
+  public <T> Bus sendWithTimeout(String topic, Object msg, int timeoutMs,
+                                 Handler<AsyncResult<Message<T>>> replyHandler) {
+    return delegate.sendWithTimeout(topic, msg, timeoutMs, replyHandler);
+  }
+
   @Override
   public <T> Bus sendLocal(String topic, Object msg, Handler<Message<T>> replyHandler) {
     return delegate.sendLocal(topic, msg, replyHandler);
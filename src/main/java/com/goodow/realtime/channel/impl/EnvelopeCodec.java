@@ -0,0 +1,41 @@
+/*
+ * Copyright 2014 Goodow.com
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License
+ * is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package com.goodow.realtime.channel.impl;
+
+import com.goodow.realtime.json.JsonArray;
+
+/**
+ * Encodes the envelopes ({@code {type, address, replyAddress, body}}) exchanged between a
+ * {@link WebSocketBus} and the server into WebSocket frames.
+ */
+public interface EnvelopeCodec {
+  String JSON = "json";
+  String BINARY = "binary";
+
+  /**
+   * Decodes all envelopes of a frame produced by {@link #encode}.
+   */
+  JsonArray decode(Object frame);
+
+  /**
+   * Encodes one or more envelopes into a single frame: a {@code String} to be sent as a text frame,
+   * or a {@code byte[]} to be sent as a binary frame.
+   */
+  Object encode(JsonArray envelopes);
+
+  /**
+   * The name under which this codec is negotiated with the server.
+   */
+  String getName();
+}
@@ -0,0 +1,227 @@
+/*
+ * Copyright 2014 Goodow.com
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License
+ * is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package com.goodow.realtime.channel.impl;
+
+/**
+ * Extracts the address and the reply address of a JSON envelope without parsing the rest of it, so
+ * that envelopes nobody listens to can be dropped before their body is parsed.<p>
+ * Only the structure of the other members is scanned. Frames the scanner doesn't handle, such as
+ * an address with escape sequences or a batch, are rejected and should be fully parsed instead.
+ */
+public class EnvelopeScanner {
+  /**
+   * Stands for the end of the frame. Bounds are checked rather than relying on
+   * {@link String#charAt} to throw, which it doesn't do once compiled by GWT.
+   */
+  private static final char END = 0;
+  private static final String TOPIC = "\"" + WebSocketBus.TOPIC + "\"";
+  private static final String REPLY_TOPIC = "\"" + WebSocketBus.REPLY_TOPIC + "\"";
+
+  private String frame;
+  private int pos;
+  private String topic;
+  private int topicStart;
+  private int topicEnd;
+  private String replyTopic;
+
+  /**
+   * Returns the address of the last scanned envelope.
+   */
+  public String getTopic() {
+    return topic;
+  }
+
+  /**
+   * Returns the index just past the address member of the last scanned envelope.
+   */
+  public int getTopicEnd() {
+    return topicEnd;
+  }
+
+  /**
+   * Returns the index of the address member, key included, in the last scanned envelope. Together
+   * with {@link #getTopicEnd()}, it lets the member be replaced without re-encoding the envelope.
+   */
+  public int getTopicStart() {
+    return topicStart;
+  }
+
+  /**
+   * Returns the reply address of the last scanned envelope, or null if it has none.
+   */
+  public String getReplyTopic() {
+    return replyTopic;
+  }
+
+  /**
+   * Scans the top level members of {@code frame}.
+   *
+   * @return false if {@code frame} isn't a JSON object with a plain string address
+   */
+  public boolean scan(String frame) {
+    this.frame = frame;
+    pos = 0;
+    topic = null;
+    replyTopic = null;
+    try {
+      return scanObject() && topic != null;
+    } finally {
+      this.frame = null;
+    }
+  }
+
+  private boolean scanObject() {
+    if (next() != '{') {
+      return false;
+    }
+    if (peek() == '}') {
+      return true;
+    }
+    while (true) {
+      if (peek() != '"') {
+        return false;
+      }
+      int key = pos;
+      if (!skipString()) {
+        return false;
+      }
+      int keyLength = pos - key;
+      if (next() != ':') {
+        return false;
+      }
+      if (keyLength == TOPIC.length() && frame.startsWith(TOPIC, key)) {
+        topic = readPlainString();
+        if (topic == null) {
+          return false;
+        }
+        topicStart = key;
+        topicEnd = pos;
+      } else if (keyLength == REPLY_TOPIC.length() && frame.startsWith(REPLY_TOPIC, key)
+          && peek() != 'n') { // Not null
+        replyTopic = readPlainString();
+        if (replyTopic == null) {
+          return false;
+        }
+      } else if (!skipValue()) {
+        return false;
+      }
+      char c = next();
+      if (c == '}') {
+        return true;
+      } else if (c != ',') {
+        return false;
+      }
+    }
+  }
+
+  /**
+   * Returns the next non-whitespace character and moves past it, or {@link #END} at the end of the
+   * frame.
+   */
+  private char next() {
+    char c = peek();
+    if (c != END) {
+      pos++;
+    }
+    return c;
+  }
+
+  /**
+   * Returns the next non-whitespace character without moving past it, or {@link #END} at the end of
+   * the frame.
+   */
+  private char peek() {
+    skipWhitespace();
+    return pos < frame.length() ? frame.charAt(pos) : END;
+  }
+
+  /**
+   * Reads a string without escape sequences, or returns null.
+   */
+  private String readPlainString() {
+    if (peek() != '"') {
+      return null;
+    }
+    int start = pos + 1;
+    int end = frame.indexOf('"', start);
+    if (end == -1 || frame.lastIndexOf('\\', end) >= start) {
+      return null;
+    }
+    pos = end + 1;
+    return frame.substring(start, end);
+  }
+
+  /**
+   * Moves past a string, or returns false if it isn't terminated.
+   */
+  private boolean skipString() {
+    int length = frame.length();
+    pos++; // Opening quote
+    while (pos < length) {
+      char c = frame.charAt(pos++);
+      if (c == '\\') {
+        pos++;
+      } else if (c == '"') {
+        return true;
+      }
+    }
+    return false;
+  }
+
+  /**
+   * Moves past a value, or returns false if it is truncated.
+   */
+  private boolean skipValue() {
+    int length = frame.length();
+    char c = peek();
+    if (c == '"') {
+      return skipString();
+    }
+    if (c != '{' && c != '[') {
+      // A number or a literal, which the caller checks is followed by a separator
+      while (pos < length) {
+        c = frame.charAt(pos);
+        if (c == ',' || c == '}' || c == ']' || c <= ' ') {
+          break;
+        }
+        pos++;
+      }
+      return true;
+    }
+    int depth = 0;
+    while (pos < length) {
+      c = frame.charAt(pos);
+      if (c == '"') {
+        if (!skipString()) {
+          return false;
+        }
+        continue;
+      }
+      pos++;
+      if (c == '{' || c == '[') {
+        depth++;
+      } else if ((c == '}' || c == ']') && --depth == 0) {
+        return true;
+      }
+    }
+    return false;
+  }
+
+  private void skipWhitespace() {
+    int length = frame.length();
+    while (pos < length && frame.charAt(pos) <= ' ') {
+      pos++;
+    }
+  }
+}
@@ -0,0 +1,170 @@
+/*
+ * Copyright 2014 Goodow.com
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License
+ * is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package com.goodow.realtime.channel.impl;
+
+import com.goodow.realtime.json.Json;
+import com.goodow.realtime.json.JsonArray;
+import com.goodow.realtime.json.JsonObject;
+
+/**
+ * The default codec, understood by every server: a single envelope is sent as a JSON object and a
+ * batch of envelopes as a JSON array, in text frames.<p>
+ * Optionally, topics are replaced by aliases: the first envelope sent to a topic carries both its
+ * {@code address} and a new {@code alias} number, and later envelopes carry the {@code alias}
+ * alone. Only hierarchical topics (containing {@code '/'}) are aliased, so that one-shot reply
+ * topics don't fill the table. An aliasing codec holds the alias tables of one connection, so it
+ * must not be shared between connections.
+ */
+public class JsonEnvelopeCodec implements EnvelopeCodec {
+  public static final String ALIAS = "alias";
+
+  private final int maxAliases;
+  private final JsonObject outboundAliases; // HashMap<String, Integer>
+  private final JsonArray inboundAliases; // ArrayList<String>(), indexed by alias - 1
+  private int aliasCount;
+
+  public JsonEnvelopeCodec() {
+    this(0);
+  }
+
+  /**
+   * @param maxAliases the maximum number of topics aliased by {@link #encode}, or 0 to disable
+   *          aliasing. Further topics are sent in full.
+   */
+  public JsonEnvelopeCodec(int maxAliases) {
+    this.maxAliases = maxAliases;
+    outboundAliases = maxAliases == 0 ? null : Json.createObject();
+    inboundAliases = maxAliases == 0 ? null : Json.createArray();
+  }
+
+  @Override
+  public JsonArray decode(Object frame) {
+    Object parsed = Json.<Object> parse((String) frame);
+    JsonArray envelopes;
+    if (parsed instanceof JsonArray) {
+      envelopes = (JsonArray) parsed;
+    } else {
+      envelopes = Json.createArray();
+      envelopes.push(parsed);
+    }
+    if (maxAliases != 0) {
+      for (int i = 0, len = envelopes.length(); i < len; i++) {
+        resolveAlias(envelopes.getObject(i));
+      }
+    }
+    return envelopes;
+  }
+
+  @Override
+  public Object encode(JsonArray envelopes) {
+    if (maxAliases != 0) {
+      JsonArray aliased = Json.createArray();
+      for (int i = 0, len = envelopes.length(); i < len; i++) {
+        aliased.push(alias(envelopes.getObject(i)));
+      }
+      envelopes = aliased;
+    }
+    int len = envelopes.length();
+    if (len == 1) {
+      return WebSocketBus.toJsonString(envelopes.getObject(0));
+    }
+    // Joined by hand, so that bodies sent already serialized are spliced in as is
+    StringBuilder sb = new StringBuilder("[");
+    for (int i = 0; i < len; i++) {
+      if (i > 0) {
+        sb.append(',');
+      }
+      sb.append(WebSocketBus.toJsonString(envelopes.getObject(i)));
+    }
+    return sb.append(']').toString();
+  }
+
+  /**
+   * Allocates an alias for {@code topic}, which the next envelope sent to it must carry along with
+   * its address.
+   *
+   * @return the new alias, or 0 if {@code topic} isn't aliased
+   */
+  public int addOutboundAlias(String topic) {
+    if (topic.indexOf('/') == -1 || aliasCount == maxAliases || outboundAliases.has(topic)) {
+      return 0;
+    }
+    outboundAliases.set(topic, ++aliasCount);
+    return aliasCount;
+  }
+
+  @Override
+  public String getName() {
+    return JSON;
+  }
+
+  /**
+   * Returns the alias which replaces the address of envelopes sent to {@code topic}, or 0 if it has
+   * none yet.
+   */
+  public int getOutboundAlias(String topic) {
+    return outboundAliases != null && outboundAliases.has(topic) ? (int) outboundAliases
+        .getNumber(topic) : 0;
+  }
+
+  /**
+   * Returns a shallow copy of {@code envelope} using the alias of its topic, or {@code envelope}
+   * itself if its topic isn't aliased. Envelopes are never modified, since they may be sent again
+   * on another connection.
+   */
+  private JsonObject alias(JsonObject envelope) {
+    String topic = envelope.getString(WebSocketBus.TOPIC);
+    if (topic == null) {
+      return envelope;
+    }
+    int alias = getOutboundAlias(topic);
+    boolean known = alias != 0;
+    if (!known) {
+      alias = addOutboundAlias(topic);
+      if (alias == 0) {
+        return envelope;
+      }
+    }
+    JsonObject aliased = Json.createObject();
+    JsonArray keys = envelope.keys();
+    for (int i = 0, len = keys.length(); i < len; i++) {
+      String key = keys.getString(i);
+      if (known && WebSocketBus.TOPIC.equals(key)) {
+        continue;
+      }
+      Object value = envelope.get(key);
+      aliased.set(key, value);
+    }
+    return aliased.set(ALIAS, alias);
+  }
+
+  private void resolveAlias(JsonObject envelope) {
+    if (!envelope.has(ALIAS)) {
+      return;
+    }
+    int alias = (int) envelope.getNumber(ALIAS);
+    envelope.remove(ALIAS);
+    String topic = envelope.getString(WebSocketBus.TOPIC);
+    if (topic != null) {
+      if (alias != inboundAliases.length() + 1) {
+        throw new IllegalArgumentException("Out of order alias " + alias + " for " + topic);
+      }
+      inboundAliases.push(topic);
+    } else if (alias < 1 || alias > inboundAliases.length()) {
+      throw new IllegalArgumentException("Unknown alias: " + alias);
+    } else {
+      envelope.set(WebSocketBus.TOPIC, inboundAliases.getString(alias - 1));
+    }
+  }
+}
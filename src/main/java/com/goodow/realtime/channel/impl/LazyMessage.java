@@ -0,0 +1,46 @@
+/*
+ * Copyright 2014 Goodow.com
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License
+ * is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package com.goodow.realtime.channel.impl;
+
+import com.goodow.realtime.channel.Bus;
+import com.goodow.realtime.json.Json;
+import com.goodow.realtime.json.JsonObject;
+
+/**
+ * A message received as a JSON envelope, whose body is parsed the first time it is asked for.
+ */
+class LazyMessage<U> extends MessageImpl<U> {
+  private String frame;
+
+  public LazyMessage(Bus bus, String topic, String replyTopic, String frame) {
+    super(false, false, bus, topic, replyTopic, null);
+    this.frame = frame;
+  }
+
+  @Override
+  public U body() {
+    if (frame != null) {
+      JsonObject envelope = Json.parse(frame);
+      body = envelope.get(WebSocketBus.BODY);
+      frame = null;
+    }
+    return body;
+  }
+
+  @Override
+  public String toString() {
+    U body = body();
+    return body == null ? null : body.toString();
+  }
+}
@@ -0,0 +1,237 @@
+/*
+ * Copyright 2014 Goodow.com
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License
+ * is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package com.goodow.realtime.channel.impl;
+
+import com.goodow.realtime.json.Json;
+import com.goodow.realtime.json.JsonArray;
+import com.goodow.realtime.json.JsonObject;
+
+/**
+ * A bounded FIFO queue of envelopes waiting for a connection.<p>
+ * Envelopes are kept in a linked list, and coalescible envelopes (sends and publishes which don't
+ * expect a reply) are also chained per topic, so that the newest one of a topic is found and
+ * removed in O(1).
+ */
+public class OutboundQueue {
+  /**
+   * What to do when an envelope is offered to a full queue.
+   */
+  public enum OverflowPolicy {
+    /**
+     * Drops the oldest queued envelope.
+     */
+    DROP_OLDEST,
+    /**
+     * Rejects the offered envelope.
+     */
+    DROP_NEWEST,
+    /**
+     * Replaces the newest queued envelope of the same topic if there is one, and drops the oldest
+     * queued envelope otherwise.
+     */
+    COALESCE_BY_TOPIC
+  }
+
+  private static class Node {
+    final JsonObject envelope;
+    final String topic; // null unless the envelope is coalescible
+    Node prev;
+    Node next;
+    Node prevOfTopic;
+    Node nextOfTopic;
+
+    Node(JsonObject envelope, String topic) {
+      this.envelope = envelope;
+      this.topic = topic;
+    }
+  }
+
+  /**
+   * Returns the topic of {@code envelope} if it may be replaced by a newer envelope of the same
+   * topic, or null.
+   */
+  static String coalescibleTopic(JsonObject envelope) {
+    if (envelope.has(WebSocketBus.REPLY_TOPIC)) {
+      return null;
+    }
+    String type = envelope.getString(WebSocketBus.TYPE);
+    return "publish".equals(type) || "send".equals(type) ? envelope.getString(WebSocketBus.TOPIC)
+        : null;
+  }
+
+  private final int capacity;
+  private final OverflowPolicy policy;
+  private final JsonObject newestOfTopic = Json.createObject(); // HashMap<String, Node>
+  private Node head;
+  private Node tail;
+  private int size;
+  private int dropped;
+  private int coalesced;
+
+  public OutboundQueue(int capacity, OverflowPolicy policy) {
+    if (capacity <= 0) {
+      throw new IllegalArgumentException("capacity must be greater than 0: " + capacity);
+    }
+    this.capacity = capacity;
+    this.policy = policy;
+  }
+
+  public void clear() {
+    head = tail = null;
+    newestOfTopic.clear();
+    size = 0;
+  }
+
+  public int getCapacity() {
+    return capacity;
+  }
+
+  /**
+   * Returns the number of publishes replaced by {@link #offerLatest}.
+   */
+  public int getCoalesced() {
+    return coalesced;
+  }
+
+  /**
+   * Returns the number of envelopes dropped or replaced because the queue was full.
+   */
+  public int getDropped() {
+    return dropped;
+  }
+
+  public boolean isEmpty() {
+    return size == 0;
+  }
+
+  /**
+   * Appends {@code envelope}, applying the overflow policy if the queue is full.
+   *
+   * @return false if {@code envelope} was rejected
+   */
+  public boolean offer(JsonObject envelope) {
+    String topic = coalescibleTopic(envelope);
+    if (size == capacity) {
+      Node victim = null;
+      switch (policy) {
+        case DROP_NEWEST:
+          dropped++;
+          return false;
+        case COALESCE_BY_TOPIC:
+          victim = topic == null ? null : newestOfTopic.<Node> get(topic);
+          break;
+        default:
+          break;
+      }
+      unlink(victim == null ? head : victim);
+      dropped++;
+    }
+    link(new Node(envelope, topic));
+    return true;
+  }
+
+  /**
+   * Appends {@code envelope} like {@link #offer}, but if it is a publish, first removes the newest
+   * queued publish to the same topic. Offering every publish of a topic this way keeps at most one,
+   * the latest, in the queue.
+   *
+   * @return false if {@code envelope} was rejected
+   */
+  public boolean offerLatest(JsonObject envelope) {
+    String topic = coalescibleTopic(envelope);
+    if (topic != null && "publish".equals(envelope.getString(WebSocketBus.TYPE))) {
+      for (Node node = newestOfTopic.get(topic); node != null; node = node.prevOfTopic) {
+        if ("publish".equals(node.envelope.getString(WebSocketBus.TYPE))) {
+          unlink(node);
+          coalesced++;
+          break;
+        }
+      }
+    }
+    return offer(envelope);
+  }
+
+  /**
+   * Removes and returns the oldest envelope, or null if the queue is empty.
+   */
+  public JsonObject poll() {
+    if (head == null) {
+      return null;
+    }
+    Node node = head;
+    unlink(node);
+    return node.envelope;
+  }
+
+  public int size() {
+    return size;
+  }
+
+  /**
+   * Returns the queued envelopes, oldest first.
+   */
+  public JsonArray toArray() {
+    JsonArray toRtn = Json.createArray();
+    for (Node node = head; node != null; node = node.next) {
+      toRtn.push(node.envelope);
+    }
+    return toRtn;
+  }
+
+  private void link(Node node) {
+    if (tail == null) {
+      head = node;
+    } else {
+      tail.next = node;
+      node.prev = tail;
+    }
+    tail = node;
+    if (node.topic != null) {
+      Node newest = newestOfTopic.get(node.topic);
+      if (newest != null) {
+        newest.nextOfTopic = node;
+        node.prevOfTopic = newest;
+      }
+      newestOfTopic.set(node.topic, node);
+    }
+    size++;
+  }
+
+  private void unlink(Node node) {
+    if (node.prev == null) {
+      head = node.next;
+    } else {
+      node.prev.next = node.next;
+    }
+    if (node.next == null) {
+      tail = node.prev;
+    } else {
+      node.next.prev = node.prev;
+    }
+    if (node.topic != null) {
+      if (node.prevOfTopic != null) {
+        node.prevOfTopic.nextOfTopic = node.nextOfTopic;
+      }
+      if (node.nextOfTopic != null) {
+        node.nextOfTopic.prevOfTopic = node.prevOfTopic;
+      } else if (node.prevOfTopic != null) {
+        newestOfTopic.set(node.topic, node.prevOfTopic);
+      } else {
+        newestOfTopic.remove(node.topic);
+      }
+    }
+    node.prev = node.next = node.prevOfTopic = node.nextOfTopic = null;
+    size--;
+  }
+}
@@ -15,25 +15,53 @@ package com.goodow.realtime.channel.impl;
 
 import com.google.gwt.core.client.js.JsExport;
 import com.google.gwt.core.client.js.JsNamespace;
+import com.google.gwt.core.client.js.JsNoExport;
 
 import com.goodow.realtime.channel.Bus;
 import com.goodow.realtime.channel.BusHook;
 import com.goodow.realtime.channel.State;
 import com.goodow.realtime.channel.util.FuzzingBackOffGenerator;
+import com.goodow.realtime.channel.util.TopicTrie;
 import com.goodow.realtime.core.Handler;
 import com.goodow.realtime.core.Platform;
+import com.goodow.realtime.core.Storage;
 import com.goodow.realtime.json.Json;
 import com.goodow.realtime.json.JsonArray;
 import com.goodow.realtime.json.JsonObject;
 
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
 @JsNamespace("$wnd.realtime.channel")
 @JsExport
 public class ReconnectBus extends WebSocketBus {
+  private static final Logger log = Logger.getLogger(ReconnectBus.class.getName());
+
   public static final String AUTO_RECONNECT = "reconnect";
+  /**
+   * The maximum number of messages queued while the connection is down. Defaults to 1000.
+   */
+  public static final String MAX_QUEUED_MESSAGES = "maxQueuedMessages";
+  /**
+   * The name of the {@link OutboundQueue.OverflowPolicy} applied when the queue is full. Defaults
+   * to {@code DROP_OLDEST}.
+   */
+  public static final String OVERFLOW_POLICY = "overflowPolicy";
   private final FuzzingBackOffGenerator backOffGenerator;
   private BusHook hook;
   private boolean reconnect;
-  private final JsonArray queuedMessages = Json.createArray(); // ArrayList<JsonObject>()
+  private final OutboundQueue queuedMessages;
+  private final TopicTrie lastValueTopics = new TopicTrie(); // filters of last-value-wins topics
+  private boolean publishingLatest;
+  private Storage storage;
+  private int storedMessages;
+  private JsonArray unstored; // records queued in this turn, written to storage at its end
+  private final Handler<Void> storeHandler = new Handler<Void>() {
+    @Override
+    public void handle(Void ignore) {
+      store();
+    }
+  };
   private final JsonObject options;
 
   @JsExport
@@ -43,6 +71,13 @@ public class ReconnectBus extends WebSocketBus {
     reconnect =
         options == null || !options.has(AUTO_RECONNECT) ? true : options.getBoolean(AUTO_RECONNECT);
     backOffGenerator = new FuzzingBackOffGenerator(1 * 1000, 30 * 60 * 1000, 0.5);
+    int maxQueued =
+        options == null || !options.has(MAX_QUEUED_MESSAGES) ? 1000 : (int) options
+            .getNumber(MAX_QUEUED_MESSAGES);
+    OutboundQueue.OverflowPolicy policy =
+        options == null || !options.has(OVERFLOW_POLICY) ? OutboundQueue.OverflowPolicy.DROP_OLDEST
+            : OutboundQueue.OverflowPolicy.valueOf(options.getString(OVERFLOW_POLICY));
+    queuedMessages = new OutboundQueue(maxQueued, policy);
 
     super.setHook(new BusHookProxy() {
       @Override
@@ -59,17 +94,7 @@ public class ReconnectBus extends WebSocketBus {
           }
         });
 
-        if (queuedMessages.length() > 0) {
-          JsonArray copy = queuedMessages.copy();
-          queuedMessages.clear();
-          // Drain any messages that came in while the channel was not open.
-          copy.forEach(new JsonArray.ListIterator<JsonObject>() {
-            @Override
-            public void call(int index, JsonObject msg) {
-              send(msg);
-            }
-          });
-        }
+        drainQueuedMessages();
         super.handleOpened();
       }
 
@@ -96,6 +121,22 @@ public class ReconnectBus extends WebSocketBus {
     });
   }
 
+  /**
+   * Publishes {@code msg} like {@link #publish}, but while the connection is down only the latest
+   * message published to {@code topic} this way is queued: it replaces the queued publish of the
+   * same topic, if any. Use this for messages which carry state rather than events, when the
+   * choice is made per message; see {@link #setLastValueWins} to make it for whole topics.
+   */
+  public ReconnectBus publishLatest(String topic, Object msg) {
+    publishingLatest = true;
+    try {
+      publish(topic, msg);
+    } finally {
+      publishingLatest = false;
+    }
+    return this;
+  }
+
   public void reconnect() {
     if (getReadyState() == State.OPEN || getReadyState() == State.CONNECTING) {
       return;
@@ -113,16 +154,80 @@ public class ReconnectBus extends WebSocketBus {
     return this;
   }
 
+  /**
+   * Marks the topics matching {@code topicFilter}, which may contain wildcards, as holding state
+   * rather than events: while the connection is down, only the latest message published to each of
+   * them is queued, and the older ones are dropped. Set this before {@link #setStorage} so that
+   * stored messages are coalesced the same way when they are loaded. Single messages may be
+   * published this way with {@link #publishLatest} instead.
+   */
+  public ReconnectBus setLastValueWins(String topicFilter, boolean lastValueWins) {
+    if (lastValueWins) {
+      lastValueTopics.add(topicFilter, Boolean.TRUE);
+    } else {
+      lastValueTopics.remove(topicFilter, Boolean.TRUE);
+    }
+    return this;
+  }
+
+  /**
+   * Persists the messages queued while the connection is down to {@code storage}, so that they are
+   * sent after a restart of the process. Messages left in {@code storage} by a previous process are
+   * queued again, in order. Closing the bus discards the queued messages, but leaves them in
+   * {@code storage}.<p>
+   * Messages queued during one turn of the event loop are written together at its end, so that a
+   * burst of sends costs a single write rather than one blocking write each.
+   */
+  @JsNoExport
+  public ReconnectBus setStorage(Storage storage) {
+    store();
+    this.storage = storage;
+    storedMessages = 0;
+    if (storage == null) {
+      return this;
+    }
+    JsonArray records = storage.readAll();
+    for (int i = 0, len = records.length(); i < len; i++) {
+      JsonObject msg;
+      try {
+        msg = Json.parse(records.getString(i));
+      } catch (RuntimeException e) {
+        log.log(Level.WARNING, "Skipped corrupt queued message: " + records.getString(i), e);
+        continue;
+      }
+      // Replaying the log through the same overflow policy rebuilds the same queue
+      offer(msg);
+    }
+    storedMessages = records.length();
+    if (getReadyState() == State.OPEN) {
+      drainQueuedMessages();
+    }
+    return this;
+  }
+
   @Override
   protected void doClose() {
     reconnect = false;
     backOffGenerator.reset();
+    store();
     queuedMessages.clear();
     super.doClose();
   }
 
+  @Override
+  protected void handleUnsent(JsonObject msg) {
+    String type = msg.getString(WebSocketBus.TYPE);
+    if (!"ping".equals(type) && !"register".equals(type)) {
+      enqueue(msg);
+    }
+  }
+
   @Override
   protected void send(JsonObject msg) {
+    if (publishingLatest && "publish".equals(msg.getString(WebSocketBus.TYPE))) {
+      // Kept on the envelope so that it survives a batch closed before its flush and a restart
+      msg.set(WebSocketBus.LAST_VALUE, true);
+    }
     if (getReadyState() == State.OPEN) {
       super.send(msg);
       return;
@@ -134,6 +239,70 @@ public class ReconnectBus extends WebSocketBus {
     if ("ping".equals(type) || "register".equals(type)) {
       return;
     }
-    queuedMessages.push(msg);
+    enqueue(msg);
+  }
+
+  private void drainQueuedMessages() {
+    if (queuedMessages.isEmpty()) {
+      return;
+    }
+    JsonArray copy = queuedMessages.toArray();
+    queuedMessages.clear();
+    unstored = null;
+    if (storage != null) {
+      storage.clear();
+      storedMessages = 0;
+    }
+    // Drain any messages that came in while the channel was not open.
+    copy.forEach(new JsonArray.ListIterator<JsonObject>() {
+      @Override
+      public void call(int index, JsonObject msg) {
+        send(msg);
+      }
+    });
+  }
+
+  private void enqueue(JsonObject msg) {
+    if (!offer(msg) || storage == null) {
+      return;
+    }
+    if (unstored == null) {
+      unstored = Json.createArray();
+      Platform.scheduler().scheduleDeferred(storeHandler);
+    }
+    // Stored with its local fields, so that it is queued the same way when it is loaded
+    unstored.push(msg.toJsonString());
+  }
+
+  private boolean offer(JsonObject msg) {
+    String topic = msg.getString(WebSocketBus.TOPIC);
+    if (msg.has(WebSocketBus.LAST_VALUE)
+        || (topic != null && !lastValueTopics.isEmpty() && lastValueTopics.hasMatch(topic))) {
+      return queuedMessages.offerLatest(msg);
+    }
+    return queuedMessages.offer(msg);
+  }
+
+  /**
+   * Writes the records queued in this turn to storage.
+   */
+  private void store() {
+    JsonArray records = unstored;
+    unstored = null;
+    if (records == null || storage == null) {
+      return;
+    }
+    // Messages dropped by the overflow policy stay in the log until it is compacted
+    if (storedMessages + records.length() > 2 * queuedMessages.getCapacity()) {
+      storage.clear();
+      JsonArray survivors = queuedMessages.toArray();
+      records = Json.createArray();
+      for (int i = 0, len = survivors.length(); i < len; i++) {
+        records.push(survivors.getObject(i).toJsonString());
+      }
+      storedMessages = 0;
+    }
+    storage.appendAll(records);
+    storedMessages += records.length();
   }
 }
@@ -16,6 +16,8 @@ package com.goodow.realtime.channel.impl;
 import com.goodow.realtime.channel.Bus;
 import com.goodow.realtime.channel.BusHook;
 import com.goodow.realtime.channel.Message;
+import com.goodow.realtime.channel.util.ReorderBuffer;
+import com.goodow.realtime.core.AsyncResult;
 import com.goodow.realtime.core.Handler;
 import com.goodow.realtime.core.Platform;
 import com.goodow.realtime.json.Json;
@@ -33,7 +35,18 @@ public class ReliableSubscribeBus extends BusProxy {
   public static final String SEQUENCE_NUMBER = "sequence_number_key";
   public static final String PUBLISH_CHANNEL = "publish_channel";
   public static final String ACKNOWLEDGE_DELAY_MILLIS = "acknowledgeDelayMillis";
+  /**
+   * How far ahead of the next expected sequence out-of-order messages are held, per topic.
+   * Messages further ahead are dropped and caught up later. Defaults to 1024.
+   */
+  public static final String MAX_REORDER_WINDOW = "maxReorderWindow";
+  /**
+   * How many messages are requested per catch-up page. Capped at half the reorder window, so that
+   * the page being delivered and the next one requested fit in it. Defaults to 256.
+   */
+  public static final String CATCHUP_PAGE_SIZE = "catchupPageSize";
 
+  private static final int CATCHUP_TIMEOUT_MILLIS = 30 * 1000;
   private static final Logger log = Logger.getLogger(ReliableSubscribeBus.class.getName());
   private final String sequenceNumberKey;
   private final String publishChannel;
@@ -41,11 +54,19 @@ public class ReliableSubscribeBus extends BusProxy {
    * Delay acknowledgment in case we receive operations in the meantime.
    */
   private final int acknowledgeDelayMillis;
-  private final JsonObject pendings; // {topic: {sequence: Message<?>}}
-  private final JsonObject currentSequences;
+  private final int maxReorderWindow;
+  private final int catchupPageSize;
+  /**
+   * The out-of-order messages of each topic, whose window starts right after the current sequence.
+   */
+  private final JsonObject pendings; // {topic: ReorderBuffer}
   private final JsonObject knownHeadSequences;
   private final JsonObject acknowledgeScheduled;
   private final JsonObject acknowledgeNumbers;
+  /**
+   * The topics with a catch-up page request in flight.
+   */
+  private final JsonObject catchingUp;
 
   public ReliableSubscribeBus(Bus delegate, JsonObject options) {
     super(delegate);
@@ -57,11 +78,18 @@ public class ReliableSubscribeBus extends BusProxy {
     acknowledgeDelayMillis =
         options == null || !options.has(ACKNOWLEDGE_DELAY_MILLIS) ? 3 * 1000 : (int) options
             .getNumber(ACKNOWLEDGE_DELAY_MILLIS);
+    maxReorderWindow =
+        options == null || !options.has(MAX_REORDER_WINDOW) ? 1024 : (int) options
+            .getNumber(MAX_REORDER_WINDOW);
+    int pageSize =
+        options == null || !options.has(CATCHUP_PAGE_SIZE) ? 256 : (int) options
+            .getNumber(CATCHUP_PAGE_SIZE);
+    catchupPageSize = Math.max(1, Math.min(pageSize, maxReorderWindow / 2));
     pendings = Json.createObject();
-    currentSequences = Json.createObject();
     knownHeadSequences = Json.createObject();
     acknowledgeScheduled = Json.createObject();
     acknowledgeNumbers = Json.createObject();
+    catchingUp = Json.createObject();
 
     delegate.setHook(new BusHookProxy() {
       @Override
@@ -76,10 +104,10 @@ public class ReliableSubscribeBus extends BusProxy {
       public boolean handleUnsubscribe(String topic) {
         if (needProcess(topic)) {
           pendings.remove(topic);
-          currentSequences.remove(topic);
           knownHeadSequences.remove(topic);
           acknowledgeScheduled.remove(topic);
           acknowledgeNumbers.remove(topic);
+          catchingUp.remove(topic);
         }
         return super.handleUnsubscribe(topic);
       }
@@ -95,40 +123,32 @@ public class ReliableSubscribeBus extends BusProxy {
   public void close() {
     super.close();
     pendings.clear();
-    currentSequences.clear();
     knownHeadSequences.clear();
     acknowledgeScheduled.clear();
     acknowledgeNumbers.clear();
+    catchingUp.clear();
   }
 
   public void synchronizeSequenceNumber(String topic, double initialSequenceNumber) {
-    assert !currentSequences.has(topic) && !knownHeadSequences.has(topic)
-        && !pendings.has(topic);
+    assert !knownHeadSequences.has(topic) && !pendings.has(topic);
     initSequenceNumber(topic, initialSequenceNumber);
     // Send the first acknowledgment immediately, to quickly catch up any initial missing messages,
     // which might happen if the topic is currently active.
     catchup(topic, initialSequenceNumber);
   }
 
-  protected void catchup(final String topic, double currentSequence) {
+  /**
+   * Requests the messages following {@code currentSequence} a page at a time. The next page is
+   * requested as soon as a full page arrives, before that page is delivered, and only while both
+   * fit in the reorder window; a short page ends the catch-up.
+   */
+  protected void catchup(String topic, double currentSequence) {
+    if (catchingUp.has(topic)) {
+      return;
+    }
     String id = topic.substring(publishChannel.length() + 1);
     id = id.substring(0, id.lastIndexOf("/_watch"));
-    delegate.send(publishChannel + "/_ops",
-                  Json.createObject().set("id", id) .set("from", currentSequence + 1),
-        new Handler<Message<JsonArray>>() {
-          @SuppressWarnings({"rawtypes", "unchecked"})
-          @Override
-          public void handle(Message<JsonArray> message) {
-            final String replyTopic = message.replyTopic();
-            message.body().forEach(new JsonArray.ListIterator() {
-              @Override
-              public void call(int index, Object value) {
-                onReceiveMessage(new MessageImpl(false, false, ReliableSubscribeBus.this,
-                    topic, replyTopic, value));
-              }
-            });
-          }
-        });
+    requestPage(topic, id, currentSequence + 1);
   }
 
   protected double getSequenceNumber(String topic, Object body) {
@@ -142,64 +162,103 @@ public class ReliableSubscribeBus extends BusProxy {
 
   protected boolean onReceiveMessage(Message<?> message) {
     String topic = message.topic();
-    Object body = message.body();
     if (!needProcess(topic)) {
       return true;
     }
+    return onReceive(topic, message.body());
+  }
+
+  /**
+   * Holds {@code body} until its turn and publishes it locally then.
+   *
+   * @return whether the message may be delivered as is
+   */
+  private boolean onReceive(String topic, Object body) {
     double sequence = getSequenceNumber(topic, body);
-    if (!currentSequences.has(topic)) {
+    ReorderBuffer pending = pendings.get(topic);
+    if (pending == null) {
       initSequenceNumber(topic, sequence);
       return true;
     }
 
-    double currentSequence = currentSequences.getNumber(topic);
+    double currentSequence = pending.getNextSequence() - 1;
     if (sequence <= currentSequence) {
       log.log(Level.CONFIG, "Old dup at sequence " + sequence + ", current is now "
           + currentSequence);
       return false;
     }
-    JsonObject pending = pendings.getObject(topic);
-    Message<?> existing = pending.get("" + sequence);
-    if (existing != null) {
+    if (pending.get(sequence) != null) {
       // Should not have pending data at a sequence we could have pushed out.
       assert sequence > currentSequence + 1 : "should not have pending data";
-      log.log(Level.CONFIG, "Dup message: " + message);
+      log.log(Level.CONFIG, "Dup message at sequence " + sequence);
       return false;
     }
 
     knownHeadSequences.set(topic, Math.max(knownHeadSequences.getNumber(topic), sequence));
 
     if (sequence > currentSequence + 1) {
-      pending.set("" + sequence, message);
-      log.log(Level.CONFIG, "Missed message, current sequence=" + currentSequence
-          + " incoming sequence=" + sequence);
+      if (pending.put(sequence, body)) {
+        log.log(Level.CONFIG, "Missed message, current sequence=" + currentSequence
+            + " incoming sequence=" + sequence);
+      } else {
+        log.log(Level.CONFIG, "Dropped message beyond the reorder window, current sequence="
+            + currentSequence + " incoming sequence=" + sequence);
+      }
       scheduleAcknowledgment(topic);
       return false;
     }
 
     assert sequence == currentSequence + 1 : "other cases should have been caught";
-    String next;
-    JsonArray messages = Json.createArray();
-    while (true) {
-      messages.push(message);
-      currentSequences.set(topic, ++currentSequence);
-      next = currentSequence + 1 + "";
-      message = pending.get(next);
-      if (message != null) {
-        pending.remove(next);
-      } else {
-        break;
-      }
+    pending.put(sequence, body);
+    JsonArray bodies = Json.createArray();
+    Object next;
+    while ((next = pending.poll()) != null) {
+      bodies.push(next);
     }
-    scheduleMessages(messages);
-    assert !pending.has(next);
+    scheduleMessages(topic, bodies);
     return false;
   }
 
+  private void requestPage(final String topic, final String id, final double from) {
+    catchingUp.set(topic, true);
+    delegate.sendWithTimeout(publishChannel + "/_ops",
+        Json.createObject().set("id", id).set("from", from).set("limit", catchupPageSize),
+        CATCHUP_TIMEOUT_MILLIS, new Handler<AsyncResult<Message<JsonArray>>>() {
+          @Override
+          public void handle(AsyncResult<Message<JsonArray>> result) {
+            ReorderBuffer pending = pendings.get(topic);
+            if (!catchingUp.has(topic) || pending == null) {
+              return; // Unsubscribed in the meantime
+            }
+            catchingUp.remove(topic);
+            if (result.failed()) {
+              log.log(Level.CONFIG, "Failed to catch up from sequence " + from, result.cause());
+              // Retried by the next acknowledgment
+              acknowledgeNumbers.remove(topic);
+              scheduleAcknowledgment(topic);
+              return;
+            }
+            JsonArray page = result.result().body();
+            int length = page == null ? 0 : page.length();
+            if (length == catchupPageSize) {
+              double last = getSequenceNumber(topic, page.get(length - 1));
+              if (last + catchupPageSize < pending.getNextSequence() + maxReorderWindow) {
+                requestPage(topic, id, last + 1);
+              } else {
+                // Still behind a gap: let the acknowledgment scheduled for it resume from there
+                acknowledgeNumbers.remove(topic);
+              }
+            }
+            for (int i = 0; i < length; i++) {
+              onReceive(topic, page.get(i));
+            }
+          }
+        });
+  }
+
   private void initSequenceNumber(String topic, double initialSequenceNumber) {
-    currentSequences.set(topic, initialSequenceNumber);
     knownHeadSequences.set(topic, initialSequenceNumber);
-    pendings.set(topic, Json.createObject());
+    pendings.set(topic, new ReorderBuffer(initialSequenceNumber + 1, maxReorderWindow));
   }
 
   /**
@@ -215,7 +274,8 @@ public class ReliableSubscribeBus extends BusProxy {
             acknowledgeScheduled.remove(topic);
             // Check we're still out of date, and not already catching up.
             double knownHeadSequence = knownHeadSequences.getNumber(topic);
-            double currentSequence = currentSequences.getNumber(topic);
+            double currentSequence =
+                pendings.<ReorderBuffer> get(topic).getNextSequence() - 1;
             if (knownHeadSequence > currentSequence
                 && (!acknowledgeNumbers.has(topic) || knownHeadSequence > acknowledgeNumbers
                     .getNumber(topic))) {
@@ -231,14 +291,14 @@ public class ReliableSubscribeBus extends BusProxy {
     }
   }
 
-  private void scheduleMessages(final JsonArray messages) {
+  private void scheduleMessages(final String topic, final JsonArray bodies) {
     Platform.scheduler().scheduleDeferred(new Handler<Void>() {
       @Override
       public void handle(Void event) {
-        messages.forEach(new JsonArray.ListIterator<Message<?>>() {
+        bodies.forEach(new JsonArray.ListIterator<Object>() {
           @Override
-          public void call(int index, Message<?> message) {
-            delegate.publishLocal(message.topic(), message.body());
+          public void call(int index, Object body) {
+            delegate.publishLocal(topic, body);
           }
         });
       }
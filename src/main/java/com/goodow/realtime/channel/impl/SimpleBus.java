@@ -16,13 +16,20 @@ package com.goodow.realtime.channel.impl;
 import com.goodow.realtime.channel.Bus;
 import com.goodow.realtime.channel.BusHook;
 import com.goodow.realtime.channel.Message;
+import com.goodow.realtime.channel.PreSerialized;
+import com.goodow.realtime.channel.ReplyException;
+import com.goodow.realtime.channel.ReplyFailure;
 import com.goodow.realtime.channel.State;
 import com.goodow.realtime.channel.util.IdGenerator;
+import com.goodow.realtime.channel.util.Snapshots;
+import com.goodow.realtime.channel.util.TopicTrie;
+import com.goodow.realtime.core.AsyncResult;
 import com.goodow.realtime.core.Handler;
 import com.goodow.realtime.core.Platform;
 import com.goodow.realtime.core.Registration;
+import com.goodow.realtime.core.TimerWheel;
+import com.goodow.realtime.core.impl.FutureResultImpl;
 import com.goodow.realtime.json.Json;
-import com.goodow.realtime.json.JsonArray;
 import com.goodow.realtime.json.JsonObject;
 
 import java.util.logging.Level;
@@ -31,6 +38,27 @@ import java.util.logging.Logger;
 @SuppressWarnings("rawtypes")
 public class SimpleBus implements Bus {
   private static final Logger log = Logger.getLogger(SimpleBus.class.getName());
+  private static final int REPLY_TIMEOUT_TICK_MS = 100;
+  private static final int REPLY_TIMEOUT_WHEEL_SIZE = 512;
+
+  /**
+   * Adapts a {@link #sendWithTimeout} reply handler to the {@code Handler<Message>} passed to hooks
+   * and registered as reply handler.
+   */
+  static class AsyncReplyHandler<T> implements Handler<Message<T>> {
+    final Handler<AsyncResult<Message<T>>> delegate;
+    final int timeoutMs;
+
+    AsyncReplyHandler(Handler<AsyncResult<Message<T>>> delegate, int timeoutMs) {
+      this.delegate = delegate;
+      this.timeoutMs = timeoutMs;
+    }
+
+    @Override
+    public void handle(Message<T> message) {
+      delegate.handle(new FutureResultImpl<Message<T>>(message));
+    }
+  }
 
   static void checkNotNull(String paramName, Object param) {
     if (param == null) {
@@ -38,13 +66,29 @@ public class SimpleBus implements Bus {
     }
   }
 
-  private JsonObject handlerMap; // LinkedHashMap<String, LinkedHashSet<Handler<Message>>>
-  final JsonObject replyHandlers; // LinkedHashMap<String, Handler<Message>>
+  /**
+   * Handlers are kept in immutable {@link Snapshots} which are replaced on subscribe and
+   * unsubscribe, so delivering a message never needs to copy them.
+   */
+  private JsonObject handlerMap; // LinkedHashMap<String, Handler<Message>[]>
+  private final TopicTrie wildcardHandlers; // handlers subscribed with '+' or '#' filters
+  final JsonObject replyHandlers; // LinkedHashMap<String, Handler<Message> | PendingReply>
+  /**
+   * Expires the reply handlers of all requests with a timeout, rather than one platform timer per
+   * request.
+   */
+  private TimerWheel replyTimeouts;
+  /**
+   * Timeout in milliseconds after which reply handlers of plain sends are dropped, or 0 to keep
+   * them until a reply arrives.
+   */
+  int replyTimeoutMs;
   BusHook hook;
   final IdGenerator idGenerator;
 
   public SimpleBus() {
     handlerMap = Json.createObject();
+    wildcardHandlers = new TopicTrie();
     replyHandlers = Json.createObject();
     idGenerator = new IdGenerator();
   }
@@ -96,6 +140,15 @@ public class SimpleBus implements Bus {
     return this;
   }
 
+  @Override
+  public <T> Bus sendWithTimeout(String topic, Object msg, int timeoutMs,
+                                 Handler<AsyncResult<Message<T>>> replyHandler) {
+    checkNotNull("replyHandler", replyHandler);
+    internalHandleSendOrPub(false, true, topic, msg,
+        new AsyncReplyHandler<T>(replyHandler, timeoutMs));
+    return this;
+  }
+
   @Override
   public <T> Bus sendLocal(String topic, Object msg, Handler<Message<T>> replyHandler) {
     internalHandleSendOrPub(true, true, topic, msg, replyHandler);
@@ -120,16 +173,16 @@ public class SimpleBus implements Bus {
                                 Handler<? extends Message> handler) {
     checkNotNull("topic", topic);
     checkNotNull("handler", handler);
-    JsonArray handlers = handlerMap.getArray(topic);
-    if (handlers == null) {
-      handlerMap.set(topic, Json.createArray().push(handler));
-      return true;
+    if (TopicTrie.isWildcard(topic)) {
+      return wildcardHandlers.add(topic, handler);
     }
-    if (handlers.indexOf(handler) == -1) {
-      handlers.push(handler);
-      return true;
+    Object[] handlers = handlerMap.get(topic);
+    Object[] updated = Snapshots.add(handlers, handler);
+    if (updated == handlers) {
+      return false;
     }
-    return false;
+    handlerMap.set(topic, updated);
+    return true;
   }
 
   @SuppressWarnings("unchecked")
@@ -139,11 +192,12 @@ public class SimpleBus implements Bus {
     String replyTopic = null;
     if (replyHandler != null) {
       replyTopic = makeUUID();
-      replyHandlers.set(replyTopic, replyHandler);
+      registerReplyHandler(replyTopic, replyHandler);
     }
-    MessageImpl message = new MessageImpl(local, send, this, topic, replyTopic, msg);
+    MessageImpl message = new MessageImpl(local, send, this, topic, replyTopic,
+        PreSerialized.unwrap(msg));
     if (!internalHandleReceiveMessage(message) && replyTopic != null) {
-      replyHandlers.remove(replyTopic);
+      removeReplyHandler(replyTopic);
     }
   }
 
@@ -151,23 +205,42 @@ public class SimpleBus implements Bus {
                                   Handler<? extends Message> handler) {
     checkNotNull("topic", topic);
     checkNotNull("handler", handler);
-    JsonArray handlers = handlerMap.getArray(topic);
-    if (handlers == null) {
+    if (TopicTrie.isWildcard(topic)) {
+      return wildcardHandlers.remove(topic, handler);
+    }
+    Object[] handlers = handlerMap.get(topic);
+    Object[] updated = Snapshots.remove(handlers, handler);
+    if (updated == handlers) {
       return false;
     }
-    boolean removed = handlers.removeValue(handler);
-    if (handlers.length() == 0) {
+    if (updated == null) {
       handlerMap.remove(topic);
+    } else {
+      handlerMap.set(topic, updated);
     }
-    return removed;
+    return true;
   }
 
   void clearHandlers() {
     replyHandlers.clear();
+    if (replyTimeouts != null) {
+      replyTimeouts.clear();
+    }
+    wildcardHandlers.clear();
     handlerMap.clear();
     handlerMap = null;
   }
 
+  /**
+   * Returns whether a message received on {@code topic} would be delivered to any handler or reply
+   * handler. Messages which wouldn't may be dropped before the hook sees them.
+   */
+  boolean hasHandlers(String topic) {
+    return handlerMap != null
+        && (handlerMap.has(topic) || replyHandlers.has(topic)
+            || wildcardHandlers.hasMatch(topic));
+  }
+
   boolean internalHandleReceiveMessage(Message message) {
     if (message.isLocal() || hook == null || hook.handleReceiveMessage(message)) {
       doReceiveMessage(message);
@@ -183,37 +256,61 @@ public class SimpleBus implements Bus {
     }
   }
 
+  /**
+   * Registers {@code replyHandler} on {@code replyTopic}, expiring it after its timeout if it has
+   * one.
+   */
+  void registerReplyHandler(String replyTopic, Object replyHandler) {
+    int timeoutMs = replyHandler instanceof AsyncReplyHandler
+        ? ((AsyncReplyHandler) replyHandler).timeoutMs : replyTimeoutMs;
+    if (timeoutMs <= 0) {
+      replyHandlers.set(replyTopic, replyHandler);
+      return;
+    }
+    if (replyTimeouts == null) {
+      replyTimeouts = new TimerWheel(REPLY_TIMEOUT_TICK_MS, REPLY_TIMEOUT_WHEEL_SIZE);
+    }
+    PendingReply pending = new PendingReply(replyTopic, replyHandler);
+    pending.timeout = replyTimeouts.schedule(timeoutMs, pending);
+    replyHandlers.set(replyTopic, pending);
+  }
+
+  /**
+   * Removes the reply handler registered on {@code replyTopic} and cancels its timeout.
+   *
+   * @return the reply handler, or null if none is registered
+   */
+  Object removeReplyHandler(String replyTopic) {
+    Object handler = replyHandlers.get(replyTopic);
+    if (handler == null) {
+      return null;
+    }
+    replyHandlers.remove(replyTopic);
+    if (handler instanceof PendingReply) {
+      PendingReply pending = (PendingReply) handler;
+      pending.timeout.cancel();
+      return pending.handler;
+    }
+    return handler;
+  }
+
   String makeUUID() {
     return idGenerator.next(36);
   }
 
-  private void doReceiveMessage(final Message message) {
-    final String topic = message.topic();
-    JsonArray handlers = handlerMap.getArray(topic);
-    if (handlers != null) {
-      // We make a copy since the handler might get unregistered from within the handler itself,
-      // which would screw up our iteration
-      final JsonArray copy = Json.createArray();
-      handlers.forEach(new JsonArray.ListIterator<Object>() {
-        @Override
-        public void call(int index, Object value) {
-          copy.push(value);
-        }
-      });
-      copy.forEach(new JsonArray.ListIterator<Object>() {
-        @Override
-        public void call(int index, Object value) {
-          scheduleHandle(topic, value, message);
-        }
-      });
-    } else {
+  private void doReceiveMessage(Message message) {
+    String topic = message.topic();
+    // Snapshots are never modified in place, so a handler may unsubscribe itself while we iterate
+    Object[] handlers = wildcardHandlers.match(topic, handlerMap.<Object[]> get(topic));
+    if (handlers == null) {
       // Might be a reply message
-      Object handler = replyHandlers.get(topic);
-      if (handler != null) {
-        replyHandlers.remove(topic);
-        scheduleHandle(topic, handler, message);
+      Object handler = removeReplyHandler(topic);
+      if (handler == null) {
+        return;
       }
+      handlers = new Object[] {handler};
     }
+    scheduleHandle(topic, handlers, message);
   }
 
   private void handle(String topic, Object handler, Object message) {
@@ -226,14 +323,21 @@ public class SimpleBus implements Bus {
     }
   }
 
-  private void scheduleHandle(final String topic, final Object handler, final Message message) {
-    if (message.isLocal()) {
+  private void handleAll(String topic, Object[] handlers, Message message) {
+    for (Object handler : handlers) {
       handle(topic, handler, message);
+    }
+  }
+
+  private void scheduleHandle(final String topic, final Object[] handlers, final Message message) {
+    if (message.isLocal()) {
+      handleAll(topic, handlers, message);
     } else {
+      // A single deferred task delivers the message to every handler of the snapshot
       Platform.scheduler().scheduleDeferred(new Handler<Void>() {
         @Override
         public void handle(Void ignore) {
-          SimpleBus.this.handle(topic, handler, message);
+          handleAll(topic, handlers, message);
         }
       });
     }
@@ -249,4 +353,34 @@ public class SimpleBus implements Bus {
       }
     };
   }
-}
\ No newline at end of file
+
+  /**
+   * A reply handler waiting for its reply, which fails or is dropped when its timeout fires.
+   */
+  private class PendingReply implements Handler<Void> {
+    final String replyTopic;
+    final Object handler;
+    TimerWheel.Timeout timeout;
+
+    PendingReply(String replyTopic, Object handler) {
+      this.replyTopic = replyTopic;
+      this.handler = handler;
+    }
+
+    @SuppressWarnings("unchecked")
+    @Override
+    public void handle(Void ignore) {
+      if (replyHandlers.get(replyTopic) != this) {
+        return;
+      }
+      replyHandlers.remove(replyTopic);
+      if (handler instanceof AsyncReplyHandler) {
+        SimpleBus.this.handle(replyTopic, ((AsyncReplyHandler) handler).delegate,
+            new FutureResultImpl(new ReplyException(ReplyFailure.TIMEOUT,
+                "Timed out waiting for a reply on " + replyTopic)));
+      } else {
+        log.log(Level.CONFIG, "Dropped reply handler on " + replyTopic + " after timeout");
+      }
+    }
+  }
+}
@@ -15,26 +15,120 @@ package com.goodow.realtime.channel.impl;
 
 import com.goodow.realtime.channel.Bus;
 import com.goodow.realtime.channel.Message;
+import com.goodow.realtime.channel.PreSerialized;
 import com.goodow.realtime.channel.State;
+import com.goodow.realtime.core.BinaryWebSocket;
 import com.goodow.realtime.core.Handler;
 import com.goodow.realtime.core.Platform;
 import com.goodow.realtime.core.WebSocket;
 import com.goodow.realtime.json.Json;
+import com.goodow.realtime.json.JsonArray;
 import com.goodow.realtime.json.JsonObject;
 
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
 @SuppressWarnings("rawtypes")
 public class WebSocketBus extends SimpleBus {
+  private static final Logger log = Logger.getLogger(WebSocketBus.class.getName());
+
   public static final String SESSION = "_session";
   public static final String USERNAME = "username";
   public static final String PASSWORD = "password";
   public static final String PING_INTERVAL = "vertxbus_ping_interval";
+  /**
+   * Timeout in milliseconds after which the reply handler of a plain {@code send} is dropped. By
+   * default it is kept until a reply arrives.
+   */
+  public static final String REPLY_TIMEOUT = "replyTimeoutMillis";
+  /**
+   * If true, envelopes sent within the same event loop turn (or batch window) are coalesced and
+   * written as a single JSON array frame.
+   */
+  public static final String BATCH = "batch";
+  /**
+   * How long in milliseconds a batch is held open before it is flushed. Defaults to 0, which
+   * flushes at the end of the current event loop turn.
+   */
+  public static final String BATCH_WINDOW = "batchWindowMillis";
+  /**
+   * The maximum number of envelopes in a batch. A full batch is flushed immediately.
+   */
+  public static final String BATCH_MAX_SIZE = "batchMaxSize";
+  /**
+   * The preferred envelope codec, {@link EnvelopeCodec#BINARY} or {@link EnvelopeCodec#JSON} (the
+   * default). The binary codec is only used if the platform can send binary frames, which only the
+   * JVM sockets can, and the server accepts it, otherwise JSON is used. Only frames sent to the
+   * server are binary; see {@link BinaryEnvelopeCodec}.
+   */
+  public static final String CODEC = "codec";
+  /**
+   * The codecs offered in the body of the connect message.
+   */
+  public static final String CODECS = "codecs";
+  /**
+   * If true, topics are replaced by short aliases after their first use on a connection, in both
+   * directions, provided the server accepts it. See {@link JsonEnvelopeCodec}.
+   */
+  public static final String TOPIC_ALIASES = "topicAliases";
   public static final String TOPIC_CHANNEL = "realtime/channel";
   public static final String TOPIC_CONNECT = TOPIC_CHANNEL + "/_CONNECT";
+  /**
+   * Sent by the server in reply to the codecs offered on connect, with the accepted codec in the
+   * {@link #CODEC} field of its body, and {@link #TOPIC_ALIASES} set if aliases are accepted.
+   */
+  public static final String TOPIC_NEGOTIATE = TOPIC_CHANNEL + "/_NEGOTIATE";
+  /**
+   * Publishing {@code {"topic": topic, "body": msg}} here publishes {@code msg} to {@code topic}
+   * and has the server retain it, to deliver it to later subscribers of the topic as soon as they
+   * subscribe. A null {@code msg} clears the retained message. See {@link #publishRetained}.
+   */
+  public static final String TOPIC_RETAIN = TOPIC_CHANNEL + "/_retain";
+  private static final EnvelopeCodec JSON_CODEC = new JsonEnvelopeCodec();
+  private static final int MAX_TOPIC_ALIASES = 1024;
 
   protected static final String BODY = "body";
   protected static final String TOPIC = "address";
   protected static final String REPLY_TOPIC = "replyAddress";
   protected static final String TYPE = "type";
+  /**
+   * Carries the already serialized body of an outbound envelope in place of {@link #BODY}, see
+   * {@link #toJsonString(JsonObject)}.
+   */
+  static final String SERIALIZED_BODY = "_serializedBody";
+  /**
+   * Marks an outbound publish of which only the latest is kept while it waits for a connection, see
+   * {@link ReconnectBus#publishLatest}. Never sent to the server.
+   */
+  static final String LAST_VALUE = "_lastValue";
+
+  /**
+   * Serializes an outbound {@code envelope}, splicing in its body as is if it was sent already
+   * serialized, and leaving out the fields which are only meaningful locally.
+   */
+  static String toJsonString(JsonObject envelope) {
+    if (!envelope.has(SERIALIZED_BODY) && !envelope.has(LAST_VALUE)) {
+      return envelope.toJsonString();
+    }
+    JsonObject fields = Json.createObject();
+    JsonArray keys = envelope.keys();
+    for (int i = 0, len = keys.length(); i < len; i++) {
+      String key = keys.getString(i);
+      if (!SERIALIZED_BODY.equals(key) && !LAST_VALUE.equals(key)) {
+        fields.set(key, envelope.get(key));
+      }
+    }
+    String json = fields.toJsonString();
+    if (!envelope.has(SERIALIZED_BODY)) {
+      return json;
+    }
+    StringBuilder sb = new StringBuilder(json.substring(0, json.length() - 1));
+    if (json.length() > 2) {
+      sb.append(',');
+    }
+    return sb.append('"').append(BODY).append("\":").append(
+        envelope.getString(SERIALIZED_BODY)).append('}').toString();
+  }
 
   private final WebSocket.WebSocketHandler webSocketHandler;
   String serverUri;
@@ -44,6 +138,23 @@ public class WebSocketBus extends SimpleBus {
   private String sessionId;
   private String username;
   private String password;
+  private boolean batch;
+  private int batchWindowMs;
+  private int batchMaxSize;
+  private JsonArray outbox = Json.createArray(); // ArrayList<JsonObject>()
+  private boolean flushScheduled;
+  private String preferredCodec;
+  private EnvelopeCodec codec = JSON_CODEC;
+  private boolean preferAliases;
+  private EnvelopeCodec inboundCodec = JSON_CODEC;
+  private final EnvelopeScanner scanner = new EnvelopeScanner();
+  private final Handler<Void> flushHandler = new Handler<Void>() {
+    @Override
+    public void handle(Void ignore) {
+      flushScheduled = false;
+      flush();
+    }
+  };
   final JsonObject handlerCount = Json.createObject();
 
   public WebSocketBus(String serverUri, JsonObject options) {
@@ -51,6 +162,7 @@ public class WebSocketBus extends SimpleBus {
       @Override
       public void onClose(JsonObject reason) {
         Platform.scheduler().cancelTimer(pingTimerID);
+        flush();
         publishLocal(ON_CLOSE, reason);
         if (hook != null) {
           hook.handlePostClose();
@@ -64,7 +176,24 @@ public class WebSocketBus extends SimpleBus {
 
       @Override
       public void onMessage(String msg) {
-        JsonObject json = Json.<JsonObject> parse(msg);
+        // The server writes a single envelope per frame
+        if (inboundCodec == JSON_CODEC && scanner.scan(msg)
+            && !TOPIC_NEGOTIATE.equals(scanner.getTopic())) {
+          if (hasHandlers(scanner.getTopic())) {
+            internalHandleReceiveMessage(new LazyMessage(WebSocketBus.this, scanner.getTopic(),
+                scanner.getReplyTopic(), msg));
+          }
+          return;
+        }
+        JsonObject json = inboundCodec == JSON_CODEC ? Json.<JsonObject> parse(msg)
+            : inboundCodec.decode(msg).getObject(0);
+        if (TOPIC_NEGOTIATE.equals(json.getString(TOPIC))) {
+          handleNegotiate(json.getObject(BODY));
+          return;
+        }
+        if (!hasHandlers(json.getString(TOPIC))) {
+          return;
+        }
         @SuppressWarnings({"unchecked"})
         MessageImpl message =
             new MessageImpl(false, false, WebSocketBus.this, json.getString(TOPIC), json
@@ -102,6 +231,21 @@ public class WebSocketBus extends SimpleBus {
         SESSION);
     username = options == null || !options.has(USERNAME) ? null : options.getString(USERNAME);
     password = options == null || !options.has(PASSWORD) ? null : options.getString(PASSWORD);
+    replyTimeoutMs =
+        options == null || !options.has(REPLY_TIMEOUT) ? 0 : (int) options.getNumber(REPLY_TIMEOUT);
+    batch = options != null && options.has(BATCH) && options.getBoolean(BATCH);
+    batchWindowMs =
+        options == null || !options.has(BATCH_WINDOW) ? 0 : (int) options.getNumber(BATCH_WINDOW);
+    batchMaxSize =
+        options == null || !options.has(BATCH_MAX_SIZE) ? 100 : (int) options
+            .getNumber(BATCH_MAX_SIZE);
+    preferredCodec =
+        options == null || !options.has(CODEC) ? EnvelopeCodec.JSON : options.getString(CODEC);
+    preferAliases = options != null && options.has(TOPIC_ALIASES)
+        && options.getBoolean(TOPIC_ALIASES);
+    // Every connection starts with plain JSON until the server accepts another codec
+    codec = JSON_CODEC;
+    inboundCodec = JSON_CODEC;
 
     webSocket = Platform.net().createWebSocket(serverUri, options);
     webSocket.setListen(webSocketHandler);
@@ -117,6 +261,15 @@ public class WebSocketBus extends SimpleBus {
     return sessionId;
   }
 
+  /**
+   * Publishes {@code msg} to {@code topic}, and retains it on the server as the current state of
+   * the topic, see {@link #TOPIC_RETAIN}.
+   */
+  public Bus publishRetained(String topic, Object msg) {
+    return publish(TOPIC_RETAIN, Json.createObject().set("topic", topic).set(BODY,
+        PreSerialized.unwrap(msg)));
+  }
+
   @Override
   protected void doClose() {
     subscribeLocal(Bus.ON_CLOSE, new Handler<Message<JsonObject>>() {
@@ -126,6 +279,7 @@ public class WebSocketBus extends SimpleBus {
         handlerCount.clear();
       }
     });
+    flush();
     webSocket.close();
   }
 
@@ -154,11 +308,16 @@ public class WebSocketBus extends SimpleBus {
       return;
     }
     JsonObject envelope = Json.createObject().set(TYPE, send ? "send" : "publish");
-    envelope.set(TOPIC, topic).set(BODY, msg);
+    envelope.set(TOPIC, topic);
+    if (msg instanceof PreSerialized) {
+      envelope.set(SERIALIZED_BODY, ((PreSerialized) msg).toJsonString());
+    } else {
+      envelope.set(BODY, msg);
+    }
     if (replyHandler != null) {
       String replyTopic = makeUUID();
       envelope.set(REPLY_TOPIC, replyTopic);
-      replyHandlers.set(replyTopic, replyHandler);
+      registerReplyHandler(replyTopic, replyHandler);
     }
     send(envelope);
   }
@@ -179,15 +338,88 @@ public class WebSocketBus extends SimpleBus {
     return false;
   }
 
+  /**
+   * Writes all envelopes of the current batch as a single frame.
+   */
+  protected void flush() {
+    int length = outbox.length();
+    if (length == 0) {
+      return;
+    }
+    JsonArray batched = outbox;
+    outbox = Json.createArray();
+    if (getReadyState() != State.OPEN) {
+      for (int i = 0; i < length; i++) {
+        handleUnsent(batched.getObject(i));
+      }
+      return;
+    }
+    write(batched);
+  }
+
+  /**
+   * Switches to the codec accepted by the server for the rest of this connection.
+   */
+  protected void handleNegotiate(JsonObject body) {
+    String accepted = body == null ? null : body.getString(CODEC);
+    boolean aliases = preferAliases && body != null && body.has(TOPIC_ALIASES)
+        && body.getBoolean(TOPIC_ALIASES);
+    inboundCodec = aliases ? new JsonEnvelopeCodec(MAX_TOPIC_ALIASES) : JSON_CODEC;
+    if (EnvelopeCodec.BINARY.equals(accepted) && webSocket instanceof BinaryWebSocket) {
+      // Binary frames intern topics by themselves
+      codec = new BinaryEnvelopeCodec();
+    } else {
+      codec = inboundCodec;
+    }
+  }
+
+  /**
+   * Called with each envelope of a batch which couldn't be flushed because the socket was closed
+   * in the meantime.
+   */
+  protected void handleUnsent(JsonObject msg) {
+    log.log(Level.WARNING, "Dropped message since the WebSocket is closed: "
+        + toJsonString(msg));
+  }
+
   protected void send(JsonObject msg) {
     if (getReadyState() != State.OPEN) {
       throw new IllegalStateException("INVALID_STATE_ERR");
     }
-    webSocket.send(msg.toJsonString());
+    if (!batch) {
+      if (codec == JSON_CODEC) {
+        webSocket.send(toJsonString(msg));
+      } else {
+        JsonArray single = Json.createArray();
+        single.push(msg);
+        write(single);
+      }
+      return;
+    }
+    outbox.push(msg);
+    if (outbox.length() >= batchMaxSize) {
+      flush();
+    } else if (!flushScheduled) {
+      flushScheduled = true;
+      if (batchWindowMs > 0) {
+        Platform.scheduler().scheduleDelay(batchWindowMs, flushHandler);
+      } else {
+        Platform.scheduler().scheduleDeferred(flushHandler);
+      }
+    }
   }
 
   protected void sendConnect() {
     JsonObject msg = Json.createObject().set(SESSION, sessionId);
+    if (EnvelopeCodec.BINARY.equals(preferredCodec) && webSocket instanceof BinaryWebSocket) {
+      JsonArray codecs = Json.createArray();
+      codecs.push(EnvelopeCodec.BINARY);
+      codecs.push(EnvelopeCodec.JSON);
+      msg.set(CODECS, codecs);
+    }
+    if (preferAliases) {
+      msg.set(TOPIC_ALIASES, true);
+    }
     if(username != null) {
       msg.set(USERNAME, username);
       if(password != null) {
@@ -224,4 +456,13 @@ public class WebSocketBus extends SimpleBus {
     JsonObject msg = Json.createObject().set(TYPE, "unregister").set(TOPIC, topic);
     send(msg);
   }
+
+  private void write(JsonArray envelopes) {
+    Object frame = codec.encode(envelopes);
+    if (frame instanceof String) {
+      webSocket.send((String) frame);
+    } else {
+      ((BinaryWebSocket) webSocket).sendBinary((byte[]) frame);
+    }
+  }
 }
\ No newline at end of file
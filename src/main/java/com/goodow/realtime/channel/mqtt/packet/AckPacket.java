@@ -0,0 +1,41 @@
+/*
+ * Copyright 2014 Goodow.com
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ * 
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software distributed under the License
+ * is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package com.goodow.realtime.channel.mqtt.packet;
+
+/**
+ * A packet made of a packet identifier alone: {@link #PUBACK}, {@link #PUBREC}, {@link #PUBREL},
+ * {@link #PUBCOMP} or {@link #UNSUBACK}.
+ */
+public class AckPacket extends MqttPacket {
+  private final byte type;
+  private final int packetId;
+
+  public AckPacket(byte type, int packetId) {
+    if (type != PUBACK && type != PUBREC && type != PUBREL && type != PUBCOMP
+        && type != UNSUBACK) {
+      throw new IllegalArgumentException("Not an acknowledgement: " + type);
+    }
+    this.type = type;
+    this.packetId = packetId;
+  }
+
+  public int getPacketId() {
+    return packetId;
+  }
+
+  @Override
+  public byte getType() {
+    return type;
+  }
+}
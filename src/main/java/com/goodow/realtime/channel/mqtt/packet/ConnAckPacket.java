@@ -0,0 +1,47 @@
+/*
+ * Copyright 2014 Goodow.com
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ * 
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software distributed under the License
+ * is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package com.goodow.realtime.channel.mqtt.packet;
+
+/**
+ * Answers a {@link ConnectPacket}.
+ */
+public class ConnAckPacket extends MqttPacket {
+  public static final byte ACCEPTED = 0;
+  public static final byte UNACCEPTABLE_PROTOCOL_VERSION = 1;
+  public static final byte IDENTIFIER_REJECTED = 2;
+  public static final byte SERVER_UNAVAILABLE = 3;
+  public static final byte BAD_USERNAME_OR_PASSWORD = 4;
+  public static final byte NOT_AUTHORIZED = 5;
+
+  private final boolean sessionPresent;
+  private final byte returnCode;
+
+  public ConnAckPacket(boolean sessionPresent, byte returnCode) {
+    this.sessionPresent = sessionPresent;
+    this.returnCode = returnCode;
+  }
+
+  public byte getReturnCode() {
+    return returnCode;
+  }
+
+  @Override
+  public byte getType() {
+    return CONNACK;
+  }
+
+  public boolean isSessionPresent() {
+    return sessionPresent;
+  }
+}
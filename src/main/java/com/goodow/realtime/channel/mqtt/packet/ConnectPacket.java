@@ -0,0 +1,118 @@
+/*
+ * Copyright 2014 Goodow.com
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ * 
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software distributed under the License
+ * is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package com.goodow.realtime.channel.mqtt.packet;
+
+/**
+ * Opens a session: the first packet a client sends.
+ */
+public class ConnectPacket extends MqttPacket {
+  public static final String PROTOCOL_NAME = "MQTT";
+  public static final byte PROTOCOL_LEVEL = 4;
+
+  private String protocolName = PROTOCOL_NAME;
+  private byte protocolLevel = PROTOCOL_LEVEL;
+  private boolean cleanSession = true;
+  private int keepAliveSeconds;
+  private String clientId = "";
+  private String willTopic;
+  private byte[] willMessage;
+  private byte willQos;
+  private boolean willRetain;
+  private String username;
+  private byte[] password;
+
+  public String getClientId() {
+    return clientId;
+  }
+
+  public int getKeepAliveSeconds() {
+    return keepAliveSeconds;
+  }
+
+  public byte[] getPassword() {
+    return password;
+  }
+
+  public byte getProtocolLevel() {
+    return protocolLevel;
+  }
+
+  public String getProtocolName() {
+    return protocolName;
+  }
+
+  @Override
+  public byte getType() {
+    return CONNECT;
+  }
+
+  public String getUsername() {
+    return username;
+  }
+
+  public byte[] getWillMessage() {
+    return willMessage;
+  }
+
+  public byte getWillQos() {
+    return willQos;
+  }
+
+  /**
+   * Returns the topic the will message is published to if the connection is lost, or null.
+   */
+  public String getWillTopic() {
+    return willTopic;
+  }
+
+  public boolean isCleanSession() {
+    return cleanSession;
+  }
+
+  public boolean isWillRetain() {
+    return willRetain;
+  }
+
+  public void setCleanSession(boolean cleanSession) {
+    this.cleanSession = cleanSession;
+  }
+
+  public void setClientId(String clientId) {
+    this.clientId = clientId;
+  }
+
+  public void setKeepAliveSeconds(int keepAliveSeconds) {
+    this.keepAliveSeconds = keepAliveSeconds;
+  }
+
+  public void setPassword(byte[] password) {
+    this.password = password;
+  }
+
+  public void setProtocol(String protocolName, byte protocolLevel) {
+    this.protocolName = protocolName;
+    this.protocolLevel = protocolLevel;
+  }
+
+  public void setUsername(String username) {
+    this.username = username;
+  }
+
+  public void setWill(String topic, byte[] message, byte qos, boolean retain) {
+    willTopic = topic;
+    willMessage = message;
+    willQos = qos;
+    willRetain = retain;
+  }
+}
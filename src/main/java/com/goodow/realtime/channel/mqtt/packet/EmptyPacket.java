@@ -0,0 +1,34 @@
+/*
+ * Copyright 2014 Goodow.com
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ * 
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software distributed under the License
+ * is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package com.goodow.realtime.channel.mqtt.packet;
+
+/**
+ * A packet made of its fixed header alone: {@link #PINGREQ}, {@link #PINGRESP} or
+ * {@link #DISCONNECT}.
+ */
+public class EmptyPacket extends MqttPacket {
+  private final byte type;
+
+  public EmptyPacket(byte type) {
+    if (type != PINGREQ && type != PINGRESP && type != DISCONNECT) {
+      throw new IllegalArgumentException("Not an empty packet: " + type);
+    }
+    this.type = type;
+  }
+
+  @Override
+  public byte getType() {
+    return type;
+  }
+}
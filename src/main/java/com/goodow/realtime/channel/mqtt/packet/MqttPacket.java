@@ -14,7 +14,9 @@
 package com.goodow.realtime.channel.mqtt.packet;
 
 /**
- * An on-the-wire representation of an MQTT message.
+ * An on-the-wire representation of an MQTT message.<p>
+ * Subclasses hold the variable header and payload of each control packet of MQTT 3.1.1, and this
+ * class the flags of the fixed header, which only {@link PublishPacket}s use.
  */
 public abstract class MqttPacket {
   public static final byte CONNECT = 1;
@@ -32,8 +34,44 @@ public abstract class MqttPacket {
   public static final byte PINGRESP = 13;
   public static final byte DISCONNECT = 14;
 
+  public static final int MAX_REMAINING_LENGTH = 268435455;
+
   private boolean dup;
   private byte qos;
   private boolean retain;
 
+  /**
+   * Returns the QoS level of this packet: 0, 1 or 2.
+   */
+  public byte getQos() {
+    return qos;
+  }
+
+  /**
+   * Returns the control packet type, such as {@link #PUBLISH}.
+   */
+  public abstract byte getType();
+
+  public boolean isDup() {
+    return dup;
+  }
+
+  public boolean isRetain() {
+    return retain;
+  }
+
+  public void setDup(boolean dup) {
+    this.dup = dup;
+  }
+
+  public void setQos(byte qos) {
+    if (qos < 0 || qos > 2) {
+      throw new IllegalArgumentException("Invalid QoS: " + qos);
+    }
+    this.qos = qos;
+  }
+
+  public void setRetain(boolean retain) {
+    this.retain = retain;
+  }
 }
@@ -0,0 +1,49 @@
+/*
+ * Copyright 2014 Goodow.com
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ * 
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software distributed under the License
+ * is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package com.goodow.realtime.channel.mqtt.packet;
+
+/**
+ * Carries an application message to a topic.
+ */
+public class PublishPacket extends MqttPacket {
+  private final String topic;
+  private final int packetId;
+  private final byte[] payload;
+
+  /**
+   * @param packetId the packet identifier, only used with a QoS level above 0
+   */
+  public PublishPacket(String topic, int packetId, byte[] payload) {
+    this.topic = topic;
+    this.packetId = packetId;
+    this.payload = payload;
+  }
+
+  public int getPacketId() {
+    return packetId;
+  }
+
+  public byte[] getPayload() {
+    return payload;
+  }
+
+  public String getTopic() {
+    return topic;
+  }
+
+  @Override
+  public byte getType() {
+    return PUBLISH;
+  }
+}
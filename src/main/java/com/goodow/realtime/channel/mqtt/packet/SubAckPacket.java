@@ -0,0 +1,43 @@
+/*
+ * Copyright 2014 Goodow.com
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ * 
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software distributed under the License
+ * is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package com.goodow.realtime.channel.mqtt.packet;
+
+/**
+ * Answers a {@link SubscribePacket} with the QoS level granted to each topic filter, or
+ * {@link #FAILURE}.
+ */
+public class SubAckPacket extends MqttPacket {
+  public static final byte FAILURE = (byte) 0x80;
+
+  private final int packetId;
+  private final byte[] returnCodes;
+
+  public SubAckPacket(int packetId, byte[] returnCodes) {
+    this.packetId = packetId;
+    this.returnCodes = returnCodes;
+  }
+
+  public int getPacketId() {
+    return packetId;
+  }
+
+  public byte[] getReturnCodes() {
+    return returnCodes;
+  }
+
+  @Override
+  public byte getType() {
+    return SUBACK;
+  }
+}
@@ -0,0 +1,52 @@
+/*
+ * Copyright 2014 Goodow.com
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ * 
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software distributed under the License
+ * is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package com.goodow.realtime.channel.mqtt.packet;
+
+/**
+ * Subscribes to topic filters, each with the maximum QoS level the client wants.
+ */
+public class SubscribePacket extends MqttPacket {
+  private final int packetId;
+  private final String[] topicFilters;
+  private final byte[] qos;
+
+  public SubscribePacket(int packetId, String[] topicFilters, byte[] qos) {
+    if (topicFilters.length != qos.length) {
+      throw new IllegalArgumentException("Expected a QoS level for each topic filter");
+    }
+    this.packetId = packetId;
+    this.topicFilters = topicFilters;
+    this.qos = qos;
+  }
+
+  public int getPacketId() {
+    return packetId;
+  }
+
+  /**
+   * Returns the maximum QoS level requested for each topic filter.
+   */
+  public byte[] getRequestedQos() {
+    return qos;
+  }
+
+  public String[] getTopicFilters() {
+    return topicFilters;
+  }
+
+  @Override
+  public byte getType() {
+    return SUBSCRIBE;
+  }
+}
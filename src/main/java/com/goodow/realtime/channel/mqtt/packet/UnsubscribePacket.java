@@ -0,0 +1,40 @@
+/*
+ * Copyright 2014 Goodow.com
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ * 
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software distributed under the License
+ * is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package com.goodow.realtime.channel.mqtt.packet;
+
+/**
+ * Removes subscriptions to topic filters.
+ */
+public class UnsubscribePacket extends MqttPacket {
+  private final int packetId;
+  private final String[] topicFilters;
+
+  public UnsubscribePacket(int packetId, String[] topicFilters) {
+    this.packetId = packetId;
+    this.topicFilters = topicFilters;
+  }
+
+  public int getPacketId() {
+    return packetId;
+  }
+
+  public String[] getTopicFilters() {
+    return topicFilters;
+  }
+
+  @Override
+  public byte getType() {
+    return UNSUBSCRIBE;
+  }
+}
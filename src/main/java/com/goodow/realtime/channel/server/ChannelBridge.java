@@ -13,20 +13,27 @@
  */
 package com.goodow.realtime.channel.server;
 
+import com.goodow.realtime.channel.server.impl.Backpressure;
+import com.goodow.realtime.channel.server.impl.ChannelSocket;
+
 import org.vertx.java.core.AsyncResult;
 import org.vertx.java.core.AsyncResultHandler;
+import org.vertx.java.core.Handler;
 import org.vertx.java.core.Vertx;
 import org.vertx.java.core.http.HttpServer;
 import org.vertx.java.core.impl.CountingCompletionHandler;
 import org.vertx.java.core.json.JsonArray;
 import org.vertx.java.core.json.JsonObject;
+import org.vertx.java.core.sockjs.EventBusBridge;
 import org.vertx.java.core.sockjs.EventBusBridgeHook;
 import org.vertx.java.core.sockjs.SockJSServer;
+import org.vertx.java.core.sockjs.SockJSSocket;
 
 public class ChannelBridge {
   private final Vertx vertx;
   private final JsonObject config;
   private EventBusBridgeHook hook;
+  private Backpressure backpressure;
 
   public ChannelBridge(Vertx vertx, JsonObject config) {
     this.vertx = vertx;
@@ -35,15 +42,26 @@ public class ChannelBridge {
 
   public void bridge(final CountingCompletionHandler<Void> countDownLatch) {
     HttpServer server = vertx.createHttpServer();
-    SockJSServer sjsServer = vertx.createSockJSServer(server).setHook(hook);
+    SockJSServer sjsServer = vertx.createSockJSServer(server);
     JsonObject empty = new JsonObject();
     JsonArray all = new JsonArray().add(empty);
     JsonArray inboundPermitted = config.getArray("inbound_permitted", all);
     JsonArray outboundPermitted = config.getArray("outbound_permitted", all);
+    final boolean binaryCodec = config.getBoolean("binary_codec", false);
 
-    sjsServer.bridge(config.getObject("sjs_config", new JsonObject()
-        .putString("prefix", "/channel")), inboundPermitted, outboundPermitted, config.getObject(
-        "bridge_config", empty));
+    // Installed by hand rather than with SockJSServer.bridge(), so that batched frames are split
+    // into envelopes before the bridge sees them
+    final EventBusBridge bridge =
+        new EventBusBridge(vertx, inboundPermitted, outboundPermitted, config.getObject(
+            "bridge_config", empty));
+    bridge.setHook(hook);
+    sjsServer.installApp(config.getObject("sjs_config", new JsonObject().putString("prefix",
+        "/channel")), new Handler<SockJSSocket>() {
+      @Override
+      public void handle(SockJSSocket sock) {
+        bridge.handle(new ChannelSocket(sock, backpressure).setBinaryCodecAccepted(binaryCodec));
+      }
+    });
 
     countDownLatch.incRequired();
     server.listen(config.getInteger("port", 1986), config.getString("host", "0.0.0.0"),
@@ -59,6 +77,11 @@ public class ChannelBridge {
         });
   }
 
+  public ChannelBridge setBackpressure(Backpressure backpressure) {
+    this.backpressure = backpressure;
+    return this;
+  }
+
   public ChannelBridge setHook(EventBusBridgeHook hook) {
     this.hook = hook;
     return this;
@@ -0,0 +1,117 @@
+/*
+ * Copyright 2014 Goodow.com
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ * 
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software distributed under the License
+ * is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package com.goodow.realtime.channel.server;
+
+import com.goodow.realtime.channel.impl.WebSocketBus;
+import com.goodow.realtime.channel.server.impl.Backpressure;
+import com.goodow.realtime.channel.server.impl.BridgeHook;
+import com.goodow.realtime.channel.server.impl.FanOut;
+import com.goodow.realtime.channel.server.impl.MqttSessions;
+import com.goodow.realtime.channel.server.impl.Permitted;
+import com.goodow.realtime.channel.server.impl.PresenceService;
+import com.goodow.realtime.channel.server.impl.RetainedStore;
+import com.goodow.realtime.channel.server.impl.SessionRegistry;
+
+import org.vertx.java.busmods.BusModBase;
+import org.vertx.java.core.AsyncResult;
+import org.vertx.java.core.Future;
+import org.vertx.java.core.Handler;
+import org.vertx.java.core.eventbus.Message;
+import org.vertx.java.core.impl.CountingCompletionHandler;
+import org.vertx.java.core.impl.VertxInternal;
+import org.vertx.java.core.json.JsonObject;
+
+/**
+ * Runs one {@link ChannelBridge} on the event loop of this instance. Every instance listens on the
+ * same port, and Vert.x hands each new connection to one of them in turn, so that sockets are
+ * spread across event loops.<p>
+ * Each instance has its own {@link BridgeHook} and {@link PresenceService}, which the presence
+ * protocol treats as one more node. Only the {@link SessionRegistry}, the {@link MqttSessions} and
+ * the {@link RetainedStore} are shared.<p>
+ * Subscriptions of channel sockets are delivered by a {@link FanOut}, unless {@code "fanout"} is
+ * false or the permitted lists restrict messages, which only the bridge can check. Slow clients are
+ * dealt with as the {@code "backpressure"} config says, see {@link Backpressure}; sending anything
+ * to {@link #METRICS_ADDR} replies how often it fired. JVM clients may send binary frames if
+ * {@code "binary_codec"} is true, which only saves them CPU and upstream bandwidth.<p>
+ * With an {@code "mqtt"} config whose {@code "enabled"} is true, such as
+ * {@code {"enabled": true, "port": 1883}}, the same topics are also served to MQTT clients by a
+ * {@link MqttBridge}, which checks them against the permitted lists. It is off by default, as MQTT
+ * clients aren't authenticated.<p>
+ * Retained messages are kept in the {@link RetainedStore} of the {@link ChannelVerticle} which
+ * deployed the instances, or of the instance itself if deployed on its own, as the
+ * {@code "retained"} config says. They are delivered to SockJS subscribers as long as the permitted
+ * lists let every message through.
+ */
+public class ChannelBridgeVerticle extends BusModBase {
+  public static final String METRICS_ADDR = WebSocketBus.TOPIC_CHANNEL + "/_metrics";
+  private static final SessionRegistry sessions = new SessionRegistry();
+  private static final Backpressure.Metrics metrics = new Backpressure.Metrics();
+  private static final MqttSessions mqttSessions = new MqttSessions();
+
+  private PresenceService presence;
+
+  @Override
+  public void start(final Future<Void> startedResult) {
+    super.start();
+    final CountingCompletionHandler<Void> countDownLatch =
+        new CountingCompletionHandler<Void>((VertxInternal) vertx);
+    countDownLatch.setHandler(new Handler<AsyncResult<Void>>() {
+      @Override
+      public void handle(AsyncResult<Void> ar) {
+        if (ar.failed()) {
+          startedResult.setFailure(ar.cause());
+        } else if (ar.succeeded()) {
+          startedResult.setResult(null);
+        }
+      }
+    });
+    presence = new PresenceService(vertx, config.getObject("presence", new JsonObject())).start();
+    RetainedStore retained = ChannelVerticle.getRetainedStore(config.getString(
+        ChannelVerticle.RETAINED_STORE_KEY));
+    if (retained == null) {
+      // Deployed on its own, so the store goes away with this instance
+      retained = new RetainedStore(config.getObject("retained", new JsonObject()));
+      eb.registerHandler(WebSocketBus.TOPIC_RETAIN, retained);
+    }
+    final RetainedStore store = retained;
+    Permitted permitted = new Permitted(config);
+    boolean permitsAll = permitted.permitsAll();
+    FanOut fanOut = config.getBoolean("fanout", true) && permitsAll ? new FanOut(eb) : null;
+    eb.registerLocalHandler(METRICS_ADDR, new Handler<Message<Object>>() {
+      @Override
+      public void handle(Message<Object> message) {
+        message.reply(metrics.toJson().putObject("retained", new JsonObject().putNumber("topics",
+            store.size()).putNumber("bytes", store.getBytes()).putNumber("evicted",
+            store.getEvicted())));
+      }
+    });
+    new ChannelBridge(vertx, config).setHook(
+        new BridgeHook(eb, presence, sessions, fanOut, permitsAll ? store : null, permitted))
+        .setBackpressure(new Backpressure(config.getObject("backpressure", new JsonObject()),
+            metrics)).bridge(countDownLatch);
+    JsonObject mqtt = config.getObject("mqtt");
+    if (mqtt != null && mqtt.getBoolean("enabled", false)) {
+      new MqttBridge(vertx, mqtt, mqttSessions).setPermitted(permitted).setPresence(presence)
+          .setRetained(store).bridge(countDownLatch);
+    }
+  }
+
+  @Override
+  public void stop() {
+    if (presence != null) {
+      presence.stop();
+    }
+    super.stop();
+  }
+}
@@ -13,32 +13,71 @@
  */
 package com.goodow.realtime.channel.server;
 
-import com.goodow.realtime.channel.server.impl.BridgeHook;
+import com.goodow.realtime.channel.impl.WebSocketBus;
+import com.goodow.realtime.channel.server.impl.RetainedStore;
 
 import org.vertx.java.busmods.BusModBase;
 import org.vertx.java.core.AsyncResult;
+import org.vertx.java.core.AsyncResultHandler;
 import org.vertx.java.core.Future;
-import org.vertx.java.core.Handler;
-import org.vertx.java.core.impl.CountingCompletionHandler;
-import org.vertx.java.core.impl.VertxInternal;
+import org.vertx.java.core.json.JsonObject;
 
+import java.util.UUID;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+/**
+ * Deploys {@link ChannelBridgeVerticle}s sharing the configured port, one per core unless
+ * {@link #INSTANCES} says otherwise.<p>
+ * The instances share the {@link RetainedStore} of this verticle, which outlives them and feeds it
+ * from {@link WebSocketBus#TOPIC_RETAIN}. Deployment only passes JSON config, so the instances are
+ * given the key under which they find the store.
+ */
 public class ChannelVerticle extends BusModBase {
+  /**
+   * The number of bridges to run, each on its own event loop.
+   */
+  public static final String INSTANCES = "instances";
+  static final String RETAINED_STORE_KEY = "retained_store_key";
+  private static final ConcurrentMap<String, RetainedStore> retainedStores =
+      new ConcurrentHashMap<String, RetainedStore>();
+
+  /**
+   * Returns the retained store handed to the instances deployed with {@code key}, or null.
+   */
+  static RetainedStore getRetainedStore(String key) {
+    return key == null ? null : retainedStores.get(key);
+  }
+
+  private String retainedStoreKey;
 
   @Override
   public void start(final Future<Void> startedResult) {
     super.start();
-    final CountingCompletionHandler<Void> countDownLatch =
-        new CountingCompletionHandler<Void>((VertxInternal) vertx);
-    countDownLatch.setHandler(new Handler<AsyncResult<Void>>() {
-      @Override
-      public void handle(AsyncResult<Void> ar) {
-        if (ar.failed()) {
-          startedResult.setFailure(ar.cause());
-        } else if (ar.succeeded()) {
-          startedResult.setResult(null);
-        }
-      }
-    });
-    new ChannelBridge(vertx, config).setHook(new BridgeHook(vertx)).bridge(countDownLatch);
+    RetainedStore retained = new RetainedStore(config.getObject("retained", new JsonObject()));
+    eb.registerHandler(WebSocketBus.TOPIC_RETAIN, retained);
+    retainedStoreKey = UUID.randomUUID().toString();
+    retainedStores.put(retainedStoreKey, retained);
+    int instances = config.getInteger(INSTANCES, Runtime.getRuntime().availableProcessors());
+    container.deployVerticle(ChannelBridgeVerticle.class.getName(), config.copy().putString(
+        RETAINED_STORE_KEY, retainedStoreKey), instances,
+        new AsyncResultHandler<String>() {
+          @Override
+          public void handle(AsyncResult<String> ar) {
+            if (ar.succeeded()) {
+              startedResult.setResult(null);
+            } else {
+              startedResult.setFailure(ar.cause());
+            }
+          }
+        });
+  }
+
+  @Override
+  public void stop() {
+    if (retainedStoreKey != null) {
+      retainedStores.remove(retainedStoreKey);
+    }
+    super.stop();
   }
 }
@@ -0,0 +1,99 @@
+/*
+ * Copyright 2014 Goodow.com
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ * 
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software distributed under the License
+ * is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package com.goodow.realtime.channel.server;
+
+import com.goodow.realtime.channel.server.impl.MqttConnection;
+import com.goodow.realtime.channel.server.impl.MqttSessions;
+import com.goodow.realtime.channel.server.impl.MqttTopics;
+import com.goodow.realtime.channel.server.impl.Permitted;
+import com.goodow.realtime.channel.server.impl.PresenceService;
+import com.goodow.realtime.channel.server.impl.RetainedStore;
+
+import org.vertx.java.core.AsyncResult;
+import org.vertx.java.core.AsyncResultHandler;
+import org.vertx.java.core.Handler;
+import org.vertx.java.core.Vertx;
+import org.vertx.java.core.impl.CountingCompletionHandler;
+import org.vertx.java.core.json.JsonObject;
+import org.vertx.java.core.net.NetServer;
+import org.vertx.java.core.net.NetSocket;
+
+/**
+ * Serves the bus topics of a {@link ChannelBridge} to MQTT 3.1.1 clients over TCP, see
+ * {@link MqttConnection}.<p>
+ * MQTT clients are checked against the permitted lists of the bridge, see {@link Permitted}, but
+ * they aren't authenticated, so listen on a {@code "host"} which only trusted clients can reach.
+ */
+public class MqttBridge {
+  private final Vertx vertx;
+  private final JsonObject config;
+  private final MqttSessions sessions;
+  private Permitted permitted;
+  private PresenceService presence;
+  private RetainedStore retained;
+
+  /**
+   * @param sessions the sessions of the process, shared with the bridges of other event loops
+   */
+  public MqttBridge(Vertx vertx, JsonObject config, MqttSessions sessions) {
+    this.vertx = vertx;
+    this.config = config;
+    this.sessions = sessions;
+  }
+
+  public void bridge(final CountingCompletionHandler<Void> countDownLatch) {
+    final Permitted permitted =
+        this.permitted != null ? this.permitted : new Permitted(new JsonObject());
+    final MqttTopics topics = new MqttTopics(vertx.eventBus(), permitted);
+    NetServer server = vertx.createNetServer();
+    server.connectHandler(new Handler<NetSocket>() {
+      @Override
+      public void handle(NetSocket sock) {
+        new MqttConnection(vertx, sock, topics, permitted, sessions, retained, presence, config);
+      }
+    });
+
+    countDownLatch.incRequired();
+    server.listen(config.getInteger("port", 1883), config.getString("host", "0.0.0.0"),
+        new AsyncResultHandler<NetServer>() {
+          @Override
+          public void handle(AsyncResult<NetServer> ar) {
+            if (!ar.succeeded()) {
+              countDownLatch.failed(ar.cause());
+            } else {
+              countDownLatch.complete();
+            }
+          }
+        });
+  }
+
+  /**
+   * Sets the permitted lists of the bridge whose topics are served, which let every message
+   * through by default.
+   */
+  public MqttBridge setPermitted(Permitted permitted) {
+    this.permitted = permitted;
+    return this;
+  }
+
+  public MqttBridge setPresence(PresenceService presence) {
+    this.presence = presence;
+    return this;
+  }
+
+  public MqttBridge setRetained(RetainedStore retained) {
+    this.retained = retained;
+    return this;
+  }
+}
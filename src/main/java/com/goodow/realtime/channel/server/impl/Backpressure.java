@@ -0,0 +1,102 @@
+/*
+ * Copyright 2014 Goodow.com
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ * 
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software distributed under the License
+ * is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package com.goodow.realtime.channel.server.impl;
+
+import org.vertx.java.core.json.JsonObject;
+
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Limits the outbound data a {@link ChannelSocket} holds for a client which reads slower than it
+ * is written to.<p>
+ * Frames go to the write queue of the socket until it holds {@link #WRITE_QUEUE_MAX_SIZE} bytes.
+ * Later frames are held back by the channel socket, up to {@link #MAX_QUEUED_FRAMES}, and written
+ * once the write queue drains. What happens to a frame which finds that backlog full depends on
+ * the {@link Policy}.
+ */
+public class Backpressure {
+  public enum Policy {
+    /**
+     * Drops the offered frame, keeping the backlog as it is.
+     */
+    DROP_NEWEST,
+    /**
+     * Drops the oldest frame of the backlog.
+     */
+    DROP_OLDEST,
+    /**
+     * Keeps only the latest frame of each topic in the backlog, and drops the oldest frame once it
+     * is full nonetheless.
+     */
+    CONFLATE,
+    /**
+     * Closes the socket.
+     */
+    DISCONNECT
+  }
+
+  /**
+   * How often each policy fired, across every socket sharing it.
+   */
+  public static class Metrics {
+    final AtomicLong backlogged = new AtomicLong();
+    final AtomicLong droppedNewest = new AtomicLong();
+    final AtomicLong droppedOldest = new AtomicLong();
+    final AtomicLong conflated = new AtomicLong();
+    final AtomicLong disconnected = new AtomicLong();
+
+    public JsonObject toJson() {
+      return new JsonObject().putNumber("backlogged", backlogged.get()).putNumber(
+          "droppedNewest", droppedNewest.get()).putNumber("droppedOldest", droppedOldest.get())
+          .putNumber("conflated", conflated.get()).putNumber("disconnected", disconnected.get());
+    }
+  }
+
+  /**
+   * The name of the {@link Policy}, in lower case. {@code "drop_oldest"} by default.
+   */
+  public static final String POLICY = "policy";
+  /**
+   * The number of frames a socket holds back once its write queue is full. 1000 by default.
+   */
+  public static final String MAX_QUEUED_FRAMES = "max_queued_frames";
+  /**
+   * The size in bytes of the write queue of a socket. 64 KiB by default.
+   */
+  public static final String WRITE_QUEUE_MAX_SIZE = "write_queue_max_size";
+
+  final Policy policy;
+  final int maxQueuedFrames;
+  final int writeQueueMaxSize;
+  final Metrics metrics;
+
+  public Backpressure(JsonObject config, Metrics metrics) {
+    policy = Policy.valueOf(config.getString(POLICY, "drop_oldest").toUpperCase());
+    maxQueuedFrames = config.getInteger(MAX_QUEUED_FRAMES, 1000);
+    writeQueueMaxSize = config.getInteger(WRITE_QUEUE_MAX_SIZE, 64 * 1024);
+    this.metrics = metrics;
+    if (maxQueuedFrames <= 0) {
+      throw new IllegalArgumentException(MAX_QUEUED_FRAMES + " must be greater than 0: "
+          + maxQueuedFrames);
+    }
+  }
+
+  public Metrics getMetrics() {
+    return metrics;
+  }
+
+  public Policy getPolicy() {
+    return policy;
+  }
+}
@@ -14,67 +14,125 @@
 package com.goodow.realtime.channel.server.impl;
 
 import com.goodow.realtime.channel.impl.WebSocketBus;
+import com.goodow.realtime.channel.util.TopicTrie;
 
 import org.vertx.java.core.AsyncResult;
 import org.vertx.java.core.Handler;
-import org.vertx.java.core.Vertx;
+import org.vertx.java.core.buffer.Buffer;
 import org.vertx.java.core.eventbus.EventBus;
 import org.vertx.java.core.json.JsonObject;
-import org.vertx.java.core.shareddata.SharedData;
 import org.vertx.java.core.sockjs.EventBusBridgeHook;
 import org.vertx.java.core.sockjs.SockJSSocket;
 
-import java.util.HashMap;
-import java.util.Map;
-import java.util.Set;
-
 public class BridgeHook implements EventBusBridgeHook {
   public static final String TOPIC = "topic";
+  /**
+   * Where {@code {_session, isJoined, topic}} is published each time a session registers on or
+   * unregisters from a topic through this node.
+   *
+   * @deprecated watch {@link PresenceService#getWatchTopic(String)}, which covers the whole
+   *             cluster and batches changes. Published only while
+   *             {@link PresenceService#LEGACY_WATCH} is on.
+   */
+  @Deprecated
   public static final String SESSION_WATCH_ADDR =
       WebSocketBus.TOPIC_CHANNEL + "/" + WebSocketBus.SESSION + "/_watch";
   private final EventBus eb;
-  private final Map<String, String> connections = new HashMap<String, String>();
-  private final SharedData sharedData;
+  private final PresenceService presence;
+  private final SessionRegistry sessions;
+  private final FanOut fanOut;
+  private final RetainedStore retained;
+  private final Permitted permitted;
 
   public static String getSessionsKey(String topic) {
     return WebSocketBus.TOPIC_CHANNEL + "/" + topic + "/" + WebSocketBus.SESSION;
   }
 
-  public BridgeHook(Vertx vertx) {
-    this.eb = vertx.eventBus();
-    this.sharedData = vertx.sharedData();
+  /**
+   * @param fanOut delivers messages to the subscriptions of {@link ChannelSocket}s instead of the
+   *          bridge, or null
+   * @param retained the retained messages to deliver on subscribe, or null not to handle
+   *          {@link WebSocketBus#TOPIC_RETAIN}, which bypasses the permitted lists
+   * @param permitted the permitted lists of the bridge, which publishes must pass to be
+   *          {@link FanOut#mirror}ed, as the bridge only checks them after the hook
+   */
+  public BridgeHook(EventBus eb, PresenceService presence, SessionRegistry sessions,
+      FanOut fanOut, RetainedStore retained, Permitted permitted) {
+    this.eb = eb;
+    this.presence = presence;
+    this.sessions = sessions;
+    this.fanOut = fanOut;
+    this.retained = retained;
+    this.permitted = permitted;
   }
 
   @Override
   public void handlePostRegister(SockJSSocket sock, String topic) {
-    Set<String> sessionIds = sharedData.getSet(getSessionsKey(topic));
-    String sessionId = connections.get(sock.writeHandlerID());
-    sessionIds.add(sessionId);
-    publishPresence(topic, sessionId, true);
+    presence.join(topic, getSessionId(sock));
+    sendRetained(sock, topic);
   }
 
   @Override
   public boolean handlePreRegister(SockJSSocket sock, String topic) {
-    return true;
+    boolean wildcard = TopicTrie.isWildcard(topic);
+    if (fanOut == null || !(sock instanceof ChannelSocket)) {
+      // The bridge can only register exact addresses
+      return !wildcard;
+    }
+    // Taken over by the fan-out, so the bridge doesn't register a handler of its own
+    if (fanOut.subscribe(sock, topic) && !wildcard) {
+      presence.join(topic, getSessionId(sock));
+      sendRetained(sock, topic);
+    }
+    return false;
   }
 
   @Override
   public boolean handleSendOrPub(SockJSSocket sock, boolean send, JsonObject msg,
       final String topic) {
+    Object body = msg.getValue("body");
     if (WebSocketBus.TOPIC_CONNECT.equals(topic)) {
-      connections.put(sock.writeHandlerID(), msg.getObject("body").getString(WebSocketBus.SESSION));
-    } else if (msg.getValue("body") instanceof JsonObject) {
-      JsonObject body = msg.getObject("body");
-      if (!body.containsField(WebSocketBus.SESSION)) {
-        body.putString(WebSocketBus.SESSION, connections.get(sock.writeHandlerID()));
+      if (body instanceof JsonObject) {
+        String sessionId = ((JsonObject) body).getString(WebSocketBus.SESSION);
+        if (sock instanceof ChannelSocket) {
+          ((ChannelSocket) sock).setSessionId(sessionId);
+        }
+        if (sessionId != null) {
+          sessions.put(sock.writeHandlerID(), sessionId);
+        }
+      }
+    } else if (retained != null && WebSocketBus.TOPIC_RETAIN.equals(topic)) {
+      if (body instanceof JsonObject && ((JsonObject) body).getString(TOPIC) != null) {
+        JsonObject json = (JsonObject) body;
+        Object value = json.getValue("body");
+        if (value instanceof JsonObject
+            && !((JsonObject) value).containsField(WebSocketBus.SESSION)) {
+          ((JsonObject) value).putString(WebSocketBus.SESSION, getSessionId(sock));
+        }
+        RetainedStore.publish(eb, json.getString(TOPIC), value);
+      }
+      return false;
+    } else if (body instanceof JsonObject) {
+      JsonObject json = (JsonObject) body;
+      if (!json.containsField(WebSocketBus.SESSION)) {
+        json.putString(WebSocketBus.SESSION, getSessionId(sock));
       }
     }
+    if (!send && permitted.inbound(topic, body)) {
+      FanOut.mirror(eb, topic, body);
+    }
     return true;
   }
 
   @Override
   public void handleSocketClosed(SockJSSocket sock) {
-    connections.remove(sock.writeHandlerID());
+    if (fanOut != null) {
+      String sessionId = getSessionId(sock);
+      for (String topic : fanOut.unsubscribeAll(sock)) {
+        presence.leave(topic, sessionId);
+      }
+    }
+    sessions.remove(sock.writeHandlerID());
   }
 
   @Override
@@ -84,10 +142,10 @@ public class BridgeHook implements EventBusBridgeHook {
 
   @Override
   public boolean handleUnregister(SockJSSocket sock, String topic) {
-    Set<String> sessionIds = sharedData.getSet(getSessionsKey(topic));
-    String sessionId = connections.get(sock.writeHandlerID());
-    sessionIds.remove(sessionId);
-    publishPresence(topic, sessionId, false);
+    if (fanOut != null) {
+      fanOut.unsubscribe(sock, topic);
+    }
+    presence.leave(topic, getSessionId(sock));
     return true;
   }
 
@@ -97,9 +155,16 @@ public class BridgeHook implements EventBusBridgeHook {
     return false;
   }
 
-  private void publishPresence(final String topic, String sessionId, final boolean isJoined) {
-    JsonObject msg = new JsonObject().putString(WebSocketBus.SESSION, sessionId).putBoolean(
-        "isJoined", isJoined).putString(TOPIC, topic);
-    eb.publish(SESSION_WATCH_ADDR, msg);
+  private void sendRetained(SockJSSocket sock, String topic) {
+    Buffer envelope = retained == null ? null : retained.encodeEnvelope(topic);
+    if (envelope != null) {
+      sock.write(envelope);
+    }
+  }
+
+  private String getSessionId(SockJSSocket sock) {
+    // Sockets wrapped by the bridge carry their session, so the hot path needs no lookup
+    return sock instanceof ChannelSocket ? ((ChannelSocket) sock).getSessionId() : sessions
+        .get(sock.writeHandlerID());
   }
 }
\ No newline at end of file
@@ -0,0 +1,442 @@
+/*
+ * Copyright 2014 Goodow.com
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License
+ * is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package com.goodow.realtime.channel.server.impl;
+
+import com.goodow.realtime.channel.impl.BinaryEnvelopeCodec;
+import com.goodow.realtime.channel.impl.EnvelopeCodec;
+import com.goodow.realtime.channel.impl.EnvelopeScanner;
+import com.goodow.realtime.channel.impl.JsonEnvelopeCodec;
+import com.goodow.realtime.channel.impl.WebSocketBus;
+
+import org.vertx.java.core.Handler;
+import org.vertx.java.core.MultiMap;
+import org.vertx.java.core.buffer.Buffer;
+import org.vertx.java.core.json.JsonArray;
+import org.vertx.java.core.json.JsonObject;
+import org.vertx.java.core.sockjs.SockJSSocket;
+
+import java.net.InetSocketAddress;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Wraps the {@link SockJSSocket} of a channel client before it is handed to the event bus bridge,
+ * so that frames carrying a JSON array of envelopes (see {@code WebSocketBus.BATCH}) or binary
+ * envelopes (see {@link BinaryEnvelopeCodec}) reach the bridge, and its hook, as individual JSON
+ * envelopes.<p>
+ * The binary codec is only accepted if {@link #setBinaryCodecAccepted} says so, since decoding it
+ * costs the server more than the JSON text it is turned back into. Outbound frames are always JSON,
+ * since SockJS sockets only write text frames. If the client asks for topic aliases, they are
+ * resolved in inbound envelopes and applied to outbound ones as they reach the socket. Frames
+ * written while the write queue is full are held back as its {@link Backpressure} says.
+ */
+public class ChannelSocket implements SockJSSocket {
+  private static final Logger log = Logger.getLogger(ChannelSocket.class.getName());
+  private static final int MAX_TOPIC_ALIASES = 1024;
+  private static final String ALIAS_KEY = "\"" + JsonEnvelopeCodec.ALIAS + "\":";
+
+  /**
+   * Splits a JSON array of envelopes into the source text of each element, without parsing them.
+   * Returns null if {@code frame} isn't a JSON array.
+   */
+  static List<String> splitBatch(String frame) {
+    int start = 0;
+    int length = frame.length();
+    while (start < length && Character.isWhitespace(frame.charAt(start))) {
+      start++;
+    }
+    if (start == length || frame.charAt(start) != '[') {
+      return null;
+    }
+    List<String> elements = new ArrayList<String>();
+    int depth = 0;
+    int elementStart = -1;
+    boolean inString = false;
+    for (int i = start + 1; i < length; i++) {
+      char c = frame.charAt(i);
+      if (inString) {
+        if (c == '\\') {
+          i++;
+        } else if (c == '"') {
+          inString = false;
+        }
+        continue;
+      }
+      switch (c) {
+        case '"':
+          inString = true;
+          break;
+        case '{':
+        case '[':
+          if (depth++ == 0) {
+            elementStart = i;
+          }
+          break;
+        case '}':
+        case ']':
+          if (depth == 0) {
+            // The closing bracket of the batch itself
+            return elements;
+          }
+          if (--depth == 0) {
+            elements.add(frame.substring(elementStart, i + 1));
+          }
+          break;
+        default:
+          break;
+      }
+    }
+    throw new IllegalArgumentException("Unterminated batch: " + frame);
+  }
+
+  private final SockJSSocket delegate;
+  private final Backpressure backpressure;
+  private boolean binaryCodecAccepted;
+  private BinaryEnvelopeCodec inboundCodec;
+  private boolean negotiated;
+  private JsonEnvelopeCodec aliases;
+  private String sessionId;
+  // topic, or a key of its own -> frame, for frames waiting for the write queue to drain
+  private Map<Object, Buffer> backlog;
+  private EnvelopeScanner scanner;
+  private Handler<Void> drainHandler;
+  private boolean disconnected;
+
+  public ChannelSocket(SockJSSocket delegate) {
+    this(delegate, null);
+  }
+
+  /**
+   * @param backpressure limits the frames held for a slow client, or null to let the write queue
+   *          grow without bound
+   */
+  public ChannelSocket(SockJSSocket delegate, Backpressure backpressure) {
+    this.delegate = delegate;
+    this.backpressure = backpressure;
+    if (backpressure != null) {
+      delegate.setWriteQueueMaxSize(backpressure.writeQueueMaxSize);
+      delegate.drainHandler(new Handler<Void>() {
+        @Override
+        public void handle(Void event) {
+          drain();
+        }
+      });
+    }
+  }
+
+  @Override
+  public void close() {
+    delegate.close();
+  }
+
+  @Override
+  public ChannelSocket dataHandler(final Handler<Buffer> handler) {
+    if (handler == null) {
+      delegate.dataHandler(null);
+      return this;
+    }
+    delegate.dataHandler(new Handler<Buffer>() {
+      @Override
+      public void handle(Buffer buffer) {
+        if (buffer.length() > 0 && buffer.getByte(0) == BinaryEnvelopeCodec.MAGIC) {
+          if (!binaryCodecAccepted) {
+            log.warning("Closing " + remoteAddress() + " after a binary frame it wasn't offered");
+            delegate.close();
+            return;
+          }
+          if (inboundCodec == null) {
+            inboundCodec = new BinaryEnvelopeCodec();
+          }
+          com.goodow.realtime.json.JsonArray envelopes;
+          try {
+            envelopes = inboundCodec.decodeToJsonText(buffer.getBytes());
+          } catch (IllegalArgumentException e) {
+            log.log(Level.WARNING, "Closing " + remoteAddress() + " after a malformed frame", e);
+            delegate.close();
+            return;
+          }
+          for (int i = 0, len = envelopes.length(); i < len; i++) {
+            handler.handle(new Buffer(envelopes.getString(i)));
+          }
+          return;
+        }
+        String frame = buffer.toString();
+        List<String> envelopes = splitBatch(frame);
+        if (envelopes == null) {
+          negotiate(frame);
+          forward(handler, frame, buffer);
+          return;
+        }
+        for (String envelope : envelopes) {
+          negotiate(envelope);
+          forward(handler, envelope, null);
+        }
+      }
+    });
+    return this;
+  }
+
+  @Override
+  public ChannelSocket drainHandler(Handler<Void> handler) {
+    if (backpressure == null) {
+      delegate.drainHandler(handler);
+    } else {
+      drainHandler = handler;
+    }
+    return this;
+  }
+
+  @Override
+  public ChannelSocket endHandler(Handler<Void> endHandler) {
+    delegate.endHandler(endHandler);
+    return this;
+  }
+
+  @Override
+  public ChannelSocket exceptionHandler(Handler<Throwable> handler) {
+    delegate.exceptionHandler(handler);
+    return this;
+  }
+
+  /**
+   * Returns the session the client announced when it connected, or null before that.
+   */
+  public String getSessionId() {
+    return sessionId;
+  }
+
+  @Override
+  public MultiMap headers() {
+    return delegate.headers();
+  }
+
+  @Override
+  public InetSocketAddress localAddress() {
+    return delegate.localAddress();
+  }
+
+  @Override
+  public ChannelSocket pause() {
+    delegate.pause();
+    return this;
+  }
+
+  @Override
+  public InetSocketAddress remoteAddress() {
+    return delegate.remoteAddress();
+  }
+
+  @Override
+  public ChannelSocket resume() {
+    delegate.resume();
+    return this;
+  }
+
+  /**
+   * Sets whether the binary codec is accepted when a client offers it. Defaults to false.
+   */
+  public ChannelSocket setBinaryCodecAccepted(boolean accepted) {
+    binaryCodecAccepted = accepted;
+    return this;
+  }
+
+  public void setSessionId(String sessionId) {
+    this.sessionId = sessionId;
+  }
+
+  @Override
+  public ChannelSocket setWriteQueueMaxSize(int maxSize) {
+    delegate.setWriteQueueMaxSize(maxSize);
+    return this;
+  }
+
+  @Override
+  public String uri() {
+    return delegate.uri();
+  }
+
+  @Override
+  public ChannelSocket write(Buffer data) {
+    if (backpressure == null || (backlog == null && !delegate.writeQueueFull())) {
+      writeThrough(data);
+    } else {
+      holdBack(data);
+    }
+    return this;
+  }
+
+  @Override
+  public boolean writeQueueFull() {
+    return backlog != null || delegate.writeQueueFull();
+  }
+
+  @Override
+  public String writeHandlerID() {
+    return delegate.writeHandlerID();
+  }
+
+  /**
+   * Applies the topic alias to an outbound frame. The alias is spliced into the encoded text, so a
+   * frame encoded once for every subscriber of a topic isn't parsed again for each of them.<p>
+   * Only frames actually written are aliased, since the first frame of a topic defines its alias
+   * for the client: held back frames may still be dropped or conflated.
+   */
+  private Buffer alias(Buffer data) {
+    String frame = data.toString();
+    if (scanner == null) {
+      scanner = new EnvelopeScanner();
+    }
+    if (!scanner.scan(frame)) {
+      // Batches and escaped addresses are rare enough to be parsed
+      return new Buffer((String) aliases.encode(aliases.decode(frame)));
+    }
+    String topic = scanner.getTopic();
+    int alias = aliases.getOutboundAlias(topic);
+    if (alias != 0) {
+      return new Buffer(frame.substring(0, scanner.getTopicStart()) + ALIAS_KEY + alias
+          + frame.substring(scanner.getTopicEnd()));
+    }
+    alias = aliases.addOutboundAlias(topic);
+    if (alias == 0) {
+      return data;
+    }
+    return new Buffer(frame.substring(0, scanner.getTopicEnd()) + "," + ALIAS_KEY + alias
+        + frame.substring(scanner.getTopicEnd()));
+  }
+
+  /**
+   * Writes held back frames while the write queue has room.
+   */
+  private void drain() {
+    if (backlog != null) {
+      Iterator<Buffer> frames = backlog.values().iterator();
+      while (frames.hasNext() && !delegate.writeQueueFull()) {
+        writeThrough(frames.next());
+        frames.remove();
+      }
+      if (!backlog.isEmpty()) {
+        return;
+      }
+      backlog = null;
+    }
+    if (drainHandler != null) {
+      drainHandler.handle(null);
+    }
+  }
+
+  private void holdBack(Buffer frame) {
+    if (disconnected) {
+      return;
+    }
+    Backpressure.Metrics metrics = backpressure.metrics;
+    Backpressure.Policy policy = backpressure.policy;
+    if (backlog == null) {
+      backlog = new LinkedHashMap<Object, Buffer>();
+      metrics.backlogged.incrementAndGet();
+    }
+    Object key = null;
+    if (policy == Backpressure.Policy.CONFLATE) {
+      if (scanner == null) {
+        scanner = new EnvelopeScanner();
+      }
+      if (scanner.scan(frame.toString())) {
+        key = scanner.getTopic();
+        if (backlog.containsKey(key)) {
+          // Replaces the older frame of the topic, in its place
+          backlog.put(key, frame);
+          metrics.conflated.incrementAndGet();
+          return;
+        }
+      }
+    }
+    if (backlog.size() >= backpressure.maxQueuedFrames) {
+      switch (policy) {
+        case DISCONNECT:
+          metrics.disconnected.incrementAndGet();
+          disconnected = true;
+          backlog.clear();
+          delegate.close();
+          return;
+        case DROP_NEWEST:
+          metrics.droppedNewest.incrementAndGet();
+          return;
+        default:
+          Iterator<Buffer> oldest = backlog.values().iterator();
+          oldest.next();
+          oldest.remove();
+          metrics.droppedOldest.incrementAndGet();
+          break;
+      }
+    }
+    backlog.put(key == null ? new Object() : key, frame);
+  }
+
+  /**
+   * Writes a frame to the underlying socket, applying its topic alias.
+   */
+  private void writeThrough(Buffer frame) {
+    delegate.write(aliases == null ? frame : alias(frame));
+  }
+
+  /**
+   * Passes an inbound envelope to the bridge, resolving its topic alias if it has one.
+   */
+  private void forward(Handler<Buffer> handler, String envelope, Buffer buffer) {
+    if (aliases != null && envelope.contains("\"" + JsonEnvelopeCodec.ALIAS + "\"")) {
+      envelope = aliases.decode(envelope).getObject(0).toJsonString();
+      buffer = null;
+    }
+    handler.handle(buffer == null ? new Buffer(envelope) : buffer);
+  }
+
+  /**
+   * Accepts the binary codec and topic aliases if the client offers it in its connect message.
+   */
+  private void negotiate(String envelope) {
+    if (negotiated || !envelope.contains(WebSocketBus.TOPIC_CONNECT)) {
+      return;
+    }
+    JsonObject connect = new JsonObject(envelope);
+    if (!WebSocketBus.TOPIC_CONNECT.equals(connect.getString("address"))) {
+      return;
+    }
+    negotiated = true;
+    JsonObject body = connect.getObject("body");
+    if (body == null) {
+      return;
+    }
+    JsonObject accepted = new JsonObject();
+    JsonArray codecs = body.getArray(WebSocketBus.CODECS);
+    if (binaryCodecAccepted && codecs != null && codecs.contains(EnvelopeCodec.BINARY)) {
+      accepted.putString(WebSocketBus.CODEC, EnvelopeCodec.BINARY);
+    }
+    boolean useAliases = body.getBoolean(WebSocketBus.TOPIC_ALIASES, false);
+    if (useAliases) {
+      accepted.putBoolean(WebSocketBus.TOPIC_ALIASES, true);
+    }
+    if (accepted.size() > 0) {
+      delegate.write(new Buffer(new JsonObject().putString("address",
+          WebSocketBus.TOPIC_NEGOTIATE).putObject("body", accepted).encode()));
+    }
+    if (useAliases) {
+      // The negotiation reply itself must not be aliased
+      aliases = new JsonEnvelopeCodec(MAX_TOPIC_ALIASES);
+    }
+  }
+}
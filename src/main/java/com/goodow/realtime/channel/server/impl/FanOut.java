@@ -0,0 +1,249 @@
+/*
+ * Copyright 2014 Goodow.com
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ * 
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software distributed under the License
+ * is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package com.goodow.realtime.channel.server.impl;
+
+import com.goodow.realtime.channel.impl.WebSocketBus;
+import com.goodow.realtime.channel.util.TopicTrie;
+
+import org.vertx.java.core.Handler;
+import org.vertx.java.core.buffer.Buffer;
+import org.vertx.java.core.eventbus.EventBus;
+import org.vertx.java.core.eventbus.Message;
+import org.vertx.java.core.json.JsonObject;
+import org.vertx.java.core.sockjs.SockJSSocket;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * Delivers event bus messages to the sockets of a bridge which subscribed to their topic, with a
+ * single event bus handler per topic instead of one per socket. Each message is encoded once, and
+ * the same frame is written to every socket, whose {@link Backpressure} deals with slow
+ * consumers.<p>
+ * A message with a reply topic is written to one socket in turn, like a send to several handlers.
+ * <p>
+ * The event bus only routes exact addresses, so sockets subscribed to a wildcard filter, see
+ * {@link TopicTrie}, receive the messages which the channel {@link #mirror}s to
+ * {@link #PUBLISHED_ADDR}: those published by bridged clients, MQTT clients and {@link VertxBus}.
+ * A socket gets each of them once, however many of its filters match, and not at all if it is
+ * subscribed to the topic itself. Not thread-safe: a fan-out belongs to the event loop of its
+ * bridge.
+ */
+public class FanOut {
+  /**
+   * Where messages published through the channel are published again as {@code {topic, body}},
+   * for the fan-outs holding wildcard subscriptions to match them, and for {@link MqttTopics}.
+   */
+  public static final String PUBLISHED_ADDR = WebSocketBus.TOPIC_CHANNEL + "/_published";
+  private static final SockJSSocket[] EMPTY = new SockJSSocket[0];
+
+  /**
+   * Publishes {@code body}, which was just published to {@code topic}, to {@link #PUBLISHED_ADDR}.
+   * Topics of the channel itself and binary bodies aren't mirrored.
+   */
+  public static void mirror(EventBus eb, String topic, Object body) {
+    if (topic.startsWith(WebSocketBus.TOPIC_CHANNEL + "/") || body instanceof Buffer) {
+      return;
+    }
+    eb.publish(PUBLISHED_ADDR, new JsonObject().putString(BridgeHook.TOPIC, topic).putValue(
+        "body", body));
+  }
+
+  private class Topic implements Handler<Message<Object>> {
+    final String topic;
+    // Copy-on-write, so that a socket may unsubscribe while a message is written
+    SockJSSocket[] sockets = EMPTY;
+    int next;
+
+    Topic(String topic) {
+      this.topic = topic;
+    }
+
+    @Override
+    public void handle(Message<Object> message) {
+      SockJSSocket[] targets = sockets;
+      if (targets.length == 0) {
+        return;
+      }
+      JsonObject envelope =
+          new JsonObject().putString("address", topic).putValue("body", message.body());
+      String replyTopic = message.replyAddress();
+      if (replyTopic != null) {
+        envelope.putString("replyAddress", replyTopic);
+        next = (next + 1) % targets.length;
+        targets[next].write(new Buffer(envelope.encode()));
+        delivered++;
+        return;
+      }
+      Buffer frame = new Buffer(envelope.encode());
+      for (SockJSSocket sock : targets) {
+        sock.write(frame);
+      }
+      delivered += targets.length;
+    }
+  }
+
+  private final EventBus eb;
+  private final Map<String, Topic> topics = new HashMap<String, Topic>();
+  // wildcard filter -> sockets subscribed to it
+  private final TopicTrie filters = new TopicTrie();
+  private final Handler<Message<JsonObject>> publishedHandler =
+      new Handler<Message<JsonObject>>() {
+        @Override
+        public void handle(Message<JsonObject> message) {
+          String topic = message.body().getString(BridgeHook.TOPIC);
+          Object[] targets = topic == null ? null : filters.match(topic, null);
+          if (targets == null) {
+            return;
+          }
+          Set<SockJSSocket> reached = targets.length > 1 ? new HashSet<SockJSSocket>() : null;
+          Buffer frame = null;
+          for (Object target : targets) {
+            SockJSSocket sock = (SockJSSocket) target;
+            // Sockets subscribed to the topic itself get it from its own handler
+            if (subscriptions.get(sock).contains(topic)
+                || (reached != null && !reached.add(sock))) {
+              continue;
+            }
+            if (frame == null) {
+              frame = new Buffer(new JsonObject().putString("address", topic).putValue("body",
+                  message.body().getValue("body")).encode());
+            }
+            sock.write(frame);
+            delivered++;
+          }
+        }
+      };
+  // socket -> topics it subscribed to
+  private final Map<SockJSSocket, Set<String>> subscriptions =
+      new HashMap<SockJSSocket, Set<String>>();
+  private long delivered;
+
+  public FanOut(EventBus eb) {
+    this.eb = eb;
+  }
+
+  /**
+   * Returns the number of frames written to sockets.
+   */
+  public long getDelivered() {
+    return delivered;
+  }
+
+  /**
+   * Returns the number of sockets subscribed to {@code topic}.
+   */
+  public int getSubscribers(String topic) {
+    Topic t = topics.get(topic);
+    return t == null ? 0 : t.sockets.length;
+  }
+
+  /**
+   * Subscribes {@code sock} to {@code topic}.
+   *
+   * @return false if it was already subscribed
+   */
+  public boolean subscribe(SockJSSocket sock, String topic) {
+    Set<String> subscribed = subscriptions.get(sock);
+    if (subscribed == null) {
+      subscribed = new LinkedHashSet<String>();
+      subscriptions.put(sock, subscribed);
+    }
+    if (!subscribed.add(topic)) {
+      return false;
+    }
+    if (TopicTrie.isWildcard(topic)) {
+      if (filters.isEmpty()) {
+        eb.registerHandler(PUBLISHED_ADDR, publishedHandler);
+      }
+      filters.add(topic, sock);
+      return true;
+    }
+    Topic t = topics.get(topic);
+    if (t == null) {
+      t = new Topic(topic);
+      topics.put(topic, t);
+      eb.registerHandler(topic, t);
+    }
+    SockJSSocket[] sockets = new SockJSSocket[t.sockets.length + 1];
+    System.arraycopy(t.sockets, 0, sockets, 0, t.sockets.length);
+    sockets[t.sockets.length] = sock;
+    t.sockets = sockets;
+    return true;
+  }
+
+  /**
+   * Unsubscribes {@code sock} from {@code topic}.
+   *
+   * @return false if it wasn't subscribed
+   */
+  public boolean unsubscribe(SockJSSocket sock, String topic) {
+    Set<String> subscribed = subscriptions.get(sock);
+    if (subscribed == null || !subscribed.remove(topic)) {
+      return false;
+    }
+    if (subscribed.isEmpty()) {
+      subscriptions.remove(sock);
+    }
+    remove(sock, topic);
+    return true;
+  }
+
+  /**
+   * Unsubscribes {@code sock} from every topic, typically once it is closed.
+   *
+   * @return the topics it was subscribed to
+   */
+  public List<String> unsubscribeAll(SockJSSocket sock) {
+    Set<String> subscribed = subscriptions.remove(sock);
+    if (subscribed == null) {
+      return Collections.emptyList();
+    }
+    for (String topic : subscribed) {
+      remove(sock, topic);
+    }
+    return new ArrayList<String>(subscribed);
+  }
+
+  private void remove(SockJSSocket sock, String topic) {
+    if (TopicTrie.isWildcard(topic)) {
+      filters.remove(topic, sock);
+      if (filters.isEmpty()) {
+        eb.unregisterHandler(PUBLISHED_ADDR, publishedHandler);
+      }
+      return;
+    }
+    Topic t = topics.get(topic);
+    SockJSSocket[] sockets = t.sockets;
+    if (sockets.length == 1) {
+      topics.remove(topic);
+      eb.unregisterHandler(topic, t);
+      t.sockets = EMPTY;
+      return;
+    }
+    SockJSSocket[] remaining = new SockJSSocket[sockets.length - 1];
+    for (int i = 0, j = 0; i < sockets.length; i++) {
+      if (sockets[i] != sock) {
+        remaining[j++] = sockets[i];
+      }
+    }
+    t.sockets = remaining;
+  }
+}
@@ -0,0 +1,403 @@
+/*
+ * Copyright 2014 Goodow.com
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ * 
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software distributed under the License
+ * is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package com.goodow.realtime.channel.server.impl;
+
+import com.goodow.realtime.channel.mqtt.packet.AckPacket;
+import com.goodow.realtime.channel.mqtt.packet.ConnAckPacket;
+import com.goodow.realtime.channel.mqtt.packet.ConnectPacket;
+import com.goodow.realtime.channel.mqtt.packet.EmptyPacket;
+import com.goodow.realtime.channel.mqtt.packet.MqttPacket;
+import com.goodow.realtime.channel.mqtt.packet.PublishPacket;
+import com.goodow.realtime.channel.mqtt.packet.SubAckPacket;
+import com.goodow.realtime.channel.mqtt.packet.SubscribePacket;
+import com.goodow.realtime.channel.mqtt.packet.UnsubscribePacket;
+
+import org.vertx.java.core.Handler;
+import org.vertx.java.core.buffer.Buffer;
+
+import java.nio.charset.Charset;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Encodes {@link MqttPacket}s to Vert.x buffers, and decodes the packets of an MQTT 3.1.1 stream.
+ * <p>
+ * Packets are decoded in place from the buffers read off the connection: only the bytes of a
+ * packet split across reads are copied, to be completed by the next read. Malformed packets throw
+ * an {@link IllegalArgumentException}, after which the connection should be closed.
+ */
+public class MqttCodec {
+  private static final Charset UTF_8 = Charset.forName("UTF-8");
+
+  /**
+   * A cursor over the variable header and payload of a packet.
+   */
+  private static class Reader {
+    final Buffer buf;
+    final int end;
+    int pos;
+
+    Reader(Buffer buf, int start, int end) {
+      this.buf = buf;
+      this.pos = start;
+      this.end = end;
+    }
+
+    boolean hasMore() {
+      return pos < end;
+    }
+
+    byte readByte() {
+      require(1);
+      return buf.getByte(pos++);
+    }
+
+    byte[] readBinary() {
+      int length = readShort();
+      require(length);
+      byte[] bytes = buf.getBytes(pos, pos + length);
+      pos += length;
+      return bytes;
+    }
+
+    byte[] readRest() {
+      byte[] bytes = buf.getBytes(pos, end);
+      pos = end;
+      return bytes;
+    }
+
+    int readShort() {
+      require(2);
+      int value = (buf.getByte(pos) & 0xFF) << 8 | (buf.getByte(pos + 1) & 0xFF);
+      pos += 2;
+      return value;
+    }
+
+    String readString() {
+      int length = readShort();
+      require(length);
+      String value = buf.getString(pos, pos + length, "UTF-8");
+      pos += length;
+      return value;
+    }
+
+    private void require(int length) {
+      if (end - pos < length) {
+        throw new IllegalArgumentException("Truncated packet");
+      }
+    }
+  }
+
+  /**
+   * Encodes {@code packet}.
+   */
+  public static Buffer encode(MqttPacket packet) {
+    byte type = packet.getType();
+    Buffer body = new Buffer();
+    int flags = 0;
+    switch (type) {
+      case MqttPacket.CONNECT:
+        encodeConnect((ConnectPacket) packet, body);
+        break;
+      case MqttPacket.CONNACK:
+        ConnAckPacket connAck = (ConnAckPacket) packet;
+        body.appendByte((byte) (connAck.isSessionPresent() ? 1 : 0));
+        body.appendByte(connAck.getReturnCode());
+        break;
+      case MqttPacket.PUBLISH:
+        PublishPacket publish = (PublishPacket) packet;
+        return encodePublish(publish.getTopic(), publish.getPacketId(), publish.getQos(), publish
+            .isRetain(), publish.isDup(), new Buffer(publish.getPayload()));
+      case MqttPacket.PUBACK:
+      case MqttPacket.PUBREC:
+      case MqttPacket.PUBREL:
+      case MqttPacket.PUBCOMP:
+      case MqttPacket.UNSUBACK:
+        return encodeAck(type, ((AckPacket) packet).getPacketId());
+      case MqttPacket.SUBSCRIBE:
+        flags = 2;
+        SubscribePacket subscribe = (SubscribePacket) packet;
+        appendShort(body, subscribe.getPacketId());
+        for (int i = 0; i < subscribe.getTopicFilters().length; i++) {
+          appendString(body, subscribe.getTopicFilters()[i]);
+          body.appendByte(subscribe.getRequestedQos()[i]);
+        }
+        break;
+      case MqttPacket.SUBACK:
+        SubAckPacket subAck = (SubAckPacket) packet;
+        appendShort(body, subAck.getPacketId());
+        body.appendBytes(subAck.getReturnCodes());
+        break;
+      case MqttPacket.UNSUBSCRIBE:
+        flags = 2;
+        UnsubscribePacket unsubscribe = (UnsubscribePacket) packet;
+        appendShort(body, unsubscribe.getPacketId());
+        for (String topicFilter : unsubscribe.getTopicFilters()) {
+          appendString(body, topicFilter);
+        }
+        break;
+      default:
+        break;
+    }
+    Buffer buf = new Buffer(body.length() + 5);
+    buf.appendByte((byte) (type << 4 | flags));
+    appendRemainingLength(buf, body.length());
+    return buf.appendBuffer(body);
+  }
+
+  /**
+   * Encodes a PUBACK, PUBREC, PUBREL, PUBCOMP or UNSUBACK packet, without an {@link AckPacket} to
+   * encode from.
+   */
+  public static Buffer encodeAck(byte type, int packetId) {
+    Buffer buf = new Buffer(4);
+    buf.appendByte((byte) (type << 4 | (type == MqttPacket.PUBREL ? 2 : 0)));
+    buf.appendByte((byte) 2);
+    appendShort(buf, packetId);
+    return buf;
+  }
+
+  /**
+   * Encodes a PUBLISH packet whose payload is already in a buffer, so that a message published to
+   * many subscribers is encoded once and the result written to each of them.
+   */
+  public static Buffer encodePublish(String topic, int packetId, byte qos, boolean retain,
+      boolean dup, Buffer payload) {
+    byte[] topicBytes = topic.getBytes(UTF_8);
+    int remainingLength = 2 + topicBytes.length + (qos > 0 ? 2 : 0) + payload.length();
+    Buffer buf = new Buffer(remainingLength + 5);
+    buf.appendByte((byte) (MqttPacket.PUBLISH << 4 | (dup ? 8 : 0) | qos << 1 | (retain ? 1 : 0)));
+    appendRemainingLength(buf, remainingLength);
+    appendBinary(buf, topicBytes);
+    if (qos > 0) {
+      appendShort(buf, packetId);
+    }
+    return buf.appendBuffer(payload);
+  }
+
+  private static void appendBinary(Buffer buf, byte[] bytes) {
+    if (bytes.length > 0xFFFF) {
+      throw new IllegalArgumentException("Field longer than 65535 bytes");
+    }
+    appendShort(buf, bytes.length);
+    buf.appendBytes(bytes);
+  }
+
+  private static void appendRemainingLength(Buffer buf, int length) {
+    if (length > MqttPacket.MAX_REMAINING_LENGTH) {
+      throw new IllegalArgumentException("Packet too large: " + length);
+    }
+    do {
+      int digit = length & 0x7F;
+      length >>>= 7;
+      buf.appendByte((byte) (length > 0 ? digit | 0x80 : digit));
+    } while (length > 0);
+  }
+
+  private static void appendShort(Buffer buf, int value) {
+    buf.appendByte((byte) (value >> 8));
+    buf.appendByte((byte) value);
+  }
+
+  private static void appendString(Buffer buf, String value) {
+    appendBinary(buf, value.getBytes(UTF_8));
+  }
+
+  private static ConnectPacket decodeConnect(Reader in) {
+    ConnectPacket connect = new ConnectPacket();
+    String protocolName = in.readString();
+    byte protocolLevel = in.readByte();
+    connect.setProtocol(protocolName, protocolLevel);
+    int flags = in.readByte() & 0xFF;
+    if ((flags & 1) != 0) {
+      throw new IllegalArgumentException("Reserved CONNECT flag set");
+    }
+    connect.setCleanSession((flags & 0x02) != 0);
+    connect.setKeepAliveSeconds(in.readShort());
+    connect.setClientId(in.readString());
+    if ((flags & 0x04) != 0) {
+      String willTopic = in.readString();
+      byte willQos = (byte) (flags >> 3 & 3);
+      if (willQos == 3) {
+        throw new IllegalArgumentException("Invalid will QoS");
+      }
+      connect.setWill(willTopic, in.readBinary(), willQos, (flags & 0x20) != 0);
+    }
+    if ((flags & 0x80) != 0) {
+      connect.setUsername(in.readString());
+    }
+    if ((flags & 0x40) != 0) {
+      connect.setPassword(in.readBinary());
+    }
+    return connect;
+  }
+
+  private static MqttPacket decodePacket(Buffer buf, int header, int start, int end) {
+    byte type = (byte) (header >> 4);
+    int flags = header & 0x0F;
+    int expectedFlags =
+        type == MqttPacket.PUBREL || type == MqttPacket.SUBSCRIBE
+            || type == MqttPacket.UNSUBSCRIBE ? 2 : 0;
+    if (type != MqttPacket.PUBLISH && flags != expectedFlags) {
+      throw new IllegalArgumentException("Invalid flags for packet type " + type);
+    }
+    Reader in = new Reader(buf, start, end);
+    MqttPacket packet;
+    switch (type) {
+      case MqttPacket.CONNECT:
+        packet = decodeConnect(in);
+        break;
+      case MqttPacket.CONNACK:
+        boolean sessionPresent = (in.readByte() & 1) != 0;
+        packet = new ConnAckPacket(sessionPresent, in.readByte());
+        break;
+      case MqttPacket.PUBLISH:
+        byte qos = (byte) (flags >> 1 & 3);
+        if (qos == 3) {
+          throw new IllegalArgumentException("Invalid QoS");
+        }
+        String topic = in.readString();
+        int packetId = qos > 0 ? in.readShort() : 0;
+        packet = new PublishPacket(topic, packetId, in.readRest());
+        packet.setQos(qos);
+        packet.setDup((flags & 8) != 0);
+        packet.setRetain((flags & 1) != 0);
+        break;
+      case MqttPacket.PUBACK:
+      case MqttPacket.PUBREC:
+      case MqttPacket.PUBREL:
+      case MqttPacket.PUBCOMP:
+      case MqttPacket.UNSUBACK:
+        packet = new AckPacket(type, in.readShort());
+        break;
+      case MqttPacket.SUBSCRIBE: {
+        int id = in.readShort();
+        List<String> topicFilters = new ArrayList<String>();
+        List<Byte> requestedQos = new ArrayList<Byte>();
+        do {
+          topicFilters.add(in.readString());
+          requestedQos.add((byte) (in.readByte() & 3));
+        } while (in.hasMore());
+        byte[] qosArray = new byte[requestedQos.size()];
+        for (int i = 0; i < qosArray.length; i++) {
+          qosArray[i] = requestedQos.get(i);
+        }
+        packet = new SubscribePacket(id, topicFilters.toArray(new String[0]), qosArray);
+        break;
+      }
+      case MqttPacket.SUBACK:
+        packet = new SubAckPacket(in.readShort(), in.readRest());
+        break;
+      case MqttPacket.UNSUBSCRIBE: {
+        int id = in.readShort();
+        List<String> topicFilters = new ArrayList<String>();
+        do {
+          topicFilters.add(in.readString());
+        } while (in.hasMore());
+        packet = new UnsubscribePacket(id, topicFilters.toArray(new String[0]));
+        break;
+      }
+      case MqttPacket.PINGREQ:
+      case MqttPacket.PINGRESP:
+      case MqttPacket.DISCONNECT:
+        packet = new EmptyPacket(type);
+        break;
+      default:
+        throw new IllegalArgumentException("Invalid packet type " + type);
+    }
+    if (in.hasMore()) {
+      throw new IllegalArgumentException("Unexpected bytes after packet type " + type);
+    }
+    return packet;
+  }
+
+  private static void encodeConnect(ConnectPacket connect, Buffer body) {
+    appendString(body, connect.getProtocolName());
+    body.appendByte(connect.getProtocolLevel());
+    int flags = connect.isCleanSession() ? 0x02 : 0;
+    if (connect.getWillTopic() != null) {
+      flags |= 0x04 | connect.getWillQos() << 3 | (connect.isWillRetain() ? 0x20 : 0);
+    }
+    if (connect.getUsername() != null) {
+      flags |= 0x80;
+    }
+    if (connect.getPassword() != null) {
+      flags |= 0x40;
+    }
+    body.appendByte((byte) flags);
+    appendShort(body, connect.getKeepAliveSeconds());
+    appendString(body, connect.getClientId());
+    if (connect.getWillTopic() != null) {
+      appendString(body, connect.getWillTopic());
+      appendBinary(body, connect.getWillMessage());
+    }
+    if (connect.getUsername() != null) {
+      appendString(body, connect.getUsername());
+    }
+    if (connect.getPassword() != null) {
+      appendBinary(body, connect.getPassword());
+    }
+  }
+
+  private final int maxPacketSize;
+  private Buffer pending;
+
+  /**
+   * @param maxPacketSize the largest remaining length accepted, so that a client can't make the
+   *          decoder buffer an arbitrary amount of data
+   */
+  public MqttCodec(int maxPacketSize) {
+    this.maxPacketSize = Math.min(maxPacketSize, MqttPacket.MAX_REMAINING_LENGTH);
+  }
+
+  /**
+   * Decodes the packets completed by {@code data}, and keeps any trailing incomplete packet for
+   * the next call.
+   */
+  public void decode(Buffer data, Handler<MqttPacket> handler) {
+    Buffer buf = pending == null ? data : pending.appendBuffer(data);
+    pending = null;
+    int len = buf.length();
+    int pos = 0;
+    while (len - pos >= 2) {
+      int remainingLength = 0;
+      int i = pos + 1;
+      int digit;
+      int shift = 0;
+      do {
+        if (i == len) {
+          break;
+        }
+        if (shift == 28) {
+          throw new IllegalArgumentException("Malformed remaining length");
+        }
+        digit = buf.getByte(i++) & 0xFF;
+        remainingLength |= (digit & 0x7F) << shift;
+        shift += 7;
+      } while ((digit & 0x80) != 0);
+      if (remainingLength > maxPacketSize) {
+        throw new IllegalArgumentException("Packet too large: " + remainingLength);
+      }
+      if ((buf.getByte(i - 1) & 0x80) != 0 || len - i < remainingLength) {
+        break; // Incomplete
+      }
+      int end = i + remainingLength;
+      handler.handle(decodePacket(buf, buf.getByte(pos) & 0xFF, i, end));
+      pos = end;
+    }
+    if (pos < len) {
+      pending = buf.getBuffer(pos, len);
+    }
+  }
+}
@@ -0,0 +1,479 @@
+/*
+ * Copyright 2014 Goodow.com
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ * 
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software distributed under the License
+ * is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package com.goodow.realtime.channel.server.impl;
+
+import com.goodow.realtime.channel.impl.WebSocketBus;
+import com.goodow.realtime.channel.mqtt.packet.AckPacket;
+import com.goodow.realtime.channel.mqtt.packet.ConnAckPacket;
+import com.goodow.realtime.channel.mqtt.packet.ConnectPacket;
+import com.goodow.realtime.channel.mqtt.packet.EmptyPacket;
+import com.goodow.realtime.channel.mqtt.packet.MqttPacket;
+import com.goodow.realtime.channel.mqtt.packet.PublishPacket;
+import com.goodow.realtime.channel.mqtt.packet.SubAckPacket;
+import com.goodow.realtime.channel.mqtt.packet.SubscribePacket;
+import com.goodow.realtime.channel.mqtt.packet.UnsubscribePacket;
+
+import org.vertx.java.core.Context;
+import org.vertx.java.core.Handler;
+import org.vertx.java.core.Vertx;
+import org.vertx.java.core.buffer.Buffer;
+import org.vertx.java.core.json.JsonObject;
+import org.vertx.java.core.net.NetSocket;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.UUID;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * The server side of an MQTT 3.1.1 connection, which publishes what the client publishes to the
+ * bus topic of the same name, and delivers the bus topics it subscribes to through
+ * {@link MqttTopics}.<p>
+ * The client id is the session of the connection, see {@link MqttSession}. Subscriptions are to
+ * exact topics; topic filters with wildcards are refused. Messages are delivered at the QoS granted
+ * to the subscription, at most {@link #RECEIVE_MAXIMUM} unacknowledged at a time, and resent with
+ * the DUP flag when the client reconnects to its session. Messages published at QoS 1 or 2 are
+ * acknowledged once published to the bus, and those at QoS 2 are published only once. The will of
+ * the client is published when the connection is lost without a DISCONNECT.<p>
+ * Messages published with the RETAIN flag are kept by the {@link RetainedStore}, which sends the
+ * retained message of a topic to every client subscribing to it.<p>
+ * Publishes, wills included, are dropped unless the inbound permitted list of the bridge lets
+ * them through, and subscriptions are refused unless the outbound one lets their topic through.
+ * Topics of the channel itself are never delivered, so subscribing to them is refused too.
+ */
+public class MqttConnection implements Handler<MqttPacket> {
+  /**
+   * The largest packet accepted from a client, 256 KiB by default.
+   */
+  public static final String MAX_PACKET_SIZE = "max_packet_size";
+  /**
+   * How many QoS 1 and 2 messages may be in flight to a client, 32 by default.
+   */
+  public static final String RECEIVE_MAXIMUM = "receive_maximum";
+  /**
+   * How many QoS 1 and 2 messages may wait for the in-flight window to open, 1000 by default.
+   * Beyond that the oldest are dropped.
+   */
+  public static final String MAX_QUEUED_MESSAGES = "max_queued_messages";
+  /**
+   * How long a client has to send its CONNECT.
+   */
+  static final long CONNECT_TIMEOUT_MILLIS = 10000;
+  private static final Logger log = Logger.getLogger(MqttConnection.class.getName());
+
+  private final Vertx vertx;
+  private final Context context;
+  private final NetSocket sock;
+  private final MqttTopics topics;
+  private final Permitted permitted;
+  private final MqttSessions sessions;
+  private final RetainedStore retained;
+  private final PresenceService presence;
+  private final JsonObject config;
+  private final MqttCodec codec;
+  private ConnectPacket connect;
+  private MqttSession session;
+  // Packets received while waiting for the session
+  private List<MqttPacket> deferred;
+  private long timerId = -1;
+  private long lastRead;
+  private boolean closed;
+
+  /**
+   * @param retained the retained messages, or null not to retain any
+   * @param presence the presence to join the subscribed topics, or null
+   */
+  public MqttConnection(Vertx vertx, NetSocket sock, MqttTopics topics, Permitted permitted,
+      MqttSessions sessions, RetainedStore retained, PresenceService presence, JsonObject config) {
+    this.vertx = vertx;
+    this.context = vertx.currentContext();
+    this.sock = sock;
+    this.topics = topics;
+    this.permitted = permitted;
+    this.sessions = sessions;
+    this.retained = retained;
+    this.presence = presence;
+    this.config = config;
+    this.codec = new MqttCodec(config.getInteger(MAX_PACKET_SIZE, 256 * 1024));
+    lastRead = System.currentTimeMillis();
+    sock.dataHandler(new Handler<Buffer>() {
+      @Override
+      public void handle(Buffer data) {
+        lastRead = System.currentTimeMillis();
+        try {
+          codec.decode(data, MqttConnection.this);
+        } catch (IllegalArgumentException e) {
+          log.log(Level.FINE, "Closing MQTT connection after a malformed packet", e);
+          close();
+        }
+      }
+    });
+    sock.closeHandler(new Handler<Void>() {
+      @Override
+      public void handle(Void event) {
+        closed();
+      }
+    });
+    timerId = vertx.setTimer(CONNECT_TIMEOUT_MILLIS, new Handler<Long>() {
+      @Override
+      public void handle(Long event) {
+        timerId = -1;
+        if (connect == null) {
+          close();
+        }
+      }
+    });
+  }
+
+  /**
+   * Delivers a message of a subscribed topic at {@code qos} 1 or 2, or queues it if the in-flight
+   * window is full.
+   */
+  public void deliver(String topic, Buffer payload, byte qos) {
+    if (closed) {
+      return;
+    }
+    int packetId = session.getOutbound().add(topic, payload, qos);
+    if (packetId != 0) {
+      // Not subject to writeQueueFull: the window bounds what is written
+      sock.write(MqttCodec.encodePublish(topic, packetId, qos, false, false, payload));
+    }
+  }
+
+  public String getSessionId() {
+    return session == null ? null : session.getClientId();
+  }
+
+  @Override
+  public void handle(MqttPacket packet) {
+    if (closed) {
+      return;
+    }
+    if (deferred != null) {
+      deferred.add(packet);
+      return;
+    }
+    if (connect == null && packet.getType() != MqttPacket.CONNECT) {
+      close();
+      return;
+    }
+    MqttInflight outbound = session == null ? null : session.getOutbound();
+    switch (packet.getType()) {
+      case MqttPacket.CONNECT:
+        onConnect((ConnectPacket) packet);
+        break;
+      case MqttPacket.PUBLISH:
+        onPublish((PublishPacket) packet);
+        break;
+      case MqttPacket.PUBACK:
+        if (outbound.acknowledge(((AckPacket) packet).getPacketId())) {
+          promote();
+        }
+        break;
+      case MqttPacket.PUBREC:
+        int recId = ((AckPacket) packet).getPacketId();
+        outbound.release(recId);
+        sock.write(MqttCodec.encodeAck(MqttPacket.PUBREL, recId));
+        break;
+      case MqttPacket.PUBREL:
+        int relId = ((AckPacket) packet).getPacketId();
+        session.getReceived().clear(relId);
+        sock.write(MqttCodec.encodeAck(MqttPacket.PUBCOMP, relId));
+        break;
+      case MqttPacket.PUBCOMP:
+        if (outbound.complete(((AckPacket) packet).getPacketId())) {
+          promote();
+        }
+        break;
+      case MqttPacket.SUBSCRIBE:
+        onSubscribe((SubscribePacket) packet);
+        break;
+      case MqttPacket.UNSUBSCRIBE:
+        UnsubscribePacket unsubscribe = (UnsubscribePacket) packet;
+        for (String topic : unsubscribe.getTopicFilters()) {
+          if (session.getSubscriptions().remove(topic) != null) {
+            topics.unsubscribe(topic, this);
+            if (presence != null) {
+              presence.leave(topic, getSessionId());
+            }
+          }
+        }
+        sock.write(MqttCodec.encodeAck(MqttPacket.UNSUBACK, unsubscribe.getPacketId()));
+        break;
+      case MqttPacket.PINGREQ:
+        send(new EmptyPacket(MqttPacket.PINGRESP));
+        break;
+      case MqttPacket.DISCONNECT:
+        // A clean disconnect discards the will
+        connect.setWill(null, null, (byte) 0, false);
+        close();
+        break;
+      default:
+        // Packets which only a server sends
+        close();
+        break;
+    }
+  }
+
+  /**
+   * Writes an encoded QoS 0 packet, unless the client doesn't keep up, in which case QoS 0 allows
+   * to drop it.
+   */
+  public void write(Buffer packet) {
+    if (!closed && !sock.writeQueueFull()) {
+      sock.write(packet);
+    }
+  }
+
+  /**
+   * Called by {@link MqttSessions} once this connection owns {@code session}.
+   *
+   * @param present whether the session existed before this connection
+   */
+  void attached(MqttSession session, boolean present) {
+    List<MqttPacket> packets = deferred;
+    deferred = null;
+    if (closed) {
+      sessions.detach(session, this);
+      return;
+    }
+    this.session = session;
+    send(new ConnAckPacket(present, ConnAckPacket.ACCEPTED));
+    if (present) {
+      for (Map.Entry<String, Byte> subscription : session.getSubscriptions().entrySet()) {
+        subscribe(subscription.getKey(), subscription.getValue());
+      }
+      MqttInflight outbound = session.getOutbound();
+      for (int packetId : outbound.packetIds()) {
+        sock.write(outbound.encode(packetId, true));
+      }
+      promote();
+    }
+    for (MqttPacket packet : packets) {
+      handle(packet);
+    }
+  }
+
+  void runOnContext(Handler<Void> action) {
+    context.runOnContext(action);
+  }
+
+  /**
+   * Closes this connection on its own event loop because its client connected again, and then
+   * calls {@code done}.
+   */
+  void takeOver(final Handler<Void> done) {
+    context.runOnContext(new Handler<Void>() {
+      @Override
+      public void handle(Void event) {
+        close();
+        done.handle(null);
+      }
+    });
+  }
+
+  private void close() {
+    if (!closed) {
+      sock.close();
+      closed();
+    }
+  }
+
+  private void closed() {
+    if (closed) {
+      return;
+    }
+    closed = true;
+    if (timerId != -1) {
+      vertx.cancelTimer(timerId);
+      timerId = -1;
+    }
+    if (session != null) {
+      // The subscriptions stay with the session, for the next connection to resume
+      for (String topic : session.getSubscriptions().keySet()) {
+        topics.unsubscribe(topic, this);
+        if (presence != null) {
+          presence.leave(topic, getSessionId());
+        }
+      }
+      sessions.detach(session, this);
+    }
+    if (connect != null && connect.getWillTopic() != null) {
+      Object will = toBody(connect.getWillMessage());
+      if (permitted.inbound(connect.getWillTopic(), will)) {
+        vertx.eventBus().publish(connect.getWillTopic(), will);
+        FanOut.mirror(vertx.eventBus(), connect.getWillTopic(), will);
+      }
+    }
+  }
+
+  private void onConnect(ConnectPacket packet) {
+    if (connect != null) {
+      // A second CONNECT is a protocol violation
+      close();
+      return;
+    }
+    if (!ConnectPacket.PROTOCOL_NAME.equals(packet.getProtocolName())
+        || packet.getProtocolLevel() != ConnectPacket.PROTOCOL_LEVEL) {
+      sendAndClose(new ConnAckPacket(false, ConnAckPacket.UNACCEPTABLE_PROTOCOL_VERSION));
+      return;
+    }
+    String clientId = packet.getClientId();
+    if (clientId.isEmpty()) {
+      if (!packet.isCleanSession()) {
+        sendAndClose(new ConnAckPacket(false, ConnAckPacket.IDENTIFIER_REJECTED));
+        return;
+      }
+      clientId = UUID.randomUUID().toString();
+    }
+    connect = packet;
+    vertx.cancelTimer(timerId);
+    timerId = -1;
+    final long keepAliveMillis = packet.getKeepAliveSeconds() * 1000L;
+    if (keepAliveMillis > 0) {
+      timerId = vertx.setPeriodic(keepAliveMillis / 2, new Handler<Long>() {
+        @Override
+        public void handle(Long event) {
+          // The server must disconnect after one and a half keep alive periods of silence
+          if (System.currentTimeMillis() - lastRead > keepAliveMillis * 3 / 2) {
+            close();
+          }
+        }
+      });
+    }
+    deferred = new ArrayList<MqttPacket>();
+    sessions.attach(new MqttSession(clientId, packet.isCleanSession(), config.getInteger(
+        RECEIVE_MAXIMUM, 32), config.getInteger(MAX_QUEUED_MESSAGES, 1000)), this);
+  }
+
+  private void onPublish(PublishPacket packet) {
+    String topic = packet.getTopic();
+    if (topic.isEmpty() || topic.indexOf('+') != -1 || topic.indexOf('#') != -1) {
+      close();
+      return;
+    }
+    switch (packet.getQos()) {
+      case 0:
+        publish(packet);
+        break;
+      case 1:
+        publish(packet);
+        sock.write(MqttCodec.encodeAck(MqttPacket.PUBACK, packet.getPacketId()));
+        break;
+      default:
+        if (!session.getReceived().get(packet.getPacketId())) {
+          session.getReceived().set(packet.getPacketId());
+          publish(packet);
+        }
+        sock.write(MqttCodec.encodeAck(MqttPacket.PUBREC, packet.getPacketId()));
+        break;
+    }
+  }
+
+  private void onSubscribe(SubscribePacket packet) {
+    String[] filters = packet.getTopicFilters();
+    byte[] returnCodes = new byte[filters.length];
+    for (int i = 0; i < filters.length; i++) {
+      String topic = filters[i];
+      byte qos = packet.getRequestedQos()[i];
+      if (topic.isEmpty() || topic.indexOf('+') != -1 || topic.indexOf('#') != -1 || qos > 2
+          || topic.startsWith(WebSocketBus.TOPIC_CHANNEL + "/")
+          || !permitted.outbound(topic, null)) {
+        returnCodes[i] = SubAckPacket.FAILURE;
+        continue;
+      }
+      session.getSubscriptions().put(topic, qos);
+      subscribe(topic, qos);
+      returnCodes[i] = qos;
+    }
+    send(new SubAckPacket(packet.getPacketId(), returnCodes));
+    for (int i = 0; i < filters.length; i++) {
+      if (returnCodes[i] != SubAckPacket.FAILURE) {
+        sendRetained(filters[i], returnCodes[i]);
+      }
+    }
+  }
+
+  /**
+   * Sends the queued messages which now fit in the in-flight window.
+   */
+  private void promote() {
+    MqttInflight outbound = session.getOutbound();
+    int packetId;
+    while ((packetId = outbound.promote()) != 0) {
+      sock.write(outbound.encode(packetId, false));
+    }
+  }
+
+  private void publish(PublishPacket packet) {
+    Object body = toBody(packet.getPayload());
+    if (!permitted.inbound(packet.getTopic(), body)) {
+      // MQTT 3.1.1 can't refuse a publish, so it is acknowledged and dropped
+      log.fine("Dropped MQTT publish to " + packet.getTopic() + ", which isn't permitted");
+      return;
+    }
+    if (packet.isRetain() && retained != null) {
+      RetainedStore.publish(vertx.eventBus(), packet.getTopic(), body);
+    } else {
+      vertx.eventBus().publish(packet.getTopic(), body);
+      FanOut.mirror(vertx.eventBus(), packet.getTopic(), body);
+    }
+  }
+
+  private void send(MqttPacket packet) {
+    sock.write(MqttCodec.encode(packet));
+  }
+
+  private void sendAndClose(MqttPacket packet) {
+    send(packet);
+    close();
+  }
+
+  private void sendRetained(String topic, byte qos) {
+    byte[] payload = retained == null ? null : retained.getPayload(topic);
+    if (payload == null || !permitted.permitsAll()
+        && !permitted.outbound(topic, MqttTopics.fromPayload(payload))) {
+      return;
+    }
+    if (qos == 0) {
+      write(MqttCodec.encodePublish(topic, 0, qos, true, false, new Buffer(payload)));
+      return;
+    }
+    MqttInflight outbound = session.getOutbound();
+    int packetId = outbound.add(topic, new Buffer(payload), qos, true);
+    if (packetId != 0) {
+      sock.write(outbound.encode(packetId, false));
+    }
+  }
+
+  private void subscribe(String topic, byte qos) {
+    if (topics.subscribe(topic, this, qos) && presence != null) {
+      presence.join(topic, getSessionId());
+    }
+  }
+
+  /**
+   * Converts a payload like {@link MqttTopics#fromPayload}, and stamps JSON objects with the
+   * session like the SockJS bridge does.
+   */
+  private Object toBody(byte[] payload) {
+    Object body = MqttTopics.fromPayload(payload);
+    if (body instanceof JsonObject && !((JsonObject) body).containsField(WebSocketBus.SESSION)) {
+      ((JsonObject) body).putString(WebSocketBus.SESSION, getSessionId());
+    }
+    return body;
+  }
+}
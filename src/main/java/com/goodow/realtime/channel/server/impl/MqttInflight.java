@@ -0,0 +1,289 @@
+/*
+ * Copyright 2014 Goodow.com
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ * 
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software distributed under the License
+ * is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package com.goodow.realtime.channel.server.impl;
+
+import com.goodow.realtime.channel.mqtt.packet.MqttPacket;
+
+import org.vertx.java.core.buffer.Buffer;
+
+/**
+ * The QoS 1 and 2 messages sent to an MQTT session and not yet acknowledged, at most
+ * {@code receiveMaximum} at a time. Further messages wait in a bounded queue, which drops its
+ * oldest message when full, until acknowledgements open the window.<p>
+ * Everything is kept in parallel arrays indexed by slot, and a packet id is only handed out when
+ * {@code (packetId - 1) % receiveMaximum} is a free slot, so that an acknowledgement finds its
+ * message without a map and delivering a message allocates nothing but its frame. Not thread-safe.
+ */
+public class MqttInflight {
+  private static final byte FREE = 0;
+  // PUBLISH sent, waiting for PUBACK at QoS 1 or PUBREC at QoS 2
+  private static final byte PUBLISHED = 1;
+  // PUBREL sent, waiting for PUBCOMP
+  private static final byte RELEASED = 2;
+  private static final int MAX_PACKET_ID = 0xFFFF;
+  // Kept with the QoS of a message
+  private static final byte RETAIN = 4;
+
+  private final int capacity;
+  private final int[] packetIds;
+  private final byte[] states;
+  // QoS, and RETAIN if the message is delivered as retained
+  private final byte[] qos;
+  private final long[] sequence;
+  private final String[] topics;
+  private final Buffer[] payloads;
+  private int size;
+  private int nextPacketId = 1;
+  private long nextSequence;
+
+  private final String[] queuedTopics;
+  private final Buffer[] queuedPayloads;
+  private final byte[] queuedQos;
+  private int queueHead;
+  private int queued;
+  private long dropped;
+
+  /**
+   * @param receiveMaximum how many messages may be in flight, at most 65535
+   * @param maxQueued how many messages may wait for the window to open
+   */
+  public MqttInflight(int receiveMaximum, int maxQueued) {
+    if (receiveMaximum <= 0 || receiveMaximum > MAX_PACKET_ID || maxQueued < 0) {
+      throw new IllegalArgumentException("Invalid window: " + receiveMaximum + ", " + maxQueued);
+    }
+    capacity = receiveMaximum;
+    packetIds = new int[capacity];
+    states = new byte[capacity];
+    qos = new byte[capacity];
+    sequence = new long[capacity];
+    topics = new String[capacity];
+    payloads = new Buffer[capacity];
+    queuedTopics = new String[maxQueued];
+    queuedPayloads = new Buffer[maxQueued];
+    queuedQos = new byte[maxQueued];
+  }
+
+  /**
+   * Records that PUBACK was received for {@code packetId}.
+   *
+   * @return whether it acknowledged a QoS 1 message in flight, whose slot is now free
+   */
+  public boolean acknowledge(int packetId) {
+    int slot = slot(packetId, PUBLISHED);
+    if (slot < 0 || (qos[slot] & ~RETAIN) != 1) {
+      return false;
+    }
+    free(slot);
+    return true;
+  }
+
+  /**
+   * Adds a message to deliver at {@code qos} 1 or 2.
+   *
+   * @return the packet id to publish it with, or 0 if the window is full and it was queued
+   */
+  public int add(String topic, Buffer payload, byte qos) {
+    return add(topic, payload, qos, false);
+  }
+
+  /**
+   * Adds a message to deliver at {@code qos} 1 or 2, with the RETAIN flag if {@code retain}.
+   *
+   * @return the packet id to publish it with, or 0 if the window is full and it was queued
+   */
+  public int add(String topic, Buffer payload, byte qos, boolean retain) {
+    byte flags = (byte) (retain ? qos | RETAIN : qos);
+    if (size == capacity) {
+      enqueue(topic, payload, flags);
+      return 0;
+    }
+    return allocate(topic, payload, flags);
+  }
+
+  /**
+   * Forgets every message, in flight or queued.
+   */
+  public void clear() {
+    for (int i = 0; i < capacity; i++) {
+      if (states[i] != FREE) {
+        free(i);
+      }
+    }
+    while (queued > 0) {
+      dequeue();
+    }
+  }
+
+  /**
+   * Records that PUBCOMP was received for {@code packetId}.
+   *
+   * @return whether it completed a QoS 2 message in flight, whose slot is now free
+   */
+  public boolean complete(int packetId) {
+    int slot = slot(packetId, RELEASED);
+    if (slot < 0) {
+      return false;
+    }
+    free(slot);
+    return true;
+  }
+
+  /**
+   * Encodes the packet to (re)send for {@code packetId}: its PUBLISH, with the DUP flag if
+   * {@code dup}, or its PUBREL once PUBREC was received.
+   */
+  public Buffer encode(int packetId, boolean dup) {
+    int slot = (packetId - 1) % capacity;
+    if (states[slot] == FREE || packetIds[slot] != packetId) {
+      throw new IllegalArgumentException("Packet " + packetId + " is not in flight");
+    }
+    if (states[slot] == RELEASED) {
+      return MqttCodec.encodeAck(MqttPacket.PUBREL, packetId);
+    }
+    return MqttCodec.encodePublish(topics[slot], packetId, (byte) (qos[slot] & ~RETAIN),
+        (qos[slot] & RETAIN) != 0, dup, payloads[slot]);
+  }
+
+  /**
+   * Returns how many messages were dropped because the queue was full.
+   */
+  public long getDropped() {
+    return dropped;
+  }
+
+  public int getQueued() {
+    return queued;
+  }
+
+  /**
+   * Returns the packet ids in flight, in the order their messages were first sent, which is the
+   * order they must be resent in.
+   */
+  public int[] packetIds() {
+    int[] slots = new int[size];
+    int n = 0;
+    for (int i = 0; i < capacity; i++) {
+      if (states[i] != FREE) {
+        // Insertion sort by sequence: retransmission is rare and the window small
+        int j = n++;
+        while (j > 0 && sequence[slots[j - 1]] > sequence[i]) {
+          slots[j] = slots[j - 1];
+          j--;
+        }
+        slots[j] = i;
+      }
+    }
+    for (int i = 0; i < n; i++) {
+      slots[i] = packetIds[slots[i]];
+    }
+    return slots;
+  }
+
+  /**
+   * Moves the oldest queued message into the window, if there is room.
+   *
+   * @return its packet id, or 0 if nothing was moved
+   */
+  public int promote() {
+    if (queued == 0 || size == capacity) {
+      return 0;
+    }
+    String topic = queuedTopics[queueHead];
+    Buffer payload = queuedPayloads[queueHead];
+    byte q = queuedQos[queueHead];
+    dequeue();
+    return allocate(topic, payload, q);
+  }
+
+  /**
+   * Records that PUBREC was received for {@code packetId}, after which PUBREL must be sent, even
+   * if this returns false.
+   *
+   * @return whether it was for a QoS 2 message in flight
+   */
+  public boolean release(int packetId) {
+    int slot = slot(packetId, PUBLISHED);
+    if (slot < 0 || (qos[slot] & ~RETAIN) != 2) {
+      return slot(packetId, RELEASED) >= 0;
+    }
+    states[slot] = RELEASED;
+    // The receiver has the message now
+    topics[slot] = null;
+    payloads[slot] = null;
+    return true;
+  }
+
+  /**
+   * Returns how many messages are in flight.
+   */
+  public int size() {
+    return size;
+  }
+
+  private int allocate(String topic, Buffer payload, byte q) {
+    int packetId;
+    int slot;
+    do {
+      packetId = nextPacketId;
+      nextPacketId = nextPacketId == MAX_PACKET_ID ? 1 : nextPacketId + 1;
+      slot = (packetId - 1) % capacity;
+    } while (states[slot] != FREE);
+    packetIds[slot] = packetId;
+    states[slot] = PUBLISHED;
+    qos[slot] = q;
+    sequence[slot] = nextSequence++;
+    topics[slot] = topic;
+    payloads[slot] = payload;
+    size++;
+    return packetId;
+  }
+
+  private void dequeue() {
+    queuedTopics[queueHead] = null;
+    queuedPayloads[queueHead] = null;
+    queueHead = (queueHead + 1) % queuedTopics.length;
+    queued--;
+  }
+
+  private void enqueue(String topic, Buffer payload, byte q) {
+    if (queuedTopics.length == 0) {
+      dropped++;
+      return;
+    }
+    if (queued == queuedTopics.length) {
+      dequeue();
+      dropped++;
+    }
+    int tail = (queueHead + queued) % queuedTopics.length;
+    queuedTopics[tail] = topic;
+    queuedPayloads[tail] = payload;
+    queuedQos[tail] = q;
+    queued++;
+  }
+
+  private void free(int slot) {
+    states[slot] = FREE;
+    topics[slot] = null;
+    payloads[slot] = null;
+    size--;
+  }
+
+  private int slot(int packetId, byte state) {
+    if (packetId <= 0 || packetId > MAX_PACKET_ID) {
+      return -1;
+    }
+    int slot = (packetId - 1) % capacity;
+    return states[slot] == state && packetIds[slot] == packetId ? slot : -1;
+  }
+}
@@ -0,0 +1,65 @@
+/*
+ * Copyright 2014 Goodow.com
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ * 
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software distributed under the License
+ * is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package com.goodow.realtime.channel.server.impl;
+
+import java.util.BitSet;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * The state of an MQTT client which outlives its connections unless it asked for a clean session:
+ * its subscriptions, the messages in flight to it, and the QoS 2 messages received from it but not
+ * yet released. Only the connection which owns the session touches it, see {@link MqttSessions}.
+ */
+public class MqttSession {
+  private final String clientId;
+  private final boolean clean;
+  private final MqttInflight outbound;
+  // Indexed by packet id
+  private final BitSet received = new BitSet();
+  // topic -> granted QoS
+  private final Map<String, Byte> subscriptions = new LinkedHashMap<String, Byte>();
+  // Guarded by MqttSessions
+  MqttConnection owner;
+
+  public MqttSession(String clientId, boolean clean, int receiveMaximum, int maxQueued) {
+    this.clientId = clientId;
+    this.clean = clean;
+    this.outbound = new MqttInflight(receiveMaximum, maxQueued);
+  }
+
+  public String getClientId() {
+    return clientId;
+  }
+
+  public MqttInflight getOutbound() {
+    return outbound;
+  }
+
+  /**
+   * Returns the packet ids of the QoS 2 messages received and published, which must not be
+   * published again until released.
+   */
+  public BitSet getReceived() {
+    return received;
+  }
+
+  public Map<String, Byte> getSubscriptions() {
+    return subscriptions;
+  }
+
+  public boolean isClean() {
+    return clean;
+  }
+}
@@ -0,0 +1,91 @@
+/*
+ * Copyright 2014 Goodow.com
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ * 
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software distributed under the License
+ * is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package com.goodow.realtime.channel.server.impl;
+
+import org.vertx.java.core.Handler;
+
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * The MQTT sessions of a process by client id, shared by every bridge whichever event loop they
+ * run on.<p>
+ * A session is owned by one connection at a time. When a client connects again while its previous
+ * connection is still open, the previous connection is closed on its own event loop before the new
+ * one is given the session, so that the session is never touched from two threads at once.
+ */
+public class MqttSessions {
+  private final Map<String, MqttSession> sessions = new HashMap<String, MqttSession>();
+
+  /**
+   * Gives {@code connection} the session of {@code candidate}'s client: {@code candidate} itself if
+   * it is clean or the client has no session, the existing session otherwise. Calls
+   * {@link MqttConnection#attached} once the session is free to use, which may be later and on
+   * another thread.
+   */
+  public void attach(MqttSession candidate, final MqttConnection connection) {
+    final MqttSession session;
+    final boolean present;
+    final MqttConnection previous;
+    synchronized (this) {
+      MqttSession existing = sessions.get(candidate.getClientId());
+      previous = existing == null ? null : existing.owner;
+      if (existing == null || candidate.isClean() || existing.isClean()) {
+        session = candidate;
+        present = false;
+        sessions.put(candidate.getClientId(), candidate);
+        if (existing != null) {
+          existing.owner = null;
+        }
+      } else {
+        session = existing;
+        present = true;
+      }
+      session.owner = connection;
+    }
+    if (previous == null) {
+      connection.attached(session, present);
+      return;
+    }
+    previous.takeOver(new Handler<Void>() {
+      @Override
+      public void handle(Void event) {
+        connection.runOnContext(new Handler<Void>() {
+          @Override
+          public void handle(Void event) {
+            connection.attached(session, present);
+          }
+        });
+      }
+    });
+  }
+
+  /**
+   * Releases {@code session} from {@code connection}, if it still owns it. A clean session is
+   * discarded.
+   */
+  public synchronized void detach(MqttSession session, MqttConnection connection) {
+    if (session.owner != connection) {
+      return;
+    }
+    session.owner = null;
+    if (session.isClean() && sessions.get(session.getClientId()) == session) {
+      sessions.remove(session.getClientId());
+    }
+  }
+
+  public synchronized int size() {
+    return sessions.size();
+  }
+}
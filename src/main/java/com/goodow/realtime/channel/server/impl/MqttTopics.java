@@ -0,0 +1,216 @@
+/*
+ * Copyright 2014 Goodow.com
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ * 
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software distributed under the License
+ * is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package com.goodow.realtime.channel.server.impl;
+
+import org.vertx.java.core.Handler;
+import org.vertx.java.core.buffer.Buffer;
+import org.vertx.java.core.eventbus.EventBus;
+import org.vertx.java.core.eventbus.Message;
+import org.vertx.java.core.json.DecodeException;
+import org.vertx.java.core.json.JsonArray;
+import org.vertx.java.core.json.JsonObject;
+
+import java.nio.charset.Charset;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * Delivers the messages published through the channel to the MQTT connections of a bridge which
+ * subscribed to their topic. MQTT topic names are bus topics as they are. Each message is encoded
+ * once into a QoS 0 PUBLISH packet written to every subscriber at QoS 0, and handed to the others
+ * to deliver with their own packet ids.<p>
+ * Messages are taken from {@link FanOut#PUBLISHED_ADDR} rather than from a handler per topic, so
+ * that MQTT clients only receive publishes, and never take a send meant for a handler of the
+ * topic. Messages published with the event bus alone, bypassing the channel, aren't delivered.
+ * Messages the outbound permitted list doesn't let through aren't delivered either.<p>
+ * JSON bodies are sent as their encoding and strings as UTF-8; payloads received from MQTT clients
+ * are published as JSON when they parse as such, as a string otherwise. Not thread-safe: the topics
+ * belong to the event loop of their bridge.
+ */
+public class MqttTopics {
+  private static final Charset UTF_8 = Charset.forName("UTF-8");
+  private static final MqttConnection[] EMPTY = new MqttConnection[0];
+  private static final byte[] NO_QOS = new byte[0];
+
+  /**
+   * Returns the bus message body for an MQTT {@code payload}.
+   */
+  public static Object fromPayload(byte[] payload) {
+    String text = new String(payload, UTF_8);
+    String trimmed = text.trim();
+    try {
+      if (trimmed.startsWith("{")) {
+        return new JsonObject(trimmed);
+      } else if (trimmed.startsWith("[")) {
+        return new JsonArray(trimmed);
+      }
+    } catch (DecodeException e) {
+      // Not JSON after all
+    }
+    return text;
+  }
+
+  /**
+   * Returns the MQTT payload for a bus message {@code body}.
+   */
+  public static Buffer toPayload(Object body) {
+    if (body == null) {
+      return new Buffer(0);
+    } else if (body instanceof Buffer) {
+      return (Buffer) body;
+    } else if (body instanceof byte[]) {
+      return new Buffer((byte[]) body);
+    } else if (body instanceof JsonObject) {
+      return new Buffer(((JsonObject) body).encode());
+    } else if (body instanceof JsonArray) {
+      return new Buffer(((JsonArray) body).encode());
+    }
+    return new Buffer(body.toString());
+  }
+
+  private class Topic {
+    final String topic;
+    // Copy-on-write, so that a connection may unsubscribe while a message is written
+    MqttConnection[] connections = EMPTY;
+    // The QoS granted to each connection
+    byte[] qos = NO_QOS;
+
+    Topic(String topic) {
+      this.topic = topic;
+    }
+
+    void deliver(Object body) {
+      MqttConnection[] targets = connections;
+      byte[] targetQos = qos;
+      if (targets.length == 0 || !permitted.outbound(topic, body)) {
+        return;
+      }
+      Buffer payload = toPayload(body);
+      Buffer packet = null;
+      for (int i = 0; i < targets.length; i++) {
+        if (targetQos[i] > 0) {
+          targets[i].deliver(topic, payload, targetQos[i]);
+          continue;
+        }
+        if (packet == null) {
+          packet = MqttCodec.encodePublish(topic, 0, (byte) 0, false, false, payload);
+        }
+        targets[i].write(packet);
+      }
+    }
+  }
+
+  private final EventBus eb;
+  private final Permitted permitted;
+  private final Map<String, Topic> topics = new HashMap<String, Topic>();
+  private final Handler<Message<JsonObject>> publishedHandler =
+      new Handler<Message<JsonObject>>() {
+        @Override
+        public void handle(Message<JsonObject> message) {
+          String topic = message.body().getString(BridgeHook.TOPIC);
+          Topic t = topic == null ? null : topics.get(topic);
+          if (t != null) {
+            t.deliver(message.body().getValue("body"));
+          }
+        }
+      };
+
+  public MqttTopics(EventBus eb, Permitted permitted) {
+    this.eb = eb;
+    this.permitted = permitted;
+  }
+
+  /**
+   * Returns the number of connections subscribed to {@code topic}.
+   */
+  public int getSubscribers(String topic) {
+    Topic t = topics.get(topic);
+    return t == null ? 0 : t.connections.length;
+  }
+
+  /**
+   * Subscribes {@code connection} to {@code topic} at {@code qos}, or changes the QoS it is
+   * subscribed at.
+   *
+   * @return whether it wasn't subscribed already
+   */
+  public boolean subscribe(String topic, MqttConnection connection, byte qos) {
+    Topic t = topics.get(topic);
+    if (t == null) {
+      if (topics.isEmpty()) {
+        eb.registerHandler(FanOut.PUBLISHED_ADDR, publishedHandler);
+      }
+      t = new Topic(topic);
+      topics.put(topic, t);
+    }
+    int n = t.connections.length;
+    for (int i = 0; i < n; i++) {
+      if (t.connections[i] == connection) {
+        byte[] granted = t.qos.clone();
+        granted[i] = qos;
+        t.qos = granted;
+        return false;
+      }
+    }
+    MqttConnection[] connections = new MqttConnection[n + 1];
+    byte[] granted = new byte[n + 1];
+    System.arraycopy(t.connections, 0, connections, 0, n);
+    System.arraycopy(t.qos, 0, granted, 0, n);
+    connections[n] = connection;
+    granted[n] = qos;
+    t.connections = connections;
+    t.qos = granted;
+    return true;
+  }
+
+  /**
+   * Unsubscribes {@code connection} from {@code topic}.
+   *
+   * @return whether it was subscribed
+   */
+  public boolean unsubscribe(String topic, MqttConnection connection) {
+    Topic t = topics.get(topic);
+    if (t == null) {
+      return false;
+    }
+    int index = -1;
+    for (int i = 0; i < t.connections.length; i++) {
+      if (t.connections[i] == connection) {
+        index = i;
+        break;
+      }
+    }
+    if (index < 0) {
+      return false;
+    }
+    if (t.connections.length == 1) {
+      topics.remove(topic);
+      t.connections = EMPTY;
+      t.qos = NO_QOS;
+      if (topics.isEmpty()) {
+        eb.unregisterHandler(FanOut.PUBLISHED_ADDR, publishedHandler);
+      }
+      return true;
+    }
+    MqttConnection[] connections = new MqttConnection[t.connections.length - 1];
+    byte[] granted = new byte[connections.length];
+    System.arraycopy(t.connections, 0, connections, 0, index);
+    System.arraycopy(t.connections, index + 1, connections, index, connections.length - index);
+    System.arraycopy(t.qos, 0, granted, 0, index);
+    System.arraycopy(t.qos, index + 1, granted, index, granted.length - index);
+    t.connections = connections;
+    t.qos = granted;
+    return true;
+  }
+}
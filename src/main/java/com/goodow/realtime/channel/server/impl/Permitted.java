@@ -0,0 +1,142 @@
+/*
+ * Copyright 2014 Goodow.com
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License
+ * is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package com.goodow.realtime.channel.server.impl;
+
+import org.vertx.java.core.json.JsonArray;
+import org.vertx.java.core.json.JsonObject;
+
+import java.util.HashMap;
+import java.util.Map;
+import java.util.regex.Pattern;
+
+/**
+ * The {@code "inbound_permitted"} and {@code "outbound_permitted"} lists of a bridge, matched the
+ * way the Vert.x event bus bridge matches them, for the clients which don't go through it: each
+ * match may hold an {@code "address"}, or else an {@code "address_re"}, and a {@code "match"} which
+ * JSON object bodies must contain.<p>
+ * Matches with {@code "requires_auth"} never match, since these clients aren't authenticated. Not
+ * thread-safe: compiled patterns are cached.
+ */
+public class Permitted {
+  /**
+   * Returns whether {@code permitted} lets every message through.
+   */
+  static boolean permitsAll(JsonArray permitted) {
+    if (permitted == null) {
+      return true;
+    }
+    for (Object match : permitted) {
+      if (match instanceof JsonObject && ((JsonObject) match).size() == 0) {
+        return true;
+      }
+    }
+    return false;
+  }
+
+  private static boolean structureMatches(JsonObject match, Object body) {
+    if (match == null || body == null) {
+      return true;
+    }
+    if (!(body instanceof JsonObject)) {
+      return false;
+    }
+    JsonObject json = (JsonObject) body;
+    for (String field : match.getFieldNames()) {
+      Object expected = match.getValue(field);
+      if (expected instanceof JsonObject) {
+        if (!structureMatches((JsonObject) expected, json.getValue(field))) {
+          return false;
+        }
+      } else if (!expected.equals(json.getValue(field))) {
+        return false;
+      }
+    }
+    return true;
+  }
+
+  private final JsonArray inbound;
+  private final JsonArray outbound;
+  private final boolean permitsAll;
+  private final Map<String, Pattern> patterns = new HashMap<String, Pattern>();
+
+  /**
+   * @param config the config of the bridge; missing lists let every message through
+   */
+  public Permitted(JsonObject config) {
+    inbound = config.getArray("inbound_permitted");
+    outbound = config.getArray("outbound_permitted");
+    permitsAll = permitsAll(inbound) && permitsAll(outbound);
+  }
+
+  /**
+   * Returns whether clients may send or publish {@code body} to {@code topic}.
+   */
+  public boolean inbound(String topic, Object body) {
+    return permitsAll || matches(inbound, topic, body);
+  }
+
+  /**
+   * Returns whether clients may receive {@code body} published to {@code topic}. With a null
+   * {@code body}, returns whether they may subscribe to {@code topic}.
+   */
+  public boolean outbound(String topic, Object body) {
+    return permitsAll || matches(outbound, topic, body);
+  }
+
+  /**
+   * Returns whether both lists let every message through, so that nothing needs to be checked.
+   */
+  public boolean permitsAll() {
+    return permitsAll;
+  }
+
+  private boolean matches(JsonArray permitted, String topic, Object body) {
+    if (permitted == null) {
+      return true;
+    }
+    for (Object element : permitted) {
+      if (!(element instanceof JsonObject)) {
+        continue;
+      }
+      JsonObject match = (JsonObject) element;
+      if (match.getBoolean("requires_auth", false)) {
+        continue;
+      }
+      String address = match.getString("address");
+      if (address != null) {
+        if (!address.equals(topic)) {
+          continue;
+        }
+      } else {
+        String regex = match.getString("address_re");
+        if (regex != null && !pattern(regex).matcher(topic).matches()) {
+          continue;
+        }
+      }
+      if (structureMatches(match.getObject("match"), body)) {
+        return true;
+      }
+    }
+    return false;
+  }
+
+  private Pattern pattern(String regex) {
+    Pattern pattern = patterns.get(regex);
+    if (pattern == null) {
+      pattern = Pattern.compile(regex);
+      patterns.put(regex, pattern);
+    }
+    return pattern;
+  }
+}
@@ -0,0 +1,402 @@
+/*
+ * Copyright 2014 Goodow.com
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License
+ * is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package com.goodow.realtime.channel.server.impl;
+
+import com.goodow.realtime.channel.impl.WebSocketBus;
+
+import org.vertx.java.core.Handler;
+import org.vertx.java.core.Vertx;
+import org.vertx.java.core.eventbus.EventBus;
+import org.vertx.java.core.eventbus.Message;
+import org.vertx.java.core.json.JsonArray;
+import org.vertx.java.core.json.JsonObject;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.UUID;
+
+/**
+ * Tracks which sessions are on which topic across every node of a Vert.x cluster.<p>
+ * Each node owns the registrations of its own sockets and replicates them to the others over the
+ * event bus: changes are batched into one message per {@link #DEBOUNCE_MILLIS}, a node joining the
+ * cluster asks the others for a snapshot, and a node which stops sending heartbeats is dropped with
+ * its sessions. Every node keeps the whole {@link PresenceTable}, so queries are answered locally.
+ * <p>
+ * Clients watch a topic on {@link #getWatchTopic(String)}, where the node a change happened on
+ * publishes at most one event per topic and batch:
+ * {@code {topic, joined: [sessions], left: [sessions], count}}. A session is reported once its
+ * presence at the end of the batch differs from its presence before it, so a session joining and
+ * leaving within a batch isn't reported at all. Sending {@code {topic}} to {@link #QUERY_ADDR}
+ * replies {@code {topic, sessions: [sessions], count}}.<p>
+ * Unless {@link #LEGACY_WATCH} is false, each node also keeps the deprecated per-node session sets
+ * in shared data and publishes {@link BridgeHook#SESSION_WATCH_ADDR} events, as before the
+ * service.<p>
+ * Not thread-safe: a service must be used from the context which started it.
+ */
+public class PresenceService {
+  public static final String QUERY_ADDR =
+      WebSocketBus.TOPIC_CHANNEL + "/" + WebSocketBus.SESSION + "/_query";
+  /**
+   * The time in milliseconds changes are collected for before they are published.
+   */
+  public static final String DEBOUNCE_MILLIS = "debounceMillis";
+  /**
+   * The interval in milliseconds between heartbeats. A node is dropped after missing three.
+   */
+  public static final String HEARTBEAT_MILLIS = "heartbeatMillis";
+  /**
+   * Whether to keep publishing {@code {_session, isJoined, topic}} on
+   * {@link BridgeHook#SESSION_WATCH_ADDR} and the session sets of
+   * {@link BridgeHook#getSessionsKey(String)} in shared data, for clients which haven't moved to
+   * {@link #getWatchTopic(String)}. Both only cover the sockets of one node. Defaults to true.
+   *
+   * @deprecated these will be removed along with {@link BridgeHook#SESSION_WATCH_ADDR}
+   */
+  @Deprecated
+  public static final String LEGACY_WATCH = "legacyWatch";
+  static final String CLUSTER_ADDR = WebSocketBus.TOPIC_CHANNEL + "/_presence";
+  private static final String OP = "op";
+  private static final String NODE = "node";
+  private static final String TOPICS = "topics";
+  private static final String TOPIC = "topic";
+  private static final String JOINED = "joined";
+  private static final String LEFT = "left";
+  private static final String SESSIONS = "sessions";
+  private static final String COUNT = "count";
+  private static final String OP_CHANGES = "changes";
+  private static final String OP_HEARTBEAT = "heartbeat";
+  private static final String OP_SYNC = "sync";
+  private static final String OP_SNAPSHOT = "snapshot";
+  private static final String OP_BYE = "bye";
+  private static final int MISSED_HEARTBEATS = 3;
+
+  /**
+   * A session whose registrations on a topic changed in the current batch.
+   */
+  private static class Change {
+    /**
+     * Whether sockets of this node had registered the session before the batch.
+     */
+    final boolean wasLocal;
+    /**
+     * Whether the session was on the topic, through any node, before the batch.
+     */
+    final boolean wasPresent;
+
+    Change(boolean wasLocal, boolean wasPresent) {
+      this.wasLocal = wasLocal;
+      this.wasPresent = wasPresent;
+    }
+  }
+
+  public static String getWatchTopic(String topic) {
+    return BridgeHook.getSessionsKey(topic) + "/_watch";
+  }
+
+  private final Vertx vertx;
+  private final EventBus eb;
+  private final String nodeId = UUID.randomUUID().toString();
+  private final int debounceMillis;
+  private final int heartbeatMillis;
+  private final boolean legacyWatch;
+  private final PresenceTable table = new PresenceTable();
+  // topic -> session -> registrations of local sockets
+  private final Map<String, Map<String, Integer>> registrations =
+      new HashMap<String, Map<String, Integer>>();
+  // topic -> session -> its state before the batch, for local changes not yet published
+  private final Map<String, Map<String, Change>> pendings =
+      new LinkedHashMap<String, Map<String, Change>>();
+  // node -> when it was last heard from
+  private final Map<String, Long> lastSeen = new HashMap<String, Long>();
+  private final Handler<Message<JsonObject>> clusterHandler = new Handler<Message<JsonObject>>() {
+    @Override
+    public void handle(Message<JsonObject> message) {
+      onClusterMessage(message.body());
+    }
+  };
+  private final Handler<Message<JsonObject>> queryHandler = new Handler<Message<JsonObject>>() {
+    @Override
+    public void handle(Message<JsonObject> message) {
+      String topic = message.body().getString(TOPIC);
+      message.reply(new JsonObject().putString(TOPIC, topic).putArray(SESSIONS,
+          toArray(table.sessions(topic))).putNumber(COUNT, table.count(topic)));
+    }
+  };
+  private long flushTimer = -1;
+  private long heartbeatTimer = -1;
+
+  public PresenceService(Vertx vertx, JsonObject config) {
+    this.vertx = vertx;
+    this.eb = vertx.eventBus();
+    debounceMillis = config.getInteger(DEBOUNCE_MILLIS, 100);
+    heartbeatMillis = config.getInteger(HEARTBEAT_MILLIS, 5000);
+    legacyWatch = config.getBoolean(LEGACY_WATCH, true);
+  }
+
+  public boolean contains(String topic, String sessionId) {
+    return table.contains(topic, sessionId);
+  }
+
+  /**
+   * Returns the number of sessions on {@code topic} across the cluster.
+   */
+  public int count(String topic) {
+    return table.count(topic);
+  }
+
+  /**
+   * Records a registration of {@code sessionId} on {@code topic} by a socket of this node.
+   */
+  public void join(String topic, String sessionId) {
+    if (sessionId == null) {
+      return;
+    }
+    Map<String, Integer> sessions = registrations.get(topic);
+    if (sessions == null) {
+      sessions = new HashMap<String, Integer>();
+      registrations.put(topic, sessions);
+    }
+    Integer count = sessions.get(sessionId);
+    sessions.put(sessionId, count == null ? 1 : count + 1);
+    if (count == null) {
+      boolean wasPresent = table.contains(topic, sessionId);
+      table.add(nodeId, topic, sessionId);
+      onChange(topic, sessionId, false, wasPresent);
+    }
+  }
+
+  /**
+   * Removes a registration of {@code sessionId} on {@code topic} by a socket of this node.
+   */
+  public void leave(String topic, String sessionId) {
+    Map<String, Integer> sessions = registrations.get(topic);
+    Integer count = sessions == null ? null : sessions.get(sessionId);
+    if (count == null) {
+      return;
+    }
+    if (count > 1) {
+      sessions.put(sessionId, count - 1);
+      return;
+    }
+    sessions.remove(sessionId);
+    if (sessions.isEmpty()) {
+      registrations.remove(topic);
+    }
+    boolean wasPresent = table.contains(topic, sessionId);
+    table.remove(nodeId, topic, sessionId);
+    onChange(topic, sessionId, true, wasPresent);
+  }
+
+  /**
+   * Returns the sessions on {@code topic} across the cluster.
+   */
+  public Set<String> sessions(String topic) {
+    return table.sessions(topic);
+  }
+
+  public PresenceService start() {
+    eb.registerHandler(CLUSTER_ADDR, clusterHandler);
+    eb.registerHandler(CLUSTER_ADDR + "/" + nodeId, clusterHandler);
+    eb.registerHandler(QUERY_ADDR, queryHandler);
+    heartbeatTimer = vertx.setPeriodic(heartbeatMillis, new Handler<Long>() {
+      @Override
+      public void handle(Long event) {
+        eb.publish(CLUSTER_ADDR, newClusterMessage(OP_HEARTBEAT));
+        expireNodes();
+      }
+    });
+    eb.publish(CLUSTER_ADDR, newClusterMessage(OP_SYNC));
+    return this;
+  }
+
+  /**
+   * Stops replicating, and tells the other nodes that the sessions of this node have left.
+   */
+  public void stop() {
+    vertx.cancelTimer(heartbeatTimer);
+    if (flushTimer != -1) {
+      vertx.cancelTimer(flushTimer);
+      flushTimer = -1;
+    }
+    pendings.clear();
+    eb.unregisterHandler(CLUSTER_ADDR, clusterHandler);
+    eb.unregisterHandler(CLUSTER_ADDR + "/" + nodeId, clusterHandler);
+    eb.unregisterHandler(QUERY_ADDR, queryHandler);
+    eb.publish(CLUSTER_ADDR, newClusterMessage(OP_BYE));
+  }
+
+  private void dropNode(String node) {
+    lastSeen.remove(node);
+    Map<String, List<String>> left = table.removeNode(node);
+    // Every node notices, but only one of them tells the clients
+    for (String other : lastSeen.keySet()) {
+      if (other.compareTo(nodeId) < 0) {
+        return;
+      }
+    }
+    for (Map.Entry<String, List<String>> entry : left.entrySet()) {
+      publishWatch(entry.getKey(), new JsonArray(), toArray(entry.getValue()));
+    }
+  }
+
+  private void expireNodes() {
+    long expiry = System.currentTimeMillis() - MISSED_HEARTBEATS * heartbeatMillis;
+    List<String> expired = new ArrayList<String>();
+    for (Map.Entry<String, Long> entry : lastSeen.entrySet()) {
+      if (entry.getValue() < expiry) {
+        expired.add(entry.getKey());
+      }
+    }
+    for (String node : expired) {
+      dropNode(node);
+    }
+  }
+
+  private void flush() {
+    flushTimer = -1;
+    JsonObject topics = new JsonObject();
+    for (Map.Entry<String, Map<String, Change>> entry : pendings.entrySet()) {
+      String topic = entry.getKey();
+      Map<String, Integer> local = registrations.get(topic);
+      JsonArray joined = new JsonArray();
+      JsonArray left = new JsonArray();
+      JsonArray appeared = new JsonArray();
+      JsonArray gone = new JsonArray();
+      for (Map.Entry<String, Change> change : entry.getValue().entrySet()) {
+        String sessionId = change.getKey();
+        // Changes which cancel out are dropped, so what is left differs from the batch's start
+        if (local != null && local.containsKey(sessionId)) {
+          joined.addString(sessionId);
+        } else {
+          left.addString(sessionId);
+        }
+        // Sessions also on the topic through other nodes haven't joined or left for clients
+        boolean present = table.contains(topic, sessionId);
+        if (present && !change.getValue().wasPresent) {
+          appeared.addString(sessionId);
+        } else if (!present && change.getValue().wasPresent) {
+          gone.addString(sessionId);
+        }
+      }
+      topics.putObject(topic, new JsonObject().putArray(JOINED, joined).putArray(LEFT, left));
+      if (appeared.size() > 0 || gone.size() > 0) {
+        publishWatch(topic, appeared, gone);
+      }
+    }
+    pendings.clear();
+    eb.publish(CLUSTER_ADDR, newClusterMessage(OP_CHANGES).putObject(TOPICS, topics));
+  }
+
+  private JsonObject newClusterMessage(String op) {
+    return new JsonObject().putString(OP, op).putString(NODE, nodeId);
+  }
+
+  private void onChange(String topic, String sessionId, boolean wasLocal, boolean wasPresent) {
+    if (legacyWatch) {
+      publishLegacy(topic, sessionId, !wasLocal);
+    }
+    Map<String, Change> changes = pendings.get(topic);
+    if (changes == null) {
+      changes = new LinkedHashMap<String, Change>();
+      pendings.put(topic, changes);
+    }
+    Change change = changes.get(sessionId);
+    if (change == null) {
+      changes.put(sessionId, new Change(wasLocal, wasPresent));
+    } else if (change.wasLocal != wasLocal) {
+      // Back to where the batch started: joining and leaving within a batch cancel out
+      changes.remove(sessionId);
+      if (changes.isEmpty()) {
+        pendings.remove(topic);
+      }
+    }
+    if (flushTimer == -1 && !pendings.isEmpty()) {
+      flushTimer = vertx.setTimer(debounceMillis, new Handler<Long>() {
+        @Override
+        public void handle(Long event) {
+          flush();
+        }
+      });
+    }
+  }
+
+  private void onClusterMessage(JsonObject msg) {
+    String op = msg.getString(OP);
+    String node = msg.getString(NODE);
+    if (nodeId.equals(node)) {
+      return;
+    }
+    if (OP_BYE.equals(op)) {
+      dropNode(node);
+      return;
+    }
+    lastSeen.put(node, System.currentTimeMillis());
+    if (OP_SYNC.equals(op)) {
+      JsonObject topics = new JsonObject();
+      for (Map.Entry<String, Set<String>> entry : table.node(nodeId).entrySet()) {
+        topics.putArray(entry.getKey(), toArray(entry.getValue()));
+      }
+      eb.send(CLUSTER_ADDR + "/" + node, newClusterMessage(OP_SNAPSHOT).putObject(TOPICS, topics));
+    } else if (OP_SNAPSHOT.equals(op)) {
+      // Changes already applied are applied again, which is harmless
+      JsonObject topics = msg.getObject(TOPICS);
+      for (String topic : topics.getFieldNames()) {
+        for (Object session : topics.getArray(topic)) {
+          table.add(node, topic, (String) session);
+        }
+      }
+    } else if (OP_CHANGES.equals(op)) {
+      JsonObject topics = msg.getObject(TOPICS);
+      for (String topic : topics.getFieldNames()) {
+        JsonObject changes = topics.getObject(topic);
+        for (Object session : changes.getArray(JOINED)) {
+          table.add(node, topic, (String) session);
+        }
+        for (Object session : changes.getArray(LEFT)) {
+          table.remove(node, topic, (String) session);
+        }
+      }
+    }
+  }
+
+  @SuppressWarnings("deprecation")
+  private void publishLegacy(String topic, String sessionId, boolean isJoined) {
+    Set<String> sessionIds = vertx.sharedData().getSet(BridgeHook.getSessionsKey(topic));
+    if (isJoined) {
+      sessionIds.add(sessionId);
+    } else {
+      sessionIds.remove(sessionId);
+    }
+    eb.publish(BridgeHook.SESSION_WATCH_ADDR, new JsonObject().putString(WebSocketBus.SESSION,
+        sessionId).putBoolean("isJoined", isJoined).putString(TOPIC, topic));
+  }
+
+  private void publishWatch(String topic, JsonArray joined, JsonArray left) {
+    eb.publish(getWatchTopic(topic), new JsonObject().putString(TOPIC, topic).putArray(JOINED,
+        joined).putArray(LEFT, left).putNumber(COUNT, table.count(topic)));
+  }
+
+  private JsonArray toArray(Collection<String> sessions) {
+    JsonArray array = new JsonArray();
+    for (String session : sessions) {
+      array.addString(session);
+    }
+    return array;
+  }
+}
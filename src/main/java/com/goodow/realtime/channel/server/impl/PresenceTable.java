@@ -0,0 +1,167 @@
+/*
+ * Copyright 2014 Goodow.com
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License
+ * is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package com.goodow.realtime.channel.server.impl;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * The sessions on each topic, as reported by every node of a cluster.<p>
+ * A session may be on a topic through several nodes, so the table counts the nodes per session and
+ * topic, and keeps the sessions per node so that a node which leaves the cluster can be removed at
+ * once. Adding or removing is idempotent, and every query is answered without scanning. Not
+ * thread-safe.
+ */
+public class PresenceTable {
+  // topic -> session -> number of nodes the session is on the topic through
+  private final Map<String, Map<String, Integer>> members =
+      new HashMap<String, Map<String, Integer>>();
+  // node -> topic -> sessions
+  private final Map<String, Map<String, Set<String>>> nodes =
+      new HashMap<String, Map<String, Set<String>>>();
+
+  /**
+   * Records that {@code session} is on {@code topic} through {@code node}.
+   *
+   * @return whether the session was not on the topic through any node before
+   */
+  public boolean add(String node, String topic, String session) {
+    Map<String, Set<String>> topics = nodes.get(node);
+    if (topics == null) {
+      topics = new HashMap<String, Set<String>>();
+      nodes.put(node, topics);
+    }
+    Set<String> sessions = topics.get(topic);
+    if (sessions == null) {
+      sessions = new HashSet<String>();
+      topics.put(topic, sessions);
+    }
+    if (!sessions.add(session)) {
+      return false;
+    }
+    Map<String, Integer> counts = members.get(topic);
+    if (counts == null) {
+      counts = new HashMap<String, Integer>();
+      members.put(topic, counts);
+    }
+    Integer count = counts.get(session);
+    counts.put(session, count == null ? 1 : count + 1);
+    return count == null;
+  }
+
+  public boolean contains(String topic, String session) {
+    Map<String, Integer> counts = members.get(topic);
+    return counts != null && counts.containsKey(session);
+  }
+
+  /**
+   * Returns the number of sessions on {@code topic}.
+   */
+  public int count(String topic) {
+    Map<String, Integer> counts = members.get(topic);
+    return counts == null ? 0 : counts.size();
+  }
+
+  public boolean hasNode(String node) {
+    return nodes.containsKey(node);
+  }
+
+  /**
+   * Returns the sessions on each topic through {@code node}.
+   */
+  public Map<String, Set<String>> node(String node) {
+    Map<String, Set<String>> topics = nodes.get(node);
+    return topics == null ? Collections.<String, Set<String>> emptyMap() : Collections
+        .unmodifiableMap(topics);
+  }
+
+  public Set<String> nodes() {
+    return Collections.unmodifiableSet(nodes.keySet());
+  }
+
+  /**
+   * Records that {@code session} is no longer on {@code topic} through {@code node}.
+   *
+   * @return whether the session is no longer on the topic through any node
+   */
+  public boolean remove(String node, String topic, String session) {
+    Map<String, Set<String>> topics = nodes.get(node);
+    Set<String> sessions = topics == null ? null : topics.get(topic);
+    if (sessions == null || !sessions.remove(session)) {
+      return false;
+    }
+    if (sessions.isEmpty()) {
+      topics.remove(topic);
+      if (topics.isEmpty()) {
+        nodes.remove(node);
+      }
+    }
+    return decrement(topic, session);
+  }
+
+  /**
+   * Removes every session on every topic through {@code node}.
+   *
+   * @return the sessions which are no longer on each topic through any node
+   */
+  public Map<String, List<String>> removeNode(String node) {
+    Map<String, Set<String>> topics = nodes.remove(node);
+    if (topics == null) {
+      return Collections.emptyMap();
+    }
+    Map<String, List<String>> left = new HashMap<String, List<String>>();
+    for (Map.Entry<String, Set<String>> entry : topics.entrySet()) {
+      String topic = entry.getKey();
+      for (String session : entry.getValue()) {
+        if (decrement(topic, session)) {
+          List<String> sessions = left.get(topic);
+          if (sessions == null) {
+            sessions = new ArrayList<String>();
+            left.put(topic, sessions);
+          }
+          sessions.add(session);
+        }
+      }
+    }
+    return left;
+  }
+
+  /**
+   * Returns the sessions on {@code topic}.
+   */
+  public Set<String> sessions(String topic) {
+    Map<String, Integer> counts = members.get(topic);
+    return counts == null ? Collections.<String> emptySet() : Collections.unmodifiableSet(counts
+        .keySet());
+  }
+
+  private boolean decrement(String topic, String session) {
+    Map<String, Integer> counts = members.get(topic);
+    int count = counts.get(session);
+    if (count > 1) {
+      counts.put(session, count - 1);
+      return false;
+    }
+    counts.remove(session);
+    if (counts.isEmpty()) {
+      members.remove(topic);
+    }
+    return true;
+  }
+}
@@ -0,0 +1,168 @@
+/*
+ * Copyright 2014 Goodow.com
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ * 
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software distributed under the License
+ * is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package com.goodow.realtime.channel.server.impl;
+
+import com.goodow.realtime.channel.impl.WebSocketBus;
+
+import org.vertx.java.core.Handler;
+import org.vertx.java.core.buffer.Buffer;
+import org.vertx.java.core.eventbus.EventBus;
+import org.vertx.java.core.eventbus.Message;
+import org.vertx.java.core.json.JsonObject;
+
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * The last retained message of each topic, delivered to subscribers as soon as they subscribe.
+ * <p>
+ * Messages are kept in their MQTT payload form, see {@link MqttTopics#toPayload}, and the least
+ * recently published or delivered topics are evicted once the store holds more than
+ * {@link #MAX_BYTES}. Every process keeps its own store, fed by the messages published to
+ * {@link WebSocketBus#TOPIC_RETAIN} across the cluster. Thread-safe.
+ */
+public class RetainedStore implements Handler<Message<JsonObject>> {
+  /**
+   * The size the store is kept under, 64 MiB by default.
+   */
+  public static final String MAX_BYTES = "max_bytes";
+  /**
+   * The largest message retained, 64 KiB by default. Larger ones are published but not retained.
+   */
+  public static final String MAX_MESSAGE_BYTES = "max_message_bytes";
+  // Estimated cost of a map entry, its key and its array, beyond their content
+  private static final int ENTRY_OVERHEAD = 96;
+
+  /**
+   * Publishes {@code body} to {@code topic}, and retains it in every store of the cluster.
+   */
+  public static void publish(EventBus eb, String topic, Object body) {
+    eb.publish(WebSocketBus.TOPIC_RETAIN, new JsonObject().putString(BridgeHook.TOPIC, topic)
+        .putValue("body", body));
+    if (body != null) {
+      eb.publish(topic, body);
+      FanOut.mirror(eb, topic, body);
+    }
+  }
+
+  private static int sizeOf(String topic, byte[] payload) {
+    return ENTRY_OVERHEAD + topic.length() * 2 + payload.length;
+  }
+
+  // Iterated from the least recently used
+  private final LinkedHashMap<String, byte[]> messages =
+      new LinkedHashMap<String, byte[]>(16, 0.75f, true);
+  private final long maxBytes;
+  private final int maxMessageBytes;
+  private long bytes;
+  private long evicted;
+
+  public RetainedStore(JsonObject config) {
+    maxBytes = config.getLong(MAX_BYTES, 64L * 1024 * 1024);
+    maxMessageBytes = config.getInteger(MAX_MESSAGE_BYTES, 64 * 1024);
+  }
+
+  /**
+   * Returns the retained message of {@code topic} as a message body, or null.
+   */
+  public Object get(String topic) {
+    byte[] payload = getPayload(topic);
+    return payload == null ? null : MqttTopics.fromPayload(payload);
+  }
+
+  public synchronized long getBytes() {
+    return bytes;
+  }
+
+  /**
+   * Returns how many messages were evicted to stay under {@link #MAX_BYTES}.
+   */
+  public synchronized long getEvicted() {
+    return evicted;
+  }
+
+  /**
+   * Returns the retained message of {@code topic} as an MQTT payload, or null.
+   */
+  public synchronized byte[] getPayload(String topic) {
+    return messages.get(topic);
+  }
+
+  @Override
+  public void handle(Message<JsonObject> message) {
+    JsonObject body = message.body();
+    String topic = body == null ? null : body.getString(BridgeHook.TOPIC);
+    if (topic != null) {
+      put(topic, body.getValue("body"));
+    }
+  }
+
+  /**
+   * Retains {@code body} as the message of {@code topic}. A null or empty body clears it.
+   *
+   * @return whether the message was retained
+   */
+  public boolean put(String topic, Object body) {
+    byte[] payload = body == null ? null : MqttTopics.toPayload(body).getBytes();
+    if (payload == null || payload.length == 0) {
+      remove(topic);
+      return false;
+    }
+    if (payload.length > maxMessageBytes) {
+      // The previous message is no longer the state of the topic
+      remove(topic);
+      return false;
+    }
+    synchronized (this) {
+      byte[] previous = messages.put(topic, payload);
+      if (previous != null) {
+        bytes -= sizeOf(topic, previous);
+      }
+      bytes += sizeOf(topic, payload);
+      Iterator<Map.Entry<String, byte[]>> it = messages.entrySet().iterator();
+      while (bytes > maxBytes && it.hasNext()) {
+        Map.Entry<String, byte[]> eldest = it.next();
+        if (eldest.getValue() == payload) {
+          // Even alone the message doesn't fit
+          continue;
+        }
+        bytes -= sizeOf(eldest.getKey(), eldest.getValue());
+        it.remove();
+        evicted++;
+      }
+    }
+    return true;
+  }
+
+  public synchronized void remove(String topic) {
+    byte[] previous = messages.remove(topic);
+    if (previous != null) {
+      bytes -= sizeOf(topic, previous);
+    }
+  }
+
+  public synchronized int size() {
+    return messages.size();
+  }
+
+  /**
+   * Encodes the retained message of {@code topic} as a SockJS bridge envelope, or returns null.
+   */
+  Buffer encodeEnvelope(String topic) {
+    Object body = get(topic);
+    return body == null ? null : new Buffer(new JsonObject().putString("address", topic).putValue(
+        "body", body).encode());
+  }
+}
@@ -0,0 +1,46 @@
+/*
+ * Copyright 2014 Goodow.com
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License
+ * is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package com.goodow.realtime.channel.server.impl;
+
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+/**
+ * The sessions of connected sockets by their {@code writeHandlerID}, shared by every bridge of a
+ * process, whichever event loop they run on.<p>
+ * A {@link ChannelSocket} carries its own session, so the registry is only needed to find the
+ * session of a socket from its id, or of a socket which isn't wrapped.
+ */
+public class SessionRegistry {
+  private final ConcurrentMap<String, String> sessions = new ConcurrentHashMap<String, String>();
+
+  /**
+   * Returns the session of the socket whose {@code writeHandlerID} is {@code socketId}, or null.
+   */
+  public String get(String socketId) {
+    return sessions.get(socketId);
+  }
+
+  public void put(String socketId, String sessionId) {
+    sessions.put(socketId, sessionId);
+  }
+
+  public void remove(String socketId) {
+    sessions.remove(socketId);
+  }
+
+  public int size() {
+    return sessions.size();
+  }
+}
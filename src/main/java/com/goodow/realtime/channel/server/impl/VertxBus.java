@@ -16,10 +16,14 @@ package com.goodow.realtime.channel.server.impl;
 import com.goodow.realtime.channel.Bus;
 import com.goodow.realtime.channel.BusHook;
 import com.goodow.realtime.channel.Message;
+import com.goodow.realtime.channel.PreSerialized;
+import com.goodow.realtime.channel.ReplyException;
+import com.goodow.realtime.channel.ReplyFailure;
 import com.goodow.realtime.channel.State;
 import com.goodow.realtime.channel.impl.SimpleBus;
 import com.goodow.realtime.core.Handler;
 import com.goodow.realtime.core.Registration;
+import com.goodow.realtime.core.impl.FutureResultImpl;
 import com.goodow.realtime.json.impl.JreJsonArray;
 import com.goodow.realtime.json.impl.JreJsonObject;
 
@@ -34,18 +38,26 @@ import java.util.logging.Logger;
 public class VertxBus implements Bus {
   private static final Logger log = Logger.getLogger(VertxBus.class.getName());
 
-  @SuppressWarnings("unchecked")
+  /**
+   * Returns a realtime json view of {@code vertxMessage}, sharing its backing map or list.
+   */
   static Object unwrapMsg(Object vertxMessage) {
     if (vertxMessage instanceof JsonObject) {
-      return new JreJsonObject(((JsonObject) vertxMessage).toMap());
+      return new JreJsonObject(VertxJson.mapOf((JsonObject) vertxMessage));
     } else if (vertxMessage instanceof JsonArray) {
-      return new JreJsonArray(((JsonArray) vertxMessage).toList());
+      return new JreJsonArray(VertxJson.listOf((JsonArray) vertxMessage));
     } else {
       return vertxMessage;
     }
   }
 
+  /**
+   * Returns a Vert.x json copy of {@code realtimeMessage}. The event bus copies bodies only when it
+   * delivers them, so sharing the sender's map or list would let later changes to it reach the
+   * receivers. A {@link PreSerialized} message is sent as its body.
+   */
   static Object wrapMsg(Object realtimeMessage) {
+    realtimeMessage = PreSerialized.unwrap(realtimeMessage);
     if (realtimeMessage instanceof JreJsonObject) {
       return new JsonObject(((JreJsonObject) realtimeMessage).toNative());
     } else if (realtimeMessage instanceof JreJsonArray) {
@@ -100,7 +112,9 @@ public class VertxBus implements Bus {
   @Override
   public VertxBus publish(String topic, Object msg) {
     if (hook == null || hook.handleSendOrPub(false, topic, msg, null)) {
-      eb.publish(topic, wrapMsg(msg));
+      Object body = wrapMsg(msg);
+      eb.publish(topic, body);
+      FanOut.mirror(eb, topic, body);
     }
     return this;
   }
@@ -160,6 +174,42 @@ public class VertxBus implements Bus {
     return this;
   }
 
+  @Override
+  public <T> VertxBus sendWithTimeout(String topic, Object msg, int timeoutMs,
+      final Handler<com.goodow.realtime.core.AsyncResult<Message<T>>> replyHandler) {
+    // Hooks see the same reply handler as for a plain send
+    final Handler<Message<T>> wrapped = new Handler<Message<T>>() {
+      @Override
+      public void handle(Message<T> message) {
+        replyHandler.handle(new FutureResultImpl<Message<T>>(message));
+      }
+    };
+    if (hook == null || hook.handleSendOrPub(true, topic, msg, wrapped)) {
+      eb.sendWithTimeout(topic, wrapMsg(msg), timeoutMs,
+          new org.vertx.java.core.Handler<AsyncResult<org.vertx.java.core.eventbus.Message<T>>>() {
+            @Override
+            public void handle(AsyncResult<org.vertx.java.core.eventbus.Message<T>> ar) {
+              if (ar.succeeded()) {
+                VertxMessage<T> event = new VertxMessage<T>(VertxBus.this, ar.result());
+                if (hook == null || hook.handleReceiveMessage(event)) {
+                  wrapped.handle(event);
+                }
+                return;
+              }
+              Throwable cause = ar.cause();
+              if (cause instanceof org.vertx.java.core.eventbus.ReplyException) {
+                org.vertx.java.core.eventbus.ReplyException e =
+                    (org.vertx.java.core.eventbus.ReplyException) cause;
+                cause = new ReplyException(ReplyFailure.fromInt(e.failureType().toInt()),
+                    e.failureCode(), e.getMessage());
+              }
+              replyHandler.handle(new FutureResultImpl<Message<T>>(cause));
+            }
+          });
+    }
+    return this;
+  }
+
   @Override
   public <T> Bus sendLocal(String topic, Object msg, Handler<Message<T>> replyHandler) {
     return localBus.sendLocal(topic, msg, replyHandler);
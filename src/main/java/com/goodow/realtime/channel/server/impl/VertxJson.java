@@ -0,0 +1,82 @@
+/*
+ * Copyright 2014 Goodow.com
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License
+ * is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package com.goodow.realtime.channel.server.impl;
+
+import org.vertx.java.core.json.JsonArray;
+import org.vertx.java.core.json.JsonObject;
+
+import java.lang.reflect.Field;
+import java.util.List;
+import java.util.Map;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Shares the backing map and list of Vert.x json values with realtime json values, instead of deep
+ * copying them as {@link JsonObject#toMap()} and {@link JsonArray#toList()} do.<p>
+ * Vert.x keeps them in protected members, which are reached by reflection. If they can't be, the
+ * public copying methods are used instead.<p>
+ * Only received values are shared: the event bus gives each handler its own copy, which the
+ * handler owns. A value being sent is copied at delivery time, after send() returns, so it must be
+ * copied when it is sent instead.
+ */
+@SuppressWarnings("unchecked")
+final class VertxJson {
+  private static final Logger log = Logger.getLogger(VertxJson.class.getName());
+  private static final Field OBJECT_MAP = field(JsonObject.class, "map");
+  private static final Field ARRAY_LIST = field(JsonArray.class, "list");
+
+  /**
+   * Returns the list backing {@code array}.
+   */
+  static List<Object> listOf(JsonArray array) {
+    if (ARRAY_LIST != null) {
+      try {
+        return (List<Object>) ARRAY_LIST.get(array);
+      } catch (IllegalAccessException e) {
+        // Falls through to the copy
+      }
+    }
+    return array.toList();
+  }
+
+  /**
+   * Returns the map backing {@code object}.
+   */
+  static Map<String, Object> mapOf(JsonObject object) {
+    if (OBJECT_MAP != null) {
+      try {
+        return (Map<String, Object>) OBJECT_MAP.get(object);
+      } catch (IllegalAccessException e) {
+        // Falls through to the copy
+      }
+    }
+    return object.toMap();
+  }
+
+  private static Field field(Class<?> clazz, String name) {
+    try {
+      Field toRtn = clazz.getDeclaredField(name);
+      toRtn.setAccessible(true);
+      return toRtn;
+    } catch (Exception e) {
+      log.log(Level.INFO, "No field " + name + " on " + clazz.getName()
+          + ", messages will be copied", e);
+      return null;
+    }
+  }
+
+  private VertxJson() {
+  }
+}
@@ -20,6 +20,8 @@ import com.goodow.realtime.core.Handler;
 class VertxMessage<T> implements Message<T> {
   private final VertxBus bus;
   private final org.vertx.java.core.eventbus.Message<T> delegate;
+  private T body;
+  private boolean unwrapped;
 
   public VertxMessage(VertxBus bus, org.vertx.java.core.eventbus.Message<T> delegate) {
     this.bus = bus;
@@ -34,7 +36,11 @@ class VertxMessage<T> implements Message<T> {
   @SuppressWarnings("unchecked")
   @Override
   public T body() {
-    return (T) VertxBus.unwrapMsg(delegate.body());
+    if (!unwrapped) {
+      body = (T) VertxBus.unwrapMsg(delegate.body());
+      unwrapped = true;
+    }
+    return body;
   }
 
   @Override
@@ -20,6 +20,7 @@ import com.goodow.realtime.core.Platform.Type;
 import com.goodow.realtime.core.PlatformFactory;
 import com.goodow.realtime.core.Scheduler;
 import com.goodow.realtime.core.WebSocket;
+import com.goodow.realtime.core.impl.DeferredQueue;
 import com.goodow.realtime.json.JsonObject;
 
 import org.vertx.java.core.Vertx;
@@ -29,15 +30,24 @@ public class VertxPlatform implements PlatformFactory {
    * Registers the Vertx platform with a default configuration.
    */
   public static void register(Vertx vertx) {
-    Platform.setFactory(new VertxPlatform(vertx));
+    register(vertx, DeferredQueue.DEFAULT_BUDGET);
+  }
+
+  /**
+   * Registers the Vertx platform.
+   * 
+   * @param deferredBudget the maximum number of deferred handlers run per event loop task
+   */
+  public static void register(Vertx vertx, int deferredBudget) {
+    Platform.setFactory(new VertxPlatform(vertx, deferredBudget));
   }
 
   protected final Scheduler scheduler;
   protected final Net net;
   private final JavaDiff diff;
 
-  private VertxPlatform(final Vertx vertx) {
-    scheduler = new VertxScheduler(vertx);
+  private VertxPlatform(final Vertx vertx, int deferredBudget) {
+    scheduler = new VertxScheduler(vertx, deferredBudget);
     net = new Net() {
       @Override
       public WebSocket createWebSocket(String url, JsonObject options) {
@@ -15,14 +15,38 @@ package com.goodow.realtime.channel.server.impl;
 
 import com.goodow.realtime.core.Handler;
 import com.goodow.realtime.core.Scheduler;
+import com.goodow.realtime.core.impl.DeferredQueue;
 
+import org.vertx.java.core.Context;
 import org.vertx.java.core.Vertx;
 
+import java.util.Map;
+import java.util.WeakHashMap;
+
+/**
+ * Runs deferred handlers scheduled on an event loop from one {@code runOnContext} task per batch,
+ * see {@link DeferredQueue}. Each event loop context has its own queue, so that handlers run on
+ * the context which deferred them even when several verticles share an event loop thread.
+ */
 class VertxScheduler implements Scheduler {
   private final Vertx vertx;
+  private final int deferredBudget;
+  /**
+   * The queues of the event loop contexts bound to each thread. An event loop context never leaves
+   * its thread, so each map is only used by one thread. Keys are weak so that the queues of
+   * undeployed verticles go away with their contexts.
+   */
+  private final ThreadLocal<Map<Context, DeferredQueue>> deferredQueues =
+      new ThreadLocal<Map<Context, DeferredQueue>>() {
+        @Override
+        protected Map<Context, DeferredQueue> initialValue() {
+          return new WeakHashMap<Context, DeferredQueue>();
+        }
+      };
 
-  VertxScheduler(Vertx vertx) {
+  VertxScheduler(Vertx vertx, int deferredBudget) {
     this.vertx = vertx;
+    this.deferredBudget = deferredBudget;
   }
 
   @Override
@@ -37,13 +61,27 @@ class VertxScheduler implements Scheduler {
   }
 
   @Override
-  public void scheduleDeferred(final Handler<Void> handler) {
-    vertx.runOnContext(new org.vertx.java.core.Handler<Void>() {
-      @Override
-      public void handle(Void event) {
-        handler.handle(null);
-      }
-    });
+  public void scheduleDeferred(Handler<Void> handler) {
+    Context context = vertx.isEventLoop() ? vertx.currentContext() : null;
+    if (context == null) {
+      // Worker contexts may hop between threads, so their handlers can't share a queue
+      runOnContext(handler);
+      return;
+    }
+    Map<Context, DeferredQueue> queues = deferredQueues.get();
+    DeferredQueue queue = queues.get(context);
+    if (queue == null) {
+      queue = new DeferredQueue(deferredBudget) {
+        @Override
+        protected void scheduleDrain(Handler<Void> drain) {
+          // Called while adding to or draining this queue, hence on its own context. Capturing
+          // the context instead would keep it from being collected.
+          runOnContext(drain);
+        }
+      };
+      queues.put(context, queue);
+    }
+    queue.add(handler);
   }
 
   @Override
@@ -65,4 +103,13 @@ class VertxScheduler implements Scheduler {
       }
     });
   }
-}
\ No newline at end of file
+
+  private void runOnContext(final Handler<Void> handler) {
+    vertx.runOnContext(new org.vertx.java.core.Handler<Void>() {
+      @Override
+      public void handle(Void event) {
+        handler.handle(null);
+      }
+    });
+  }
+}
@@ -14,7 +14,7 @@
 package com.goodow.realtime.channel.server.impl;
 
 import com.goodow.realtime.channel.State;
-import com.goodow.realtime.core.WebSocket;
+import com.goodow.realtime.core.BinaryWebSocket;
 import com.goodow.realtime.json.Json;
 
 import org.vertx.java.core.Handler;
@@ -27,7 +27,7 @@ import java.net.URISyntaxException;
 import java.util.logging.Level;
 import java.util.logging.Logger;
 
-class VertxWebSocket implements WebSocket {
+class VertxWebSocket implements BinaryWebSocket {
   private static final Logger log = Logger.getLogger(VertxWebSocket.class.getName());
 
   private org.vertx.java.core.http.WebSocket socket;
@@ -124,6 +124,19 @@ class VertxWebSocket implements WebSocket {
     }
   }
 
+  @Override
+  public void sendBinary(byte[] data) {
+    if (socket == null) {
+      log.warning("WebSocket is closed");
+      return;
+    }
+    try {
+      socket.writeBinaryFrame(new Buffer(data));
+    } catch (Throwable e) {
+      throw new RuntimeException(e);
+    }
+  }
+
   @Override
   public void setListen(WebSocketHandler handler) {
     this.eventHandler = handler;
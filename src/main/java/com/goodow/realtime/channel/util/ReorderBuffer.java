@@ -0,0 +1,158 @@
+/*
+ * Copyright 2014 Goodow.com
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License
+ * is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package com.goodow.realtime.channel.util;
+
+/**
+ * A sliding window of values keyed by consecutive sequence numbers, which holds out-of-order values
+ * until the gap before them is filled.<p>
+ * The window starts at the next expected sequence and is stored in a ring buffer, so that putting,
+ * looking up and draining a value are O(1) and allocation free. The ring grows by doubling up to
+ * the maximum window size.<p>
+ * Sequences are doubles, as they come from JSON and as longs are emulated in JavaScript; they must
+ * be integral.
+ */
+public class ReorderBuffer {
+  private static final int INITIAL_CAPACITY = 16;
+
+  private static int ceilingPowerOfTwo(int value) {
+    int toRtn = 1;
+    while (toRtn < value) {
+      toRtn <<= 1;
+    }
+    return toRtn;
+  }
+
+  private final int maxWindow;
+  private Object[] slots;
+  private int head; // index of the slot holding nextSequence
+  private int size;
+  private double nextSequence;
+
+  /**
+   * @param nextSequence the first sequence expected
+   * @param maxWindow the maximum distance from the next expected sequence of a held value
+   */
+  public ReorderBuffer(double nextSequence, int maxWindow) {
+    if (maxWindow <= 0) {
+      throw new IllegalArgumentException("maxWindow must be greater than 0: " + maxWindow);
+    }
+    this.nextSequence = nextSequence;
+    this.maxWindow = maxWindow;
+    slots = new Object[Math.min(INITIAL_CAPACITY, ceilingPowerOfTwo(maxWindow))];
+  }
+
+  /**
+   * Drops all held values, keeping the window in place.
+   */
+  public void clear() {
+    for (int i = 0; i < slots.length; i++) {
+      slots[i] = null;
+    }
+    size = 0;
+  }
+
+  /**
+   * Returns the value held at {@code sequence}, or null.
+   */
+  public Object get(double sequence) {
+    double offset = sequence - nextSequence;
+    if (offset < 0 || offset >= slots.length) {
+      return null;
+    }
+    return slots[(head + (int) offset) & (slots.length - 1)];
+  }
+
+  public int getMaxWindow() {
+    return maxWindow;
+  }
+
+  /**
+   * Returns the sequence of the value {@link #poll} would return.
+   */
+  public double getNextSequence() {
+    return nextSequence;
+  }
+
+  /**
+   * Returns whether {@code sequence} is too far ahead of the next expected sequence to be held.
+   */
+  public boolean isBeyondWindow(double sequence) {
+    return sequence - nextSequence >= maxWindow;
+  }
+
+  public boolean isEmpty() {
+    return size == 0;
+  }
+
+  /**
+   * Removes and returns the value at the next expected sequence, and moves the window forward by
+   * one. Returns null and leaves the window in place if that value hasn't been received yet.
+   */
+  public Object poll() {
+    Object value = slots[head];
+    if (value == null) {
+      return null;
+    }
+    slots[head] = null;
+    head = (head + 1) & (slots.length - 1);
+    size--;
+    nextSequence++;
+    return value;
+  }
+
+  /**
+   * Holds {@code value} at {@code sequence}.
+   *
+   * @return false if {@code sequence} has already been passed, is already held, or is beyond the
+   *         window
+   */
+  public boolean put(double sequence, Object value) {
+    double offset = sequence - nextSequence;
+    if (offset < 0 || offset >= maxWindow) {
+      return false;
+    }
+    int idx = (int) offset;
+    if (idx >= slots.length) {
+      grow(idx + 1);
+    }
+    idx = (head + idx) & (slots.length - 1);
+    if (slots[idx] != null) {
+      return false;
+    }
+    slots[idx] = value;
+    size++;
+    return true;
+  }
+
+  /**
+   * Returns the number of held values.
+   */
+  public int size() {
+    return size;
+  }
+
+  private void grow(int minCapacity) {
+    int capacity = slots.length;
+    while (capacity < minCapacity) {
+      capacity <<= 1;
+    }
+    Object[] grown = new Object[capacity];
+    // Unroll the ring so that the next expected sequence is at index 0
+    int tail = slots.length - head;
+    System.arraycopy(slots, head, grown, 0, tail);
+    System.arraycopy(slots, 0, grown, tail, head);
+    slots = grown;
+    head = 0;
+  }
+}
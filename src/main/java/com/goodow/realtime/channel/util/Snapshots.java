@@ -0,0 +1,87 @@
+/*
+ * Copyright 2014 Goodow.com
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License
+ * is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package com.goodow.realtime.channel.util;
+
+/**
+ * Copy-on-write helpers for immutable arrays. An array passed to or returned from these methods
+ * must never be modified in place, so that it can be iterated without copying while it is being
+ * replaced. {@code null} stands for the empty snapshot.
+ */
+public class Snapshots {
+  /**
+   * Returns a new snapshot with {@code value} appended, or {@code snapshot} itself if it already
+   * contains {@code value}.
+   */
+  public static Object[] add(Object[] snapshot, Object value) {
+    if (snapshot == null) {
+      return new Object[] {value};
+    }
+    if (indexOf(snapshot, value) != -1) {
+      return snapshot;
+    }
+    Object[] toRtn = new Object[snapshot.length + 1];
+    System.arraycopy(snapshot, 0, toRtn, 0, snapshot.length);
+    toRtn[snapshot.length] = value;
+    return toRtn;
+  }
+
+  /**
+   * Returns {@code first} followed by {@code second}, sharing either one if the other is empty.
+   */
+  public static Object[] concat(Object[] first, Object[] second) {
+    if (first == null) {
+      return second;
+    }
+    if (second == null) {
+      return first;
+    }
+    Object[] toRtn = new Object[first.length + second.length];
+    System.arraycopy(first, 0, toRtn, 0, first.length);
+    System.arraycopy(second, 0, toRtn, first.length, second.length);
+    return toRtn;
+  }
+
+  public static int indexOf(Object[] snapshot, Object value) {
+    if (snapshot != null) {
+      for (int i = 0; i < snapshot.length; i++) {
+        if (snapshot[i] == value || (value != null && value.equals(snapshot[i]))) {
+          return i;
+        }
+      }
+    }
+    return -1;
+  }
+
+  /**
+   * Returns a new snapshot without {@code value}, {@code snapshot} itself if it doesn't contain
+   * {@code value}, or {@code null} if nothing is left.
+   */
+  public static Object[] remove(Object[] snapshot, Object value) {
+    int idx = indexOf(snapshot, value);
+    if (idx == -1) {
+      return snapshot;
+    }
+    if (snapshot.length == 1) {
+      return null;
+    }
+    Object[] toRtn = new Object[snapshot.length - 1];
+    System.arraycopy(snapshot, 0, toRtn, 0, idx);
+    System.arraycopy(snapshot, idx + 1, toRtn, idx, snapshot.length - idx - 1);
+    return toRtn;
+  }
+
+  // Non-instantiable
+  private Snapshots() {
+  }
+}
@@ -0,0 +1,262 @@
+/*
+ * Copyright 2014 Goodow.com
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License
+ * is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package com.goodow.realtime.channel.util;
+
+import com.goodow.realtime.json.Json;
+import com.goodow.realtime.json.JsonObject;
+
+/**
+ * A segment trie of topic filters supporting MQTT-style wildcards.<p>
+ * Topics are split into levels by {@code '/'}. In a filter, {@code '+'} matches exactly one level
+ * and {@code '#'} as the last level matches the parent level and any number of child levels. A
+ * {@code '#'} anywhere else is an ordinary level, so that such topics stay plain addresses. Topics
+ * starting with {@code '@'} (local bus events such as {@code Bus.ON_OPEN}) are not
+ * matched by a wildcard in the first level.<p>
+ * Matching a topic walks one path per wildcard branch, so its cost is proportional to the depth of
+ * the topic rather than to the number of filters. Values are kept in copy-on-write
+ * {@link Snapshots}, so a match that hits a single filter returns its snapshot without copying.
+ */
+public class TopicTrie {
+  public static final char SEPARATOR = '/';
+  public static final String SINGLE_LEVEL = "+";
+  public static final String MULTI_LEVEL = "#";
+
+  private static class Node {
+    JsonObject children; // LinkedHashMap<String, Node>
+    Node singleLevel;
+    Object[] values; // values registered on this exact filter
+    Object[] multiLevelValues; // values registered on this filter + "/#"
+
+    boolean isEmpty() {
+      return children == null && singleLevel == null && values == null
+             && multiLevelValues == null;
+    }
+  }
+
+  /**
+   * Returns whether {@code filter} contains a {@code '+'} level or ends with a {@code '#'} level.
+   */
+  public static boolean isWildcard(String filter) {
+    if (filter.indexOf('+') == -1 && filter.indexOf('#') == -1) {
+      return false;
+    }
+    int start = 0;
+    while (start != -1) {
+      int end = filter.indexOf(SEPARATOR, start);
+      String level = filter.substring(start, end == -1 ? filter.length() : end);
+      if (SINGLE_LEVEL.equals(level) || (end == -1 && MULTI_LEVEL.equals(level))) {
+        return true;
+      }
+      start = end == -1 ? -1 : end + 1;
+    }
+    return false;
+  }
+
+  private final Node root = new Node();
+  private int size;
+
+  /**
+   * Adds {@code value} to {@code filter}.
+   *
+   * @return false if {@code value} was already registered on this filter
+   */
+  public boolean add(String filter, Object value) {
+    Node node = root;
+    int start = 0;
+    while (start != -1) {
+      int end = filter.indexOf(SEPARATOR, start);
+      String level = filter.substring(start, end == -1 ? filter.length() : end);
+      if (end == -1 && MULTI_LEVEL.equals(level)) {
+        Object[] values = Snapshots.add(node.multiLevelValues, value);
+        if (values == node.multiLevelValues) {
+          return false;
+        }
+        node.multiLevelValues = values;
+        size++;
+        return true;
+      }
+      Node child;
+      if (SINGLE_LEVEL.equals(level)) {
+        if (node.singleLevel == null) {
+          node.singleLevel = new Node();
+        }
+        child = node.singleLevel;
+      } else {
+        if (node.children == null) {
+          node.children = Json.createObject();
+        }
+        child = node.children.get(level);
+        if (child == null) {
+          child = new Node();
+          node.children.set(level, child);
+        }
+      }
+      node = child;
+      start = end == -1 ? -1 : end + 1;
+    }
+    Object[] values = Snapshots.add(node.values, value);
+    if (values == node.values) {
+      return false;
+    }
+    node.values = values;
+    size++;
+    return true;
+  }
+
+  public void clear() {
+    root.children = null;
+    root.singleLevel = null;
+    root.values = null;
+    root.multiLevelValues = null;
+    size = 0;
+  }
+
+  /**
+   * Returns whether any filter matches {@code topic}, without collecting the values.
+   */
+  public boolean hasMatch(String topic) {
+    if (size == 0) {
+      return false;
+    }
+    if (topic.length() > 0 && topic.charAt(0) == '@') {
+      int end = topic.indexOf(SEPARATOR);
+      Node child = root.children == null ? null : root.children.<Node> get(
+          end == -1 ? topic : topic.substring(0, end));
+      return child != null && hasMatch(child, topic, end == -1 ? -1 : end + 1);
+    }
+    return hasMatch(root, topic, 0);
+  }
+
+  public boolean isEmpty() {
+    return size == 0;
+  }
+
+  /**
+   * Returns {@code values} followed by every value whose filter matches {@code topic}, or
+   * {@code values} itself if no filter matches. A value registered on several matching filters is
+   * returned once per filter. The returned array is a snapshot and must not be modified.
+   */
+  public Object[] match(String topic, Object[] values) {
+    if (size == 0) {
+      return values;
+    }
+    if (topic.length() > 0 && topic.charAt(0) == '@') {
+      // Local bus events are only matched literally in the first level
+      int end = topic.indexOf(SEPARATOR);
+      Node child = root.children == null ? null : root.children.<Node> get(
+          end == -1 ? topic : topic.substring(0, end));
+      return child == null ? values : match(child, topic, end == -1 ? -1 : end + 1, values);
+    }
+    return match(root, topic, 0, values);
+  }
+
+  /**
+   * Removes {@code value} from {@code filter}, pruning nodes left empty.
+   *
+   * @return false if {@code value} wasn't registered on this filter
+   */
+  public boolean remove(String filter, Object value) {
+    boolean removed = remove(root, filter, 0, value);
+    if (removed) {
+      size--;
+    }
+    return removed;
+  }
+
+  public int size() {
+    return size;
+  }
+
+  /**
+   * Walks the same paths as {@link #match(Node, String, int, Object[])}, stopping at the first
+   * value.
+   */
+  private boolean hasMatch(Node node, String topic, int start) {
+    if (node.multiLevelValues != null) {
+      return true;
+    }
+    if (start == -1) {
+      return node.values != null;
+    }
+    int end = topic.indexOf(SEPARATOR, start);
+    int next = end == -1 ? -1 : end + 1;
+    if (node.children != null) {
+      Node child = node.children.get(topic.substring(start, end == -1 ? topic.length() : end));
+      if (child != null && hasMatch(child, topic, next)) {
+        return true;
+      }
+    }
+    return node.singleLevel != null && hasMatch(node.singleLevel, topic, next);
+  }
+
+  /**
+   * @param start index of the first character of the next level, or -1 if all levels of
+   *          {@code topic} have been consumed by {@code node}
+   */
+  private Object[] match(Node node, String topic, int start, Object[] values) {
+    values = Snapshots.concat(values, node.multiLevelValues);
+    if (start == -1) {
+      return Snapshots.concat(values, node.values);
+    }
+    int end = topic.indexOf(SEPARATOR, start);
+    int next = end == -1 ? -1 : end + 1;
+    if (node.children != null) {
+      Node child = node.children.get(topic.substring(start, end == -1 ? topic.length() : end));
+      if (child != null) {
+        values = match(child, topic, next, values);
+      }
+    }
+    if (node.singleLevel != null) {
+      values = match(node.singleLevel, topic, next, values);
+    }
+    return values;
+  }
+
+  private boolean remove(Node node, String filter, int start, Object value) {
+    int end = filter.indexOf(SEPARATOR, start);
+    String level = filter.substring(start, end == -1 ? filter.length() : end);
+    if (end == -1 && MULTI_LEVEL.equals(level)) {
+      Object[] values = Snapshots.remove(node.multiLevelValues, value);
+      if (values == node.multiLevelValues) {
+        return false;
+      }
+      node.multiLevelValues = values;
+      return true;
+    }
+    Node child = SINGLE_LEVEL.equals(level) ? node.singleLevel
+        : node.children == null ? null : node.children.<Node> get(level);
+    if (child == null) {
+      return false;
+    }
+    boolean removed;
+    if (end == -1) {
+      Object[] values = Snapshots.remove(child.values, value);
+      removed = values != child.values;
+      child.values = values;
+    } else {
+      removed = remove(child, filter, end + 1, value);
+    }
+    if (removed && child.isEmpty()) {
+      if (child == node.singleLevel) {
+        node.singleLevel = null;
+      } else {
+        node.children.remove(level);
+        if (node.children.keys().length() == 0) {
+          node.children = null;
+        }
+      }
+    }
+    return removed;
+  }
+}
@@ -13,6 +13,30 @@
  */
 package com.goodow.realtime.core;
 
+import com.goodow.realtime.json.JsonArray;
+
+/**
+ * An append-only log of string records which survives a restart of the process.
+ */
 public interface Storage {
+  /**
+   * Appends {@code record}, which must not contain line breaks, to the end of the log.
+   */
+  void append(String record);
+
+  /**
+   * Appends {@code records}, an array of strings, to the end of the log at once.
+   */
+  void appendAll(JsonArray records);
+
+  /**
+   * Removes all records.
+   */
+  void clear();
 
+  /**
+   * Returns all records in the order they were appended, as an array of strings. A record whose
+   * append was interrupted is left out.
+   */
+  JsonArray readAll();
 }
@@ -0,0 +1,255 @@
+/*
+ * Copyright 2014 Goodow.com
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License
+ * is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package com.goodow.realtime.core;
+
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * A hashed wheel of coarse-grained one-shot timers, all multiplexed onto a single periodic platform
+ * timer which only runs while at least one timeout is pending.<p>
+ * Scheduling and cancelling a timeout are O(1). A timeout fires on the first tick at or after its
+ * delay, so it fires up to one tick late, never early. This class is not thread-safe: it must be
+ * used from the thread which runs the ticks.
+ */
+public class TimerWheel {
+  private static final Logger log = Logger.getLogger(TimerWheel.class.getName());
+  // The bucket of a timeout which has expired and is about to fire in the current tick
+  private static final int FIRING = -2;
+
+  /**
+   * A pending timeout, returned by {@link TimerWheel#schedule}.
+   */
+  public final class Timeout {
+    private final Handler<Void> handler;
+    private int bucket = -1;
+    private int remainingRounds;
+    private Timeout prev;
+    private Timeout next;
+
+    private Timeout(Handler<Void> handler) {
+      this.handler = handler;
+    }
+
+    /**
+     * Cancels this timeout. Returns {@code false} if it has already fired or been cancelled.
+     */
+    public boolean cancel() {
+      if (bucket == -1) {
+        return false;
+      }
+      if (bucket == FIRING) {
+        // Cancelled by the handler of another timeout of the same tick
+        bucket = -1;
+        return true;
+      }
+      unlink(this);
+      if (size == 0) {
+        stop();
+      }
+      return true;
+    }
+  }
+
+  private final int tickMs;
+  private final Timeout[] buckets;
+  private final int mask;
+  private int cursor;
+  private int size;
+  private boolean ticking;
+  private int timerId = -1;
+  private Timeout firing; // the timeouts of the current tick which haven't fired yet
+
+  /**
+   * @param tickMs the duration of a tick in milliseconds
+   * @param wheelSize the number of buckets, rounded up to a power of 2. A timeout further away
+   *          than {@code tickMs * wheelSize} goes around the wheel several times.
+   */
+  public TimerWheel(int tickMs, int wheelSize) {
+    if (tickMs <= 0) {
+      throw new IllegalArgumentException("tickMs must be greater than 0: " + tickMs);
+    }
+    int normalized = 1;
+    while (normalized < wheelSize) {
+      normalized <<= 1;
+    }
+    this.tickMs = tickMs;
+    buckets = new Timeout[normalized];
+    mask = normalized - 1;
+  }
+
+  /**
+   * Cancels all pending timeouts.
+   */
+  public void clear() {
+    for (int i = 0; i < buckets.length; i++) {
+      for (Timeout timeout = buckets[i]; timeout != null; timeout = timeout.next) {
+        timeout.bucket = -1;
+      }
+      buckets[i] = null;
+    }
+    for (Timeout timeout = firing; timeout != null; timeout = timeout.next) {
+      timeout.bucket = -1;
+    }
+    size = 0;
+    stop();
+  }
+
+  public int getTickMs() {
+    return tickMs;
+  }
+
+  /**
+   * Schedules {@code handler} to be called once after {@code delayMs} milliseconds.
+   */
+  public Timeout schedule(int delayMs, Handler<Void> handler) {
+    if (!ticking) {
+      // Ticking starts now, so the first tick comes a whole tick from now
+      return scheduleAfterLastTick(delayMs, handler);
+    }
+    // Up to a tick may have gone by since the last tick, which the delay is counted from
+    return scheduleAfterLastTick(delayMs > Integer.MAX_VALUE - tickMs ? Integer.MAX_VALUE
+        : delayMs + tickMs, handler);
+  }
+
+  /**
+   * Schedules {@code handler} to be called once {@code delayMs} milliseconds after the last tick,
+   * or from now if the wheel isn't ticking. Platforms which drive the wheel themselves and know
+   * when it last ticked use this instead of {@link #schedule} to avoid firing a tick late.
+   */
+  public Timeout scheduleAfterLastTick(int delayMs, Handler<Void> handler) {
+    // Rounded up without overflowing, since delays may be as long as Integer.MAX_VALUE
+    int ticks = delayMs <= tickMs ? 1 : delayMs / tickMs + (delayMs % tickMs == 0 ? 0 : 1);
+    Timeout timeout = new Timeout(handler);
+    timeout.bucket = (cursor + ticks) & mask;
+    timeout.remainingRounds = (ticks - 1) / buckets.length;
+    Timeout head = buckets[timeout.bucket];
+    if (head != null) {
+      head.prev = timeout;
+      timeout.next = head;
+    }
+    buckets[timeout.bucket] = timeout;
+    if (size++ == 0) {
+      start();
+    }
+    return timeout;
+  }
+
+  public int size() {
+    return size;
+  }
+
+  /**
+   * Returns in how many ticks the cursor reaches the next bucket holding a timeout, or -1 if no
+   * timeout is pending. The timeouts of that bucket may still have rounds to go.
+   */
+  public int ticksUntilNextBucket() {
+    if (size == 0) {
+      return -1;
+    }
+    for (int i = 1; i < buckets.length; i++) {
+      if (buckets[(cursor + i) & mask] != null) {
+        return i;
+      }
+    }
+    return buckets.length;
+  }
+
+  /**
+   * Advances the wheel by one tick and fires the timeouts which have expired.
+   */
+  public void tick() {
+    cursor = (cursor + 1) & mask;
+    // Unlink all expired timeouts first, since handlers may schedule or cancel other timeouts
+    Timeout expired = null;
+    Timeout timeout = buckets[cursor];
+    while (timeout != null) {
+      Timeout next = timeout.next;
+      if (timeout.remainingRounds > 0) {
+        timeout.remainingRounds--;
+      } else {
+        unlink(timeout);
+        timeout.bucket = FIRING;
+        timeout.next = expired;
+        expired = timeout;
+      }
+      timeout = next;
+    }
+    firing = expired;
+    while (firing != null) {
+      timeout = firing;
+      firing = timeout.next;
+      timeout.next = null;
+      if (timeout.bucket != FIRING) {
+        continue; // cancelled by an earlier handler
+      }
+      timeout.bucket = -1;
+      try {
+        timeout.handler.handle(null);
+      } catch (Throwable e) {
+        log.log(Level.WARNING, "Failed to handle timeout", e);
+      }
+    }
+    if (size == 0) {
+      stop();
+    }
+  }
+
+  /**
+   * Starts calling {@link #tick()} every {@link #getTickMs()} milliseconds. Platforms override
+   * this and {@link #stopTicking()} to drive the wheel from their native timer.
+   */
+  protected void startTicking() {
+    timerId = Platform.scheduler().schedulePeriodic(tickMs, new Handler<Void>() {
+      @Override
+      public void handle(Void event) {
+        tick();
+      }
+    });
+  }
+
+  protected void stopTicking() {
+    Platform.scheduler().cancelTimer(timerId);
+    timerId = -1;
+  }
+
+  private void start() {
+    if (!ticking) {
+      ticking = true;
+      startTicking();
+    }
+  }
+
+  private void stop() {
+    if (ticking) {
+      ticking = false;
+      stopTicking();
+    }
+  }
+
+  private void unlink(Timeout timeout) {
+    if (timeout.prev == null) {
+      buckets[timeout.bucket] = timeout.next;
+    } else {
+      timeout.prev.next = timeout.next;
+    }
+    if (timeout.next != null) {
+      timeout.next.prev = timeout.prev;
+    }
+    timeout.prev = null;
+    timeout.next = null;
+    timeout.bucket = -1;
+    size--;
+  }
+}
@@ -0,0 +1,109 @@
+/*
+ * Copyright 2014 Goodow.com
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License
+ * is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package com.goodow.realtime.core.impl;
+
+import com.goodow.realtime.core.Handler;
+
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Collects deferred handlers and runs them from a single platform callback, instead of one
+ * platform callback per handler.<p>
+ * At most {@code budget} handlers run per callback. If more are left, including handlers deferred
+ * by the ones which ran, another callback is scheduled, so that the platform can process other
+ * events in between and a burst of messages can't starve it. Not thread-safe.
+ */
+public abstract class DeferredQueue {
+  public static final int DEFAULT_BUDGET = 1000;
+  private static final Logger log = Logger.getLogger(DeferredQueue.class.getName());
+
+  private final Handler<Void> drain = new Handler<Void>() {
+    @Override
+    public void handle(Void ignore) {
+      drainScheduled = false;
+      drain();
+    }
+  };
+  private int budget;
+  private Object[] ring = new Object[16];
+  private int head;
+  private int size;
+  private boolean drainScheduled;
+
+  protected DeferredQueue(int budget) {
+    setBudget(budget);
+  }
+
+  /**
+   * Queues {@code handler} to run after the current event.
+   */
+  public void add(Handler<Void> handler) {
+    if (size == ring.length) {
+      Object[] grown = new Object[size * 2];
+      System.arraycopy(ring, head, grown, 0, size - head);
+      System.arraycopy(ring, 0, grown, size - head, head);
+      ring = grown;
+      head = 0;
+    }
+    ring[(head + size) & (ring.length - 1)] = handler;
+    size++;
+    if (!drainScheduled) {
+      drainScheduled = true;
+      scheduleDrain(drain);
+    }
+  }
+
+  public int getBudget() {
+    return budget;
+  }
+
+  /**
+   * Sets the maximum number of handlers run per platform callback.
+   */
+  public void setBudget(int budget) {
+    if (budget <= 0) {
+      throw new IllegalArgumentException("budget must be greater than 0: " + budget);
+    }
+    this.budget = budget;
+  }
+
+  public int size() {
+    return size;
+  }
+
+  /**
+   * Schedules a platform callback which calls {@code drain}.
+   */
+  protected abstract void scheduleDrain(Handler<Void> drain);
+
+  @SuppressWarnings("unchecked")
+  private void drain() {
+    for (int i = 0; i < budget && size > 0; i++) {
+      Handler<Void> handler = (Handler<Void>) ring[head];
+      ring[head] = null;
+      head = (head + 1) & (ring.length - 1);
+      size--;
+      try {
+        handler.handle(null);
+      } catch (Throwable e) {
+        log.log(Level.WARNING, "Failed to run a deferred handler", e);
+      }
+    }
+    if (size > 0 && !drainScheduled) {
+      drainScheduled = true;
+      scheduleDrain(drain);
+    }
+  }
+}
@@ -0,0 +1,219 @@
+/*
+ * Copyright 2014 Goodow.com
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License
+ * is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package com.goodow.realtime.core.impl;
+
+import com.goodow.realtime.core.Handler;
+import com.goodow.realtime.core.Scheduler;
+import com.goodow.realtime.core.TimerWheel;
+
+/**
+ * Keeps the timers of a {@link Scheduler} in a {@link TimerWheel}, driven by a single one-shot
+ * native timer which is armed for the next bucket holding a timer, so that thousands of timers
+ * cost one native timer and an idle wheel costs none.<p>
+ * Timer ids index a slot table instead of a map, with a generation count in their high bits so
+ * that the id of a fired or cancelled timer never cancels a later one. Not thread-safe: timers
+ * must be scheduled and cancelled from the thread which runs the native timer.
+ */
+public abstract class TimerWheelScheduler implements Scheduler {
+  private static final int INDEX_BITS = 20;
+  private static final int INDEX_MASK = (1 << INDEX_BITS) - 1;
+  private static final int GENERATION_MASK = (1 << (31 - INDEX_BITS)) - 1;
+  private static final int WHEEL_SIZE = 512;
+
+  private static int[] copyOf(int[] array, int length) {
+    int[] toRtn = new int[length];
+    System.arraycopy(array, 0, toRtn, 0, Math.min(array.length, length));
+    return toRtn;
+  }
+
+  private class Timer implements Handler<Void> {
+    final int id;
+    final int delayMs;
+    final boolean periodic;
+    final Handler<Void> handler;
+    TimerWheel.Timeout timeout;
+
+    Timer(int id, int delayMs, boolean periodic, Handler<Void> handler) {
+      this.id = id;
+      this.delayMs = delayMs;
+      this.periodic = periodic;
+      this.handler = handler;
+    }
+
+    @Override
+    public void handle(Void ignore) {
+      if (periodic) {
+        timeout = wheel.scheduleAfterLastTick(delayMs, this);
+      } else {
+        release(id);
+      }
+      handler.handle(null);
+    }
+  }
+
+  private final TimerWheel wheel;
+  private final int tickMs;
+  private Timer[] slots = new Timer[16];
+  private int[] generations = new int[16];
+  private int[] freeSlots = new int[16];
+  private int freeCount;
+  private int slotCount;
+  /**
+   * When the wheel was last ticked, or -1 while it is empty.
+   */
+  private double lastTickMs = -1;
+  /**
+   * When the native timer is due, or -1 if it isn't armed.
+   */
+  private double armedMs = -1;
+
+  /**
+   * @param tickMs the precision of timers in milliseconds
+   */
+  protected TimerWheelScheduler(int tickMs) {
+    this.tickMs = tickMs;
+    wheel = new TimerWheel(tickMs, WHEEL_SIZE) {
+      @Override
+      protected void startTicking() {
+        // Ticked by onNativeTimer()
+      }
+
+      @Override
+      protected void stopTicking() {
+      }
+    };
+  }
+
+  @Override
+  public boolean cancelTimer(int id) {
+    Timer timer = get(id);
+    if (timer == null) {
+      return false;
+    }
+    timer.timeout.cancel();
+    release(id);
+    return true;
+  }
+
+  @Override
+  public int scheduleDelay(int delayMs, Handler<Void> handler) {
+    return schedule(delayMs, false, handler);
+  }
+
+  @Override
+  public int schedulePeriodic(int delayMs, Handler<Void> handler) {
+    return schedule(delayMs, true, handler);
+  }
+
+  /**
+   * Returns the current time in milliseconds.
+   */
+  protected double now() {
+    return System.currentTimeMillis();
+  }
+
+  /**
+   * Called by the native timer. Ticks the wheel for the time elapsed, then arms the native timer
+   * for the next pending timer.
+   */
+  protected void onNativeTimer() {
+    armedMs = -1;
+    double now = now();
+    while (lastTickMs != -1 && now - lastTickMs >= tickMs) {
+      lastTickMs += tickMs;
+      wheel.tick();
+    }
+    int ticks = wheel.ticksUntilNextBucket();
+    if (ticks == -1) {
+      lastTickMs = -1;
+    } else {
+      arm(lastTickMs + ticks * tickMs, now);
+    }
+  }
+
+  /**
+   * Cancels the native timer started by {@link #startNativeTimer}.
+   */
+  protected abstract void cancelNativeTimer();
+
+  /**
+   * Starts a one-shot native timer calling {@link #onNativeTimer()} after {@code delayMs}
+   * milliseconds. At most one is started at a time.
+   */
+  protected abstract void startNativeTimer(int delayMs);
+
+  private void arm(double dueMs, double now) {
+    if (armedMs != -1) {
+      if (armedMs <= dueMs) {
+        return;
+      }
+      cancelNativeTimer();
+    }
+    armedMs = dueMs;
+    startNativeTimer((int) Math.max(0, dueMs - now));
+  }
+
+  private Timer get(int id) {
+    int index = id & INDEX_MASK;
+    if (id < 0 || index >= slotCount || generations[index] != id >>> INDEX_BITS) {
+      return null;
+    }
+    return slots[index];
+  }
+
+  private void release(int id) {
+    int index = id & INDEX_MASK;
+    slots[index] = null;
+    generations[index] = (generations[index] + 1) & GENERATION_MASK;
+    if (freeCount == freeSlots.length) {
+      freeSlots = copyOf(freeSlots, freeCount * 2);
+    }
+    freeSlots[freeCount++] = index;
+  }
+
+  private int schedule(int delayMs, boolean periodic, Handler<Void> handler) {
+    int index;
+    if (freeCount > 0) {
+      index = freeSlots[--freeCount];
+    } else {
+      if (slotCount > INDEX_MASK) {
+        throw new IllegalStateException("Too many timers");
+      }
+      if (slotCount == slots.length) {
+        Timer[] grown = new Timer[slotCount * 2];
+        System.arraycopy(slots, 0, grown, 0, slotCount);
+        slots = grown;
+        generations = copyOf(generations, slotCount * 2);
+      }
+      index = slotCount++;
+    }
+    Timer timer = new Timer(generations[index] << INDEX_BITS | index, delayMs, periodic, handler);
+    slots[index] = timer;
+
+    double now = now();
+    if (lastTickMs == -1) {
+      lastTickMs = now;
+    }
+    // The wheel counts ticks from its last tick, which may be a while ago
+    int fromLastTick = delayMs + (int) (now - lastTickMs);
+    timer.timeout = wheel.scheduleAfterLastTick(fromLastTick, timer);
+    int ticks = fromLastTick <= tickMs ? 1 : (fromLastTick + tickMs - 1) / tickMs;
+    if (ticks <= WHEEL_SIZE) {
+      arm(lastTickMs + ticks * tickMs, now);
+    } else {
+      arm(lastTickMs + wheel.ticksUntilNextBucket() * tickMs, now);
+    }
+    return timer.id;
+  }
+}
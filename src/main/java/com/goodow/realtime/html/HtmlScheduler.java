@@ -14,31 +14,50 @@
 package com.goodow.realtime.html;
 
 import com.goodow.realtime.core.Handler;
-import com.goodow.realtime.core.Scheduler;
-import com.goodow.realtime.json.Json;
-import com.goodow.realtime.json.JsonObject;
+import com.goodow.realtime.core.impl.DeferredQueue;
+import com.goodow.realtime.core.impl.TimerWheelScheduler;
 
-import com.google.gwt.core.client.Scheduler.RepeatingCommand;
 import com.google.gwt.core.client.Scheduler.ScheduledCommand;
 
-class HtmlScheduler implements Scheduler {
+/**
+ * Multiplexes all timers onto a single {@code setTimeout}, see {@link TimerWheelScheduler}, and
+ * runs deferred handlers from one GWT deferred command per batch, see {@link DeferredQueue}.
+ */
+class HtmlScheduler extends TimerWheelScheduler {
+  private static final int TICK_MS = 10;
+
   // @formatter:off 
+  private static native void nativeClearTimeout(int id) /*-{
+    $wnd.clearTimeout(id);
+  }-*/;
+
   private static native <T> void nativeHandle(Object handler, T event) /*-{
     handler(event);
   }-*/;
-  // @formatter:on
 
-  private int timerId = -1;
-  private final JsonObject timers = Json.createObject();
+  private native int nativeSetTimeout(int delayMs) /*-{
+    var self = this;
+    return $wnd.setTimeout($entry(function() {
+      self.@com.goodow.realtime.core.impl.TimerWheelScheduler::onNativeTimer()();
+    }), delayMs);
+  }-*/;
+  // @formatter:on
 
-  @Override
-  public boolean cancelTimer(int id) {
-    String key = "" + id;
-    if (timers.has(key)) {
-      timers.remove(key);
-      return true;
+  private final DeferredQueue deferredQueue = new DeferredQueue(DeferredQueue.DEFAULT_BUDGET) {
+    @Override
+    protected void scheduleDrain(final Handler<Void> drain) {
+      com.google.gwt.core.client.Scheduler.get().scheduleDeferred(new ScheduledCommand() {
+        @Override
+        public void execute() {
+          drain.handle(null);
+        }
+      });
     }
-    return false;
+  };
+  private int nativeTimerId = -1;
+
+  HtmlScheduler() {
+    super(TICK_MS);
   }
 
   @SuppressWarnings("unchecked")
@@ -52,48 +71,18 @@ class HtmlScheduler implements Scheduler {
   }
 
   @Override
-  public void scheduleDeferred(final Handler<Void> handler) {
-    com.google.gwt.core.client.Scheduler.get().scheduleDeferred(new ScheduledCommand() {
-      @Override
-      public void execute() {
-        handler.handle(null);
-      }
-    });
+  public void scheduleDeferred(Handler<Void> handler) {
+    deferredQueue.add(handler);
   }
 
   @Override
-  public int scheduleDelay(int delayMs, final Handler<Void> handler) {
-    final String key = "" + (++timerId);
-    RepeatingCommand cmd = new RepeatingCommand() {
-      @Override
-      public boolean execute() {
-        if (timers.has(key)) {
-          timers.remove(key);
-          handler.handle(null);
-        }
-        return false;
-      }
-    };
-    timers.set(key, cmd);
-    com.google.gwt.core.client.Scheduler.get().scheduleFixedDelay(cmd, delayMs);
-    return timerId;
+  protected void cancelNativeTimer() {
+    nativeClearTimeout(nativeTimerId);
+    nativeTimerId = -1;
   }
 
   @Override
-  public int schedulePeriodic(int delayMs, final Handler<Void> handler) {
-    final String key = "" + (++timerId);
-    RepeatingCommand cmd = new RepeatingCommand() {
-      @Override
-      public boolean execute() {
-        if (timers.has(key)) {
-          handler.handle(null);
-          return true;
-        }
-        return false;
-      }
-    };
-    timers.set(key, cmd);
-    com.google.gwt.core.client.Scheduler.get().scheduleFixedPeriod(cmd, delayMs);
-    return timerId;
+  protected void startNativeTimer(int delayMs) {
+    nativeTimerId = nativeSetTimeout(delayMs);
   }
-}
\ No newline at end of file
+}
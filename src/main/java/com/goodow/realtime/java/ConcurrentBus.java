@@ -0,0 +1,462 @@
+/*
+ * Copyright 2014 Goodow.com
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License
+ * is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package com.goodow.realtime.java;
+
+import com.goodow.realtime.channel.Bus;
+import com.goodow.realtime.channel.BusHook;
+import com.goodow.realtime.channel.Message;
+import com.goodow.realtime.channel.PreSerialized;
+import com.goodow.realtime.channel.ReplyException;
+import com.goodow.realtime.channel.ReplyFailure;
+import com.goodow.realtime.channel.State;
+import com.goodow.realtime.channel.util.Snapshots;
+import com.goodow.realtime.channel.util.TopicTrie;
+import com.goodow.realtime.core.AsyncResult;
+import com.goodow.realtime.core.Handler;
+import com.goodow.realtime.core.Registration;
+import com.goodow.realtime.core.impl.FutureResultImpl;
+import com.goodow.realtime.json.Json;
+
+import java.util.Map;
+import java.util.UUID;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * A {@link Bus} which may be used from any thread, delivering messages on a pool of threads.<p>
+ * Each topic is assigned to one of several single-threaded stripes, so the messages of a topic are
+ * delivered one at a time and in the order they were published, while different topics are
+ * delivered in parallel. Unlike {@link com.goodow.realtime.channel.impl.SimpleBus}, local messages
+ * are delivered on the stripes too, rather than on the calling thread.<p>
+ * A handler subscribed with a wildcard filter receives the messages of every topic it matches on
+ * the stripes of those topics, so it may be invoked concurrently from several stripes and must be
+ * thread-safe. Only the messages of a single topic reach it one at a time and in order.<p>
+ * Subscriptions are kept in copy-on-write snapshots updated by compare-and-set, so delivering a
+ * message takes no lock. Wildcard subscriptions rebuild an immutable {@link TopicTrie} under a
+ * lock, as they are expected to change rarely.<p>
+ * The hook is called on the calling thread, and so are the reply handlers of
+ * {@link #sendWithTimeout} once the bus is closed, which fail at once.
+ */
+@SuppressWarnings("rawtypes")
+public class ConcurrentBus implements Bus {
+  private static final Logger log = Logger.getLogger(ConcurrentBus.class.getName());
+  private static final AtomicInteger busCount = new AtomicInteger();
+
+  private class ConcurrentMessage<U> implements Message<U> {
+    private final boolean local;
+    private final String topic;
+    private final String replyTopic;
+    private final U body;
+
+    ConcurrentMessage(boolean local, String topic, String replyTopic, U body) {
+      this.local = local;
+      this.topic = topic;
+      this.replyTopic = replyTopic;
+      this.body = body;
+    }
+
+    @Override
+    public U body() {
+      return body;
+    }
+
+    @Override
+    public void fail(int failureCode, String msg) {
+      // Failures are not propagated, as in SimpleBus
+    }
+
+    @Override
+    public boolean isLocal() {
+      return local;
+    }
+
+    @Override
+    public void reply(Object msg) {
+      reply(msg, null);
+    }
+
+    @Override
+    public <T> void reply(Object msg, Handler<Message<T>> replyHandler) {
+      if (replyTopic == null) {
+        return;
+      }
+      if (local) {
+        sendLocal(replyTopic, msg, replyHandler);
+      } else {
+        send(replyTopic, msg, replyHandler);
+      }
+    }
+
+    @Override
+    public String replyTopic() {
+      return replyTopic;
+    }
+
+    @Override
+    public String topic() {
+      return topic;
+    }
+
+    @Override
+    public String toString() {
+      return body == null ? null : body.toString();
+    }
+  }
+
+  /**
+   * A reply handler waiting for its reply, failing when its timeout fires.
+   */
+  private class PendingReply implements Runnable {
+    final String replyTopic;
+    final Handler<AsyncResult<Message<Object>>> handler;
+    volatile ScheduledFuture<?> timeout;
+
+    PendingReply(String replyTopic, Handler<AsyncResult<Message<Object>>> handler) {
+      this.replyTopic = replyTopic;
+      this.handler = handler;
+    }
+
+    @Override
+    public void run() {
+      if (replyHandlers.remove(replyTopic, this)) {
+        final AsyncResult<Message<Object>> failure = new FutureResultImpl<Message<Object>>(
+            new ReplyException(ReplyFailure.TIMEOUT, "Timed out waiting for a reply on "
+                + replyTopic));
+        execute(replyTopic, new Runnable() {
+          @Override
+          public void run() {
+            handle(replyTopic, handler, failure);
+          }
+        });
+      }
+    }
+  }
+
+  private final ConcurrentMap<String, Object[]> handlerMap =
+      new ConcurrentHashMap<String, Object[]>();
+  private final Object wildcardLock = new Object();
+  private final Map<String, Object[]> wildcardFilters =
+      new ConcurrentHashMap<String, Object[]>(); // guarded by wildcardLock for writes
+  private volatile TopicTrie wildcardHandlers = new TopicTrie();
+  // Handler<Message> | PendingReply
+  private final ConcurrentMap<String, Object> replyHandlers =
+      new ConcurrentHashMap<String, Object>();
+  private final ExecutorService[] stripes;
+  private final ScheduledExecutorService timer;
+  private volatile BusHook hook;
+  private volatile boolean closed;
+
+  /**
+   * Creates a bus with one stripe per available processor.
+   */
+  public ConcurrentBus() {
+    this(Runtime.getRuntime().availableProcessors());
+  }
+
+  public ConcurrentBus(int stripeCount) {
+    if (stripeCount <= 0) {
+      throw new IllegalArgumentException("stripeCount must be greater than 0: " + stripeCount);
+    }
+    String name = "realtime-bus-" + busCount.incrementAndGet();
+    stripes = new ExecutorService[stripeCount];
+    for (int i = 0; i < stripeCount; i++) {
+      stripes[i] = Executors.newSingleThreadExecutor(threadFactory(name + "-" + i));
+    }
+    timer = Executors.newSingleThreadScheduledExecutor(threadFactory(name + "-timer"));
+  }
+
+  /**
+   * Delivers the messages already published, then stops the delivery threads.
+   */
+  @Override
+  public void close() {
+    BusHook hook = this.hook;
+    if (closed || hook != null && !hook.handlePreClose()) {
+      return;
+    }
+    publishLocal(ON_CLOSE, null);
+    closed = true;
+    for (ExecutorService stripe : stripes) {
+      stripe.shutdown();
+    }
+    timer.shutdownNow();
+    replyHandlers.clear();
+    if (hook != null) {
+      hook.handlePostClose();
+    }
+  }
+
+  @Override
+  public State getReadyState() {
+    return closed ? State.CLOSED : State.OPEN;
+  }
+
+  @Override
+  public String getSessionId() {
+    return "@";
+  }
+
+  @Override
+  public Bus publish(String topic, Object msg) {
+    internalHandleSendOrPub(false, false, topic, msg, null);
+    return this;
+  }
+
+  @Override
+  public Bus publishLocal(String topic, Object msg) {
+    internalHandleSendOrPub(true, false, topic, msg, null);
+    return this;
+  }
+
+  @Override
+  public <T> Bus send(String topic, Object msg, Handler<Message<T>> replyHandler) {
+    internalHandleSendOrPub(false, true, topic, msg, replyHandler);
+    return this;
+  }
+
+  @SuppressWarnings("unchecked")
+  @Override
+  public <T> Bus sendWithTimeout(String topic, Object msg, int timeoutMs,
+                                 final Handler<AsyncResult<Message<T>>> replyHandler) {
+    checkNotNull("replyHandler", replyHandler);
+    BusHook hook = this.hook;
+    if (hook != null && !hook.handleSendOrPub(true, topic, msg, new Handler<Message<T>>() {
+      @Override
+      public void handle(Message<T> message) {
+        replyHandler.handle(new FutureResultImpl<Message<T>>(message));
+      }
+    })) {
+      return this;
+    }
+    checkNotNull("topic", topic);
+    String replyTopic = UUID.randomUUID().toString();
+    PendingReply pending = new PendingReply(replyTopic,
+        (Handler<AsyncResult<Message<Object>>>) (Handler) replyHandler);
+    replyHandlers.put(replyTopic, pending);
+    try {
+      pending.timeout = timer.schedule(pending, timeoutMs, TimeUnit.MILLISECONDS);
+    } catch (RejectedExecutionException e) {
+      // Closed, so the stripes can't deliver the failure either
+      replyHandlers.remove(replyTopic);
+      handle(replyTopic, replyHandler, new FutureResultImpl<Message<T>>(new ReplyException(
+          ReplyFailure.NO_HANDLERS, "Bus is closed, can't send to " + topic)));
+      return this;
+    }
+    if (!deliver(new ConcurrentMessage<Object>(false, topic, replyTopic,
+        PreSerialized.unwrap(msg)))) {
+      replyHandlers.remove(replyTopic);
+      pending.timeout.cancel(false);
+    }
+    return this;
+  }
+
+  @Override
+  public <T> Bus sendLocal(String topic, Object msg, Handler<Message<T>> replyHandler) {
+    internalHandleSendOrPub(true, true, topic, msg, replyHandler);
+    return this;
+  }
+
+  @Override
+  public Bus setHook(BusHook hook) {
+    this.hook = hook;
+    return this;
+  }
+
+  @Override
+  public Registration subscribe(String topic, Handler<? extends Message> handler) {
+    return subscribeImpl(topic, handler);
+  }
+
+  @Override
+  public Registration subscribeLocal(String topic, Handler<? extends Message> handler) {
+    return subscribeImpl(topic, handler);
+  }
+
+  private static void checkNotNull(String paramName, Object param) {
+    if (param == null) {
+      throw new IllegalArgumentException("Parameter " + paramName + " must be specified");
+    }
+  }
+
+  private static ThreadFactory threadFactory(final String name) {
+    return new ThreadFactory() {
+      @Override
+      public Thread newThread(Runnable r) {
+        Thread thread = new Thread(r, name);
+        thread.setDaemon(true);
+        return thread;
+      }
+    };
+  }
+
+  /**
+   * Hands {@code message} to the hook, then to the stripe of its topic.
+   *
+   * @return false if the hook rejected it
+   */
+  private boolean deliver(final Message message) {
+    BusHook hook = this.hook;
+    if (!message.isLocal() && hook != null && !hook.handleReceiveMessage(message)) {
+      return false;
+    }
+    final String topic = message.topic();
+    execute(topic, new Runnable() {
+      @Override
+      public void run() {
+        // Looked up on the stripe, so that a subscription made before publishing is always seen
+        Object[] handlers = wildcardHandlers.match(topic, handlerMap.get(topic));
+        if (handlers == null) {
+          // Might be a reply message
+          Object handler = replyHandlers.remove(topic);
+          if (handler == null) {
+            return;
+          }
+          if (handler instanceof PendingReply) {
+            PendingReply pending = (PendingReply) handler;
+            if (pending.timeout != null) {
+              pending.timeout.cancel(false);
+            }
+            handle(topic, pending.handler, new FutureResultImpl<Message>(message));
+            return;
+          }
+          handlers = new Object[] {handler};
+        }
+        for (Object handler : handlers) {
+          handle(topic, handler, message);
+        }
+      }
+    });
+    return true;
+  }
+
+  private void execute(String topic, Runnable task) {
+    ExecutorService stripe = stripes[(topic.hashCode() & Integer.MAX_VALUE) % stripes.length];
+    try {
+      stripe.execute(task);
+    } catch (RejectedExecutionException e) {
+      log.log(Level.FINE, "Dropped message on " + topic + " after close");
+    }
+  }
+
+  @SuppressWarnings("unchecked")
+  private void handle(String topic, Object handler, Object message) {
+    try {
+      ((Handler) handler).handle(message);
+    } catch (Throwable e) {
+      log.log(Level.WARNING, "Failed to handle on topic: " + topic, e);
+      if (!ON_ERROR.equals(topic)) {
+        publishLocal(ON_ERROR, Json.createObject().set("topic", topic).set("message", message)
+            .set("cause", e));
+      }
+    }
+  }
+
+  private <T> void internalHandleSendOrPub(boolean local, boolean send, String topic, Object msg,
+      Handler<Message<T>> replyHandler) {
+    BusHook hook = this.hook;
+    if (!local && hook != null && !hook.handleSendOrPub(send, topic, msg, replyHandler)) {
+      return;
+    }
+    checkNotNull("topic", topic);
+    String replyTopic = null;
+    if (replyHandler != null) {
+      replyTopic = UUID.randomUUID().toString();
+      replyHandlers.put(replyTopic, replyHandler);
+    }
+    if (!deliver(new ConcurrentMessage<Object>(local, topic, replyTopic,
+        PreSerialized.unwrap(msg))) && replyTopic != null) {
+      replyHandlers.remove(replyTopic);
+    }
+  }
+
+  private void rebuildWildcardHandlers() {
+    TopicTrie trie = new TopicTrie();
+    for (Map.Entry<String, Object[]> entry : wildcardFilters.entrySet()) {
+      for (Object handler : entry.getValue()) {
+        trie.add(entry.getKey(), handler);
+      }
+    }
+    wildcardHandlers = trie;
+  }
+
+  private Registration subscribeImpl(final String topic, final Handler<? extends Message> handler) {
+    checkNotNull("topic", topic);
+    checkNotNull("handler", handler);
+    if (TopicTrie.isWildcard(topic)) {
+      synchronized (wildcardLock) {
+        Object[] handlers = wildcardFilters.get(topic);
+        Object[] updated = Snapshots.add(handlers, handler);
+        if (updated != handlers) {
+          wildcardFilters.put(topic, updated);
+          rebuildWildcardHandlers();
+        }
+      }
+    } else {
+      while (true) {
+        Object[] handlers = handlerMap.get(topic);
+        Object[] updated = Snapshots.add(handlers, handler);
+        if (updated == handlers || (handlers == null
+            ? handlerMap.putIfAbsent(topic, updated) == null
+            : handlerMap.replace(topic, handlers, updated))) {
+          break;
+        }
+      }
+    }
+    return new Registration() {
+      @Override
+      public void unregister() {
+        unsubscribe(topic, handler);
+      }
+    };
+  }
+
+  private void unsubscribe(String topic, Handler<? extends Message> handler) {
+    if (TopicTrie.isWildcard(topic)) {
+      synchronized (wildcardLock) {
+        Object[] handlers = wildcardFilters.get(topic);
+        Object[] updated = Snapshots.remove(handlers, handler);
+        if (updated != handlers) {
+          if (updated == null) {
+            wildcardFilters.remove(topic);
+          } else {
+            wildcardFilters.put(topic, updated);
+          }
+          rebuildWildcardHandlers();
+        }
+      }
+    } else {
+      while (true) {
+        Object[] handlers = handlerMap.get(topic);
+        Object[] updated = Snapshots.remove(handlers, handler);
+        if (updated == handlers) {
+          break;
+        }
+        if (updated == null ? handlerMap.remove(topic, handlers)
+            : handlerMap.replace(topic, handlers, updated)) {
+          break;
+        }
+      }
+    }
+  }
+}
@@ -0,0 +1,186 @@
+/*
+ * Copyright 2014 Goodow.com
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License
+ * is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package com.goodow.realtime.java;
+
+import com.goodow.realtime.core.Storage;
+import com.goodow.realtime.json.Json;
+import com.goodow.realtime.json.JsonArray;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileNotFoundException;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.RandomAccessFile;
+import java.nio.charset.Charset;
+
+/**
+ * A {@link Storage} appending one UTF-8 line per record to a file. Each record is handed to the
+ * operating system as soon as it is appended, so it survives a crash of the process; pass
+ * {@code sync} to also force it to the disk.
+ */
+public class FileStorage implements Storage {
+  private static final Charset UTF_8 = Charset.forName("UTF-8");
+
+  private static void checkRecord(String record) {
+    if (record.indexOf('\n') != -1 || record.indexOf('\r') != -1) {
+      throw new IllegalArgumentException("Records must not contain line breaks");
+    }
+  }
+
+  private static byte[] readFully(InputStream in) throws IOException {
+    try {
+      ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+      byte[] buffer = new byte[8192];
+      int read;
+      while ((read = in.read(buffer)) != -1) {
+        bytes.write(buffer, 0, read);
+      }
+      return bytes.toByteArray();
+    } finally {
+      in.close();
+    }
+  }
+
+  private final File file;
+  private final boolean sync;
+  private FileOutputStream out;
+
+  public FileStorage(File file) {
+    this(file, false);
+  }
+
+  /**
+   * @param sync whether every append waits for the record to be written to the disk
+   */
+  public FileStorage(File file, boolean sync) {
+    this.file = file;
+    this.sync = sync;
+  }
+
+  @Override
+  public synchronized void append(String record) {
+    checkRecord(record);
+    write(record + "\n");
+  }
+
+  @Override
+  public synchronized void appendAll(JsonArray records) {
+    int len = records.length();
+    if (len == 0) {
+      return;
+    }
+    StringBuilder lines = new StringBuilder();
+    for (int i = 0; i < len; i++) {
+      String record = records.getString(i);
+      checkRecord(record);
+      lines.append(record).append('\n');
+    }
+    write(lines.toString());
+  }
+
+  @Override
+  public synchronized void clear() {
+    close();
+    try {
+      new FileOutputStream(file, false).close();
+    } catch (IOException e) {
+      throw new RuntimeException("Failed to clear " + file, e);
+    }
+  }
+
+  /**
+   * Releases the file handle. The storage may still be used afterwards.
+   */
+  public synchronized void close() {
+    if (out == null) {
+      return;
+    }
+    try {
+      out.close();
+    } catch (IOException e) {
+      throw new RuntimeException("Failed to close " + file, e);
+    } finally {
+      out = null;
+    }
+  }
+
+  @Override
+  public synchronized JsonArray readAll() {
+    JsonArray records = Json.createArray();
+    byte[] bytes;
+    try {
+      bytes = readFully(new FileInputStream(file));
+    } catch (FileNotFoundException e) {
+      return records;
+    } catch (IOException e) {
+      throw new RuntimeException("Failed to read " + file, e);
+    }
+    int start = 0;
+    for (int i = 0; i < bytes.length; i++) {
+      if (bytes[i] == '\n') {
+        records.push(new String(bytes, start, i - start, UTF_8));
+        start = i + 1;
+      }
+    }
+    // Anything after the last line break is a torn append
+    return records;
+  }
+
+  /**
+   * Writes {@code lines} with a single system call, and a single sync if asked to.
+   */
+  private void write(String lines) {
+    try {
+      if (out == null) {
+        truncateTornAppend();
+        out = new FileOutputStream(file, true);
+      }
+      out.write(lines.getBytes(UTF_8));
+      if (sync) {
+        out.getFD().sync();
+      }
+    } catch (IOException e) {
+      throw new RuntimeException("Failed to append to " + file, e);
+    }
+  }
+
+  /**
+   * Cuts off a record whose append was interrupted, so that the next record starts a new line.
+   */
+  private void truncateTornAppend() throws IOException {
+    if (!file.exists()) {
+      return;
+    }
+    RandomAccessFile raf = new RandomAccessFile(file, "rw");
+    try {
+      long length = raf.length();
+      long end = length;
+      while (end > 0) {
+        raf.seek(end - 1);
+        if (raf.read() == '\n') {
+          break;
+        }
+        end--;
+      }
+      if (end != length) {
+        raf.setLength(end);
+      }
+    } finally {
+      raf.close();
+    }
+  }
+}
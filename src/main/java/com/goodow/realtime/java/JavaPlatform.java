@@ -0,0 +1,107 @@
+/*
+ * Copyright 2014 Goodow.com
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License
+ * is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package com.goodow.realtime.java;
+
+import com.goodow.realtime.channel.server.impl.JavaDiff;
+import com.goodow.realtime.core.Diff;
+import com.goodow.realtime.core.Net;
+import com.goodow.realtime.core.Platform;
+import com.goodow.realtime.core.Platform.Type;
+import com.goodow.realtime.core.PlatformFactory;
+import com.goodow.realtime.core.Scheduler;
+import com.goodow.realtime.core.WebSocket;
+import com.goodow.realtime.json.JsonObject;
+
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * A platform for plain Java processes, which runs buses on a {@link JavaScheduler} event loop and
+ * connects them with {@link JavaWebSocket}s, without Vert.x.<p>
+ * Each WebSocket blocks a thread to read from its connection. Virtual threads are used for them
+ * when the JDK has them, so that a load test may open many thousand connections.
+ */
+public class JavaPlatform implements PlatformFactory {
+  private static final Logger log = Logger.getLogger(JavaPlatform.class.getName());
+
+  /**
+   * Registers the Java platform with a default configuration.
+   */
+  public static void register() {
+    Platform.setFactory(new JavaPlatform(new JavaScheduler()));
+  }
+
+  /**
+   * Returns a factory of virtual threads if the JDK supports them, or of daemon threads otherwise.
+   */
+  static ThreadFactory readerThreadFactory() {
+    try {
+      // Thread.ofVirtual().name("realtime-websocket-", 0).factory(), on JDK 21 and later
+      Class<?> builderClass = Class.forName("java.lang.Thread$Builder");
+      Object builder = Thread.class.getMethod("ofVirtual").invoke(null);
+      builder = builderClass.getMethod("name", String.class, long.class).invoke(builder,
+          "realtime-websocket-", 0L);
+      return (ThreadFactory) builderClass.getMethod("factory").invoke(builder);
+    } catch (Exception e) {
+      log.log(Level.FINE, "Virtual threads are not available", e);
+    }
+    final AtomicInteger count = new AtomicInteger();
+    return new ThreadFactory() {
+      @Override
+      public Thread newThread(Runnable r) {
+        Thread thread = new Thread(r, "realtime-websocket-" + count.getAndIncrement());
+        thread.setDaemon(true);
+        return thread;
+      }
+    };
+  }
+
+  protected final JavaScheduler scheduler;
+  protected final Net net;
+  private final JavaDiff diff;
+
+  public JavaPlatform(final JavaScheduler scheduler) {
+    this.scheduler = scheduler;
+    final ThreadFactory readers = readerThreadFactory();
+    net = new Net() {
+      @Override
+      public WebSocket createWebSocket(String url, JsonObject options) {
+        return new JavaWebSocket(url, scheduler, readers);
+      }
+    };
+    diff = new JavaDiff();
+  }
+
+  @Override
+  public Diff diff() {
+    return diff;
+  }
+
+  @Override
+  public Net net() {
+    return net;
+  }
+
+  @Override
+  public Scheduler scheduler() {
+    return scheduler;
+  }
+
+  @Override
+  public Type type() {
+    return Type.JAVA;
+  }
+}
@@ -0,0 +1,233 @@
+/*
+ * Copyright 2014 Goodow.com
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License
+ * is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package com.goodow.realtime.java;
+
+import com.goodow.realtime.core.Handler;
+import com.goodow.realtime.core.Scheduler;
+import com.goodow.realtime.core.TimerWheel;
+
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * A {@link Scheduler} running every handler on a single event loop thread, like the browser and
+ * Vert.x schedulers, so that buses need no synchronization.<p>
+ * Timers are kept in a {@link TimerWheel} which the loop ticks itself while any timer is pending,
+ * so there is no timer thread. Handlers may be scheduled and timers cancelled from any thread.
+ */
+public class JavaScheduler implements Scheduler {
+  private static final Logger log = Logger.getLogger(JavaScheduler.class.getName());
+  private static final int DEFAULT_TICK_MS = 10;
+  private static final int WHEEL_SIZE = 512;
+
+  /**
+   * A wheel ticked by the loop instead of a platform timer.
+   */
+  private class LoopTimerWheel extends TimerWheel {
+    LoopTimerWheel(int tickMs) {
+      super(tickMs, WHEEL_SIZE);
+    }
+
+    @Override
+    protected void startTicking() {
+      nextTickNanos = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(getTickMs());
+      wheelTicking = true;
+    }
+
+    @Override
+    protected void stopTicking() {
+      wheelTicking = false;
+    }
+  }
+
+  private class Timer implements Handler<Void> {
+    final int id;
+    final int delayMs;
+    final boolean periodic;
+    final Handler<Void> handler;
+    TimerWheel.Timeout timeout;
+
+    Timer(int id, int delayMs, boolean periodic, Handler<Void> handler) {
+      this.id = id;
+      this.delayMs = delayMs;
+      this.periodic = periodic;
+      this.handler = handler;
+    }
+
+    @Override
+    public void handle(Void ignore) {
+      if (timers.get(id) != this) {
+        return;
+      }
+      if (periodic) {
+        timeout = wheel.scheduleAfterLastTick(delayMs, this);
+      } else {
+        timers.remove(id);
+      }
+      handler.handle(null);
+    }
+  }
+
+  private final BlockingQueue<Runnable> tasks = new LinkedBlockingQueue<Runnable>();
+  private final ConcurrentMap<Integer, Timer> timers = new ConcurrentHashMap<Integer, Timer>();
+  private final AtomicInteger timerIds = new AtomicInteger();
+  private final TimerWheel wheel;
+  private final long tickNanos;
+  private final Thread loop;
+  private volatile boolean running = true;
+  private boolean wheelTicking;
+  private long nextTickNanos;
+
+  public JavaScheduler() {
+    this(DEFAULT_TICK_MS);
+  }
+
+  /**
+   * @param tickMs the precision of timers in milliseconds
+   */
+  public JavaScheduler(int tickMs) {
+    wheel = new LoopTimerWheel(tickMs);
+    tickNanos = TimeUnit.MILLISECONDS.toNanos(tickMs);
+    loop = new Thread(new Runnable() {
+      @Override
+      public void run() {
+        runLoop();
+      }
+    }, "realtime-event-loop");
+    loop.setDaemon(true);
+    loop.start();
+  }
+
+  @Override
+  public boolean cancelTimer(int id) {
+    final Timer timer = timers.remove(id);
+    if (timer == null) {
+      return false;
+    }
+    execute(new Runnable() {
+      @Override
+      public void run() {
+        if (timer.timeout != null) {
+          timer.timeout.cancel();
+        }
+      }
+    });
+    return true;
+  }
+
+  /**
+   * Runs {@code task} on the event loop.
+   */
+  public void execute(Runnable task) {
+    tasks.add(task);
+  }
+
+  @SuppressWarnings("unchecked")
+  @Override
+  public void handle(Object handler, Object event) {
+    ((Handler<Object>) handler).handle(event);
+  }
+
+  /**
+   * Returns whether the calling thread is the event loop.
+   */
+  public boolean isEventLoop() {
+    return Thread.currentThread() == loop;
+  }
+
+  @Override
+  public void scheduleDeferred(final Handler<Void> handler) {
+    execute(new Runnable() {
+      @Override
+      public void run() {
+        handler.handle(null);
+      }
+    });
+  }
+
+  @Override
+  public int scheduleDelay(int delayMs, Handler<Void> handler) {
+    return schedule(delayMs, false, handler);
+  }
+
+  @Override
+  public int schedulePeriodic(int delayMs, Handler<Void> handler) {
+    return schedule(delayMs, true, handler);
+  }
+
+  /**
+   * Stops the event loop once the handlers already scheduled have run. Pending timers never fire.
+   */
+  public void shutdown() {
+    execute(new Runnable() {
+      @Override
+      public void run() {
+        running = false;
+      }
+    });
+  }
+
+  private void runLoop() {
+    while (running) {
+      Runnable task;
+      try {
+        if (wheelTicking) {
+          long waitNanos = nextTickNanos - System.nanoTime();
+          task = waitNanos > 0 ? tasks.poll(waitNanos, TimeUnit.NANOSECONDS) : tasks.poll();
+        } else {
+          task = tasks.take();
+        }
+      } catch (InterruptedException e) {
+        break;
+      }
+      if (task != null) {
+        try {
+          task.run();
+        } catch (Throwable e) {
+          log.log(Level.WARNING, "Failed to run task on the event loop", e);
+        }
+      }
+      while (wheelTicking && System.nanoTime() - nextTickNanos >= 0) {
+        nextTickNanos += tickNanos;
+        wheel.tick();
+      }
+    }
+    timers.clear();
+  }
+
+  private int schedule(int delayMs, boolean periodic, Handler<Void> handler) {
+    final Timer timer = new Timer(timerIds.incrementAndGet(), delayMs, periodic, handler);
+    timers.put(timer.id, timer);
+    Runnable start = new Runnable() {
+      @Override
+      public void run() {
+        if (timers.get(timer.id) == timer) {
+          timer.timeout = wheel.schedule(timer.delayMs, timer);
+        }
+      }
+    };
+    if (isEventLoop()) {
+      start.run();
+    } else {
+      execute(start);
+    }
+    return timer.id;
+  }
+}
@@ -0,0 +1,381 @@
+/*
+ * Copyright 2014 Goodow.com
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License
+ * is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package com.goodow.realtime.java;
+
+import com.goodow.realtime.channel.State;
+import com.goodow.realtime.core.BinaryWebSocket;
+import com.goodow.realtime.json.Json;
+import com.goodow.realtime.json.JsonObject;
+
+import java.io.BufferedInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.net.Socket;
+import java.net.URI;
+import java.nio.charset.Charset;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.security.SecureRandom;
+import java.util.concurrent.ThreadFactory;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+import javax.net.ssl.SSLSocketFactory;
+
+/**
+ * A RFC 6455 WebSocket client written against the JDK alone.<p>
+ * Each socket is read by its own thread, created by the given {@link ThreadFactory}, while the
+ * handler is always called on the event loop of the {@link JavaScheduler}. Frames are written
+ * synchronously by the sending thread.
+ */
+class JavaWebSocket implements BinaryWebSocket {
+  private static final Logger log = Logger.getLogger(JavaWebSocket.class.getName());
+  private static final Charset UTF_8 = Charset.forName("UTF-8");
+  private static final Charset ASCII = Charset.forName("US-ASCII");
+  private static final String ACCEPT_GUID = "258EAFA5-E914-47DA-95CA-C5AB0DC85B11";
+  private static final char[] BASE64 =
+      "ABCDEFGHIJKLMNOPQRSTUVWXYZabcdefghijklmnopqrstuvwxyz0123456789+/".toCharArray();
+  private static final int CONNECT_TIMEOUT_MS = 10 * 1000;
+  private static final int MAX_MESSAGE_SIZE = 64 * 1024 * 1024;
+  private static final int OP_CONTINUATION = 0x0;
+  private static final int OP_TEXT = 0x1;
+  private static final int OP_BINARY = 0x2;
+  private static final int OP_CLOSE = 0x8;
+  private static final int OP_PING = 0x9;
+  private static final int OP_PONG = 0xA;
+  private static final SecureRandom random = new SecureRandom();
+
+  static String base64(byte[] data) {
+    StringBuilder sb = new StringBuilder((data.length + 2) / 3 * 4);
+    for (int i = 0; i < data.length; i += 3) {
+      int b = (data[i] & 0xFF) << 16;
+      if (i + 1 < data.length) {
+        b |= (data[i + 1] & 0xFF) << 8;
+      }
+      if (i + 2 < data.length) {
+        b |= data[i + 2] & 0xFF;
+      }
+      sb.append(BASE64[b >> 18 & 0x3F]).append(BASE64[b >> 12 & 0x3F]);
+      sb.append(i + 1 < data.length ? BASE64[b >> 6 & 0x3F] : '=');
+      sb.append(i + 2 < data.length ? BASE64[b & 0x3F] : '=');
+    }
+    return sb.toString();
+  }
+
+  /**
+   * Returns the {@code Sec-WebSocket-Accept} value the server must answer to {@code key}.
+   */
+  static String acceptKey(String key) {
+    try {
+      MessageDigest sha1 = MessageDigest.getInstance("SHA-1");
+      return base64(sha1.digest((key + ACCEPT_GUID).getBytes(ASCII)));
+    } catch (NoSuchAlgorithmException e) {
+      throw new RuntimeException(e);
+    }
+  }
+
+  private static String readLine(InputStream in) throws IOException {
+    StringBuilder sb = new StringBuilder();
+    int c;
+    while ((c = in.read()) != '\n') {
+      if (c == -1) {
+        throw new EOFException("Connection closed during the handshake");
+      }
+      if (c != '\r') {
+        sb.append((char) c);
+      }
+    }
+    return sb.toString();
+  }
+
+  private final URI uri;
+  private final JavaScheduler scheduler;
+  private volatile State state = State.CONNECTING;
+  private volatile WebSocketHandler eventHandler;
+  private Socket socket;
+  private OutputStream out;
+
+  JavaWebSocket(String url, JavaScheduler scheduler, ThreadFactory readers) {
+    this.uri = URI.create(url);
+    this.scheduler = scheduler;
+    readers.newThread(new Runnable() {
+      @Override
+      public void run() {
+        connectAndRead();
+      }
+    }).start();
+  }
+
+  @Override
+  public void close() {
+    if (state == State.CLOSING || state == State.CLOSED) {
+      return;
+    }
+    boolean open = state == State.OPEN;
+    state = State.CLOSING;
+    if (!open) {
+      return; // The reader closes the socket once connected
+    }
+    try {
+      writeFrame(OP_CLOSE, new byte[] {0x03, (byte) 0xE8}); // 1000: normal closure
+    } catch (IOException e) {
+      closeSocket();
+    }
+  }
+
+  @Override
+  public State getReadyState() {
+    return state;
+  }
+
+  @Override
+  public void send(String data) {
+    sendFrame(OP_TEXT, data.getBytes(UTF_8));
+  }
+
+  @Override
+  public void sendBinary(byte[] data) {
+    sendFrame(OP_BINARY, data);
+  }
+
+  @Override
+  public void setListen(WebSocketHandler handler) {
+    this.eventHandler = handler;
+  }
+
+  private synchronized void closeSocket() {
+    if (socket != null) {
+      try {
+        socket.close();
+      } catch (IOException e) {
+        // Ignored
+      }
+    }
+  }
+
+  private void connectAndRead() {
+    int code = 1006; // Abnormal closure
+    String reason = "";
+    try {
+      DataInputStream in = connect();
+      if (state == State.CLOSING) {
+        return;
+      }
+      state = State.OPEN;
+      fire(new Runnable() {
+        @Override
+        public void run() {
+          eventHandler.onOpen();
+        }
+      });
+      ByteArrayOutputStream message = new ByteArrayOutputStream();
+      int messageOpcode = -1;
+      while (true) {
+        int b0 = in.readUnsignedByte();
+        int b1 = in.readUnsignedByte();
+        boolean fin = (b0 & 0x80) != 0;
+        int opcode = b0 & 0x0F;
+        long length = b1 & 0x7F;
+        if (length == 126) {
+          length = in.readUnsignedShort();
+        } else if (length == 127) {
+          length = in.readLong();
+        }
+        if (length < 0 || message.size() + length > MAX_MESSAGE_SIZE) {
+          throw new IOException("Message too large: " + length);
+        }
+        byte[] mask = null;
+        if ((b1 & 0x80) != 0) {
+          mask = new byte[4];
+          in.readFully(mask);
+        }
+        byte[] payload = new byte[(int) length];
+        in.readFully(payload);
+        if (mask != null) {
+          for (int i = 0; i < payload.length; i++) {
+            payload[i] ^= mask[i & 3];
+          }
+        }
+        switch (opcode) {
+          case OP_PING:
+            writeFrame(OP_PONG, payload);
+            continue;
+          case OP_PONG:
+            continue;
+          case OP_CLOSE:
+            code = payload.length >= 2 ? (payload[0] & 0xFF) << 8 | payload[1] & 0xFF : 1005;
+            reason = payload.length > 2 ? new String(payload, 2, payload.length - 2, UTF_8) : "";
+            if (state == State.OPEN) {
+              state = State.CLOSING;
+              writeFrame(OP_CLOSE, payload.length >= 2 ? new byte[] {payload[0], payload[1]}
+                  : new byte[0]);
+            }
+            return;
+          case OP_TEXT:
+          case OP_BINARY:
+            messageOpcode = opcode;
+            message.reset();
+            break;
+          case OP_CONTINUATION:
+            break;
+          default:
+            throw new IOException("Unknown opcode: " + opcode);
+        }
+        message.write(payload);
+        if (!fin) {
+          continue;
+        }
+        if (messageOpcode == OP_TEXT) {
+          final String text = new String(message.toByteArray(), UTF_8);
+          fire(new Runnable() {
+            @Override
+            public void run() {
+              eventHandler.onMessage(text);
+            }
+          });
+        } else {
+          log.log(Level.FINE, "Ignored binary message of " + message.size() + " bytes");
+        }
+        message.reset();
+      }
+    } catch (final IOException e) {
+      if (state != State.CLOSING) {
+        log.log(Level.WARNING, "WebSocket to " + uri + " failed", e);
+        fire(new Runnable() {
+          @Override
+          public void run() {
+            String message = e.getMessage();
+            eventHandler.onError(message == null ? e.getClass().getSimpleName() : message);
+          }
+        });
+      }
+    } finally {
+      closeSocket();
+      state = State.CLOSED;
+      final JsonObject closeReason = Json.createObject().set("code", code).set("reason", reason);
+      fire(new Runnable() {
+        @Override
+        public void run() {
+          eventHandler.onClose(closeReason);
+        }
+      });
+    }
+  }
+
+  /**
+   * Opens the connection and performs the opening handshake.
+   */
+  private DataInputStream connect() throws IOException {
+    boolean secure = "wss".equals(uri.getScheme()) || "https".equals(uri.getScheme());
+    int port = uri.getPort() != -1 ? uri.getPort() : secure ? 443 : 80;
+    Socket s = secure ? SSLSocketFactory.getDefault().createSocket() : new Socket();
+    synchronized (this) {
+      socket = s;
+    }
+    s.setTcpNoDelay(true);
+    s.connect(new InetSocketAddress(uri.getHost(), port), CONNECT_TIMEOUT_MS);
+    InputStream in = new BufferedInputStream(s.getInputStream());
+    byte[] nonce = new byte[16];
+    random.nextBytes(nonce);
+    String key = base64(nonce);
+    String path = uri.getRawPath() == null || uri.getRawPath().isEmpty() ? "/" : uri.getRawPath();
+    if (uri.getRawQuery() != null) {
+      path += "?" + uri.getRawQuery();
+    }
+    String request = "GET " + path + " HTTP/1.1\r\n"
+        + "Host: " + uri.getHost() + (uri.getPort() == -1 ? "" : ":" + uri.getPort()) + "\r\n"
+        + "Upgrade: websocket\r\n"
+        + "Connection: Upgrade\r\n"
+        + "Sec-WebSocket-Key: " + key + "\r\n"
+        + "Sec-WebSocket-Version: 13\r\n\r\n";
+    synchronized (this) {
+      out = s.getOutputStream();
+      out.write(request.getBytes(ASCII));
+      out.flush();
+    }
+
+    String status = readLine(in);
+    if (!status.startsWith("HTTP/1.1 101")) {
+      throw new IOException("Unexpected handshake response: " + status);
+    }
+    String accept = null;
+    for (String line = readLine(in); !line.isEmpty(); line = readLine(in)) {
+      int colon = line.indexOf(':');
+      if (colon != -1 && line.substring(0, colon).trim().equalsIgnoreCase("Sec-WebSocket-Accept")) {
+        accept = line.substring(colon + 1).trim();
+      }
+    }
+    if (!acceptKey(key).equals(accept)) {
+      throw new IOException("Invalid Sec-WebSocket-Accept: " + accept);
+    }
+    return new DataInputStream(in);
+  }
+
+  private void fire(Runnable event) {
+    if (eventHandler != null) {
+      scheduler.execute(event);
+    }
+  }
+
+  private void sendFrame(int opcode, byte[] payload) {
+    if (state != State.OPEN) {
+      log.warning("WebSocket is not open");
+      return;
+    }
+    try {
+      writeFrame(opcode, payload);
+    } catch (IOException e) {
+      log.log(Level.WARNING, "Failed to write to " + uri, e);
+      closeSocket(); // The reader reports the failure
+    }
+  }
+
+  /**
+   * Writes a single masked frame, as required of clients.
+   */
+  private synchronized void writeFrame(int opcode, byte[] payload) throws IOException {
+    int length = payload.length;
+    byte[] frame = new byte[2 + (length < 126 ? 0 : length <= 0xFFFF ? 2 : 8) + 4 + length];
+    int pos = 0;
+    frame[pos++] = (byte) (0x80 | opcode);
+    if (length < 126) {
+      frame[pos++] = (byte) (0x80 | length);
+    } else if (length <= 0xFFFF) {
+      frame[pos++] = (byte) (0x80 | 126);
+      frame[pos++] = (byte) (length >> 8);
+      frame[pos++] = (byte) length;
+    } else {
+      frame[pos++] = (byte) (0x80 | 127);
+      pos += 4; // The high 32 bits are 0
+      frame[pos++] = (byte) (length >> 24);
+      frame[pos++] = (byte) (length >> 16);
+      frame[pos++] = (byte) (length >> 8);
+      frame[pos++] = (byte) length;
+    }
+    byte[] mask = new byte[4];
+    random.nextBytes(mask);
+    System.arraycopy(mask, 0, frame, pos, 4);
+    pos += 4;
+    for (int i = 0; i < length; i++) {
+      frame[pos + i] = (byte) (payload[i] ^ mask[i & 3]);
+    }
+    out.write(frame);
+    out.flush();
+  }
+}
@@ -14,16 +14,24 @@
 package com.goodow.realtime.objc;
 
 import com.goodow.realtime.core.Handler;
-import com.goodow.realtime.core.Scheduler;
-import com.goodow.realtime.json.Json;
-import com.goodow.realtime.json.JsonObject;
+import com.goodow.realtime.core.impl.TimerWheelScheduler;
 
-import java.util.concurrent.atomic.AtomicInteger;
+import java.util.HashMap;
+import java.util.Map;
 
 /*-[
  #import "GDChannel.h"
  ]-*/
-class ObjCScheduler implements Scheduler {
+/**
+ * Multiplexes all timers onto a single {@code NSTimer} on the main run loop, see
+ * {@link TimerWheelScheduler}. The wheel is only touched on the main thread: timers scheduled or
+ * cancelled from another thread are handed to the main queue without waiting for it, so that a
+ * main thread waiting on the caller can't deadlock. Timer ids are therefore allocated on the
+ * calling thread, under a lock, rather than by the wheel.
+ */
+class ObjCScheduler extends TimerWheelScheduler {
+  private static final int TICK_MS = 10;
+
   // @formatter:off
   private static native void nativeCancelTimer(Object timer) /*-[
     [(NSTimer *)timer invalidate];
@@ -34,29 +42,117 @@ class ObjCScheduler implements Scheduler {
     block(event);
   ]-*/;
 
+  private static native boolean nativeIsMainThread() /*-[
+    return [NSThread isMainThread];
+  ]-*/;
+
+  private static native void nativeRunOnMainThread(Handler<Void> handler) /*-[
+    dispatch_async(dispatch_get_main_queue(), ^{
+      [handler handleWithId:nil];
+    });
+  ]-*/;
+
   private static native Object nativeScheduleTimer(int delayMs, boolean repeat,
                                                    Handler<Void> handler) /*-[
-    return
-    [NSTimer scheduledTimerWithTimeInterval:delayMs/1000 
-                                     target:handler
-                                   selector:@selector(handleWithId:)
-                                   userInfo:nil
-                                    repeats:repeat];
+    NSTimer *timer = [NSTimer timerWithTimeInterval:delayMs/1000.0
+                                             target:handler
+                                           selector:@selector(handleWithId:)
+                                           userInfo:nil
+                                            repeats:repeat];
+    [[NSRunLoop mainRunLoop] addTimer:timer forMode:NSDefaultRunLoopMode];
+    return timer;
   ]-*/;
   // @formatter:on
 
-  private final AtomicInteger timerId = new AtomicInteger(0);
-  private final JsonObject timers = Json.createObject();
+  /**
+   * A timer known by the id returned to the caller, which is live as long as it is in
+   * {@link #timers}.
+   */
+  private class Timer implements Handler<Void> {
+    final int delayMs;
+    final boolean periodic;
+    final Handler<Void> handler;
+    int id;
+    int wheelId = -1; // Only touched on the main thread
+
+    Timer(int delayMs, boolean periodic, Handler<Void> handler) {
+      this.delayMs = delayMs;
+      this.periodic = periodic;
+      this.handler = handler;
+    }
+
+    @Override
+    public void handle(Void ignore) {
+      synchronized (lock) {
+        if (timers.get(id) != this) {
+          return;
+        }
+        if (!periodic) {
+          timers.remove(id);
+        }
+      }
+      handler.handle(null);
+    }
+
+    /**
+     * Puts the timer in the wheel, on the main thread, unless it was cancelled in the meantime.
+     */
+    void start() {
+      synchronized (lock) {
+        if (timers.get(id) != this) {
+          return;
+        }
+      }
+      wheelId = scheduleOnMainThread(delayMs, periodic, this);
+    }
+
+    /**
+     * Takes the timer out of the wheel, on the main thread. Started timers are always started
+     * first, as both run on the main queue in order.
+     */
+    void stop() {
+      if (wheelId != -1) {
+        cancelTimerOnMainThread(wheelId);
+      }
+    }
+  }
+
+  private final Handler<Void> onNativeTimer = new Handler<Void>() {
+    @Override
+    public void handle(Void event) {
+      nativeTimer = null;
+      onNativeTimer();
+    }
+  };
+  private Object nativeTimer;
+  private final Object lock = new Object();
+  private final Map<Integer, Timer> timers = new HashMap<Integer, Timer>(); // guarded by lock
+  private int lastId; // guarded by lock
+
+  ObjCScheduler() {
+    super(TICK_MS);
+  }
 
   @Override
   public boolean cancelTimer(int id) {
-    String key = "" + id;
-    if (timers.has(key)) {
-      nativeCancelTimer(timers.get(key));
-      timers.remove(key);
-      return true;
+    final Timer timer;
+    synchronized (lock) {
+      timer = timers.remove(id);
     }
-    return false;
+    if (timer == null) {
+      return false;
+    }
+    if (nativeIsMainThread()) {
+      timer.stop();
+    } else {
+      nativeRunOnMainThread(new Handler<Void>() {
+        @Override
+        public void handle(Void event) {
+          timer.stop();
+        }
+      });
+    }
+    return true;
   }
 
   @SuppressWarnings("unchecked")
@@ -81,16 +177,56 @@ class ObjCScheduler implements Scheduler {
   // @formatter:on
 
   @Override
-  public int scheduleDelay(int delayMs, final Handler<Void> handler) {
-    final int id = timerId.getAndIncrement();
-    timers.set("" + id, nativeScheduleTimer(delayMs, false, handler));
-    return id;
+  public int scheduleDelay(int delayMs, Handler<Void> handler) {
+    return schedule(delayMs, false, handler);
   }
 
   @Override
   public int schedulePeriodic(int delayMs, Handler<Void> handler) {
-    final int id = timerId.getAndIncrement();
-    timers.set("" + id, nativeScheduleTimer(delayMs, true, handler));
-    return id;
+    return schedule(delayMs, true, handler);
+  }
+
+  @Override
+  protected void cancelNativeTimer() {
+    if (nativeTimer != null) {
+      nativeCancelTimer(nativeTimer);
+      nativeTimer = null;
+    }
+  }
+
+  @Override
+  protected void startNativeTimer(int delayMs) {
+    nativeTimer = nativeScheduleTimer(delayMs, false, onNativeTimer);
+  }
+
+  private int schedule(int delayMs, boolean periodic, Handler<Void> handler) {
+    final Timer timer = new Timer(delayMs, periodic, handler);
+    synchronized (lock) {
+      do {
+        lastId = lastId == Integer.MAX_VALUE ? 1 : lastId + 1;
+      } while (timers.containsKey(lastId));
+      timer.id = lastId;
+      timers.put(timer.id, timer);
+    }
+    if (nativeIsMainThread()) {
+      timer.start();
+    } else {
+      nativeRunOnMainThread(new Handler<Void>() {
+        @Override
+        public void handle(Void event) {
+          timer.start();
+        }
+      });
+    }
+    return timer.id;
+  }
+
+  private boolean cancelTimerOnMainThread(int wheelId) {
+    return super.cancelTimer(wheelId);
+  }
+
+  private int scheduleOnMainThread(int delayMs, boolean periodic, Handler<Void> handler) {
+    return periodic ? super.schedulePeriodic(delayMs, handler) : super.scheduleDelay(delayMs,
+        handler);
   }
-}
\ No newline at end of file
+}
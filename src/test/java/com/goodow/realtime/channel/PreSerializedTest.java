@@ -0,0 +1,62 @@
+/*
+ * Copyright 2014 Goodow.com
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ * 
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software distributed under the License
+ * is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package com.goodow.realtime.channel;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertSame;
+
+import com.goodow.realtime.json.Json;
+import com.goodow.realtime.json.JsonArray;
+import com.goodow.realtime.json.JsonObject;
+
+import org.junit.Test;
+
+public class PreSerializedTest {
+  @Test
+  public void testSerializedOnce() {
+    JsonObject body = Json.createObject().set("k", "v");
+    PreSerialized msg = new PreSerialized(body);
+    String json = msg.toJsonString();
+    assertEquals("v", Json.<JsonObject> parse(json).getString("k"));
+    assertSame(json, msg.toJsonString());
+    assertSame(body, PreSerialized.unwrap(msg));
+    assertSame(body, PreSerialized.unwrap(body));
+  }
+
+  @Test
+  public void testMutationInvalidates() {
+    JsonObject body = Json.createObject().set("k", "v");
+    PreSerialized msg = new PreSerialized(body);
+    msg.toJsonString();
+    assertEquals("w", Json.<JsonObject> parse(msg.set("k", "w").toJsonString()).getString("k"));
+    assertEquals(0, Json.<JsonObject> parse(msg.remove("k").toJsonString()).keys().length());
+
+    body.set("n", 1);
+    // Direct changes are only seen after invalidating
+    assertEquals(0, Json.<JsonObject> parse(msg.toJsonString()).keys().length());
+    assertEquals(1, Json.<JsonObject> parse(msg.invalidate().toJsonString()).getNumber("n"), 0);
+  }
+
+  @Test
+  public void testArrayBody() {
+    JsonArray body = Json.createArray();
+    body.push("a");
+    assertEquals("a", Json.<JsonArray> parse(new PreSerialized(body).toJsonString()).getString(0));
+  }
+
+  @Test(expected = IllegalArgumentException.class)
+  public void testPrimitiveBody() {
+    new PreSerialized("text");
+  }
+}
@@ -0,0 +1,123 @@
+/*
+ * Copyright 2014 Goodow.com
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License
+ * is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package com.goodow.realtime.channel.impl;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import com.goodow.realtime.json.Json;
+import com.goodow.realtime.json.JsonArray;
+import com.goodow.realtime.json.JsonObject;
+
+import org.junit.Test;
+
+public class BinaryEnvelopeCodecTest {
+
+  private static JsonArray envelopes(JsonObject... envelopes) {
+    JsonArray toRtn = Json.createArray();
+    for (JsonObject envelope : envelopes) {
+      toRtn.push(envelope);
+    }
+    return toRtn;
+  }
+
+  @Test
+  public void testRoundTrip() {
+    BinaryEnvelopeCodec encoder = new BinaryEnvelopeCodec();
+    BinaryEnvelopeCodec decoder = new BinaryEnvelopeCodec();
+    JsonObject body = Json.createObject().set("text", "h\u00e9llo \u4e16\u754c \ud83d\ude00 \"q\"");
+    JsonObject send =
+        Json.createObject().set("type", "send").set("address", "realtime/store/a/_watch").set(
+            "replyAddress", "0123").set("body", body);
+    JsonObject ping = Json.createObject().set("type", "ping");
+
+    byte[] frame = (byte[]) encoder.encode(envelopes(send, ping));
+    assertTrue(BinaryEnvelopeCodec.isBinary(frame));
+    JsonArray decoded = decoder.decode(frame);
+    assertEquals(2, decoded.length());
+    assertEquals("send", decoded.getObject(0).getString("type"));
+    assertEquals("realtime/store/a/_watch", decoded.getObject(0).getString("address"));
+    assertEquals("0123", decoded.getObject(0).getString("replyAddress"));
+    assertEquals(body.getString("text"), decoded.getObject(0).getObject("body").getString("text"));
+    assertEquals("ping", decoded.getObject(1).getString("type"));
+    assertFalse(decoded.getObject(1).has("address"));
+  }
+
+  @Test
+  public void testTopicsAreInterned() {
+    BinaryEnvelopeCodec encoder = new BinaryEnvelopeCodec();
+    BinaryEnvelopeCodec decoder = new BinaryEnvelopeCodec();
+    String topic = "realtime/store/a/_watch";
+    JsonObject publish =
+        Json.createObject().set("type", "publish").set("address", topic).set("body", 1);
+    byte[] first = (byte[]) encoder.encode(envelopes(publish));
+    byte[] second = (byte[]) encoder.encode(envelopes(publish));
+    assertEquals(first.length - topic.length() - 1, second.length);
+
+    decoder.decode(first);
+    JsonObject decoded = decoder.decode(second).getObject(0);
+    assertEquals(topic, decoded.getString("address"));
+    assertEquals(1, decoded.getNumber("body"), 0);
+  }
+
+  @Test
+  public void testTopicsBeyondTheTableAreInline() {
+    BinaryEnvelopeCodec encoder = new BinaryEnvelopeCodec(1);
+    BinaryEnvelopeCodec decoder = new BinaryEnvelopeCodec(1);
+    for (int i = 0; i < 3; i++) {
+      JsonObject publish =
+          Json.createObject().set("type", "publish").set("address", "topic/" + i).set("body", i);
+      JsonObject decoded = decoder.decode(encoder.encode(envelopes(publish))).getObject(0);
+      assertEquals("topic/" + i, decoded.getString("address"));
+    }
+  }
+
+  @Test(expected = IllegalArgumentException.class)
+  public void testBodyCannotAddFields() {
+    JsonObject publish = Json.createObject().set("type", "publish").set("address", "a/b").set(
+        WebSocketBus.SERIALIZED_BODY, "1,\"address\":\"x\"");
+    new BinaryEnvelopeCodec().decodeToJsonText((byte[]) new BinaryEnvelopeCodec().encode(
+        envelopes(publish)));
+  }
+
+  @Test
+  public void testCheckJsonValue() {
+    String[] valid = {"1", "-0.5e+3", " \"a\\\"\" ", "true", "null", "{}", "[]",
+        "{\"a\":[1,{\"b\":false}],\"c\":\"}\"}", "[ 1 , [ ] ]"};
+    for (String text : valid) {
+      BinaryEnvelopeCodec.checkJsonValue(text);
+    }
+    String[] invalid = {"", "1,2", "{\"a\":1}}", "[1", "{\"a\"}", "{a:1}", "\"open", "01x",
+        "[1,]", "tru", "1 2"};
+    for (String text : invalid) {
+      try {
+        BinaryEnvelopeCodec.checkJsonValue(text);
+        fail("Accepted " + text);
+      } catch (IllegalArgumentException e) {
+        // expected
+      }
+    }
+  }
+
+  @Test(expected = IllegalArgumentException.class)
+  public void testTruncatedFrame() {
+    JsonObject publish = Json.createObject().set("type", "publish").set("address", "a");
+    byte[] frame = (byte[]) new BinaryEnvelopeCodec().encode(envelopes(publish));
+    byte[] truncated = new byte[frame.length - 1];
+    System.arraycopy(frame, 0, truncated, 0, truncated.length);
+    new BinaryEnvelopeCodec().decode(truncated);
+  }
+}
@@ -0,0 +1,74 @@
+/*
+ * Copyright 2014 Goodow.com
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License
+ * is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package com.goodow.realtime.channel.impl;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import org.junit.Test;
+
+public class EnvelopeScannerTest {
+  private final EnvelopeScanner scanner = new EnvelopeScanner();
+
+  @Test
+  public void testSkipsBody() {
+    assertTrue(scanner.scan("{\"type\":\"publish\",\"body\":{\"address\":\"inner\",\"list\":"
+        + "[1, \"}]\\\"\", {\"a\":true}],\"n\":-1.5e3},\"address\":\"a/b\"}"));
+    assertEquals("a/b", scanner.getTopic());
+    assertNull(scanner.getReplyTopic());
+  }
+
+  @Test
+  public void testReplyTopic() {
+    assertTrue(
+        scanner.scan(" { \"address\" : \"a\" , \"body\" : null , \"replyAddress\" : \"r\" } "));
+    assertEquals("a", scanner.getTopic());
+    assertEquals("r", scanner.getReplyTopic());
+    assertTrue(scanner.scan("{\"replyAddress\":null,\"address\":\"a\",\"body\":1}"));
+    assertNull(scanner.getReplyTopic());
+  }
+
+  @Test
+  public void testTopicSpan() {
+    String frame = "{\"type\":\"publish\", \"address\" : \"a/b\" ,\"body\":1}";
+    assertTrue(scanner.scan(frame));
+    assertEquals("\"address\" : \"a/b\"", frame.substring(scanner.getTopicStart(), scanner
+        .getTopicEnd()));
+  }
+
+  @Test
+  public void testRejects() {
+    // Escaped address
+    assertFalse(scanner.scan("{\"address\":\"a\\/b\",\"body\":1}"));
+    // No address
+    assertFalse(scanner.scan("{\"body\":1}"));
+    // Batch
+    assertFalse(scanner.scan("[{\"address\":\"a\"}]"));
+    // Truncated
+    assertFalse(scanner.scan("{\"address\":\"a\",\"body\":{\"x\":"));
+  }
+
+  @Test
+  public void testRejectsEveryTruncation() {
+    String frame =
+        "{\"type\":\"send\", \"address\":\"a\",\"replyAddress\":\"r\",\"body\":{\"s\":\"x\\\"y\","
+            + "\"n\":[1, true]} }";
+    assertTrue(scanner.scan(frame));
+    for (int i = 0; i < frame.length() - 1; i++) {
+      assertFalse(scanner.scan(frame.substring(0, i)));
+    }
+  }
+}
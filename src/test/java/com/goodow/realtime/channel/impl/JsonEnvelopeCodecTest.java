@@ -0,0 +1,103 @@
+/*
+ * Copyright 2014 Goodow.com
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License
+ * is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package com.goodow.realtime.channel.impl;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import com.goodow.realtime.json.Json;
+import com.goodow.realtime.json.JsonArray;
+import com.goodow.realtime.json.JsonObject;
+
+import org.junit.Test;
+
+public class JsonEnvelopeCodecTest {
+
+  private static JsonArray envelopes(JsonObject envelope) {
+    JsonArray toRtn = Json.createArray();
+    toRtn.push(envelope);
+    return toRtn;
+  }
+
+  private static JsonObject publish(String topic) {
+    return Json.createObject().set("type", "publish").set("address", topic).set("body",
+        Json.createObject().set("k", "v"));
+  }
+
+  @Test
+  public void testPlainEnvelope() {
+    JsonEnvelopeCodec codec = new JsonEnvelopeCodec();
+    String frame = (String) codec.encode(envelopes(publish("a/b")));
+    assertTrue(frame.startsWith("{"));
+    assertEquals("a/b", codec.decode(frame).getObject(0).getString("address"));
+  }
+
+  @Test
+  public void testAliases() {
+    JsonEnvelopeCodec encoder = new JsonEnvelopeCodec(16);
+    JsonEnvelopeCodec decoder = new JsonEnvelopeCodec(16);
+    String topic = "realtime/store/a/_watch";
+    JsonObject envelope = publish(topic);
+
+    String first = (String) encoder.encode(envelopes(envelope));
+    String second = (String) encoder.encode(envelopes(envelope));
+    assertTrue(first.contains(topic));
+    assertFalse(second.contains(topic));
+    // The envelope itself is left untouched so that it can be sent again after reconnecting
+    assertEquals(topic, envelope.getString("address"));
+    assertFalse(envelope.has(JsonEnvelopeCodec.ALIAS));
+
+    assertEquals(topic, decoder.decode(first).getObject(0).getString("address"));
+    JsonObject decoded = decoder.decode(second).getObject(0);
+    assertEquals(topic, decoded.getString("address"));
+    assertEquals("v", decoded.getObject("body").getString("k"));
+    assertFalse(decoded.has(JsonEnvelopeCodec.ALIAS));
+  }
+
+  @Test
+  public void testFlatTopicsAndOverflowAreNotAliased() {
+    JsonEnvelopeCodec encoder = new JsonEnvelopeCodec(1);
+    encoder.encode(envelopes(publish("a/1")));
+    assertFalse(((String) encoder.encode(envelopes(publish("0123456789")))).contains(
+        JsonEnvelopeCodec.ALIAS));
+    assertFalse(((String) encoder.encode(envelopes(publish("a/2")))).contains(
+        JsonEnvelopeCodec.ALIAS));
+  }
+
+  @Test
+  public void testSerializedBodyIsSplicedIn() {
+    JsonEnvelopeCodec encoder = new JsonEnvelopeCodec(16);
+    JsonEnvelopeCodec decoder = new JsonEnvelopeCodec(16);
+    JsonObject envelope = Json.createObject().set("type", "publish").set("address", "a/b").set(
+        WebSocketBus.SERIALIZED_BODY, "{\"k\":\"v\"}");
+    JsonArray batch = envelopes(envelope);
+    batch.push(envelope);
+
+    JsonArray decoded = decoder.decode(encoder.encode(batch));
+    assertEquals(2, decoded.length());
+    for (int i = 0; i < 2; i++) {
+      assertEquals("a/b", decoded.getObject(i).getString("address"));
+      assertEquals("v", decoded.getObject(i).getObject("body").getString("k"));
+      assertFalse(decoded.getObject(i).has(WebSocketBus.SERIALIZED_BODY));
+    }
+    decoded = decoder.decode(encoder.encode(envelopes(envelope)));
+    assertEquals("v", decoded.getObject(0).getObject("body").getString("k"));
+  }
+
+  @Test(expected = IllegalArgumentException.class)
+  public void testUnknownAlias() {
+    new JsonEnvelopeCodec(16).decode("{\"type\":\"publish\",\"alias\":3}");
+  }
+}
@@ -0,0 +1,204 @@
+/*
+ * Copyright 2014 Goodow.com
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ * 
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software distributed under the License
+ * is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package com.goodow.realtime.channel.impl;
+
+import com.goodow.realtime.channel.State;
+import com.goodow.realtime.core.Diff;
+import com.goodow.realtime.core.Handler;
+import com.goodow.realtime.core.Net;
+import com.goodow.realtime.core.Platform;
+import com.goodow.realtime.core.PlatformFactory;
+import com.goodow.realtime.core.Scheduler;
+import com.goodow.realtime.core.WebSocket;
+import com.goodow.realtime.json.JsonObject;
+
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * A platform whose deferred handlers and timers only run when a test says so, and whose WebSockets
+ * are opened and fed by the test.
+ */
+class ManualPlatform implements PlatformFactory, Scheduler {
+  /**
+   * A WebSocket which records the frames sent on it.
+   */
+  static class ManualWebSocket implements WebSocket {
+    final List<String> sent = new ArrayList<String>();
+    private State state = State.CONNECTING;
+    private WebSocketHandler handler;
+
+    @Override
+    public void close() {
+      if (state == State.CLOSED) {
+        return;
+      }
+      state = State.CLOSED;
+      handler.onClose(null);
+    }
+
+    @Override
+    public State getReadyState() {
+      return state;
+    }
+
+    void open() {
+      state = State.OPEN;
+      handler.onOpen();
+    }
+
+    void receive(String frame) {
+      handler.onMessage(frame);
+    }
+
+    @Override
+    public void send(String data) {
+      if (state != State.OPEN) {
+        throw new IllegalStateException("Not open");
+      }
+      sent.add(data);
+    }
+
+    @Override
+    public void setListen(WebSocketHandler handler) {
+      this.handler = handler;
+    }
+  }
+
+  private static class Timer {
+    final Handler<Void> handler;
+    final int periodMs;
+    long dueMs;
+
+    Timer(Handler<Void> handler, int periodMs, long dueMs) {
+      this.handler = handler;
+      this.periodMs = periodMs;
+      this.dueMs = dueMs;
+    }
+  }
+
+  static ManualPlatform register() {
+    ManualPlatform platform = new ManualPlatform();
+    Platform.setFactory(platform);
+    return platform;
+  }
+
+  final List<ManualWebSocket> sockets = new ArrayList<ManualWebSocket>();
+  private final List<Handler<Void>> deferred = new ArrayList<Handler<Void>>();
+  private final Map<Integer, Timer> timers = new LinkedHashMap<Integer, Timer>();
+  private int timerId;
+  private long nowMs;
+
+  /**
+   * Advances the clock by {@code ms} milliseconds, running the timers which fire meanwhile and the
+   * deferred handlers they schedule.
+   */
+  void advance(int ms) {
+    for (int i = 0; i < ms; i++) {
+      nowMs++;
+      for (Map.Entry<Integer, Timer> entry : new ArrayList<Map.Entry<Integer, Timer>>(timers
+          .entrySet())) {
+        Timer timer = entry.getValue();
+        if (timer.dueMs > nowMs || timers.get(entry.getKey()) != timer) {
+          continue;
+        }
+        if (timer.periodMs > 0) {
+          timer.dueMs += timer.periodMs;
+        } else {
+          timers.remove(entry.getKey());
+        }
+        timer.handler.handle(null);
+      }
+      runDeferred();
+    }
+  }
+
+  @Override
+  public boolean cancelTimer(int id) {
+    return timers.remove(id) != null;
+  }
+
+  @Override
+  public Diff diff() {
+    return null;
+  }
+
+  @SuppressWarnings("unchecked")
+  @Override
+  public void handle(Object handler, Object event) {
+    ((Handler<Object>) handler).handle(event);
+  }
+
+  @Override
+  public Net net() {
+    return new Net() {
+      @Override
+      public WebSocket createWebSocket(String url, JsonObject options) {
+        ManualWebSocket socket = new ManualWebSocket();
+        sockets.add(socket);
+        return socket;
+      }
+    };
+  }
+
+  /**
+   * Returns the most recently created WebSocket.
+   */
+  ManualWebSocket socket() {
+    return sockets.get(sockets.size() - 1);
+  }
+
+  /**
+   * Runs the deferred handlers, including those they schedule themselves.
+   */
+  void runDeferred() {
+    while (!deferred.isEmpty()) {
+      Iterator<Handler<Void>> it = new ArrayList<Handler<Void>>(deferred).iterator();
+      deferred.clear();
+      while (it.hasNext()) {
+        it.next().handle(null);
+      }
+    }
+  }
+
+  @Override
+  public void scheduleDeferred(Handler<Void> handler) {
+    deferred.add(handler);
+  }
+
+  @Override
+  public int scheduleDelay(int delayMs, Handler<Void> handler) {
+    timers.put(++timerId, new Timer(handler, 0, nowMs + delayMs));
+    return timerId;
+  }
+
+  @Override
+  public int schedulePeriodic(int delayMs, Handler<Void> handler) {
+    timers.put(++timerId, new Timer(handler, delayMs, nowMs + delayMs));
+    return timerId;
+  }
+
+  @Override
+  public Scheduler scheduler() {
+    return this;
+  }
+
+  @Override
+  public Platform.Type type() {
+    return Platform.Type.STUB;
+  }
+}
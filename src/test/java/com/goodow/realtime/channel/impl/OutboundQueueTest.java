@@ -0,0 +1,116 @@
+/*
+ * Copyright 2014 Goodow.com
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License
+ * is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package com.goodow.realtime.channel.impl;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import com.goodow.realtime.channel.impl.OutboundQueue.OverflowPolicy;
+import com.goodow.realtime.json.Json;
+import com.goodow.realtime.json.JsonArray;
+import com.goodow.realtime.json.JsonObject;
+
+import org.junit.Test;
+
+public class OutboundQueueTest {
+
+  private static JsonObject publish(String topic, int body) {
+    return Json.createObject().set("type", "publish").set("address", topic).set("body", body);
+  }
+
+  private static String bodies(OutboundQueue queue) {
+    StringBuilder sb = new StringBuilder();
+    JsonArray envelopes = queue.toArray();
+    for (int i = 0; i < envelopes.length(); i++) {
+      sb.append(envelopes.getObject(i).getString("address")).append(
+          (int) envelopes.getObject(i).getNumber("body")).append(' ');
+    }
+    return sb.toString().trim();
+  }
+
+  @Test
+  public void testFifo() {
+    OutboundQueue queue = new OutboundQueue(10, OverflowPolicy.DROP_OLDEST);
+    queue.offer(publish("a", 1));
+    queue.offer(publish("b", 2));
+    assertEquals(2, queue.size());
+    assertEquals("a", queue.poll().getString("address"));
+    assertEquals("b", queue.poll().getString("address"));
+    assertNull(queue.poll());
+    assertTrue(queue.isEmpty());
+  }
+
+  @Test
+  public void testDropOldest() {
+    OutboundQueue queue = new OutboundQueue(2, OverflowPolicy.DROP_OLDEST);
+    queue.offer(publish("a", 1));
+    queue.offer(publish("b", 2));
+    assertTrue(queue.offer(publish("c", 3)));
+    assertEquals("b2 c3", bodies(queue));
+    assertEquals(1, queue.getDropped());
+  }
+
+  @Test
+  public void testDropNewest() {
+    OutboundQueue queue = new OutboundQueue(2, OverflowPolicy.DROP_NEWEST);
+    queue.offer(publish("a", 1));
+    queue.offer(publish("b", 2));
+    assertFalse(queue.offer(publish("c", 3)));
+    assertEquals("a1 b2", bodies(queue));
+    assertEquals(1, queue.getDropped());
+  }
+
+  @Test
+  public void testCoalesceByTopic() {
+    OutboundQueue queue = new OutboundQueue(3, OverflowPolicy.COALESCE_BY_TOPIC);
+    queue.offer(publish("a", 1));
+    queue.offer(publish("b", 2));
+    queue.offer(publish("a", 3));
+    // Replaces the newest "a"
+    queue.offer(publish("a", 4));
+    assertEquals("a1 b2 a4", bodies(queue));
+    // No queued "c", so the oldest is dropped
+    queue.offer(publish("c", 5));
+    assertEquals("b2 a4 c5", bodies(queue));
+    // The index of "a" must have followed the removals
+    queue.offer(publish("a", 6));
+    assertEquals("b2 c5 a6", bodies(queue));
+    assertEquals(3, queue.getDropped());
+  }
+
+  @Test
+  public void testRequestsAreNotCoalesced() {
+    OutboundQueue queue = new OutboundQueue(2, OverflowPolicy.COALESCE_BY_TOPIC);
+    queue.offer(publish("a", 1));
+    queue.offer(publish("a", 2).set("replyAddress", "r"));
+    queue.offer(publish("a", 3).set("replyAddress", "r"));
+    assertEquals("a2 a3", bodies(queue));
+  }
+
+  @Test
+  public void testOfferLatest() {
+    OutboundQueue queue = new OutboundQueue(10, OverflowPolicy.DROP_OLDEST);
+    queue.offerLatest(publish("a", 1));
+    queue.offer(publish("b", 2));
+    queue.offer(Json.createObject().set("type", "send").set("address", "a").set("body", 3));
+    queue.offerLatest(publish("a", 4));
+    queue.offerLatest(publish("a", 5));
+    // The send in between is kept, only the publishes are coalesced
+    assertEquals("b2 a3 a5", bodies(queue));
+    assertEquals(2, queue.getCoalesced());
+    assertEquals(0, queue.getDropped());
+  }
+}
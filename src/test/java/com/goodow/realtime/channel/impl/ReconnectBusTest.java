@@ -0,0 +1,276 @@
+/*
+ * Copyright 2014 Goodow.com
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ * 
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software distributed under the License
+ * is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package com.goodow.realtime.channel.impl;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertTrue;
+
+import com.goodow.realtime.channel.Message;
+import com.goodow.realtime.channel.ReplyException;
+import com.goodow.realtime.channel.ReplyFailure;
+import com.goodow.realtime.core.AsyncResult;
+import com.goodow.realtime.core.Handler;
+import com.goodow.realtime.core.Storage;
+import com.goodow.realtime.json.Json;
+import com.goodow.realtime.json.JsonArray;
+import com.goodow.realtime.json.JsonObject;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+
+public class ReconnectBusTest {
+  /**
+   * A storage kept in memory, which counts its writes.
+   */
+  private static class MemoryStorage implements Storage {
+    final List<String> records = new ArrayList<String>();
+    int writes;
+
+    @Override
+    public void append(String record) {
+      records.add(record);
+      writes++;
+    }
+
+    @Override
+    public void appendAll(JsonArray records) {
+      for (int i = 0, len = records.length(); i < len; i++) {
+        this.records.add(records.getString(i));
+      }
+      writes++;
+    }
+
+    @Override
+    public void clear() {
+      records.clear();
+    }
+
+    @Override
+    public JsonArray readAll() {
+      JsonArray toRtn = Json.createArray();
+      for (String record : records) {
+        toRtn.push(record);
+      }
+      return toRtn;
+    }
+  }
+
+  private ManualPlatform platform;
+  private ReconnectBus bus;
+  private final List<AsyncResult<Message<JsonObject>>> replies =
+      new ArrayList<AsyncResult<Message<JsonObject>>>();
+  private final Handler<AsyncResult<Message<JsonObject>>> replyHandler =
+      new Handler<AsyncResult<Message<JsonObject>>>() {
+        @Override
+        public void handle(AsyncResult<Message<JsonObject>> result) {
+          replies.add(result);
+        }
+      };
+
+  @Before
+  public void setUp() {
+    platform = ManualPlatform.register();
+    bus = new ReconnectBus("ws://localhost/channel", null);
+  }
+
+  @Test
+  public void testReplyBeforeTimeout() {
+    platform.socket().open();
+    bus.sendWithTimeout("a/b", Json.createObject(), 1000, replyHandler);
+    reply(sentTo("a/b"));
+    platform.runDeferred();
+    assertEquals(1, replies.size());
+    assertFalse(replies.get(0).failed());
+    assertEquals("v", replies.get(0).result().body().getString("k"));
+
+    platform.advance(2000);
+    assertEquals(1, replies.size());
+  }
+
+  @Test
+  public void testReplyAfterTimeoutIsDropped() {
+    platform.socket().open();
+    bus.sendWithTimeout("a/b", Json.createObject(), 1000, replyHandler);
+    JsonObject envelope = sentTo("a/b");
+    platform.advance(1200);
+    assertEquals(1, replies.size());
+    assertTimedOut(replies.get(0));
+
+    reply(envelope);
+    platform.runDeferred();
+    assertEquals(1, replies.size());
+  }
+
+  @Test
+  public void testTimeoutWhileQueuedOffline() {
+    bus.sendWithTimeout("a/b", Json.createObject(), 1000, replyHandler);
+    platform.advance(1200);
+    assertEquals(1, replies.size());
+    assertTimedOut(replies.get(0));
+
+    // The message itself is still delivered once the connection is up
+    platform.socket().open();
+    assertNotNull(sentTo("a/b"));
+  }
+
+  @Test
+  public void testStorageIsWrittenOncePerTurn() {
+    MemoryStorage storage = new MemoryStorage();
+    bus.setStorage(storage);
+    for (int i = 0; i < 10; i++) {
+      bus.publish("a/b", i);
+    }
+    assertEquals(0, storage.writes);
+    platform.runDeferred();
+    assertEquals(1, storage.writes);
+    assertEquals(10, storage.records.size());
+
+    // A new bus, as after a restart, sends the stored messages once connected
+    platform.sockets.clear();
+    ReconnectBus restarted = new ReconnectBus("ws://localhost/channel", null);
+    restarted.setStorage(storage);
+    platform.socket().open();
+    assertEquals(9d, sentTo("a/b").getNumber("body"), 0);
+    assertTrue(storage.records.isEmpty());
+  }
+
+  @Test
+  public void testPublishLatestWhileOffline() {
+    bus.publish("a/b", 1);
+    bus.publishLatest("a/b", 2);
+    bus.publishLatest("a/b", 3);
+    bus.publish("a/c", 1);
+    bus.publish("a/c", 2);
+    platform.socket().open();
+    List<JsonObject> sent = allSentTo("a/b");
+    assertEquals(1, sent.size());
+    assertEquals(3d, sent.get(0).getNumber("body"), 0);
+    assertFalse(sent.get(0).has(WebSocketBus.LAST_VALUE));
+    assertEquals(2, allSentTo("a/c").size());
+  }
+
+  @Test
+  public void testLastValueWinsFilter() {
+    bus.setLastValueWins("a/+", true);
+    bus.publish("a/b", 1);
+    bus.publish("a/b", 2);
+    bus.publish("a/c", 1);
+    bus.publish("d", 1);
+    bus.publish("d", 2);
+    platform.socket().open();
+    assertEquals(1, allSentTo("a/b").size());
+    assertEquals(2d, sentTo("a/b").getNumber("body"), 0);
+    assertEquals(1, allSentTo("a/c").size());
+    assertEquals(2, allSentTo("d").size());
+  }
+
+  @Test
+  public void testStorageIsCompacted() {
+    bus = new ReconnectBus("ws://localhost/channel", Json.createObject().set(
+        ReconnectBus.MAX_QUEUED_MESSAGES, 2));
+    MemoryStorage storage = new MemoryStorage();
+    bus.setStorage(storage);
+    for (int i = 0; i < 5; i++) {
+      bus.publish("a/b", i);
+      platform.runDeferred();
+      assertTrue(storage.records.size() <= 4);
+    }
+    // The messages dropped by the overflow policy were compacted away
+    assertEquals(2, storage.records.size());
+
+    platform.sockets.clear();
+    ReconnectBus restarted = new ReconnectBus("ws://localhost/channel", null);
+    restarted.setStorage(storage);
+    platform.socket().open();
+    List<JsonObject> sent = allSentTo("a/b");
+    assertEquals(2, sent.size());
+    assertEquals(3d, sent.get(0).getNumber("body"), 0);
+    assertEquals(4d, sent.get(1).getNumber("body"), 0);
+  }
+
+  @Test
+  public void testPublishLatestSurvivesRestart() {
+    MemoryStorage storage = new MemoryStorage();
+    bus.setStorage(storage);
+    bus.publishLatest("a/b", 1);
+    platform.runDeferred();
+
+    platform.sockets.clear();
+    ReconnectBus restarted = new ReconnectBus("ws://localhost/channel", null);
+    restarted.setStorage(storage);
+    restarted.publishLatest("a/b", 2);
+    platform.socket().open();
+    List<JsonObject> sent = allSentTo("a/b");
+    assertEquals(1, sent.size());
+    assertEquals(2d, sent.get(0).getNumber("body"), 0);
+  }
+
+  @Test
+  public void testWildcardIsSubscribedRemotely() {
+    final List<String> received = new ArrayList<String>();
+    bus.subscribe("docs/+/_watch", new Handler<Message<String>>() {
+      @Override
+      public void handle(Message<String> message) {
+        received.add(message.topic());
+      }
+    });
+    platform.socket().open();
+    JsonObject register = sentTo("docs/+/_watch");
+    assertNotNull(register);
+    assertEquals("register", register.getString("type"));
+
+    platform.socket().receive(Json.createObject().set("address", "docs/1/_watch").set("body",
+        "x").toJsonString());
+    platform.runDeferred();
+    assertEquals(1, received.size());
+    assertEquals("docs/1/_watch", received.get(0));
+  }
+
+  /**
+   * Returns the envelopes sent to {@code topic}, oldest first.
+   */
+  private List<JsonObject> allSentTo(String topic) {
+    List<JsonObject> found = new ArrayList<JsonObject>();
+    for (String frame : platform.socket().sent) {
+      JsonObject envelope = Json.parse(frame);
+      if (topic.equals(envelope.getString("address"))) {
+        found.add(envelope);
+      }
+    }
+    return found;
+  }
+
+  private void assertTimedOut(AsyncResult<Message<JsonObject>> result) {
+    assertTrue(result.failed());
+    assertEquals(ReplyFailure.TIMEOUT, ((ReplyException) result.cause()).failureType());
+  }
+
+  private void reply(JsonObject envelope) {
+    platform.socket().receive(Json.createObject().set("address", envelope.getString(
+        "replyAddress")).set("body", Json.createObject().set("k", "v")).toJsonString());
+  }
+
+  /**
+   * Returns the last envelope sent to {@code topic}, or null.
+   */
+  private JsonObject sentTo(String topic) {
+    List<JsonObject> found = allSentTo(topic);
+    return found.isEmpty() ? null : found.get(found.size() - 1);
+  }
+}
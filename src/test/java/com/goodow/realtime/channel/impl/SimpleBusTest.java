@@ -0,0 +1,123 @@
+/*
+ * Copyright 2014 Goodow.com
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ * 
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software distributed under the License
+ * is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package com.goodow.realtime.channel.impl;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import com.goodow.realtime.channel.Message;
+import com.goodow.realtime.core.Handler;
+import com.goodow.realtime.core.Registration;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+
+public class SimpleBusTest {
+  private ManualPlatform platform;
+  private SimpleBus bus;
+  private final List<String> received = new ArrayList<String>();
+
+  @Before
+  public void setUp() {
+    platform = ManualPlatform.register();
+    bus = new SimpleBus();
+  }
+
+  @Test
+  public void testWildcardDispatch() {
+    bus.subscribe("a/+/c", record("+"));
+    bus.subscribe("a/#", record("#"));
+    bus.subscribe("a/b/c", record("exact"));
+
+    bus.publish("a/b/c", "m1");
+    assertTrue(received.isEmpty());
+    platform.runDeferred();
+    assertEquals(3, received.size());
+    assertTrue(received.contains("+ a/b/c m1"));
+    assertTrue(received.contains("# a/b/c m1"));
+    assertTrue(received.contains("exact a/b/c m1"));
+
+    received.clear();
+    bus.publish("a", "m2");
+    bus.publish("a/x/c/d", "m3");
+    bus.publish("b/x/c", "m4");
+    platform.runDeferred();
+    assertEquals(2, received.size());
+    assertTrue(received.contains("# a m2"));
+    assertTrue(received.contains("# a/x/c/d m3"));
+  }
+
+  @Test
+  public void testLocalWildcardDispatchIsSynchronous() {
+    bus.subscribeLocal("a/+", record("+"));
+    bus.publishLocal("a/b", "m1");
+    assertEquals(1, received.size());
+    assertEquals("+ a/b m1", received.get(0));
+  }
+
+  @Test
+  public void testUnsubscribeWildcard() {
+    Registration registration = bus.subscribe("a/+/c", record("+"));
+    assertTrue(bus.hasHandlers("a/b/c"));
+    registration.unregister();
+    assertFalse(bus.hasHandlers("a/b/c"));
+    bus.publish("a/b/c", "m1");
+    platform.runDeferred();
+    assertTrue(received.isEmpty());
+  }
+
+  @Test
+  public void testNonTrailingMultiLevelIsLiteral() {
+    bus.subscribe("a/#/c", record("literal"));
+    bus.publish("a/b/c", "m1");
+    bus.publish("a/#/c", "m2");
+    platform.runDeferred();
+    assertEquals(1, received.size());
+    assertEquals("literal a/#/c m2", received.get(0));
+  }
+
+  @Test
+  public void testHandlerUnsubscribingDuringDispatch() {
+    final Registration[] registration = new Registration[1];
+    registration[0] = bus.subscribe("a/+", new Handler<Message<String>>() {
+      @Override
+      public void handle(Message<String> message) {
+        received.add("once " + message.body());
+        registration[0].unregister();
+      }
+    });
+    bus.subscribe("a/#", record("#"));
+    bus.publish("a/b", "m1");
+    platform.runDeferred();
+    bus.publish("a/b", "m2");
+    platform.runDeferred();
+    assertEquals(3, received.size());
+    assertTrue(received.contains("once m1"));
+    assertTrue(received.contains("# a/b m1"));
+    assertEquals("# a/b m2", received.get(2));
+  }
+
+  private Handler<Message<String>> record(final String name) {
+    return new Handler<Message<String>>() {
+      @Override
+      public void handle(Message<String> message) {
+        received.add(name + " " + message.topic() + " " + message.body());
+      }
+    };
+  }
+}
@@ -0,0 +1,115 @@
+/*
+ * Copyright 2014 Goodow.com
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ * 
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software distributed under the License
+ * is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package com.goodow.realtime.channel.server;
+
+import com.goodow.realtime.channel.Bus;
+import com.goodow.realtime.channel.Message;
+import com.goodow.realtime.channel.MessageHandler;
+import com.goodow.realtime.channel.impl.WebSocketBus;
+import com.goodow.realtime.core.Platform;
+import com.goodow.realtime.java.JavaPlatform;
+import com.goodow.realtime.java.JavaScheduler;
+import com.goodow.realtime.json.Json;
+import com.goodow.realtime.json.JsonObject;
+
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Measures how fast a running channel server accepts connections and relays messages, with many
+ * clients on a {@link JavaPlatform}. Each client subscribes to a topic of its own and publishes
+ * to it, so every message crosses the server twice.<p>
+ * Deploy the module with {@code "instances": 1}, then with more, and run
+ * {@code java -cp <test classpath> com.goodow.realtime.channel.server.ChannelLoadBenchmark
+ * [url] [connections] [messages per connection]} against each to compare. One client process
+ * runs on a single event loop, so use several processes once it saturates a core.
+ */
+public class ChannelLoadBenchmark {
+  private static final String URL = "ws://localhost:1986/channel/websocket";
+
+  public static void main(String[] args) throws InterruptedException {
+    final String url = args.length > 0 ? args[0] : URL;
+    final int connections = args.length > 1 ? Integer.parseInt(args[1]) : 1000;
+    final int messages = args.length > 2 ? Integer.parseInt(args[2]) : 100;
+    JavaScheduler scheduler = new JavaScheduler();
+    Platform.setFactory(new JavaPlatform(scheduler));
+
+    final Bus[] buses = new Bus[connections];
+    final CountDownLatch subscribed = new CountDownLatch(connections);
+    final CountDownLatch received = new CountDownLatch(connections * messages);
+    final MessageHandler<JsonObject> counter = new MessageHandler<JsonObject>() {
+      @Override
+      public void handle(Message<JsonObject> message) {
+        received.countDown();
+      }
+    };
+    long start = System.nanoTime();
+    scheduler.execute(new Runnable() {
+      @Override
+      public void run() {
+        for (int i = 0; i < connections; i++) {
+          final Bus bus = new WebSocketBus(url, null);
+          final String topic = "bench/" + i;
+          buses[i] = bus;
+          bus.subscribeLocal(Bus.ON_OPEN, new MessageHandler<Void>() {
+            @Override
+            public void handle(Message<Void> message) {
+              bus.subscribe(topic, counter);
+              subscribed.countDown();
+            }
+          });
+        }
+      }
+    });
+    if (!subscribed.await(2, TimeUnit.MINUTES)) {
+      System.out.println("only " + (connections - subscribed.getCount()) + " of " + connections
+          + " connections opened");
+      return;
+    }
+    long connectNanos = System.nanoTime() - start;
+    System.out.println(connections + " connections in " + connectNanos / 1000000 + " ms: "
+        + rate(connections, connectNanos) + " connections/s");
+
+    start = System.nanoTime();
+    scheduler.execute(new Runnable() {
+      @Override
+      public void run() {
+        for (int j = 0; j < messages; j++) {
+          for (int i = 0; i < connections; i++) {
+            buses[i].publish("bench/" + i, Json.createObject().set("n", j));
+          }
+        }
+      }
+    });
+    boolean done = received.await(5, TimeUnit.MINUTES);
+    long relayNanos = System.nanoTime() - start;
+    long count = (long) connections * messages - received.getCount();
+    System.out.println(count + " messages in " + relayNanos / 1000000 + " ms: "
+        + rate(count, relayNanos) + " messages/s" + (done ? "" : " (timed out)"));
+
+    scheduler.execute(new Runnable() {
+      @Override
+      public void run() {
+        for (Bus bus : buses) {
+          bus.close();
+        }
+      }
+    });
+    scheduler.shutdown();
+  }
+
+  private static long rate(long count, long nanos) {
+    return nanos == 0 ? 0 : count * TimeUnit.SECONDS.toNanos(1) / nanos;
+  }
+}
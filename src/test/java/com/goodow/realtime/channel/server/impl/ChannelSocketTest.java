@@ -0,0 +1,296 @@
+/*
+ * Copyright 2014 Goodow.com
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License
+ * is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package com.goodow.realtime.channel.server.impl;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import com.goodow.realtime.channel.impl.BinaryEnvelopeCodec;
+import com.goodow.realtime.channel.impl.EnvelopeCodec;
+import com.goodow.realtime.channel.impl.JsonEnvelopeCodec;
+import com.goodow.realtime.channel.impl.WebSocketBus;
+import com.goodow.realtime.json.Json;
+
+import org.junit.Test;
+import org.vertx.java.core.Handler;
+import org.vertx.java.core.buffer.Buffer;
+import org.vertx.java.core.json.JsonArray;
+import org.vertx.java.core.json.JsonObject;
+import org.vertx.java.core.sockjs.SockJSSocket;
+
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+public class ChannelSocketTest {
+  /**
+   * A socket whose write queue is full on demand.
+   */
+  private static class SlowSocket implements InvocationHandler {
+    final List<String> written = new ArrayList<String>();
+    final SockJSSocket sock = (SockJSSocket) Proxy.newProxyInstance(
+        ChannelSocketTest.class.getClassLoader(), new Class<?>[] {SockJSSocket.class}, this);
+    boolean full;
+    boolean paused;
+    boolean closed;
+    Handler<Void> drainHandler;
+    Handler<Buffer> dataHandler;
+
+    /**
+     * Empties the write queue.
+     */
+    void drain() {
+      full = false;
+      drainHandler.handle(null);
+    }
+
+    @SuppressWarnings("unchecked")
+    @Override
+    public Object invoke(Object proxy, Method method, Object[] args) {
+      String name = method.getName();
+      if ("write".equals(name)) {
+        assertFalse(closed);
+        written.add(args[0].toString());
+      } else if ("writeQueueFull".equals(name)) {
+        return full;
+      } else if ("drainHandler".equals(name)) {
+        drainHandler = (Handler<Void>) args[0];
+      } else if ("dataHandler".equals(name)) {
+        dataHandler = (Handler<Buffer>) args[0];
+      } else if ("pause".equals(name)) {
+        paused = true;
+      } else if ("resume".equals(name)) {
+        paused = false;
+      } else if ("close".equals(name)) {
+        closed = true;
+      }
+      return method.getReturnType().isInstance(proxy) ? proxy : null;
+    }
+  }
+
+  private final Backpressure.Metrics metrics = new Backpressure.Metrics();
+
+  @Test
+  public void testSingleEnvelopeIsNotSplit() {
+    assertNull(ChannelSocket.splitBatch("{\"type\":\"ping\"}"));
+  }
+
+  @Test
+  public void testSplitBatch() {
+    String first = "{\"type\":\"send\",\"address\":\"a\",\"body\":{\"list\":[1,{\"x\":2}]}}";
+    String second = "{\"type\":\"publish\",\"address\":\"b\",\"body\":\"] } [ {\"}";
+    List<String> envelopes = ChannelSocket.splitBatch(" [" + first + ", " + second + "]");
+    assertEquals(2, envelopes.size());
+    assertEquals(first, envelopes.get(0));
+    assertEquals(second, envelopes.get(1));
+  }
+
+  @Test
+  public void testEscapedQuotes() {
+    String envelope = "{\"address\":\"a\",\"body\":\"say \\\"}\\\" \\\\\"}";
+    List<String> envelopes = ChannelSocket.splitBatch("[" + envelope + "]");
+    assertEquals(1, envelopes.size());
+    assertEquals(envelope, envelopes.get(0));
+  }
+
+  @Test(expected = IllegalArgumentException.class)
+  public void testUnterminatedBatch() {
+    ChannelSocket.splitBatch("[{\"type\":\"ping\"}");
+  }
+
+  @Test
+  public void testBinaryCodecIsOnlyAcceptedWhenConfigured() {
+    String connect = new JsonObject().putString("type", "send").putString("address",
+        WebSocketBus.TOPIC_CONNECT).putObject("body", new JsonObject().putArray(
+        WebSocketBus.CODECS, new JsonArray().add(EnvelopeCodec.BINARY))).encode();
+    final List<String> forwarded = new ArrayList<String>();
+    Handler<Buffer> bridge = new Handler<Buffer>() {
+      @Override
+      public void handle(Buffer event) {
+        forwarded.add(event.toString());
+      }
+    };
+    com.goodow.realtime.json.JsonArray envelopes = Json.createArray().push(Json.createObject()
+        .set("type", "publish").set("address", "a").set("body", 1));
+
+    SlowSocket refused = new SlowSocket();
+    new ChannelSocket(refused.sock).dataHandler(bridge);
+    refused.dataHandler.handle(new Buffer(connect));
+    assertTrue(refused.written.isEmpty());
+    refused.dataHandler.handle(new Buffer((byte[]) new BinaryEnvelopeCodec().encode(envelopes)));
+    assertTrue(refused.closed);
+    assertEquals(1, forwarded.size());
+
+    SlowSocket accepted = new SlowSocket();
+    new ChannelSocket(accepted.sock).setBinaryCodecAccepted(true).dataHandler(bridge);
+    accepted.dataHandler.handle(new Buffer(connect));
+    assertEquals(EnvelopeCodec.BINARY, new JsonObject(accepted.written.get(0)).getObject("body")
+        .getString(WebSocketBus.CODEC));
+    accepted.dataHandler.handle(new Buffer((byte[]) new BinaryEnvelopeCodec().encode(envelopes)));
+    assertFalse(accepted.closed);
+    assertEquals(3, forwarded.size());
+    assertEquals(1, new JsonObject(forwarded.get(2)).getInteger("body").intValue());
+  }
+
+  @Test
+  public void testAliasesAreSplicedIn() {
+    SlowSocket slow = new SlowSocket();
+    ChannelSocket sock = new ChannelSocket(slow.sock);
+    sock.dataHandler(new Handler<Buffer>() {
+      @Override
+      public void handle(Buffer event) {
+      }
+    });
+    slow.dataHandler.handle(new Buffer(new JsonObject().putString("type", "send").putString(
+        "address", WebSocketBus.TOPIC_CONNECT).putObject("body", new JsonObject().putBoolean(
+        WebSocketBus.TOPIC_ALIASES, true)).encode()));
+    assertEquals(1, slow.written.size()); // The negotiation reply
+
+    sock.write(new Buffer("{\"address\":\"a/b\",\"body\":1}"));
+    sock.write(new Buffer("{\"type\":\"publish\", \"address\" : \"a/b\",\"body\":2}"));
+    sock.write(new Buffer("{\"address\":\"flat\",\"body\":3}"));
+    assertEquals(Arrays.asList("{\"address\":\"a/b\",\"alias\":1,\"body\":1}",
+        "{\"type\":\"publish\", \"alias\":1,\"body\":2}", "{\"address\":\"flat\",\"body\":3}"),
+        slow.written.subList(1, 4));
+
+    JsonEnvelopeCodec client = new JsonEnvelopeCodec(16);
+    for (int i = 1; i < 4; i++) {
+      com.goodow.realtime.json.JsonObject envelope =
+          client.decode(slow.written.get(i)).getObject(0);
+      assertEquals(i == 3 ? "flat" : "a/b", envelope.getString("address"));
+      assertEquals(i, envelope.getNumber("body"), 0);
+    }
+  }
+
+  @Test
+  public void testDropOldest() {
+    SlowSocket slow = new SlowSocket();
+    ChannelSocket sock = newSocket(slow, "drop_oldest", 3);
+    sock.write(frame("a", 0));
+    slow.full = true;
+    for (int i = 1; i <= 5; i++) {
+      sock.write(frame("a", i));
+    }
+    assertTrue(sock.writeQueueFull());
+    assertEquals(1, slow.written.size());
+    assertEquals(2, metrics.droppedOldest.get());
+
+    slow.drain();
+    assertEquals(Arrays.asList(envelope("a", 0), envelope("a", 3), envelope("a", 4),
+        envelope("a", 5)), slow.written);
+    assertFalse(sock.writeQueueFull());
+    sock.write(frame("a", 6));
+    assertEquals(5, slow.written.size());
+    assertEquals(1, metrics.backlogged.get());
+  }
+
+  @Test
+  public void testConflate() {
+    SlowSocket slow = new SlowSocket();
+    ChannelSocket sock = newSocket(slow, "conflate", 10);
+    slow.full = true;
+    sock.write(frame("a", 1));
+    sock.write(frame("b", 1));
+    sock.write(frame("a", 2));
+    sock.write(frame("a", 3));
+    assertEquals(2, metrics.conflated.get());
+
+    slow.drain();
+    assertEquals(Arrays.asList(envelope("a", 3), envelope("b", 1)), slow.written);
+  }
+
+  @Test
+  public void testDropNewest() {
+    SlowSocket slow = new SlowSocket();
+    ChannelSocket sock = newSocket(slow, "drop_newest", 2);
+    slow.full = true;
+    sock.write(frame("a", 1));
+    sock.write(frame("a", 2));
+    sock.write(frame("a", 3));
+    assertEquals(1, metrics.droppedNewest.get());
+    // Only the outbound side is held back: the client is still read from
+    assertFalse(slow.paused);
+
+    slow.drain();
+    assertEquals(Arrays.asList(envelope("a", 1), envelope("a", 2)), slow.written);
+  }
+
+  @Test
+  public void testDisconnect() {
+    SlowSocket slow = new SlowSocket();
+    ChannelSocket sock = newSocket(slow, "disconnect", 2);
+    slow.full = true;
+    sock.write(frame("a", 1));
+    sock.write(frame("a", 2));
+    assertFalse(slow.closed);
+    sock.write(frame("a", 3));
+    assertTrue(slow.closed);
+    sock.write(frame("a", 4));
+    assertEquals(1, metrics.disconnected.get());
+    assertEquals(0, slow.written.size());
+  }
+
+  @Test
+  public void testAliasesSurviveDroppedAndConflatedFrames() {
+    for (String policy : new String[] {"drop_oldest", "drop_newest", "conflate"}) {
+      SlowSocket slow = new SlowSocket();
+      ChannelSocket sock = newSocket(slow, policy, 1);
+      sock.dataHandler(new Handler<Buffer>() {
+        @Override
+        public void handle(Buffer event) {
+        }
+      });
+      slow.dataHandler.handle(new Buffer(new JsonObject().putString("type", "send").putString(
+          "address", WebSocketBus.TOPIC_CONNECT).putObject("body", new JsonObject().putBoolean(
+          WebSocketBus.TOPIC_ALIASES, true)).encode()));
+      slow.written.clear();
+
+      slow.full = true;
+      sock.write(frame("a/b", 1));
+      // Dropped or conflated, and so must not have defined the alias
+      sock.write(frame("a/b", 2));
+      slow.drain();
+      sock.write(frame("a/b", 3));
+      assertEquals(2, slow.written.size());
+
+      JsonEnvelopeCodec client = new JsonEnvelopeCodec(16);
+      int[] expected = {"drop_newest".equals(policy) ? 1 : 2, 3};
+      for (int i = 0; i < expected.length; i++) {
+        com.goodow.realtime.json.JsonObject msg = client.decode(slow.written.get(i)).getObject(0);
+        assertEquals("a/b", msg.getString("address"));
+        assertEquals(expected[i], (int) msg.getNumber("body"));
+      }
+      assertTrue(slow.written.get(1).contains("\"alias\":1,"));
+    }
+  }
+
+  private String envelope(String topic, int i) {
+    return "{\"address\":\"" + topic + "\",\"body\":" + i + "}";
+  }
+
+  private Buffer frame(String topic, int i) {
+    return new Buffer(envelope(topic, i));
+  }
+
+  private ChannelSocket newSocket(SlowSocket slow, String policy, int maxQueuedFrames) {
+    return new ChannelSocket(slow.sock, new Backpressure(new JsonObject().putString(
+        Backpressure.POLICY, policy).putNumber(Backpressure.MAX_QUEUED_FRAMES, maxQueuedFrames),
+        metrics));
+  }
+}
@@ -0,0 +1,176 @@
+/*
+ * Copyright 2014 Goodow.com
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ * 
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software distributed under the License
+ * is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package com.goodow.realtime.channel.server.impl;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+import org.junit.Test;
+import org.vertx.java.core.Handler;
+import org.vertx.java.core.buffer.Buffer;
+import org.vertx.java.core.eventbus.EventBus;
+import org.vertx.java.core.eventbus.Message;
+import org.vertx.java.core.json.JsonObject;
+import org.vertx.java.core.sockjs.SockJSSocket;
+
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+public class FanOutTest {
+  /**
+   * Records the frames written to a socket.
+   */
+  private static class FakeSocket implements InvocationHandler {
+    final List<Buffer> written = new ArrayList<Buffer>();
+    final SockJSSocket sock = (SockJSSocket) Proxy.newProxyInstance(
+        FanOutTest.class.getClassLoader(), new Class<?>[] {SockJSSocket.class}, this);
+
+    @Override
+    public Object invoke(Object proxy, Method method, Object[] args) {
+      String name = method.getName();
+      if ("write".equals(name)) {
+        written.add((Buffer) args[0]);
+      } else if ("hashCode".equals(name)) {
+        return System.identityHashCode(proxy);
+      } else if ("equals".equals(name)) {
+        return proxy == args[0];
+      }
+      return method.getReturnType().isInstance(proxy) ? proxy : null;
+    }
+  }
+
+  private final Map<String, Handler<Message<Object>>> handlers =
+      new HashMap<String, Handler<Message<Object>>>();
+  private final EventBus eb = (EventBus) Proxy.newProxyInstance(getClass().getClassLoader(),
+      new Class<?>[] {EventBus.class}, new InvocationHandler() {
+        @SuppressWarnings("unchecked")
+        @Override
+        public Object invoke(Object proxy, Method method, Object[] args) {
+          if ("registerHandler".equals(method.getName())) {
+            assertNull(handlers.put((String) args[0], (Handler<Message<Object>>) args[1]));
+          } else if ("unregisterHandler".equals(method.getName())) {
+            assertSame(args[1], handlers.remove(args[0]));
+          }
+          return proxy;
+        }
+      });
+  private final FanOut fanOut = new FanOut(eb);
+
+  @Test
+  public void testEncodesOnceForEverySubscriber() {
+    FakeSocket a = new FakeSocket();
+    FakeSocket b = new FakeSocket();
+    FakeSocket c = new FakeSocket();
+    assertTrue(fanOut.subscribe(a.sock, "doc"));
+    assertTrue(fanOut.subscribe(b.sock, "doc"));
+    assertFalse(fanOut.subscribe(b.sock, "doc"));
+    fanOut.subscribe(c.sock, "other");
+    assertEquals(2, handlers.size());
+    assertEquals(2, fanOut.getSubscribers("doc"));
+
+    publish("doc", new JsonObject().putString("text", "hello"), null);
+    assertEquals(1, a.written.size());
+    assertSame(a.written.get(0), b.written.get(0));
+    assertEquals(0, c.written.size());
+    assertEquals(2, fanOut.getDelivered());
+  }
+
+  @Test
+  public void testRepliableMessagesGoToOneSocket() {
+    FakeSocket a = new FakeSocket();
+    FakeSocket b = new FakeSocket();
+    fanOut.subscribe(a.sock, "doc");
+    fanOut.subscribe(b.sock, "doc");
+
+    publish("doc", "1", "reply/1");
+    publish("doc", "2", "reply/2");
+    assertEquals(1, a.written.size());
+    assertEquals(1, b.written.size());
+  }
+
+  @Test
+  public void testUnsubscribe() {
+    FakeSocket a = new FakeSocket();
+    FakeSocket b = new FakeSocket();
+    fanOut.subscribe(a.sock, "doc");
+    fanOut.subscribe(a.sock, "other");
+    fanOut.subscribe(b.sock, "doc");
+
+    assertTrue(fanOut.unsubscribe(b.sock, "doc"));
+    assertFalse(fanOut.unsubscribe(b.sock, "doc"));
+    publish("doc", "1", null);
+    assertEquals(1, a.written.size());
+    assertEquals(0, b.written.size());
+
+    assertEquals(Arrays.asList("doc", "other"), fanOut.unsubscribeAll(a.sock));
+    assertTrue(handlers.isEmpty());
+    assertEquals(0, fanOut.getSubscribers("doc"));
+  }
+
+  @Test
+  public void testWildcardSubscriptions() {
+    FakeSocket a = new FakeSocket();
+    FakeSocket b = new FakeSocket();
+    FakeSocket c = new FakeSocket();
+    assertTrue(fanOut.subscribe(a.sock, "docs/+/_watch"));
+    assertTrue(fanOut.subscribe(a.sock, "docs/#"));
+    fanOut.subscribe(b.sock, "docs/+/_watch");
+    fanOut.subscribe(b.sock, "docs/1/_watch");
+    fanOut.subscribe(c.sock, "other/+");
+    // One handler for every filter, and one for the topic subscribed to exactly
+    assertEquals(2, handlers.size());
+
+    publish(FanOut.PUBLISHED_ADDR, new JsonObject().putString(BridgeHook.TOPIC, "docs/1/_watch")
+        .putString("body", "1"), null);
+    // Once however many filters match, and not again for a socket on the topic itself
+    assertEquals(1, a.written.size());
+    assertEquals("docs/1/_watch", new JsonObject(a.written.get(0).toString()).getString(
+        "address"));
+    assertEquals(0, b.written.size());
+    assertEquals(0, c.written.size());
+    publish("docs/1/_watch", "1", null);
+    assertEquals(1, b.written.size());
+
+    fanOut.unsubscribeAll(a.sock);
+    fanOut.unsubscribeAll(b.sock);
+    assertTrue(fanOut.unsubscribe(c.sock, "other/+"));
+    assertTrue(handlers.isEmpty());
+  }
+
+  private void publish(String topic, final Object body, final String replyTopic) {
+    @SuppressWarnings("unchecked")
+    Message<Object> message = (Message<Object>) Proxy.newProxyInstance(
+        getClass().getClassLoader(), new Class<?>[] {Message.class}, new InvocationHandler() {
+          @Override
+          public Object invoke(Object proxy, Method method, Object[] args) {
+            if ("body".equals(method.getName())) {
+              return body;
+            } else if ("replyAddress".equals(method.getName())) {
+              return replyTopic;
+            }
+            return null;
+          }
+        });
+    handlers.get(topic).handle(message);
+  }
+}
@@ -0,0 +1,198 @@
+/*
+ * Copyright 2014 Goodow.com
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ * 
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software distributed under the License
+ * is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package com.goodow.realtime.channel.server.impl;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import com.goodow.realtime.channel.mqtt.packet.AckPacket;
+import com.goodow.realtime.channel.mqtt.packet.ConnAckPacket;
+import com.goodow.realtime.channel.mqtt.packet.ConnectPacket;
+import com.goodow.realtime.channel.mqtt.packet.EmptyPacket;
+import com.goodow.realtime.channel.mqtt.packet.MqttPacket;
+import com.goodow.realtime.channel.mqtt.packet.PublishPacket;
+import com.goodow.realtime.channel.mqtt.packet.SubAckPacket;
+import com.goodow.realtime.channel.mqtt.packet.SubscribePacket;
+import com.goodow.realtime.channel.mqtt.packet.UnsubscribePacket;
+
+import org.junit.Test;
+import org.vertx.java.core.Handler;
+import org.vertx.java.core.buffer.Buffer;
+
+import java.util.ArrayList;
+import java.util.List;
+
+public class MqttCodecTest {
+  private final MqttCodec codec = new MqttCodec(1024 * 1024);
+  private final List<MqttPacket> decoded = new ArrayList<MqttPacket>();
+  private final Handler<MqttPacket> collect = new Handler<MqttPacket>() {
+    @Override
+    public void handle(MqttPacket packet) {
+      decoded.add(packet);
+    }
+  };
+
+  @Test
+  public void testConnect() {
+    ConnectPacket connect = new ConnectPacket();
+    connect.setClientId("client");
+    connect.setCleanSession(true);
+    connect.setKeepAliveSeconds(60);
+    connect.setWill("will/topic", new byte[] {1, 2}, (byte) 1, true);
+    connect.setUsername("user");
+    connect.setPassword(new byte[] {3});
+
+    ConnectPacket result = (ConnectPacket) roundTrip(connect);
+    assertEquals(ConnectPacket.PROTOCOL_NAME, result.getProtocolName());
+    assertEquals(ConnectPacket.PROTOCOL_LEVEL, result.getProtocolLevel());
+    assertEquals("client", result.getClientId());
+    assertTrue(result.isCleanSession());
+    assertEquals(60, result.getKeepAliveSeconds());
+    assertEquals("will/topic", result.getWillTopic());
+    assertArrayEquals(new byte[] {1, 2}, result.getWillMessage());
+    assertEquals(1, result.getWillQos());
+    assertTrue(result.isWillRetain());
+    assertEquals("user", result.getUsername());
+    assertArrayEquals(new byte[] {3}, result.getPassword());
+  }
+
+  @Test
+  public void testControlPackets() {
+    ConnAckPacket connAck =
+        (ConnAckPacket) roundTrip(new ConnAckPacket(true, ConnAckPacket.NOT_AUTHORIZED));
+    assertTrue(connAck.isSessionPresent());
+    assertEquals(ConnAckPacket.NOT_AUTHORIZED, connAck.getReturnCode());
+
+    AckPacket pubRel = (AckPacket) roundTrip(new AckPacket(MqttPacket.PUBREL, 65535));
+    assertEquals(MqttPacket.PUBREL, pubRel.getType());
+    assertEquals(65535, pubRel.getPacketId());
+    assertEquals(0x62, MqttCodec.encode(pubRel).getByte(0));
+
+    SubscribePacket subscribe =
+        (SubscribePacket) roundTrip(new SubscribePacket(7, new String[] {"a", "b/c"}, new byte[] {
+            0, 2}));
+    assertEquals(7, subscribe.getPacketId());
+    assertArrayEquals(new String[] {"a", "b/c"}, subscribe.getTopicFilters());
+    assertArrayEquals(new byte[] {0, 2}, subscribe.getRequestedQos());
+
+    SubAckPacket subAck =
+        (SubAckPacket) roundTrip(new SubAckPacket(7, new byte[] {0, SubAckPacket.FAILURE}));
+    assertArrayEquals(new byte[] {0, SubAckPacket.FAILURE}, subAck.getReturnCodes());
+
+    UnsubscribePacket unsubscribe =
+        (UnsubscribePacket) roundTrip(new UnsubscribePacket(8, new String[] {"a"}));
+    assertArrayEquals(new String[] {"a"}, unsubscribe.getTopicFilters());
+
+    assertEquals(MqttPacket.PINGREQ, roundTrip(new EmptyPacket(MqttPacket.PINGREQ)).getType());
+    assertEquals(2, MqttCodec.encode(new EmptyPacket(MqttPacket.DISCONNECT)).length());
+  }
+
+  @Test
+  public void testPublish() {
+    PublishPacket publish = new PublishPacket("a/b", 42, "{\"x\":1}".getBytes());
+    publish.setQos((byte) 2);
+    publish.setRetain(true);
+    publish.setDup(true);
+
+    PublishPacket result = (PublishPacket) roundTrip(publish);
+    assertEquals("a/b", result.getTopic());
+    assertEquals(42, result.getPacketId());
+    assertEquals(2, result.getQos());
+    assertTrue(result.isRetain());
+    assertTrue(result.isDup());
+    assertArrayEquals("{\"x\":1}".getBytes(), result.getPayload());
+
+    PublishPacket qos0 = (PublishPacket) roundTrip(new PublishPacket("a", 0, new byte[0]));
+    assertEquals(0, qos0.getQos());
+    assertFalse(qos0.isRetain());
+    assertEquals(0, qos0.getPayload().length);
+  }
+
+  @Test
+  public void testRemainingLengthBoundaries() {
+    // Remaining lengths of 127, 128 and 16384 take 1, 2 and 3 bytes
+    int[] lengths = {127, 128, 16384};
+    int[] headerSizes = {2, 3, 4};
+    for (int i = 0; i < lengths.length; i++) {
+      PublishPacket publish = new PublishPacket("t", 0, new byte[lengths[i] - 3]);
+      Buffer buf = MqttCodec.encode(publish);
+      assertEquals(headerSizes[i] + lengths[i], buf.length());
+      decoded.clear();
+      codec.decode(buf, collect);
+      assertEquals(lengths[i] - 3, ((PublishPacket) decoded.get(0)).getPayload().length);
+    }
+  }
+
+  @Test
+  public void testSplitAndCoalescedReads() {
+    Buffer stream = new Buffer();
+    stream.appendBuffer(MqttCodec.encode(new PublishPacket("x", 0, new byte[300])));
+    stream.appendBuffer(MqttCodec.encode(new EmptyPacket(MqttPacket.PINGREQ)));
+    stream.appendBuffer(MqttCodec.encode(new AckPacket(MqttPacket.PUBACK, 3)));
+
+    // One byte at a time
+    for (int i = 0; i < stream.length(); i++) {
+      codec.decode(stream.getBuffer(i, i + 1), collect);
+    }
+    assertEquals(3, decoded.size());
+    assertEquals(300, ((PublishPacket) decoded.get(0)).getPayload().length);
+    assertEquals(MqttPacket.PINGREQ, decoded.get(1).getType());
+    assertEquals(3, ((AckPacket) decoded.get(2)).getPacketId());
+
+    // All at once
+    decoded.clear();
+    codec.decode(stream, collect);
+    assertEquals(3, decoded.size());
+  }
+
+  @Test
+  public void testMalformed() {
+    // Remaining length longer than 4 bytes
+    assertMalformed(new byte[] {(byte) 0xC0, (byte) 0xFF, (byte) 0xFF, (byte) 0xFF, (byte) 0xFF,
+        1});
+    // PUBREL with reserved flags of 0
+    assertMalformed(new byte[] {0x60, 2, 0, 1});
+    // PUBLISH at QoS 3
+    assertMalformed(new byte[] {0x36, 3, 0, 1, 'a'});
+    // Topic length past the end of the packet
+    assertMalformed(new byte[] {0x30, 2, 0, 5});
+    // Trailing bytes after a PINGREQ
+    assertMalformed(new byte[] {(byte) 0xC0, 1, 0});
+    // Larger than the maximum packet size
+    try {
+      new MqttCodec(10).decode(MqttCodec.encode(new PublishPacket("t", 0, new byte[20])),
+          collect);
+      fail();
+    } catch (IllegalArgumentException expected) {
+    }
+  }
+
+  private void assertMalformed(byte[] bytes) {
+    try {
+      new MqttCodec(1024).decode(new Buffer(bytes), collect);
+      fail();
+    } catch (IllegalArgumentException expected) {
+    }
+  }
+
+  private MqttPacket roundTrip(MqttPacket packet) {
+    decoded.clear();
+    codec.decode(MqttCodec.encode(packet), collect);
+    assertEquals(1, decoded.size());
+    return decoded.get(0);
+  }
+}
@@ -0,0 +1,134 @@
+/*
+ * Copyright 2014 Goodow.com
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ * 
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software distributed under the License
+ * is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package com.goodow.realtime.channel.server.impl;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import com.goodow.realtime.channel.mqtt.packet.AckPacket;
+import com.goodow.realtime.channel.mqtt.packet.MqttPacket;
+import com.goodow.realtime.channel.mqtt.packet.PublishPacket;
+
+import org.junit.Test;
+import org.vertx.java.core.Handler;
+import org.vertx.java.core.buffer.Buffer;
+
+public class MqttInflightTest {
+  private final Buffer payload = new Buffer("x");
+
+  @Test
+  public void testQos1Window() {
+    MqttInflight inflight = new MqttInflight(2, 10);
+    assertEquals(1, inflight.add("a", payload, (byte) 1));
+    assertEquals(2, inflight.add("b", payload, (byte) 1));
+    assertEquals(0, inflight.add("c", payload, (byte) 1));
+    assertEquals(2, inflight.size());
+    assertEquals(1, inflight.getQueued());
+    assertEquals(0, inflight.promote());
+
+    assertFalse(inflight.acknowledge(3));
+    assertFalse(inflight.complete(1));
+    assertTrue(inflight.acknowledge(1));
+    assertFalse(inflight.acknowledge(1));
+    assertEquals(3, inflight.promote());
+    assertEquals("c", ((PublishPacket) decode(inflight.encode(3, false))).getTopic());
+    assertEquals(0, inflight.getQueued());
+  }
+
+  @Test
+  public void testPacketIdSkipsBusySlots() {
+    MqttInflight inflight = new MqttInflight(2, 0);
+    assertEquals(1, inflight.add("a", payload, (byte) 1));
+    assertEquals(2, inflight.add("b", payload, (byte) 1));
+    assertTrue(inflight.acknowledge(2));
+    // 3 would take the slot of 1, which is still in flight
+    assertEquals(4, inflight.add("c", payload, (byte) 1));
+    assertArrayEquals(new int[] {1, 4}, inflight.packetIds());
+  }
+
+  @Test
+  public void testQos2Flow() {
+    MqttInflight inflight = new MqttInflight(4, 10);
+    int packetId = inflight.add("a", payload, (byte) 2);
+    assertFalse(inflight.acknowledge(packetId));
+    assertTrue(inflight.release(packetId));
+    AckPacket pubRel = (AckPacket) decode(inflight.encode(packetId, true));
+    assertEquals(MqttPacket.PUBREL, pubRel.getType());
+    assertEquals(packetId, pubRel.getPacketId());
+    assertTrue(inflight.release(packetId));
+    assertTrue(inflight.complete(packetId));
+    assertEquals(0, inflight.size());
+  }
+
+  @Test
+  public void testQueueDropsOldest() {
+    MqttInflight inflight = new MqttInflight(1, 2);
+    inflight.add("a", payload, (byte) 1);
+    inflight.add("b", payload, (byte) 1);
+    inflight.add("c", payload, (byte) 1);
+    inflight.add("d", payload, (byte) 1);
+    assertEquals(2, inflight.getQueued());
+    assertEquals(1, inflight.getDropped());
+
+    inflight.acknowledge(1);
+    int packetId = inflight.promote();
+    assertEquals("c", ((PublishPacket) decode(inflight.encode(packetId, false))).getTopic());
+  }
+
+  @Test
+  public void testRetransmitInSendOrderAcrossWrapAround() {
+    MqttInflight inflight = new MqttInflight(3, 0);
+    // Move the packet ids up to the end of their range
+    for (int i = 1; i < 65534; i++) {
+      assertEquals(i, inflight.add("t", payload, (byte) 1));
+      assertTrue(inflight.acknowledge(i));
+    }
+    assertEquals(65534, inflight.add("a", payload, (byte) 1));
+    assertEquals(65535, inflight.add("b", payload, (byte) 2));
+    assertTrue(inflight.release(65535));
+    assertTrue(inflight.acknowledge(65534));
+    assertEquals(1, inflight.add("c", payload, (byte) 1));
+    assertEquals(2, inflight.add("d", payload, (byte) 1));
+
+    assertArrayEquals(new int[] {65535, 1, 2}, inflight.packetIds());
+    PublishPacket dup = (PublishPacket) decode(inflight.encode(1, true));
+    assertTrue(dup.isDup());
+    assertEquals(1, dup.getQos());
+    assertEquals(MqttPacket.PUBREL, decode(inflight.encode(65535, true)).getType());
+  }
+
+  @Test
+  public void testClear() {
+    MqttInflight inflight = new MqttInflight(1, 5);
+    inflight.add("a", payload, (byte) 1);
+    inflight.add("b", payload, (byte) 1);
+    inflight.clear();
+    assertEquals(0, inflight.size());
+    assertEquals(0, inflight.getQueued());
+    assertEquals(0, inflight.promote());
+  }
+
+  private MqttPacket decode(Buffer buf) {
+    final MqttPacket[] decoded = new MqttPacket[1];
+    new MqttCodec(1024).decode(buf, new Handler<MqttPacket>() {
+      @Override
+      public void handle(MqttPacket packet) {
+        decoded[0] = packet;
+      }
+    });
+    return decoded[0];
+  }
+}
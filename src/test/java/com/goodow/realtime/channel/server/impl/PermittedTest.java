@@ -0,0 +1,58 @@
+/*
+ * Copyright 2014 Goodow.com
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License
+ * is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package com.goodow.realtime.channel.server.impl;
+
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import org.junit.Test;
+import org.vertx.java.core.json.JsonArray;
+import org.vertx.java.core.json.JsonObject;
+
+public class PermittedTest {
+  @Test
+  public void testPermitsAll() {
+    assertTrue(new Permitted(new JsonObject()).permitsAll());
+    Permitted permitted = new Permitted(new JsonObject().putArray("inbound_permitted",
+        new JsonArray().add(new JsonObject())).putArray("outbound_permitted", new JsonArray()));
+    assertFalse(permitted.permitsAll());
+    assertTrue(permitted.inbound("a", "x"));
+    assertFalse(permitted.outbound("a", null));
+  }
+
+  @Test
+  public void testMatches() {
+    JsonArray matches = new JsonArray()
+        .add(new JsonObject().putString("address", "exact"))
+        .add(new JsonObject().putString("address_re", "room/.*"))
+        .add(new JsonObject().putString("address", "typed").putObject("match",
+            new JsonObject().putString("type", "chat")))
+        .add(new JsonObject().putString("address", "secret").putBoolean("requires_auth", true));
+    Permitted permitted = new Permitted(new JsonObject().putArray("inbound_permitted", matches)
+        .putArray("outbound_permitted", matches));
+
+    assertTrue(permitted.inbound("exact", "x"));
+    assertFalse(permitted.inbound("exact/not", "x"));
+    assertTrue(permitted.outbound("room/1", null));
+    assertFalse(permitted.outbound("rooms", null));
+    assertTrue(permitted.inbound("typed", new JsonObject().putString("type", "chat")
+        .putNumber("n", 1)));
+    assertFalse(permitted.inbound("typed", new JsonObject().putString("type", "other")));
+    assertFalse(permitted.inbound("typed", "chat"));
+    // Subscribing is checked on the address alone
+    assertTrue(permitted.outbound("typed", null));
+    // Never for clients which aren't authenticated
+    assertFalse(permitted.inbound("secret", "x"));
+  }
+}
@@ -0,0 +1,89 @@
+/*
+ * Copyright 2014 Goodow.com
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License
+ * is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package com.goodow.realtime.channel.server.impl;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import org.junit.Test;
+
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+
+public class PresenceTableTest {
+  private final PresenceTable table = new PresenceTable();
+
+  @Test
+  public void testAddAndRemove() {
+    assertTrue(table.add("n1", "doc", "s1"));
+    assertTrue(table.add("n1", "doc", "s2"));
+    assertFalse(table.add("n1", "doc", "s1"));
+    assertEquals(2, table.count("doc"));
+    assertEquals(new HashSet<String>(Arrays.asList("s1", "s2")), table.sessions("doc"));
+    assertTrue(table.contains("doc", "s1"));
+    assertEquals(0, table.count("other"));
+
+    assertTrue(table.remove("n1", "doc", "s1"));
+    assertFalse(table.remove("n1", "doc", "s1"));
+    assertFalse(table.contains("doc", "s1"));
+    assertTrue(table.remove("n1", "doc", "s2"));
+    assertEquals(0, table.count("doc"));
+    assertFalse(table.hasNode("n1"));
+  }
+
+  @Test
+  public void testSessionOnSeveralNodes() {
+    assertTrue(table.add("n1", "doc", "s1"));
+    assertFalse(table.add("n2", "doc", "s1"));
+    assertEquals(1, table.count("doc"));
+
+    assertFalse(table.remove("n1", "doc", "s1"));
+    assertTrue(table.contains("doc", "s1"));
+    assertTrue(table.remove("n2", "doc", "s1"));
+    assertFalse(table.contains("doc", "s1"));
+  }
+
+  @Test
+  public void testRemoveNode() {
+    table.add("n1", "doc", "s1");
+    table.add("n1", "doc", "s2");
+    table.add("n1", "other", "s1");
+    table.add("n2", "doc", "s2");
+
+    Map<String, List<String>> left = table.removeNode("n1");
+    assertEquals(Arrays.asList("s1"), left.get("doc"));
+    assertEquals(Arrays.asList("s1"), left.get("other"));
+    assertEquals(1, table.count("doc"));
+    assertTrue(table.contains("doc", "s2"));
+    assertEquals(0, table.count("other"));
+    assertFalse(table.hasNode("n1"));
+    assertTrue(table.removeNode("n1").isEmpty());
+  }
+
+  @Test
+  public void testNodeSnapshot() {
+    table.add("n1", "doc", "s1");
+    table.add("n1", "other", "s2");
+    table.add("n2", "doc", "s3");
+
+    Map<String, ?> topics = table.node("n1");
+    assertEquals(2, topics.size());
+    assertEquals(new HashSet<String>(Arrays.asList("s1")), topics.get("doc"));
+    assertTrue(table.node("n3").isEmpty());
+    assertEquals(new HashSet<String>(Arrays.asList("n1", "n2")), table.nodes());
+  }
+}
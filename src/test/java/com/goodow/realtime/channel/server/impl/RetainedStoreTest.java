@@ -0,0 +1,78 @@
+/*
+ * Copyright 2014 Goodow.com
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ * 
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software distributed under the License
+ * is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package com.goodow.realtime.channel.server.impl;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import org.junit.Test;
+import org.vertx.java.core.json.JsonObject;
+
+public class RetainedStoreTest {
+  // Each entry of a one letter topic and a ten byte message costs 108 bytes
+  private static final String MESSAGE = "0123456789";
+
+  private final RetainedStore store = new RetainedStore(new JsonObject().putNumber(
+      RetainedStore.MAX_BYTES, 250).putNumber(RetainedStore.MAX_MESSAGE_BYTES, 20));
+
+  @Test
+  public void testPutAndClear() {
+    assertTrue(store.put("a", MESSAGE));
+    assertEquals(MESSAGE, store.get("a"));
+    assertEquals(108, store.getBytes());
+    assertTrue(store.put("a", "new"));
+    assertEquals("new", store.get("a"));
+    assertEquals(101, store.getBytes());
+
+    assertFalse(store.put("a", null));
+    assertNull(store.get("a"));
+    assertEquals(0, store.getBytes());
+    store.put("a", MESSAGE);
+    assertFalse(store.put("a", ""));
+    assertEquals(0, store.size());
+  }
+
+  @Test
+  public void testEvictsLeastRecentlyUsed() {
+    store.put("a", MESSAGE);
+    store.put("b", MESSAGE);
+    // Delivering a makes b the least recently used
+    store.get("a");
+    store.put("c", MESSAGE);
+    assertEquals(2, store.size());
+    assertNull(store.get("b"));
+    assertEquals(MESSAGE, store.get("a"));
+    assertEquals(MESSAGE, store.get("c"));
+    assertEquals(1, store.getEvicted());
+    assertEquals(216, store.getBytes());
+  }
+
+  @Test
+  public void testOversizedMessageIsNotRetained() {
+    store.put("a", MESSAGE);
+    assertFalse(store.put("a", MESSAGE + MESSAGE + MESSAGE));
+    assertNull(store.get("a"));
+    assertEquals(0, store.getBytes());
+  }
+
+  @Test
+  public void testPayloadsOfBodies() {
+    store.put("a", 42);
+    assertEquals("42", new String(store.getPayload("a")));
+    store.put("b", new byte[] {1, 2});
+    assertEquals(2, store.getPayload("b").length);
+  }
+}
@@ -0,0 +1,55 @@
+/*
+ * Copyright 2014 Goodow.com
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License
+ * is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package com.goodow.realtime.channel.server.impl;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertSame;
+
+import com.goodow.realtime.json.impl.JreJsonArray;
+import com.goodow.realtime.json.impl.JreJsonObject;
+
+import org.junit.Test;
+import org.vertx.java.core.json.JsonArray;
+import org.vertx.java.core.json.JsonObject;
+
+import java.util.HashMap;
+
+public class VertxJsonTest {
+
+  @Test
+  public void testReceivedObjectIsShared() {
+    JsonObject vertx = new JsonObject().putString("a", "b");
+    JreJsonObject realtime = (JreJsonObject) VertxBus.unwrapMsg(vertx);
+    assertEquals("b", realtime.getString("a"));
+    assertSame(VertxJson.mapOf(vertx), realtime.toNative());
+  }
+
+  @Test
+  public void testReceivedArrayIsShared() {
+    JsonArray vertx = new JsonArray().addNumber(1);
+    JreJsonArray realtime = (JreJsonArray) VertxBus.unwrapMsg(vertx);
+    assertEquals(1, realtime.length());
+    assertSame(VertxJson.listOf(vertx), realtime.toNative());
+  }
+
+  @Test
+  public void testSentObjectIsCopied() {
+    JreJsonObject realtime = new JreJsonObject(new HashMap<String, Object>());
+    realtime.set("a", "b");
+    JsonObject vertx = (JsonObject) VertxBus.wrapMsg(realtime);
+    // Changes made after sending must not reach the receivers
+    realtime.set("a", "c");
+    assertEquals("b", vertx.getString("a"));
+  }
+}
@@ -0,0 +1,87 @@
+/*
+ * Copyright 2014 Goodow.com
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License
+ * is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package com.goodow.realtime.channel.util;
+
+import com.goodow.realtime.json.Json;
+import com.goodow.realtime.json.JsonObject;
+
+/**
+ * Measures reordering a stream of messages which arrive in shuffled blocks, with a
+ * {@link ReorderBuffer} compared with a JsonObject keyed by {@code "" + sequence}, as
+ * ReliableSubscribeBus used to do.<p>
+ * Run with
+ * {@code java -cp <test classpath> com.goodow.realtime.channel.util.ReorderBufferBenchmark}.
+ */
+public class ReorderBufferBenchmark {
+  private static final int MESSAGES = 1000 * 1000;
+  private static final int BLOCK = 64; // messages are reversed within blocks of this size
+
+  public static void main(String[] args) {
+    double[] arrivals = new double[MESSAGES];
+    for (int i = 0; i < MESSAGES; i++) {
+      int block = i / BLOCK * BLOCK;
+      arrivals[i] = block + (BLOCK - 1 - i % BLOCK) + 1;
+    }
+    Object message = new Object();
+
+    long delivered = 0;
+    for (int round = 0; round < 5; round++) {
+      long start = System.nanoTime();
+      delivered += reorderBuffer(arrivals, message);
+      long bufferNanos = (System.nanoTime() - start) / MESSAGES;
+
+      start = System.nanoTime();
+      delivered += jsonObject(arrivals, message);
+      long jsonNanos = (System.nanoTime() - start) / MESSAGES;
+
+      System.out.println("round " + round + ": ReorderBuffer " + bufferNanos
+          + " ns/message, JsonObject " + jsonNanos + " ns/message");
+    }
+    System.out.println("total delivered: " + delivered);
+  }
+
+  private static int jsonObject(double[] arrivals, Object message) {
+    JsonObject pending = Json.createObject();
+    double currentSequence = 0;
+    int delivered = 0;
+    for (double sequence : arrivals) {
+      if (sequence > currentSequence + 1) {
+        pending.set("" + sequence, message);
+        continue;
+      }
+      Object next = message;
+      while (next != null) {
+        delivered++;
+        String key = ++currentSequence + 1 + "";
+        next = pending.get(key);
+        if (next != null) {
+          pending.remove(key);
+        }
+      }
+    }
+    return delivered;
+  }
+
+  private static int reorderBuffer(double[] arrivals, Object message) {
+    ReorderBuffer buffer = new ReorderBuffer(1, 1024);
+    int delivered = 0;
+    for (double sequence : arrivals) {
+      buffer.put(sequence, message);
+      while (buffer.poll() != null) {
+        delivered++;
+      }
+    }
+    return delivered;
+  }
+}
@@ -0,0 +1,80 @@
+/*
+ * Copyright 2014 Goodow.com
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License
+ * is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package com.goodow.realtime.channel.util;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import org.junit.Test;
+
+public class ReorderBufferTest {
+
+  @Test
+  public void testInOrder() {
+    ReorderBuffer buffer = new ReorderBuffer(1, 8);
+    assertTrue(buffer.put(1, "a"));
+    assertEquals("a", buffer.poll());
+    assertNull(buffer.poll());
+    assertEquals(2, buffer.getNextSequence(), 0);
+    assertTrue(buffer.isEmpty());
+  }
+
+  @Test
+  public void testFillGap() {
+    ReorderBuffer buffer = new ReorderBuffer(10, 8);
+    assertTrue(buffer.put(12, "c"));
+    assertTrue(buffer.put(11, "b"));
+    assertNull(buffer.poll());
+    assertEquals("b", buffer.get(11));
+    assertTrue(buffer.put(10, "a"));
+    assertEquals("a", buffer.poll());
+    assertEquals("b", buffer.poll());
+    assertEquals("c", buffer.poll());
+    assertNull(buffer.poll());
+    assertEquals(13, buffer.getNextSequence(), 0);
+  }
+
+  @Test
+  public void testRejects() {
+    ReorderBuffer buffer = new ReorderBuffer(5, 4);
+    assertFalse(buffer.put(4, "passed"));
+    assertTrue(buffer.put(6, "b"));
+    assertFalse(buffer.put(6, "dup"));
+    assertTrue(buffer.isBeyondWindow(9));
+    assertFalse(buffer.put(9, "too far"));
+    assertTrue(buffer.put(8, "d"));
+    assertEquals(2, buffer.size());
+  }
+
+  @Test
+  public void testGrowAcrossTheRingBoundary() {
+    ReorderBuffer buffer = new ReorderBuffer(0, 1024);
+    // Move the head of the ring away from index 0 before growing it
+    for (int i = 0; i < 10; i++) {
+      buffer.put(i, i);
+      buffer.poll();
+    }
+    for (int i = 100; i >= 11; i--) {
+      assertTrue(buffer.put(i, i));
+    }
+    assertEquals(90, buffer.size());
+    assertTrue(buffer.put(10, 10));
+    for (int i = 10; i <= 100; i++) {
+      assertEquals(i, buffer.poll());
+    }
+    assertTrue(buffer.isEmpty());
+  }
+}
@@ -0,0 +1,80 @@
+/*
+ * Copyright 2014 Goodow.com
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License
+ * is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package com.goodow.realtime.channel.util;
+
+/**
+ * Measures the cost of matching a published topic against 100k subscriptions, compared with a
+ * linear scan over every filter.<p>
+ * Run with {@code java -cp <test classpath> com.goodow.realtime.channel.util.TopicTrieBenchmark}.
+ */
+public class TopicTrieBenchmark {
+  private static final int SUBSCRIPTIONS = 100 * 1000;
+  private static final int ITERATIONS = 200 * 1000;
+  private static final int LINEAR_ITERATIONS = 200;
+
+  public static void main(String[] args) {
+    TopicTrie trie = new TopicTrie();
+    String[] filters = new String[SUBSCRIPTIONS];
+    for (int i = 0; i < SUBSCRIPTIONS; i++) {
+      // 1% wildcard filters, the rest exact per-document topics
+      filters[i] = i % 100 == 0 ? "realtime/store/+/_presence/" + i : "realtime/store/" + i
+          + "/_watch";
+      trie.add(filters[i], Integer.valueOf(i));
+    }
+    String[] topics = new String[1024];
+    for (int i = 0; i < topics.length; i++) {
+      topics[i] = "realtime/store/" + (i * 97 % SUBSCRIPTIONS) + "/_watch";
+    }
+
+    long matches = 0;
+    for (int round = 0; round < 3; round++) {
+      long start = System.nanoTime();
+      for (int i = 0; i < ITERATIONS; i++) {
+        Object[] results = trie.match(topics[i & (topics.length - 1)], null);
+        matches += results == null ? 0 : results.length;
+      }
+      long trieNanos = (System.nanoTime() - start) / ITERATIONS;
+
+      start = System.nanoTime();
+      for (int i = 0; i < LINEAR_ITERATIONS; i++) {
+        matches += linearMatch(filters, topics[i & (topics.length - 1)]);
+      }
+      long linearNanos = (System.nanoTime() - start) / LINEAR_ITERATIONS;
+
+      System.out.println("round " + round + ": trie " + trieNanos + " ns/match, linear scan "
+          + linearNanos + " ns/match (" + SUBSCRIPTIONS + " subscriptions)");
+    }
+    System.out.println("total matches: " + matches);
+  }
+
+  private static int linearMatch(String[] filters, String topic) {
+    String[] levels = topic.split("/");
+    int matches = 0;
+    for (String filter : filters) {
+      String[] filterLevels = filter.split("/");
+      if (filterLevels.length != levels.length) {
+        continue;
+      }
+      boolean matched = true;
+      for (int i = 0; i < levels.length && matched; i++) {
+        matched = TopicTrie.SINGLE_LEVEL.equals(filterLevels[i])
+                  || filterLevels[i].equals(levels[i]);
+      }
+      if (matched) {
+        matches++;
+      }
+    }
+    return matches;
+  }
+}
@@ -0,0 +1,106 @@
+/*
+ * Copyright 2014 Goodow.com
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License
+ * is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package com.goodow.realtime.channel.util;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+import org.junit.Test;
+
+public class TopicTrieTest {
+
+  private static int match(TopicTrie trie, String topic) {
+    Object[] values = trie.match(topic, null);
+    return values == null ? 0 : values.length;
+  }
+
+  @Test
+  public void testIsWildcard() {
+    assertFalse(TopicTrie.isWildcard("realtime/store/a/_watch"));
+    assertFalse(TopicTrie.isWildcard("a+b/c#"));
+    assertTrue(TopicTrie.isWildcard("realtime/store/+/_watch"));
+    assertTrue(TopicTrie.isWildcard("realtime/#"));
+    assertFalse(TopicTrie.isWildcard("realtime/#/_watch"));
+    assertTrue(TopicTrie.isWildcard("realtime/#/+"));
+  }
+
+  @Test
+  public void testNonTrailingMultiLevelIsLiteral() {
+    TopicTrie trie = new TopicTrie();
+    trie.add("realtime/#/+", "literal");
+    assertEquals(1, match(trie, "realtime/#/a"));
+    assertEquals(0, match(trie, "realtime/a/b"));
+    assertTrue(trie.remove("realtime/#/+", "literal"));
+    assertTrue(trie.isEmpty());
+  }
+
+  @Test
+  public void testHasMatch() {
+    TopicTrie trie = new TopicTrie();
+    assertFalse(trie.hasMatch("a/b"));
+    trie.add("a/+/c", "one");
+    trie.add("@bus/#", "local");
+    assertTrue(trie.hasMatch("a/b/c"));
+    assertFalse(trie.hasMatch("a/b"));
+    assertFalse(trie.hasMatch("a/b/c/d"));
+    assertTrue(trie.hasMatch("@bus/onOpen"));
+    assertFalse(trie.hasMatch("@other"));
+    trie.add("#", "all");
+    assertTrue(trie.hasMatch("a/b"));
+    assertFalse(trie.hasMatch("@other"));
+  }
+
+  @Test
+  public void testMatch() {
+    TopicTrie trie = new TopicTrie();
+    trie.add("realtime/store/+/_watch", "watch");
+    trie.add("realtime/#", "all");
+    trie.add("#", "root");
+    trie.add("realtime/store/doc1/_watch", "exact");
+
+    assertEquals(4, match(trie, "realtime/store/doc1/_watch"));
+    assertEquals(3, match(trie, "realtime/store/doc2/_watch"));
+    assertEquals(2, match(trie, "realtime"));
+    assertEquals(1, match(trie, "other/topic"));
+    assertEquals(0, match(trie, "@realtime/bus/onOpen"));
+  }
+
+  @Test
+  public void testMatchSharesSnapshots() {
+    TopicTrie trie = new TopicTrie();
+    trie.add("a/+", "h1");
+    Object[] exact = {"h0"};
+    assertSame(exact, trie.match("b/c", exact));
+    assertSame(trie.match("a/b", null), trie.match("a/c", null));
+    assertEquals(2, trie.match("a/b", exact).length);
+  }
+
+  @Test
+  public void testRemove() {
+    TopicTrie trie = new TopicTrie();
+    assertTrue(trie.add("a/+/c", "h1"));
+    assertFalse(trie.add("a/+/c", "h1"));
+    assertTrue(trie.add("a/+/c", "h2"));
+    assertEquals(2, trie.size());
+
+    assertTrue(trie.remove("a/+/c", "h1"));
+    assertFalse(trie.remove("a/+/c", "h1"));
+    assertEquals(1, match(trie, "a/b/c"));
+    assertTrue(trie.remove("a/+/c", "h2"));
+    assertTrue(trie.isEmpty());
+    assertEquals(0, match(trie, "a/b/c"));
+  }
+}
@@ -0,0 +1,166 @@
+/*
+ * Copyright 2014 Goodow.com
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License
+ * is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package com.goodow.realtime.core;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import org.junit.Test;
+
+public class TimerWheelTest {
+  /**
+   * A wheel ticked by hand.
+   */
+  private static class ManualTimerWheel extends TimerWheel {
+    boolean ticking;
+
+    ManualTimerWheel(int tickMs, int wheelSize) {
+      super(tickMs, wheelSize);
+    }
+
+    @Override
+    protected void startTicking() {
+      ticking = true;
+    }
+
+    @Override
+    protected void stopTicking() {
+      ticking = false;
+    }
+  }
+
+  private static class CountingHandler implements Handler<Void> {
+    int count;
+
+    @Override
+    public void handle(Void event) {
+      count++;
+    }
+  }
+
+  @Test
+  public void testFiresAfterDelay() {
+    ManualTimerWheel wheel = new ManualTimerWheel(10, 4);
+    CountingHandler handler = new CountingHandler();
+    wheel.schedule(95, handler); // 10 ticks, more than two rounds of the wheel
+    assertTrue(wheel.ticking);
+    for (int i = 0; i < 9; i++) {
+      wheel.tick();
+    }
+    assertEquals(0, handler.count);
+    wheel.tick();
+    assertEquals(1, handler.count);
+    assertEquals(0, wheel.size());
+    assertFalse(wheel.ticking);
+  }
+
+  @Test
+  public void testCancel() {
+    ManualTimerWheel wheel = new ManualTimerWheel(10, 8);
+    CountingHandler handler = new CountingHandler();
+    TimerWheel.Timeout first = wheel.schedule(10, handler);
+    TimerWheel.Timeout second = wheel.scheduleAfterLastTick(10, handler);
+    assertTrue(first.cancel());
+    assertFalse(first.cancel());
+    wheel.tick();
+    assertEquals(1, handler.count);
+    assertFalse(second.cancel());
+    assertFalse(wheel.ticking);
+  }
+
+  @Test
+  public void testNeverFiresEarlyWhileTicking() {
+    ManualTimerWheel wheel = new ManualTimerWheel(10, 8);
+    CountingHandler first = new CountingHandler();
+    CountingHandler second = new CountingHandler();
+    wheel.schedule(30, first);
+    // Scheduled at an unknown time after the last tick, so given an extra tick
+    wheel.schedule(10, second);
+    wheel.tick();
+    assertEquals(0, second.count);
+    wheel.tick();
+    assertEquals(1, second.count);
+    // Counted from the last tick
+    CountingHandler third = new CountingHandler();
+    wheel.scheduleAfterLastTick(10, third);
+    wheel.tick();
+    assertEquals(1, first.count);
+    assertEquals(1, third.count);
+  }
+
+  @Test
+  public void testCancelWithinTheSameTick() {
+    ManualTimerWheel wheel = new ManualTimerWheel(10, 8);
+    final CountingHandler handler = new CountingHandler();
+    final TimerWheel.Timeout[] timeouts = new TimerWheel.Timeout[2];
+    Handler<Void> canceller = new Handler<Void>() {
+      @Override
+      public void handle(Void event) {
+        // Whichever fires first cancels the other
+        handler.count++;
+        for (TimerWheel.Timeout timeout : timeouts) {
+          timeout.cancel();
+        }
+      }
+    };
+    timeouts[0] = wheel.schedule(10, canceller);
+    timeouts[1] = wheel.schedule(10, canceller);
+    wheel.tick();
+    assertEquals(1, handler.count);
+    assertEquals(0, wheel.size());
+  }
+
+  @Test
+  public void testClearWithinATick() {
+    final ManualTimerWheel wheel = new ManualTimerWheel(10, 8);
+    final CountingHandler handler = new CountingHandler();
+    Handler<Void> clearing = new Handler<Void>() {
+      @Override
+      public void handle(Void event) {
+        handler.count++;
+        wheel.clear();
+      }
+    };
+    TimerWheel.Timeout first = wheel.schedule(10, clearing);
+    TimerWheel.Timeout second = wheel.schedule(10, clearing);
+    wheel.tick();
+    assertEquals(1, handler.count);
+    assertFalse(first.cancel());
+    assertFalse(second.cancel());
+  }
+
+  @Test
+  public void testLongestDelay() {
+    ManualTimerWheel wheel = new ManualTimerWheel(100, 8);
+    CountingHandler handler = new CountingHandler();
+    TimerWheel.Timeout timeout = wheel.schedule(Integer.MAX_VALUE, handler);
+    for (int i = 0; i < 100; i++) {
+      wheel.tick();
+    }
+    assertEquals(0, handler.count);
+    assertTrue(timeout.cancel());
+  }
+
+  @Test
+  public void testTicksUntilNextBucket() {
+    ManualTimerWheel wheel = new ManualTimerWheel(10, 8);
+    assertEquals(-1, wheel.ticksUntilNextBucket());
+    wheel.schedule(30, new CountingHandler());
+    wheel.schedule(50, new CountingHandler());
+    assertEquals(3, wheel.ticksUntilNextBucket());
+    wheel.tick();
+    assertEquals(2, wheel.ticksUntilNextBucket());
+  }
+}
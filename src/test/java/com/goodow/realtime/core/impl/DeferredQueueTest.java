@@ -0,0 +1,162 @@
+/*
+ * Copyright 2014 Goodow.com
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License
+ * is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package com.goodow.realtime.core.impl;
+
+import static org.junit.Assert.assertEquals;
+
+import com.goodow.realtime.core.Handler;
+
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+
+public class DeferredQueueTest {
+  /**
+   * A queue whose platform callbacks are run by hand.
+   */
+  private static class ManualQueue extends DeferredQueue {
+    final List<Handler<Void>> callbacks = new ArrayList<Handler<Void>>();
+
+    ManualQueue(int budget) {
+      super(budget);
+    }
+
+    /**
+     * Runs the oldest platform callback.
+     */
+    void turn() {
+      callbacks.remove(0).handle(null);
+    }
+
+    @Override
+    protected void scheduleDrain(Handler<Void> drain) {
+      callbacks.add(drain);
+    }
+  }
+
+  private final List<Integer> ran = new ArrayList<Integer>();
+
+  @Test
+  public void testBatchesHandlersIntoOneCallback() {
+    ManualQueue queue = new ManualQueue(100);
+    for (int i = 0; i < 50; i++) {
+      queue.add(record(i));
+    }
+    assertEquals(1, queue.callbacks.size());
+    assertEquals(0, ran.size());
+
+    queue.turn();
+    assertEquals(50, ran.size());
+    for (int i = 0; i < 50; i++) {
+      assertEquals(i, ran.get(i).intValue());
+    }
+    assertEquals(0, queue.size());
+    assertEquals(0, queue.callbacks.size());
+  }
+
+  @Test
+  public void testBudgetYieldsToThePlatform() {
+    ManualQueue queue = new ManualQueue(4);
+    for (int i = 0; i < 10; i++) {
+      queue.add(record(i));
+    }
+    queue.turn();
+    assertEquals(4, ran.size());
+    assertEquals(1, queue.callbacks.size());
+    queue.turn();
+    assertEquals(8, ran.size());
+    queue.turn();
+    assertEquals(10, ran.size());
+    assertEquals(0, queue.callbacks.size());
+    for (int i = 0; i < 10; i++) {
+      assertEquals(i, ran.get(i).intValue());
+    }
+  }
+
+  @Test
+  public void testHandlersDeferredWhileDraining() {
+    final ManualQueue queue = new ManualQueue(3);
+    queue.add(new Handler<Void>() {
+      @Override
+      public void handle(Void ignore) {
+        ran.add(0);
+        queue.add(record(2));
+        queue.add(record(3));
+        queue.add(record(4));
+      }
+    });
+    queue.add(record(1));
+    assertEquals(1, queue.callbacks.size());
+
+    queue.turn();
+    assertEquals(3, ran.size());
+    assertEquals(1, queue.callbacks.size());
+    queue.turn();
+    assertEquals(5, ran.size());
+    for (int i = 0; i < 5; i++) {
+      assertEquals(i, ran.get(i).intValue());
+    }
+  }
+
+  @Test
+  public void testFailingHandlerDoesNotStallTheQueue() {
+    ManualQueue queue = new ManualQueue(10);
+    queue.add(record(0));
+    queue.add(new Handler<Void>() {
+      @Override
+      public void handle(Void ignore) {
+        throw new RuntimeException("expected");
+      }
+    });
+    queue.add(record(1));
+    queue.turn();
+    assertEquals(2, ran.size());
+
+    queue.add(record(2));
+    assertEquals(1, queue.callbacks.size());
+    queue.turn();
+    assertEquals(3, ran.size());
+  }
+
+  @Test
+  public void testGrowsAcrossTheRingBoundary() {
+    ManualQueue queue = new ManualQueue(10);
+    for (int i = 0; i < 12; i++) {
+      queue.add(record(i));
+    }
+    queue.turn();
+    // The head is now in the middle of the ring, which must grow while wrapped around
+    for (int i = 12; i < 40; i++) {
+      queue.add(record(i));
+    }
+    assertEquals(30, queue.size());
+    while (!queue.callbacks.isEmpty()) {
+      queue.turn();
+    }
+    assertEquals(40, ran.size());
+    for (int i = 0; i < 40; i++) {
+      assertEquals(i, ran.get(i).intValue());
+    }
+  }
+
+  private Handler<Void> record(final int i) {
+    return new Handler<Void>() {
+      @Override
+      public void handle(Void ignore) {
+        ran.add(i);
+      }
+    };
+  }
+}
@@ -0,0 +1,141 @@
+/*
+ * Copyright 2014 Goodow.com
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License
+ * is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package com.goodow.realtime.core.impl;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import com.goodow.realtime.core.Handler;
+
+import org.junit.Test;
+
+public class TimerWheelSchedulerTest {
+  /**
+   * A scheduler with a fake clock and a fake native timer.
+   */
+  private static class ManualScheduler extends TimerWheelScheduler {
+    double now;
+    int nativeTimers;
+    double nativeDue = -1;
+
+    ManualScheduler() {
+      super(10);
+    }
+
+    /**
+     * Moves the clock forward, firing the native timer whenever it is due.
+     */
+    void advance(int ms) {
+      double end = now + ms;
+      while (nativeDue != -1 && nativeDue <= end) {
+        now = Math.max(now, nativeDue);
+        nativeDue = -1;
+        onNativeTimer();
+      }
+      now = end;
+    }
+
+    @Override
+    public void handle(Object handler, Object event) {
+    }
+
+    @Override
+    public void scheduleDeferred(Handler<Void> handler) {
+    }
+
+    @Override
+    protected void cancelNativeTimer() {
+      nativeDue = -1;
+    }
+
+    @Override
+    protected double now() {
+      return now;
+    }
+
+    @Override
+    protected void startNativeTimer(int delayMs) {
+      assertEquals(-1, nativeDue, 0);
+      nativeTimers++;
+      nativeDue = now + delayMs;
+    }
+  }
+
+  private static class Recorder implements Handler<Void> {
+    final StringBuilder log;
+    final ManualScheduler scheduler;
+    final String name;
+
+    Recorder(StringBuilder log, ManualScheduler scheduler, String name) {
+      this.log = log;
+      this.scheduler = scheduler;
+      this.name = name;
+    }
+
+    @Override
+    public void handle(Void event) {
+      log.append(name).append('@').append((int) scheduler.now).append(' ');
+    }
+  }
+
+  @Test
+  public void testDelays() {
+    ManualScheduler scheduler = new ManualScheduler();
+    StringBuilder log = new StringBuilder();
+    scheduler.scheduleDelay(100, new Recorder(log, scheduler, "b"));
+    scheduler.scheduleDelay(30, new Recorder(log, scheduler, "a"));
+    // Far beyond one round of the wheel
+    scheduler.scheduleDelay(6000, new Recorder(log, scheduler, "c"));
+    scheduler.advance(10000);
+    assertEquals("a@30 b@100 c@6000 ", log.toString());
+    // The native timer is only armed for buckets holding timers
+    assertTrue(scheduler.nativeTimers < 10);
+    assertEquals(-1, scheduler.nativeDue, 0);
+  }
+
+  @Test
+  public void testCancelAndIdReuse() {
+    ManualScheduler scheduler = new ManualScheduler();
+    StringBuilder log = new StringBuilder();
+    int first = scheduler.scheduleDelay(50, new Recorder(log, scheduler, "a"));
+    assertTrue(scheduler.cancelTimer(first));
+    assertFalse(scheduler.cancelTimer(first));
+    int second = scheduler.scheduleDelay(50, new Recorder(log, scheduler, "b"));
+    // The slot is reused, but the stale id doesn't cancel the new timer
+    assertTrue(first != second);
+    assertFalse(scheduler.cancelTimer(first));
+    scheduler.advance(100);
+    assertEquals("b@50 ", log.toString());
+    assertFalse(scheduler.cancelTimer(second));
+  }
+
+  @Test
+  public void testPeriodic() {
+    final ManualScheduler scheduler = new ManualScheduler();
+    final StringBuilder log = new StringBuilder();
+    final int[] id = new int[1];
+    id[0] = scheduler.schedulePeriodic(20, new Handler<Void>() {
+      @Override
+      public void handle(Void event) {
+        log.append((int) scheduler.now).append(' ');
+        if (scheduler.now >= 60) {
+          scheduler.cancelTimer(id[0]);
+        }
+      }
+    });
+    scheduler.advance(200);
+    assertEquals("20 40 60 ", log.toString());
+  }
+}
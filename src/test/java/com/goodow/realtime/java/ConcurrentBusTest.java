@@ -0,0 +1,126 @@
+/*
+ * Copyright 2014 Goodow.com
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License
+ * is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package com.goodow.realtime.java;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import com.goodow.realtime.channel.Message;
+import com.goodow.realtime.channel.ReplyException;
+import com.goodow.realtime.channel.ReplyFailure;
+import com.goodow.realtime.core.AsyncResult;
+import com.goodow.realtime.core.Handler;
+
+import org.junit.After;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicReference;
+
+public class ConcurrentBusTest {
+  private final ConcurrentBus bus = new ConcurrentBus(4);
+
+  @After
+  public void tearDown() {
+    bus.close();
+  }
+
+  @Test
+  public void testOrderPerTopic() throws InterruptedException {
+    final int topics = 8;
+    final int messages = 1000;
+    final CountDownLatch done = new CountDownLatch(topics * messages);
+    final List<String> errors = Collections.synchronizedList(new ArrayList<String>());
+    for (int t = 0; t < topics; t++) {
+      final int[] expected = new int[1];
+      bus.subscribe("topic/" + t, new Handler<Message<Integer>>() {
+        @Override
+        public void handle(Message<Integer> message) {
+          if (message.body() != expected[0]++) {
+            errors.add(message.topic() + " got " + message.body());
+          }
+          done.countDown();
+        }
+      });
+    }
+    // One publisher thread per topic
+    for (int t = 0; t < topics; t++) {
+      final String topic = "topic/" + t;
+      new Thread(new Runnable() {
+        @Override
+        public void run() {
+          for (int i = 0; i < messages; i++) {
+            bus.publish(topic, i);
+          }
+        }
+      }).start();
+    }
+    assertTrue(done.await(10, TimeUnit.SECONDS));
+    assertEquals(Collections.emptyList(), errors);
+  }
+
+  @Test
+  public void testReplyAndWildcard() throws InterruptedException {
+    final CountDownLatch done = new CountDownLatch(2);
+    final AtomicReference<Object> reply = new AtomicReference<Object>();
+    bus.subscribe("a/+", new Handler<Message<String>>() {
+      @Override
+      public void handle(Message<String> message) {
+        message.reply(message.body() + "!");
+        done.countDown();
+      }
+    });
+    bus.send("a/b", "hi", new Handler<Message<String>>() {
+      @Override
+      public void handle(Message<String> message) {
+        reply.set(message.body());
+        done.countDown();
+      }
+    });
+    assertTrue(done.await(5, TimeUnit.SECONDS));
+    assertEquals("hi!", reply.get());
+  }
+
+  @Test
+  public void testReplyTimeout() throws InterruptedException {
+    final CountDownLatch done = new CountDownLatch(1);
+    final AtomicReference<Throwable> cause = new AtomicReference<Throwable>();
+    bus.sendWithTimeout("nobody", "hi", 50, new Handler<AsyncResult<Message<String>>>() {
+      @Override
+      public void handle(AsyncResult<Message<String>> result) {
+        cause.set(result.cause());
+        done.countDown();
+      }
+    });
+    assertTrue(done.await(5, TimeUnit.SECONDS));
+    assertEquals(ReplyFailure.TIMEOUT, ((ReplyException) cause.get()).failureType());
+  }
+
+  @Test
+  public void testSendWithTimeoutAfterClose() {
+    final AtomicReference<Throwable> cause = new AtomicReference<Throwable>();
+    bus.close();
+    bus.sendWithTimeout("nobody", "hi", 50, new Handler<AsyncResult<Message<String>>>() {
+      @Override
+      public void handle(AsyncResult<Message<String>> result) {
+        cause.set(result.cause());
+      }
+    });
+    assertEquals(ReplyFailure.NO_HANDLERS, ((ReplyException) cause.get()).failureType());
+  }
+}
@@ -0,0 +1,106 @@
+/*
+ * Copyright 2014 Goodow.com
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License
+ * is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package com.goodow.realtime.java;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import com.goodow.realtime.core.Handler;
+
+import org.junit.After;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+public class JavaSchedulerTest {
+  private final JavaScheduler scheduler = new JavaScheduler(5);
+
+  @After
+  public void tearDown() {
+    scheduler.shutdown();
+  }
+
+  @Test
+  public void testDeferredRunOnTheLoopInOrder() throws InterruptedException {
+    final List<Integer> order = Collections.synchronizedList(new ArrayList<Integer>());
+    final CountDownLatch done = new CountDownLatch(3);
+    for (int i = 0; i < 3; i++) {
+      final int n = i;
+      scheduler.scheduleDeferred(new Handler<Void>() {
+        @Override
+        public void handle(Void event) {
+          assertTrue(scheduler.isEventLoop());
+          order.add(n);
+          done.countDown();
+        }
+      });
+    }
+    assertTrue(done.await(5, TimeUnit.SECONDS));
+    assertEquals(3, order.size());
+    assertEquals(Integer.valueOf(0), order.get(0));
+    assertEquals(Integer.valueOf(2), order.get(2));
+  }
+
+  @Test
+  public void testTimers() throws InterruptedException {
+    final List<String> fired = Collections.synchronizedList(new ArrayList<String>());
+    final CountDownLatch done = new CountDownLatch(1);
+    scheduler.scheduleDelay(60, new Handler<Void>() {
+      @Override
+      public void handle(Void event) {
+        fired.add("late");
+        done.countDown();
+      }
+    });
+    scheduler.scheduleDelay(10, new Handler<Void>() {
+      @Override
+      public void handle(Void event) {
+        fired.add("early");
+      }
+    });
+    int cancelled = scheduler.scheduleDelay(20, new Handler<Void>() {
+      @Override
+      public void handle(Void event) {
+        fired.add("cancelled");
+      }
+    });
+    assertTrue(scheduler.cancelTimer(cancelled));
+    assertFalse(scheduler.cancelTimer(cancelled));
+    assertTrue(done.await(5, TimeUnit.SECONDS));
+    assertEquals("[early, late]", fired.toString());
+  }
+
+  @Test
+  public void testPeriodic() throws InterruptedException {
+    final CountDownLatch done = new CountDownLatch(3);
+    final int[] id = new int[1];
+    id[0] = scheduler.schedulePeriodic(5, new Handler<Void>() {
+      @Override
+      public void handle(Void event) {
+        // Cancelled before the last count down, which lets the test go on
+        if (done.getCount() == 1) {
+          scheduler.cancelTimer(id[0]);
+        }
+        done.countDown();
+      }
+    });
+    assertTrue(done.await(5, TimeUnit.SECONDS));
+    assertFalse(scheduler.cancelTimer(id[0]));
+  }
+}
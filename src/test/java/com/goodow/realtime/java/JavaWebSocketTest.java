@@ -0,0 +1,154 @@
+/*
+ * Copyright 2014 Goodow.com
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License
+ * is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package com.goodow.realtime.java;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import com.goodow.realtime.core.WebSocket;
+import com.goodow.realtime.json.JsonObject;
+
+import org.junit.After;
+import org.junit.Test;
+
+import java.io.DataInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+
+public class JavaWebSocketTest {
+  private final JavaScheduler scheduler = new JavaScheduler();
+
+  /**
+   * Accepts one connection, completes the handshake, and echoes text frames back unmasked until
+   * it receives a close frame, which it answers.
+   */
+  private static void echo(ServerSocket server) throws IOException {
+    Socket socket = server.accept();
+    try {
+      DataInputStream in = new DataInputStream(socket.getInputStream());
+      OutputStream out = socket.getOutputStream();
+      String key = null;
+      for (String line = readLine(in); !line.isEmpty(); line = readLine(in)) {
+        if (line.startsWith("Sec-WebSocket-Key:")) {
+          key = line.substring("Sec-WebSocket-Key:".length()).trim();
+        }
+      }
+      out.write(("HTTP/1.1 101 Switching Protocols\r\nUpgrade: websocket\r\n"
+          + "Connection: Upgrade\r\nSec-WebSocket-Accept: " + JavaWebSocket.acceptKey(key)
+          + "\r\n\r\n").getBytes("US-ASCII"));
+      while (true) {
+        int b0 = in.readUnsignedByte();
+        int length = in.readUnsignedByte() & 0x7F;
+        if (length == 126) {
+          length = in.readUnsignedShort();
+        }
+        byte[] mask = new byte[4];
+        in.readFully(mask);
+        byte[] payload = new byte[length];
+        in.readFully(payload);
+        for (int i = 0; i < length; i++) {
+          payload[i] ^= mask[i & 3];
+        }
+        out.write(b0);
+        if (length < 126) {
+          out.write(length);
+        } else {
+          out.write(126);
+          out.write(length >> 8);
+          out.write(length);
+        }
+        out.write(payload);
+        if ((b0 & 0x0F) == 0x8) {
+          return;
+        }
+      }
+    } finally {
+      socket.close();
+    }
+  }
+
+  private static String readLine(InputStream in) throws IOException {
+    StringBuilder sb = new StringBuilder();
+    for (int c = in.read(); c != '\n'; c = in.read()) {
+      if (c != '\r') {
+        sb.append((char) c);
+      }
+    }
+    return sb.toString();
+  }
+
+  @After
+  public void tearDown() {
+    scheduler.shutdown();
+  }
+
+  @Test
+  public void testEcho() throws Exception {
+    final ServerSocket server = new ServerSocket(0);
+    new Thread(new Runnable() {
+      @Override
+      public void run() {
+        try {
+          echo(server);
+        } catch (IOException e) {
+          throw new RuntimeException(e);
+        }
+      }
+    }).start();
+
+    final BlockingQueue<String> events = new LinkedBlockingQueue<String>();
+    final WebSocket socket = new JavaWebSocket("ws://localhost:" + server.getLocalPort() + "/x",
+        scheduler, JavaPlatform.readerThreadFactory());
+    final StringBuilder large = new StringBuilder();
+    for (int i = 0; i < 1000; i++) {
+      large.append("\u00e9");
+    }
+    socket.setListen(new WebSocket.WebSocketHandler() {
+      @Override
+      public void onClose(JsonObject reason) {
+        events.add("close " + (int) reason.getNumber("code"));
+      }
+
+      @Override
+      public void onError(String error) {
+        events.add("error " + error);
+      }
+
+      @Override
+      public void onMessage(String message) {
+        assertTrue(scheduler.isEventLoop());
+        events.add(message.length() > 100 ? "large " + message.equals(large.toString()) : message);
+      }
+
+      @Override
+      public void onOpen() {
+        events.add("open");
+        socket.send("hello");
+        socket.send(large.toString());
+        socket.close();
+      }
+    });
+    assertEquals("open", events.poll(5, TimeUnit.SECONDS));
+    assertEquals("hello", events.poll(5, TimeUnit.SECONDS));
+    assertEquals("large true", events.poll(5, TimeUnit.SECONDS));
+    assertEquals("close 1000", events.poll(5, TimeUnit.SECONDS));
+    server.close();
+  }
+}